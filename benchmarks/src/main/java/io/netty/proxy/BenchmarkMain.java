@@ -0,0 +1,31 @@
+package io.netty.proxy;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JMH入口，没有指定-rf时默认把结果写成JSON，便于在不同版本之间对比
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+            if (!options.contains("-rff")) {
+                options.add("-rff");
+                options.add("jmh-result.json");
+            }
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,82 @@
+package io.netty.proxy.auth;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.proxy.properties.AppProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个连接的认证开销：socks5用户名密码与HTTP Proxy-Authorization，校验结果缓存开启(cacheSize&gt;0)与关闭
+ * <p>
+ * 默认迭代次数下关闭缓存时每次认证需要数百毫秒，这里用{@code -p iterations=}调整
+ *
+ * @author chpengzh@foxmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticatorBenchmark {
+
+    @Param({"0", "1024"})
+    public int cacheSize;
+
+    @Param({"10000"})
+    public int iterations;
+
+    private static final String USERNAME = "some-user";
+
+    private static final String PASSWORD = "some.password";
+
+    private Authenticator authenticator;
+
+    private EventLoop loop;
+
+    private String authorization;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AppProperties properties = new AppProperties();
+        properties.setEnableAuth(true);
+        properties.setAuthCacheSize(cacheSize);
+        properties.getAuth().put(USERNAME, PasswordHash.create(PASSWORD, iterations).toString());
+        authenticator = new Authenticator(properties, new DefaultCredentialStore(properties));
+        loop = new DefaultEventLoop();
+        authorization = "Basic " + Base64.getEncoder()
+                .encodeToString((USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        authenticator.destroy();
+        loop.shutdownGracefully();
+    }
+
+    @Benchmark
+    public String socks5() {
+        return authenticator.verify(loop, USERNAME, PASSWORD).syncUninterruptibly().getNow();
+    }
+
+    @Benchmark
+    public String http() {
+        return authenticator.verifyBasic(loop, authorization).syncUninterruptibly().getNow();
+    }
+}
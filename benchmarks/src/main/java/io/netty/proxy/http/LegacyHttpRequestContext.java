@@ -0,0 +1,108 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 逐字节读取的旧版请求头解析，仅用于和{@link HttpRequestContext}做对比
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class LegacyHttpRequestContext {
+
+    private boolean connect;
+
+    private String method;
+
+    private String host;
+
+    private int port;
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    private boolean completed;
+
+    private ByteBuf byteBuf = Unpooled.buffer();
+
+    private final StringBuilder lines = new StringBuilder();
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    void release() {
+        byteBuf.release();
+    }
+
+    boolean read(ByteBuf in) {
+        while (in.isReadable()) {
+            if (completed) {
+                return true;
+            }
+
+            String line = readLine(in);
+            if (line == null) {
+                return false;
+            }
+
+            if (method == null) {
+                String[] seg = line.split(" ");
+                method = seg[0];
+                connect = method.equalsIgnoreCase("CONNECT");
+            }
+
+            if (line.startsWith("Host: ")) {
+                String[] arr = line.split(":");
+                host = arr[1].trim();
+                if (arr.length == 3) {
+                    port = Integer.parseInt(arr[2]);
+                } else if (connect) {
+                    port = 443;
+                } else {
+                    port = 80;
+                }
+            }
+
+            if (line.contains(":")) {
+                String[] arr = line.split(":");
+                headers.put(arr[0], arr[1].trim());
+            }
+
+            if (line.isEmpty()) {
+                if (host == null || port == 0) {
+                    throw new IllegalStateException("cannot find header 'Host'");
+                }
+                byteBuf = byteBuf.asReadOnly();
+                completed = true;
+                break;
+            }
+        }
+        return completed;
+    }
+
+    private String readLine(ByteBuf in) {
+        while (in.isReadable()) {
+            byte b = in.readByte();
+            byteBuf.writeByte(b);
+            lines.append((char) b);
+            int len = lines.length();
+            if (len >= 2 && lines.substring(len - 2).equals("\r\n")) {
+                String line = lines.substring(0, len - 2);
+                lines.delete(0, len);
+                return line;
+            }
+        }
+        return null;
+    }
+}
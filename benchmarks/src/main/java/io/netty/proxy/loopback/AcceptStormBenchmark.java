@@ -0,0 +1,105 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 建连风暴：多个线程不断新建到socks5端口的连接，完成协商认证方式后立即断开，结果即每秒接受并握手的连接数
+ * <p>
+ * 客户端以SO_LINGER=0关闭(RST)，避免本机TIME_WAIT耗尽临时端口；
+ * 用{@code -t}调整压测线程数，{@code -p acceptors=1,4}对比单个监听socket与SO_REUSEPORT多个监听socket
+ *
+ * @author chpengzh@foxmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class AcceptStormBenchmark {
+
+    /**
+     * 对应app.acceptors，大于1时需要epoll传输层
+     */
+    @Param({"1", "4"})
+    public int acceptors;
+
+    /**
+     * 对应app.accept-backlog
+     */
+    @Param({"1024"})
+    public int backlog;
+
+    private static final byte[] GREETING = {5, 1, 0};
+
+    private ConfigurableApplicationContext proxy;
+
+    private InetSocketAddress address;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int socks5Port = LoopbackRelayBenchmark.freePort();
+        int httpPort = LoopbackRelayBenchmark.freePort();
+        proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.main.banner-mode=off",
+                        "--logging.level.root=warn",
+                        // 客户端RST断开时握手pipeline末尾的告警
+                        "--logging.level.io.netty.channel.DefaultChannelPipeline=error",
+                        "--app.enable-metrics=false",
+                        "--app.transport=auto",
+                        "--app.acceptors=" + acceptors,
+                        "--app.accept-backlog=" + backlog,
+                        "--app.socks5-port=" + socks5Port,
+                        "--app.http-port=" + httpPort,
+                        "--app.proxy-pool-min-idle=0");
+        LoopbackRelayBenchmark.awaitListening(socks5Port);
+        address = new InetSocketAddress("127.0.0.1", socks5Port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        proxy.close();
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0);
+            socket.setTcpNoDelay(true);
+            socket.connect(address, 1000);
+            socket.getOutputStream().write(GREETING);
+            InputStream in = socket.getInputStream();
+            int version = in.read();
+            int method = in.read();
+            if (version != 5 || method != 0) {
+                throw new IOException("unexpected greeting reply " + version + "," + method);
+            }
+            return method;
+        }
+    }
+}
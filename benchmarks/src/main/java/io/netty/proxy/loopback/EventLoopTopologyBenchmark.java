@@ -0,0 +1,173 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 出站连接与客户端连接在同一个EventLoop上 vs 使用独立出站线程组时的往返延迟与上下文切换次数
+ * <p>
+ * 使用nio传输层并关闭splice，两种拓扑下隧道都走用户态转发；
+ * contextSwitches为本进程所有线程在每次迭代中的自愿+非自愿上下文切换总数(读取/proc/self/task/*&#47;status)，
+ * 除以ops即每次往返的切换次数
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventLoopTopologyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * 对应app.outbound-same-loop
+         */
+        @Param({"true", "false"})
+        public boolean outboundSameLoop;
+
+        LoopbackOrigin origin;
+
+        LoopbackSocks5Server upstream;
+
+        ConfigurableApplicationContext proxy;
+
+        int socks5Port;
+
+        int httpPort;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            origin = new LoopbackOrigin();
+            origin.start();
+            upstream = new LoopbackSocks5Server();
+            upstream.start();
+            socks5Port = LoopbackRelayBenchmark.freePort();
+            httpPort = LoopbackRelayBenchmark.freePort();
+            proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.enable-metrics=false",
+                            "--app.transport=nio",
+                            "--app.zero-copy=false",
+                            "--app.outbound-same-loop=" + outboundSameLoop,
+                            "--app.socks5-port=" + socks5Port,
+                            "--app.http-port=" + httpPort,
+                            "--app.proxy-host=127.0.0.1",
+                            "--app.proxy-port=" + upstream.port());
+            LoopbackRelayBenchmark.awaitListening(socks5Port);
+            LoopbackRelayBenchmark.awaitListening(httpPort);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            proxy.close();
+            upstream.stop();
+            origin.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"socks5", "http-connect"})
+        public String route;
+
+        @Param({"64"})
+        public int payload;
+
+        LoopbackClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(Servers servers) throws IOException {
+            client = "socks5".equals(route)
+                    ? LoopbackClient.socks5(servers.socks5Port, servers.origin.echoPort())
+                    : LoopbackClient.httpConnect(servers.httpPort, servers.origin.echoPort());
+            client.prepare(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    /**
+     * 每次迭代的上下文切换次数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Switches {
+
+        public long contextSwitches;
+
+        public long ops;
+
+        private long start;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            contextSwitches = 0;
+            ops = 0;
+            start = readContextSwitches();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            contextSwitches = readContextSwitches() - start;
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Client client, Switches switches) throws IOException {
+        switches.ops++;
+        return client.client.roundTrip();
+    }
+
+    /**
+     * 本进程所有线程的上下文切换总数，非linux时为0
+     */
+    private static long readContextSwitches() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return 0;
+        }
+        long total = 0;
+        for (File task : tasks) {
+            try {
+                for (String line : Files.readAllLines(new File(task, "status").toPath(), StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("voluntary_ctxt_switches:") || line.startsWith("nonvoluntary_ctxt_switches:")) {
+                        total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // 线程在读取期间退出
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,160 @@
+package io.netty.proxy.loopback;
+
+import io.netty.util.CharsetUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * 阻塞式的基准客户端，一个实例独占一条连接
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class LoopbackClient {
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * 普通GET请求的目标主机端口，0表示走echo隧道
+     */
+    private final int httpOriginPort;
+
+    private byte[] request;
+
+    private byte[] response;
+
+    private LoopbackClient(int port, int httpOriginPort) throws IOException {
+        this(new Socket("127.0.0.1", port), httpOriginPort);
+    }
+
+    private LoopbackClient(Socket socket, int httpOriginPort) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = socket.getOutputStream();
+        this.httpOriginPort = httpOriginPort;
+    }
+
+    static LoopbackClient direct(int echoPort) throws IOException {
+        return new LoopbackClient(echoPort, 0);
+    }
+
+    static LoopbackClient socks5(int proxyPort, int echoPort) throws IOException {
+        return socks5(new Socket("127.0.0.1", proxyPort), echoPort);
+    }
+
+    /**
+     * 在已经连接到socks5端口的socket(例如SSLSocket)上建立到echo的隧道
+     */
+    static LoopbackClient socks5(Socket socket, int echoPort) throws IOException {
+        LoopbackClient client = new LoopbackClient(socket, 0);
+        client.out.write(new byte[]{5, 1, 0});
+        client.expect(2);
+        client.out.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (echoPort >> 8), (byte) echoPort});
+        byte[] reply = client.expect(10);
+        if (reply[1] != 0) {
+            throw new IOException("socks5 CONNECT failed with status " + reply[1]);
+        }
+        return client;
+    }
+
+    /**
+     * 以域名发送socks5 CONNECT，由代理解析
+     */
+    static LoopbackClient socks5(int proxyPort, String host, int port) throws IOException {
+        LoopbackClient client = new LoopbackClient(proxyPort, 0);
+        byte[] name = host.getBytes(CharsetUtil.US_ASCII);
+        byte[] request = new byte[7 + name.length];
+        request[0] = 5;
+        request[1] = 1;
+        request[3] = 3;
+        request[4] = (byte) name.length;
+        System.arraycopy(name, 0, request, 5, name.length);
+        request[request.length - 2] = (byte) (port >> 8);
+        request[request.length - 1] = (byte) port;
+        client.out.write(new byte[]{5, 1, 0});
+        client.expect(2);
+        client.out.write(request);
+        byte[] reply = client.expect(10);
+        if (reply[1] != 0) {
+            throw new IOException("socks5 CONNECT failed with status " + reply[1]);
+        }
+        return client;
+    }
+
+    static LoopbackClient httpConnect(int proxyPort, int echoPort) throws IOException {
+        LoopbackClient client = new LoopbackClient(proxyPort, 0);
+        String target = "127.0.0.1:" + echoPort;
+        client.out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                .getBytes(CharsetUtil.US_ASCII));
+        String head = client.readHead();
+        if (!head.startsWith("HTTP/1.1 200")) {
+            throw new IOException("CONNECT failed: " + head);
+        }
+        return client;
+    }
+
+    static LoopbackClient httpGet(int proxyPort, int originPort) throws IOException {
+        return new LoopbackClient(proxyPort, originPort);
+    }
+
+    void prepare(int payload) {
+        if (httpOriginPort == 0) {
+            request = new byte[payload];
+        } else {
+            String target = "127.0.0.1:" + httpOriginPort;
+            request = ("GET http://" + target + "/?size=" + payload + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                    .getBytes(CharsetUtil.US_ASCII);
+        }
+        response = new byte[payload];
+    }
+
+    /**
+     * 发送一次请求并读完响应
+     */
+    int roundTrip() throws IOException {
+        out.write(request);
+        if (httpOriginPort != 0) {
+            readHead();
+        }
+        in.readFully(response);
+        return response.length;
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+
+    private byte[] expect(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * 读到空行为止，返回响应头
+     */
+    private String readHead() throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("connection closed while reading response head");
+            }
+            head.write(b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))
+                    ? matched + 1
+                    : 0;
+        }
+        return new String(head.toByteArray(), CharsetUtil.US_ASCII);
+    }
+}
@@ -0,0 +1,97 @@
+package io.netty.proxy.loopback;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * 本地目标主机：一个TCP echo端口，一个按?size=返回指定字节数的HTTP端口
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class LoopbackOrigin {
+
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+    private Channel echo;
+
+    private Channel http;
+
+    void start() throws InterruptedException {
+        echo = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public boolean isSharable() {
+                        return true;
+                    }
+
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        ctx.write(msg);
+                    }
+
+                    @Override
+                    public void channelReadComplete(ChannelHandlerContext ctx) {
+                        ctx.flush();
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        http = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<HttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) {
+                                List<String> size = new QueryStringDecoder(request.uri()).parameters().get("size");
+                                ByteBuf body = Unpooled.buffer();
+                                body.writeZero(size == null ? 0 : Integer.parseInt(size.get(0)));
+                                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                        HttpResponseStatus.OK, body);
+                                HttpUtil.setContentLength(response, body.readableBytes());
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    int echoPort() {
+        return ((InetSocketAddress) echo.localAddress()).getPort();
+    }
+
+    int httpPort() {
+        return ((InetSocketAddress) http.localAddress()).getPort();
+    }
+
+    void stop() {
+        group.shutdownGracefully();
+    }
+}
@@ -0,0 +1,158 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内端到端基准：本地echo/HTTP目标主机 + 本地socks5代替上游代理，测量两个代理的往返延迟与吞吐
+ * <pre>
+ * direct        直连echo，作为基线
+ * socks5        经由Socks5Server的CONNECT隧道
+ * http-connect  经由HttpProxyServer的CONNECT隧道
+ * http-get      经由HttpProxyServer转发keep-alive的普通GET，响应体为payload字节
+ * </pre>
+ * 每次操作发送payload字节并读回同样多的字节，吞吐 = ops/s * payload
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackRelayBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * 代理的传输层，对应app.transport
+         */
+        @Param({"auto"})
+        public String transport;
+
+        /**
+         * 对应app.zero-copy
+         */
+        @Param({"true"})
+        public boolean zeroCopy;
+
+        LoopbackOrigin origin;
+
+        LoopbackSocks5Server upstream;
+
+        ConfigurableApplicationContext proxy;
+
+        int socks5Port;
+
+        int httpPort;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            origin = new LoopbackOrigin();
+            origin.start();
+            upstream = new LoopbackSocks5Server();
+            upstream.start();
+            socks5Port = freePort();
+            httpPort = freePort();
+            proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.transport=" + transport,
+                            "--app.zero-copy=" + zeroCopy,
+                            "--app.socks5-port=" + socks5Port,
+                            "--app.http-port=" + httpPort,
+                            "--app.proxy-host=127.0.0.1",
+                            "--app.proxy-port=" + upstream.port());
+            awaitListening(socks5Port);
+            awaitListening(httpPort);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            proxy.close();
+            upstream.stop();
+            origin.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"direct", "socks5", "http-connect", "http-get"})
+        public String route;
+
+        @Param({"64", "65536"})
+        public int payload;
+
+        LoopbackClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(Servers servers) throws IOException {
+            switch (route) {
+                case "direct":
+                    client = LoopbackClient.direct(servers.origin.echoPort());
+                    break;
+                case "socks5":
+                    client = LoopbackClient.socks5(servers.socks5Port, servers.origin.echoPort());
+                    break;
+                case "http-connect":
+                    client = LoopbackClient.httpConnect(servers.httpPort, servers.origin.echoPort());
+                    break;
+                case "http-get":
+                    client = LoopbackClient.httpGet(servers.httpPort, servers.origin.httpPort());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown route " + route);
+            }
+            client.prepare(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Client client) throws IOException {
+        return client.client.roundTrip();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("proxy is not listening on port " + port);
+    }
+}
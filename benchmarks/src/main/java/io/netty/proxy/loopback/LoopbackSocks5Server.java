@@ -0,0 +1,107 @@
+package io.netty.proxy.loopback;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialResponse;
+import io.netty.handler.codec.socksx.v5.Socks5AddressType;
+import io.netty.handler.codec.socksx.v5.Socks5AuthMethod;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequest;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequest;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5ServerEncoder;
+import io.netty.proxy.relay.Tunnel;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 代替proxyHost:proxyPort的本地socks5服务：不认证，CONNECT直接连接目标主机
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class LoopbackSocks5Server {
+
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+    private Channel server;
+
+    void start() throws InterruptedException {
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(Socks5ServerEncoder.DEFAULT);
+                        ch.pipeline().addLast(new Socks5InitialRequestDecoder());
+                        ch.pipeline().addLast(new InitialHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    int port() {
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    void stop() {
+        group.shutdownGracefully();
+    }
+
+    private static final class InitialHandler extends SimpleChannelInboundHandler<Socks5InitialRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Socks5InitialRequest msg) {
+            ctx.pipeline().replace(Socks5InitialRequestDecoder.class, null, new Socks5CommandRequestDecoder());
+            ctx.pipeline().replace(this, null, new CommandHandler());
+            ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH));
+        }
+    }
+
+    private static final class CommandHandler extends SimpleChannelInboundHandler<Socks5CommandRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Socks5CommandRequest msg) {
+            Channel client = ctx.channel();
+            client.config().setAutoRead(false);
+            new Bootstrap()
+                    .group(client.eventLoop())
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                        }
+                    })
+                    .connect(msg.dstAddr(), msg.dstPort())
+                    .addListener((ChannelFutureListener) future -> {
+                        if (!future.isSuccess()) {
+                            client.writeAndFlush(new DefaultSocks5CommandResponse(
+                                    Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
+                                    .addListener(ChannelFutureListener.CLOSE);
+                            return;
+                        }
+                        client.writeAndFlush(new DefaultSocks5CommandResponse(
+                                Socks5CommandStatus.SUCCESS, Socks5AddressType.IPv4));
+                        client.pipeline().remove(Socks5CommandRequestDecoder.class);
+                        client.pipeline().remove(CommandHandler.this);
+                        client.pipeline().remove(Socks5ServerEncoder.class);
+                        Tunnel.create(client, future.channel());
+                        client.config().setAutoRead(true);
+                    });
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.LoopbackBlackhole;
+import io.netty.proxy.LoopbackDnsServer;
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目标域名解析出两个地址，第一个是丢弃SYN的黑洞，第二个是本地echo，测量经由socks5端口直连建立隧道的耗时分布
+ * <pre>
+ * attemptDelay=0     逐个尝试，黑洞地址要等到建连超时(1秒)
+ * attemptDelay=250   第一个地址250ms没有连上就并行尝试第二个
+ * history=0/4096     是否按记录的建连延迟与失败调整地址顺序，开启后只有第一次需要等待
+ * </pre>
+ * 黑洞地址为127.0.0.2，需要整个127.0.0.0/8都在回环网卡上(linux默认如此)
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class MultiAddressConnectBenchmark {
+
+    private static final String HOST = "dual.loopback.test";
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * 对应app.connect-attempt-delay
+         */
+        @Param({"0", "250"})
+        public long attemptDelay;
+
+        /**
+         * 对应app.connect-history-size
+         */
+        @Param({"0", "4096"})
+        public int history;
+
+        LoopbackOrigin origin;
+
+        LoopbackBlackhole blackhole;
+
+        LoopbackDnsServer dns;
+
+        ConfigurableApplicationContext proxy;
+
+        int socks5Port;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            origin = new LoopbackOrigin();
+            origin.start();
+            InetAddress hole = InetAddress.getByName("127.0.0.2");
+            blackhole = new LoopbackBlackhole(hole, origin.echoPort());
+            dns = new LoopbackDnsServer();
+            dns.add(HOST, Arrays.asList(hole, InetAddress.getByName("127.0.0.1")));
+            dns.start();
+            socks5Port = LoopbackRelayBenchmark.freePort();
+            proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.socks5-port=" + socks5Port,
+                            "--app.http-port=" + LoopbackRelayBenchmark.freePort(),
+                            "--app.routes[0]=MATCH,direct",
+                            "--app.dns-servers=127.0.0.1:" + dns.port(),
+                            "--app.connect-timeout=1000",
+                            "--app.connect-attempt-delay=" + attemptDelay,
+                            "--app.connect-history-size=" + history);
+            LoopbackRelayBenchmark.awaitListening(socks5Port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            proxy.close();
+            dns.close();
+            blackhole.close();
+            origin.stop();
+        }
+    }
+
+    @Benchmark
+    public void connect(Servers servers) throws IOException {
+        LoopbackClient.socks5(servers.socks5Port, HOST, servers.origin.echoPort()).close();
+    }
+}
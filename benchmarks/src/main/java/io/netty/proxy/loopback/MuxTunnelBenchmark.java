@@ -0,0 +1,126 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两个代理节点串联：客户端 -> edge的socks5端口 -> egress -> 本地echo，对比节点之间的两种连接方式
+ * <pre>
+ * chain=socks5  edge经由egress的socks5端口，每个隧道一条节点间TCP连接(预热池)
+ * chain=mux     edge经由egress的HTTP端口，所有隧道是同一个HTTP/2连接上的CONNECT流
+ * connect       新建隧道并收到socks5应答后关闭，结果即每秒建立的隧道数
+ * roundTrip     已建立隧道上的往返，吞吐 = ops/s * payload
+ * </pre>
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MuxTunnelBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * edge到egress的上游类型，对应app.upstreams.egress.type
+         */
+        @Param({"socks5", "mux"})
+        public String chain;
+
+        LoopbackOrigin origin;
+
+        ConfigurableApplicationContext egress;
+
+        ConfigurableApplicationContext edge;
+
+        int edgePort;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            origin = new LoopbackOrigin();
+            origin.start();
+            int egressSocks5Port = LoopbackRelayBenchmark.freePort();
+            int egressHttpPort = LoopbackRelayBenchmark.freePort();
+            egress = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.socks5-port=" + egressSocks5Port,
+                            "--app.http-port=" + egressHttpPort,
+                            "--app.routes[0]=MATCH,direct");
+            LoopbackRelayBenchmark.awaitListening(egressSocks5Port);
+            LoopbackRelayBenchmark.awaitListening(egressHttpPort);
+            edgePort = LoopbackRelayBenchmark.freePort();
+            edge = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.enable-metrics=false",
+                            "--app.socks5-port=" + edgePort,
+                            "--app.http-port=" + LoopbackRelayBenchmark.freePort(),
+                            "--app.upstreams.egress.type=" + chain,
+                            "--app.upstreams.egress.host=127.0.0.1",
+                            "--app.upstreams.egress.port=" + ("mux".equals(chain) ? egressHttpPort : egressSocks5Port),
+                            "--app.routes[0]=MATCH,egress");
+            LoopbackRelayBenchmark.awaitListening(edgePort);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            edge.close();
+            egress.close();
+            origin.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tunnel {
+
+        @Param({"64", "65536"})
+        public int payload;
+
+        LoopbackClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(Servers servers) throws IOException {
+            client = LoopbackClient.socks5(servers.edgePort, servers.origin.echoPort());
+            client.prepare(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public void connect(Servers servers) throws IOException {
+        LoopbackClient.socks5(servers.edgePort, servers.origin.echoPort()).close();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip(Tunnel tunnel) throws IOException {
+        return tunnel.client.roundTrip();
+    }
+}
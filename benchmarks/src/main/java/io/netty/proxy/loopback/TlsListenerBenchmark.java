@@ -0,0 +1,172 @@
+package io.netty.proxy.loopback;
+
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS socks5端口上OpenSSL与JDK SSLEngine的对比，客户端固定为JDK的SSLSocket，差异只来自代理一端
+ * <pre>
+ * handshake  新建TLS连接并完成socks5协商认证方式后断开，resume=false时每次丢弃会话做完整握手，
+ *            resume=true时复用会话(TLS 1.3票据)，结果即每秒握手数
+ * roundTrip  经由TLS socks5隧道到本地echo的往返，吞吐 = ops/s * payload
+ * </pre>
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsListenerBenchmark {
+
+    private static final byte[] GREETING = {5, 1, 0};
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * 对应app.tls-provider
+         */
+        @Param({"openssl", "jdk"})
+        public String provider;
+
+        SelfSignedCertificate certificate;
+
+        LoopbackOrigin origin;
+
+        LoopbackSocks5Server upstream;
+
+        ConfigurableApplicationContext proxy;
+
+        int socks5Port;
+
+        SSLSocketFactory sockets;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            certificate = new SelfSignedCertificate("localhost");
+            origin = new LoopbackOrigin();
+            origin.start();
+            upstream = new LoopbackSocks5Server();
+            upstream.start();
+            socks5Port = LoopbackRelayBenchmark.freePort();
+            proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.socks5-port=" + socks5Port,
+                            "--app.http-port=" + LoopbackRelayBenchmark.freePort(),
+                            "--app.proxy-host=127.0.0.1",
+                            "--app.proxy-port=" + upstream.port(),
+                            "--app.socks5-tls=true",
+                            "--app.tls-provider=" + provider,
+                            "--app.tls-cert-file=" + certificate.certificate().getPath(),
+                            "--app.tls-key-file=" + certificate.privateKey().getPath());
+            LoopbackRelayBenchmark.awaitListening(socks5Port);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers(), null);
+            sockets = context.getSocketFactory();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            proxy.close();
+            upstream.stop();
+            origin.stop();
+            certificate.delete();
+        }
+
+        SSLSocket connect() throws IOException {
+            SSLSocket socket = (SSLSocket) sockets.createSocket("127.0.0.1", socks5Port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Handshake {
+
+        /**
+         * 是否复用上一次握手的会话
+         */
+        @Param({"false", "true"})
+        public boolean resume;
+
+        private final byte[] reply = new byte[2];
+    }
+
+    @State(Scope.Thread)
+    public static class Tunnel {
+
+        @Param({"64", "65536"})
+        public int payload;
+
+        LoopbackClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(Servers servers) throws IOException {
+            client = LoopbackClient.socks5(servers.connect(), servers.origin.echoPort());
+            client.prepare(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int handshake(Servers servers, Handshake handshake) throws IOException {
+        try (SSLSocket socket = servers.connect()) {
+            // 读取应答时客户端才会处理TLS 1.3握手之后发来的会话票据
+            OutputStream out = socket.getOutputStream();
+            out.write(GREETING);
+            InputStream in = socket.getInputStream();
+            int read = 0;
+            while (read < handshake.reply.length) {
+                int n = in.read(handshake.reply, read, handshake.reply.length - read);
+                if (n < 0) {
+                    throw new IOException("connection closed during socks5 greeting");
+                }
+                read += n;
+            }
+            if (!handshake.resume) {
+                socket.getSession().invalidate();
+            }
+            socket.setSoLinger(true, 0);
+            return handshake.reply[1];
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip(Tunnel tunnel) throws IOException {
+        return tunnel.client.roundTrip();
+    }
+}
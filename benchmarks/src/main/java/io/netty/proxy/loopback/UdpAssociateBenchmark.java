@@ -0,0 +1,199 @@
+package io.netty.proxy.loopback;
+
+import io.netty.proxy.Socks5ProxyApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * socks5 UDP ASSOCIATE的数据报往返延迟：本地UDP echo，直连 vs 经由Socks5Server的UDP转发
+ * <p>
+ * 每次操作发送一个payload字节的数据报并等待echo回来的同样内容，回来的内容不一致时抛出异常，兼作端到端的正确性检查
+ *
+ * @author chpengzh@foxmail.com
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpAssociateBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        /**
+         * 代理的传输层，对应app.transport
+         */
+        @Param({"auto"})
+        public String transport;
+
+        DatagramSocket echo;
+
+        Thread echoThread;
+
+        ConfigurableApplicationContext proxy;
+
+        int socks5Port;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            echo = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            echoThread = new Thread(this::echo, "udp-echo");
+            echoThread.setDaemon(true);
+            echoThread.start();
+            socks5Port = LoopbackRelayBenchmark.freePort();
+            proxy = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.main.banner-mode=off",
+                            "--app.enable-metrics=false",
+                            "--app.enable-udp=true",
+                            "--app.transport=" + transport,
+                            "--app.socks5-port=" + socks5Port,
+                            "--app.http-port=" + LoopbackRelayBenchmark.freePort(),
+                            "--app.routes[0]=IP-CIDR,127.0.0.0/8,direct");
+            LoopbackRelayBenchmark.awaitListening(socks5Port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            proxy.close();
+            echo.close();
+        }
+
+        private void echo() {
+            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            try {
+                while (true) {
+                    packet.setLength(65536);
+                    echo.receive(packet);
+                    echo.send(packet);
+                }
+            } catch (IOException e) {
+                // socket关闭
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"direct", "socks5"})
+        public String route;
+
+        @Param({"64", "1400"})
+        public int payload;
+
+        Socket control;
+
+        DatagramSocket socket;
+
+        DatagramPacket request;
+
+        DatagramPacket response;
+
+        /**
+         * 回来的数据报中payload之前的字节数(socks5 UDP头)
+         */
+        int offset;
+
+        byte[] expected;
+
+        @Setup(Level.Trial)
+        public void setUp(Servers servers) throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            socket.setSoTimeout(1_000);
+            int echoPort = servers.echo.getLocalPort();
+            expected = new byte[payload];
+            Arrays.fill(expected, (byte) 'u');
+            byte[] data;
+            InetSocketAddress target;
+            if ("direct".equals(route)) {
+                data = expected;
+                target = new InetSocketAddress("127.0.0.1", echoPort);
+            } else {
+                target = associate(servers.socks5Port);
+                // RSV FRAG ATYP=IPv4 127.0.0.1 echoPort
+                offset = 10;
+                data = new byte[offset + payload];
+                data[3] = 1;
+                data[4] = 127;
+                data[7] = 1;
+                data[8] = (byte) (echoPort >> 8);
+                data[9] = (byte) echoPort;
+                System.arraycopy(expected, 0, data, offset, payload);
+            }
+            request = new DatagramPacket(data, data.length, target);
+            response = new DatagramPacket(new byte[offset + payload + 64], offset + payload + 64);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+            if (control != null) {
+                control.close();
+            }
+        }
+
+        private InetSocketAddress associate(int proxyPort) throws IOException {
+            control = new Socket("127.0.0.1", proxyPort);
+            DataInputStream in = new DataInputStream(control.getInputStream());
+            control.getOutputStream().write(new byte[]{5, 1, 0});
+            in.readFully(new byte[2]);
+            int port = socket.getLocalPort();
+            control.getOutputStream().write(new byte[]{5, 3, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            if (reply[1] != 0) {
+                throw new IOException("socks5 UDP ASSOCIATE failed with status " + reply[1]);
+            }
+            byte[] address = Arrays.copyOfRange(reply, 4, 8);
+            return new InetSocketAddress(InetAddress.getByAddress(address),
+                    ((reply[8] & 0xff) << 8) | (reply[9] & 0xff));
+        }
+
+        int roundTrip() throws IOException {
+            socket.send(request);
+            response.setLength(response.getData().length);
+            socket.receive(response);
+            byte[] data = response.getData();
+            boolean match = response.getLength() - offset == payload;
+            for (int i = 0; match && i < payload; i++) {
+                match = data[offset + i] == expected[i];
+            }
+            if (!match) {
+                throw new SocketException("unexpected datagram of " + response.getLength() + " bytes");
+            }
+            return payload;
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Client client) throws IOException {
+        return client.roundTrip();
+    }
+}
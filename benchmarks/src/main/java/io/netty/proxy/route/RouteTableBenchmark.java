@@ -0,0 +1,92 @@
+package io.netty.proxy.route;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由规则匹配：一半域名后缀规则、一半IPv4 CIDR规则，再加少量端口规则
+ *
+ * @author chpengzh@foxmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rules;
+
+    private RouteTable table;
+
+    private String hitDomain;
+
+    private String hitAddress;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>(rules + 2);
+        lines.add("DST-PORT,25,reject");
+        lines.add("DST-PORT,6881-6889,reject");
+        for (int i = 0; i < rules / 2; i++) {
+            String domain = "site" + random.nextInt(Integer.MAX_VALUE) + ".example" + (i % 100) + ".com";
+            lines.add("DOMAIN-SUFFIX," + domain + ",direct");
+            if (i == rules / 4) {
+                hitDomain = "cdn.img." + domain;
+            }
+        }
+        for (int i = 0; i < rules / 2; i++) {
+            String network = (10 + random.nextInt(200)) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            lines.add("IP-CIDR," + network + ".0/24,direct");
+            if (i == rules / 4) {
+                hitAddress = network + ".17";
+            }
+        }
+        lines.add("MATCH,proxy");
+        table = RouteTable.compile(lines, Arrays.asList("direct", "reject", "proxy"), "proxy");
+    }
+
+    @Benchmark
+    public String domainHit() {
+        return table.route(hitDomain, 443);
+    }
+
+    @Benchmark
+    public String domainMiss() {
+        return table.route("www.google.com", 443);
+    }
+
+    @Benchmark
+    public String addressHit() {
+        return table.route(hitAddress, 443);
+    }
+
+    @Benchmark
+    public String addressMiss() {
+        return table.route("8.8.8.8", 443);
+    }
+
+    @Benchmark
+    public String portHit() {
+        return table.route("www.google.com", 25);
+    }
+}
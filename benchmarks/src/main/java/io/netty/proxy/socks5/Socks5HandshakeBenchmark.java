@@ -0,0 +1,127 @@
+package io.netty.proxy.socks5;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.proxy.access.AccessLog;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.auth.DefaultCredentialStore;
+import io.netty.proxy.bind.BindRelay;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.limit.Limiter;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.tls.TlsContexts;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.udp.UdpRelay;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Socks5Server}中socks5握手pipeline的开销：协商认证方式与用户名密码认证
+ * <p>
+ * CONNECT之后会真实连接上游代理，由loopback基准覆盖
+ *
+ * @author chpengzh@foxmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Socks5HandshakeBenchmark {
+
+    @Param({"false", "true"})
+    public boolean auth;
+
+    private EventLoops eventLoops;
+
+    private Authenticator authenticator;
+
+    private Limiter limiter;
+
+    private Reaper reaper;
+
+    private Socks5ServerInitializer initializer;
+
+    private ByteBuf initialRequest;
+
+    private ByteBuf authRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AppProperties properties = new AppProperties();
+        properties.setEnableAuth(auth);
+        properties.getAuth().put("some-user", "some.password");
+        properties.setTransport("nio");
+        properties.setWorkerThreads(1);
+        eventLoops = new EventLoops(properties);
+        authenticator = new Authenticator(properties, new DefaultCredentialStore(properties));
+        limiter = new Limiter(properties, new StandardEnvironment());
+        DnsResolver dns = new DnsResolver(properties);
+        Router router = new Router(properties, dns);
+        reaper = new Reaper(properties);
+        initializer = new Socks5ServerInitializer(properties,
+                eventLoops,
+                router,
+                authenticator,
+                limiter,
+                new UdpRelay(properties, eventLoops, router, dns, reaper),
+                new BindRelay(properties, eventLoops, dns, reaper),
+                reaper,
+                new AccessLog(properties),
+                new TlsContexts(properties));
+        // VER=5, NMETHODS=1, METHOD
+        initialRequest = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{5, 1, (byte) (auth ? 2 : 0)}));
+        byte[] user = "some-user".getBytes(CharsetUtil.US_ASCII);
+        byte[] password = "some.password".getBytes(CharsetUtil.US_ASCII);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(1).writeByte(user.length).writeBytes(user).writeByte(password.length).writeBytes(password);
+        authRequest = Unpooled.unreleasableBuffer(buf);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        eventLoops.destroy();
+        authenticator.destroy();
+        limiter.destroy();
+        reaper.destroy();
+    }
+
+    @Benchmark
+    public void handshake(Blackhole bh) {
+        EmbeddedChannel ch = new EmbeddedChannel(initializer);
+        ch.writeInbound(initialRequest.duplicate());
+        consume(bh, ch.readOutbound());
+        if (auth) {
+            ch.writeInbound(authRequest.duplicate());
+            consume(bh, ch.readOutbound());
+        }
+        ch.finishAndReleaseAll();
+    }
+
+    private static void consume(Blackhole bh, Object msg) {
+        ByteBuf buf = (ByteBuf) msg;
+        bh.consume(buf.getByte(buf.readerIndex() + 1));
+        buf.release();
+    }
+}
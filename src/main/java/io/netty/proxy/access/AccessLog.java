@@ -0,0 +1,214 @@
+package io.netty.proxy.access;
+
+import io.netty.channel.Channel;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 连接级访问日志
+ * <p>
+ * 客户端连接关闭时把{@link AccessRecord}放入一个有界无锁的MPSC环形队列，由单独的写线程批量取出，
+ * 按行写成NDJSON并按大小滚动文件。EventLoop中只有一次入队操作，不做任何格式化与磁盘IO；
+ * 队列满或者写文件失败时丢弃记录并计数，不阻塞转发
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class AccessLog implements DisposableBean {
+
+    /**
+     * 写线程每批最多取出的记录数
+     */
+    private static final int BATCH = 512;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AppProperties properties;
+
+    private final File file;
+
+    private final Queue<AccessRecord> queue;
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    private OutputStream out;
+
+    private long written;
+
+    public AccessLog(AppProperties properties) {
+        this.properties = properties;
+        if (StringUtils.isEmpty(properties.getAccessLogFile())) {
+            this.file = null;
+            this.queue = null;
+            this.writer = null;
+            return;
+        }
+        this.file = new File(properties.getAccessLogFile());
+        this.queue = PlatformDependent.newFixedMpscQueue(properties.getAccessLogQueueSize());
+        this.writer = new Thread(this::run, "proxy-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("access log writes to {}", file.getAbsolutePath());
+    }
+
+    /**
+     * 为新接受的客户端连接创建访问记录，连接关闭时写出
+     *
+     * @param server 记录中的server字段
+     */
+    public void open(Channel client, String server) {
+        if (file == null) {
+            return;
+        }
+        AccessRecord record = AccessRecord.open(server, client);
+        client.closeFuture().addListener(future -> {
+            record.closed(client);
+            if (!queue.offer(record)) {
+                ProxyMetrics.ACCESS_LOG_DROPPED.increment();
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private void run() {
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(properties.getAccessLogFlushInterval());
+        StringBuilder batch = new StringBuilder(BATCH * 256);
+        boolean dirty = false;
+        while (true) {
+            boolean stopping = !running;
+            int records = drain(batch);
+            if (records > 0) {
+                write(batch, records);
+                dirty = true;
+                continue;
+            }
+            if (dirty) {
+                flush();
+                dirty = false;
+            }
+            if (stopping) {
+                close();
+                return;
+            }
+            // 入队时不唤醒写线程，避免EventLoop上的系统调用，记录最多延迟一个刷新间隔
+            LockSupport.parkNanos(this, flushNanos);
+        }
+    }
+
+    private int drain(StringBuilder batch) {
+        batch.setLength(0);
+        int records = 0;
+        AccessRecord record;
+        while (records < BATCH && (record = queue.poll()) != null) {
+            record.writeJson(batch);
+            records++;
+        }
+        return records;
+    }
+
+    private void write(StringBuilder batch, int records) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (out == null || written + bytes.length > properties.getAccessLogMaxFileSize()) {
+                rotate();
+            }
+            out.write(bytes);
+            written += bytes.length;
+            ProxyMetrics.ACCESS_LOG_WRITTEN.add(records);
+        } catch (IOException e) {
+            log.error("write access log {} failed: {}", file, e.toString());
+            ProxyMetrics.ACCESS_LOG_DROPPED.add(records);
+            // 下一批重新打开文件
+            close();
+        }
+    }
+
+    /**
+     * 关闭当前文件，依次把file.(i)改名为file.(i+1)，超出保留个数的删除，再打开新的文件
+     */
+    private void rotate() throws IOException {
+        if (out == null && file.length() < properties.getAccessLogMaxFileSize()) {
+            // 启动时接着上次的文件写
+            open();
+            return;
+        }
+        close();
+        int keep = properties.getAccessLogMaxFiles();
+        File oldest = new File(file.getPath() + "." + keep);
+        if (oldest.exists() && !oldest.delete()) {
+            log.warn("cannot delete rotated access log {}", oldest);
+        }
+        for (int i = keep - 1; i >= 1; i--) {
+            File rotated = new File(file.getPath() + "." + i);
+            if (rotated.exists() && !rotated.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                log.warn("cannot rename rotated access log {}", rotated);
+            }
+        }
+        if (keep > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            log.warn("cannot rotate access log {}", file);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("cannot create directory " + parent);
+        }
+        // keep为0或者改名失败时截断原文件
+        boolean append = file.exists() && file.length() < properties.getAccessLogMaxFileSize();
+        out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE);
+        written = append ? file.length() : 0;
+    }
+
+    private void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            log.error("flush access log {} failed: {}", file, e.toString());
+            close();
+        }
+    }
+
+    private void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn("close access log {} failed: {}", file, e.toString());
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,264 @@
+package io.netty.proxy.access;
+
+import io.netty.channel.Channel;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个客户端连接的访问记录，连接关闭时交给{@link AccessLog}写出
+ * <p>
+ * 除关闭原因外所有字段只在客户端channel的EventLoop中修改，经由{@link AccessLog}的队列交给写线程；
+ * 静态方法在没有开启访问日志(channel上没有记录)时什么也不做，调用方不需要判断
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class AccessRecord {
+
+    static final AttributeKey<AccessRecord> KEY = AttributeKey.valueOf(AccessRecord.class, "accessRecord");
+
+    /**
+     * 客户端主动关闭或者隧道中客户端一端先关闭
+     */
+    public static final String CLIENT = "client";
+
+    /**
+     * 隧道中目标主机一端先关闭
+     */
+    public static final String REMOTE = "remote";
+
+    public static final String AUTH_FAILED = "auth_failed";
+
+    public static final String LIMITED = "limited";
+
+    public static final String CONNECT_FAILED = "connect_failed";
+
+    public static final String UNSUPPORTED = "unsupported";
+
+    public static final String BAD_REQUEST = "bad_request";
+
+    public static final String DRAIN = "drain";
+
+    private final String server;
+
+    /**
+     * 连接建立的时间(毫秒时间戳)
+     */
+    private final long timestamp = System.currentTimeMillis();
+
+    private final long acceptedNanos = System.nanoTime();
+
+    private final SocketAddress clientAddress;
+
+    private String user;
+
+    /**
+     * socks5命令或者HTTP方法
+     */
+    private String command;
+
+    private String host;
+
+    private int port;
+
+    /**
+     * 路由选择的出口
+     */
+    private String route;
+
+    /**
+     * 收到命令/请求头的时间，0表示还没有收到
+     */
+    private long commandNanos;
+
+    /**
+     * 隧道建立/第一个请求拿到出站连接的时间，0表示还没有建立
+     */
+    private long connectedNanos;
+
+    private long closedNanos;
+
+    private Tunnel tunnel;
+
+    /**
+     * 不经过{@link Tunnel}转发(普通HTTP请求)的字节数
+     */
+    private long bytesUp;
+
+    private long bytesDown;
+
+    private int requests;
+
+    private String error;
+
+    private volatile String reason;
+
+    private AccessRecord(String server, Channel client) {
+        this.server = server;
+        this.clientAddress = client.remoteAddress();
+    }
+
+    static AccessRecord open(String server, Channel client) {
+        AccessRecord record = new AccessRecord(server, client);
+        client.attr(KEY).set(record);
+        return record;
+    }
+
+    /**
+     * 收到socks5命令或者一个HTTP请求
+     */
+    public static void command(Channel client, String command, String host, int port) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record == null) {
+            return;
+        }
+        record.command = command;
+        record.host = host;
+        record.port = port;
+        record.requests++;
+        if (record.commandNanos == 0) {
+            record.commandNanos = System.nanoTime();
+        }
+    }
+
+    public static void route(Channel client, String route) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record != null) {
+            record.route = route;
+        }
+    }
+
+    /**
+     * 出站连接已经建立，tunnel为null时表示不经过隧道转发的普通HTTP请求
+     */
+    public static void connected(Channel client, Tunnel tunnel) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record == null) {
+            return;
+        }
+        if (record.connectedNanos == 0) {
+            record.connectedNanos = System.nanoTime();
+        }
+        if (tunnel != null) {
+            record.tunnel = tunnel;
+            tunnel.getRemote().closeFuture().addListener(future -> record.closing(REMOTE));
+        }
+    }
+
+    /**
+     * 累加不经过{@link Tunnel}转发的字节数
+     */
+    public static void relayed(Channel client, long up, long down) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record != null) {
+            record.bytesUp += up;
+            record.bytesDown += down;
+        }
+    }
+
+    /**
+     * 记录连接即将关闭的原因，只保留第一次的原因，可以在任意线程中调用
+     */
+    public static void closing(Channel client, String reason) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record != null) {
+            record.closing(reason);
+        }
+    }
+
+    /**
+     * 同{@link #closing(Channel, String)}，同时记录失败原因
+     */
+    public static void failed(Channel client, String reason, Throwable cause) {
+        AccessRecord record = client.attr(KEY).get();
+        if (record != null) {
+            record.error = cause.toString();
+            record.closing(reason);
+        }
+    }
+
+    private void closing(String reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * 客户端channel已经关闭，在客户端channel的EventLoop中调用
+     */
+    void closed(Channel client) {
+        closedNanos = System.nanoTime();
+        closing(CLIENT);
+        user = client.attr(Authenticator.USER).get();
+    }
+
+    /**
+     * 追加一行NDJSON
+     */
+    void writeJson(StringBuilder out) {
+        out.append("{\"ts\":").append(timestamp);
+        field(out, "server", server);
+        if (clientAddress instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) clientAddress;
+            field(out, "client", address.getHostString());
+            out.append(",\"client_port\":").append(address.getPort());
+        }
+        field(out, "user", user);
+        field(out, "cmd", command);
+        field(out, "host", host);
+        if (host != null) {
+            out.append(",\"port\":").append(port);
+        }
+        field(out, "route", route);
+        if (commandNanos != 0) {
+            out.append(",\"handshake_us\":").append(micros(commandNanos - acceptedNanos));
+            if (connectedNanos != 0) {
+                out.append(",\"connect_us\":").append(micros(connectedNanos - commandNanos));
+            }
+        }
+        out.append(",\"duration_ms\":").append(TimeUnit.NANOSECONDS.toMillis(closedNanos - acceptedNanos));
+        long up = bytesUp;
+        long down = bytesDown;
+        if (tunnel != null) {
+            up += tunnel.getUpstream().getBytes();
+            down += tunnel.getDownstream().getBytes();
+            if (tunnel.isSpliced()) {
+                // splice转发的字节不经过用户态，没有计数
+                out.append(",\"spliced\":true");
+            }
+        }
+        out.append(",\"up\":").append(up).append(",\"down\":").append(down);
+        if (requests > 1) {
+            out.append(",\"requests\":").append(requests);
+        }
+        field(out, "reason", reason);
+        field(out, "error", error);
+        out.append("}\n");
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static void field(StringBuilder out, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        out.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,238 @@
+package io.netty.proxy.auth;
+
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 校验socks5用户名密码与HTTP Proxy-Authorization
+ * <p>
+ * 慢哈希在独立的auth线程组中计算，不占用EventLoop；校验结果按凭据摘要(socks5为用户名+密码，HTTP为整个请求头)
+ * 缓存在有界的LRU中，同一个凭据只在第一次使用、缓存淘汰或者凭据重新加载之后计算一次哈希，
+ * 并发的相同凭据共用同一次计算；校验失败的结果不缓存
+ * <p>
+ * 每个auth线程最多排队{@code authMaxPendingHashes}次计算，大量错误密码把队列占满后新的校验直接失败，
+ * 不会无限堆积，也不会让正常登录排在所有错误密码之后等待
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class Authenticator implements DisposableBean {
+
+    /**
+     * 认证通过的用户名，保存在客户端channel上
+     */
+    public static final AttributeKey<String> USER = AttributeKey.valueOf(Authenticator.class, "user");
+
+    private static final String BASIC_PREFIX = "Basic ";
+
+    private static final FastThreadLocal<MessageDigest> SHA256 = new FastThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() throws NoSuchAlgorithmException {
+            return MessageDigest.getInstance("SHA-256");
+        }
+    };
+
+    private final CredentialStore store;
+
+    private final EventExecutorGroup hashExecutors;
+
+    /**
+     * 凭据摘要 -> 校验结果(用户名)，cacheSize为0时不缓存
+     */
+    private final Map<ByteBuffer, Verification> cache;
+
+    private final int cacheSize;
+
+    public Authenticator(AppProperties properties, CredentialStore store) {
+        this.store = store;
+        this.cacheSize = properties.getAuthCacheSize();
+        this.hashExecutors = new DefaultEventExecutorGroup(properties.getAuthThreads(),
+                new DefaultThreadFactory("proxy-auth"),
+                Math.max(1, properties.getAuthMaxPendingHashes()),
+                RejectedExecutionHandlers.reject());
+        this.cache = new LinkedHashMap<ByteBuffer, Verification>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Verification> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 校验socks5用户名密码
+     *
+     * @param loop 结果在该EventLoop中通知
+     * @return 成功时为用户名，失败时为null
+     */
+    public Future<String> verify(EventExecutor loop, String username, String password) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+        MessageDigest digest = SHA256.get();
+        digest.update((byte) 'S');
+        digest.update(user);
+        digest.update((byte) 0);
+        digest.update(pass);
+        return verify(loop, ByteBuffer.wrap(digest.digest()), username, password);
+    }
+
+    /**
+     * 校验HTTP Proxy-Authorization: Basic base64(用户名:密码)
+     *
+     * @param loop 结果在该EventLoop中通知
+     * @return 成功时为用户名，失败时为null
+     */
+    public Future<String> verifyBasic(EventExecutor loop, String authorization) {
+        MessageDigest digest = SHA256.get();
+        digest.update((byte) 'H');
+        digest.update(authorization.getBytes(StandardCharsets.ISO_8859_1));
+        ByteBuffer key = ByteBuffer.wrap(digest.digest());
+        Verification cached = lookup(key);
+        if (cached != null) {
+            return cached.notify(loop);
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.startsWith(BASIC_PREFIX)
+                    ? authorization.substring(BASIC_PREFIX.length()).trim()
+                    : authorization.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return loop.newSucceededFuture(null);
+        }
+        // RFC 7617: 用户名不能包含冒号，密码可以
+        int colon = credentials.indexOf(':');
+        if (colon < 0) {
+            return loop.newSucceededFuture(null);
+        }
+        return verify(loop, key, credentials.substring(0, colon), credentials.substring(colon + 1));
+    }
+
+    @Override
+    public void destroy() {
+        hashExecutors.shutdownGracefully();
+    }
+
+    private Future<String> verify(EventExecutor loop, ByteBuffer key, String username, String password) {
+        Verification cached = lookup(key);
+        if (cached != null) {
+            return cached.notify(loop);
+        }
+        PasswordHash hash = store.find(username);
+        if (hash == null) {
+            return loop.newSucceededFuture(null);
+        }
+        if (!hash.isHashed()) {
+            return loop.newSucceededFuture(hash.verify(password) ? username : null);
+        }
+        long generation = store.generation();
+        EventExecutor executor = hashExecutors.next();
+        Promise<String> promise = executor.newPromise();
+        Verification verification = new Verification(promise, generation);
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                Verification racing = cache.get(key);
+                if (racing != null && racing.generation == generation) {
+                    return racing.notify(loop);
+                }
+                cache.put(key, verification);
+            }
+        }
+        try {
+            executor.execute(() -> {
+                boolean verified;
+                try {
+                    verified = hash.verify(password);
+                } catch (RuntimeException e) {
+                    log.error("verify password of user {} failed: {}", username, e.toString());
+                    verified = false;
+                }
+                complete(key, verification, promise, verified ? username : null);
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列已满，按校验失败处理，客户端可以稍后重试
+            ProxyMetrics.AUTH_HASH_REJECTED.increment();
+            complete(key, verification, promise, null);
+        }
+        return verification.notify(loop);
+    }
+
+    /**
+     * 校验失败时从缓存中移除，之后同样的凭据会重新计算
+     */
+    private void complete(ByteBuffer key, Verification verification, Promise<String> promise, String user) {
+        if (user == null && cacheSize > 0) {
+            synchronized (cache) {
+                cache.remove(key, verification);
+            }
+        }
+        promise.setSuccess(user);
+    }
+
+    /**
+     * 当前凭据版本下缓存的校验结果，不存在或者已经过期时返回null
+     */
+    private Verification lookup(ByteBuffer key) {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        synchronized (cache) {
+            Verification cached = cache.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.generation != store.generation()) {
+                cache.remove(key);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * 一次校验，计算中或者已经成功
+     */
+    private static final class Verification {
+
+        private final Future<String> result;
+
+        private final long generation;
+
+        Verification(Future<String> result, long generation) {
+            this.result = result;
+            this.generation = generation;
+        }
+
+        /**
+         * 在调用方的EventLoop中通知结果，已经完成时不需要切换线程
+         */
+        Future<String> notify(EventExecutor loop) {
+            if (result.isDone()) {
+                return loop.newSucceededFuture(result.getNow());
+            }
+            Promise<String> promise = loop.newPromise();
+            result.addListener(future -> promise.trySuccess(result.getNow()));
+            return promise;
+        }
+    }
+}
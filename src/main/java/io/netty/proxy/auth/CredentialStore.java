@@ -0,0 +1,21 @@
+package io.netty.proxy.auth;
+
+/**
+ * 用户凭据来源，默认实现为{@link DefaultCredentialStore}，声明一个@Primary的CredentialStore bean即可替换
+ *
+ * @author chpengzh@foxmail.com
+ */
+public interface CredentialStore {
+
+    /**
+     * 用户的密码，用户不存在时返回null；会在多个EventLoop中并发调用
+     */
+    PasswordHash find(String username);
+
+    /**
+     * 凭据发生变化时递增，{@link Authenticator}据此丢弃按旧凭据缓存的校验结果
+     */
+    default long generation() {
+        return 0;
+    }
+}
@@ -0,0 +1,123 @@
+package io.netty.proxy.auth;
+
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 凭据来自app.auth与app.auth-file，文件中每行一个用户：
+ * <pre>
+ * # 注释
+ * some-user:pbkdf2-sha256$310000$盐$哈希
+ * </pre>
+ * 文件修改后自动重新加载并整体替换，格式错误时继续使用旧的凭据；同名用户以文件为准
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class DefaultCredentialStore implements CredentialStore, DisposableBean {
+
+    private final AppProperties properties;
+
+    private volatile Map<String, PasswordHash> credentials;
+
+    private volatile long generation;
+
+    /**
+     * 上次加载的凭据文件修改时间，只在重新加载任务中访问
+     */
+    private long authFileModified;
+
+    private final ScheduledFuture<?> reloadTask;
+
+    public DefaultCredentialStore(AppProperties properties) {
+        this.properties = properties;
+        this.credentials = load();
+        long plain = credentials.values().stream().filter(hash -> !hash.isHashed()).count();
+        if (properties.isEnableAuth() && plain > 0) {
+            log.warn("{} user(s) configured with plain text password, "
+                    + "generate hashes with io.netty.proxy.auth.PasswordHash", plain);
+        }
+        if (properties.getAuthFile() != null) {
+            long interval = properties.getAuthCheckInterval();
+            this.reloadTask = GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(
+                    this::reloadIfModified, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.reloadTask = null;
+        }
+    }
+
+    @Override
+    public PasswordHash find(String username) {
+        return credentials.get(username);
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    @Override
+    public void destroy() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+        }
+    }
+
+    private Map<String, PasswordHash> load() {
+        Map<String, PasswordHash> loaded = new HashMap<>();
+        properties.getAuth().forEach((username, password) -> loaded.put(username, PasswordHash.parse(password)));
+        if (properties.getAuthFile() != null) {
+            Path path = Paths.get(properties.getAuthFile());
+            try {
+                authFileModified = Files.getLastModifiedTime(path).toMillis();
+                int lineNumber = 0;
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("line " + lineNumber + ": expect user:password");
+                    }
+                    loaded.put(line.substring(0, colon), PasswordHash.parse(line.substring(colon + 1)));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read auth file " + path, e);
+            }
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+
+    private void reloadIfModified() {
+        Path path = Paths.get(properties.getAuthFile());
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() == authFileModified) {
+                return;
+            }
+            Map<String, PasswordHash> reloaded = load();
+            credentials = reloaded;
+            generation++;
+            log.info("auth file {} reloaded with {} users", path, reloaded.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("reload auth file {} failed, keep the previous credentials: {}", path, e.toString());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.netty.proxy.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 加盐慢哈希保存的密码，格式：
+ * <pre>
+ * pbkdf2-sha256$迭代次数$base64(盐)$base64(哈希)
+ * </pre>
+ * 不是这个格式的值按明文密码处理(兼容app.auth中的明文配置)，比较时使用常量时间
+ * <p>
+ * 生成哈希：java -cp socks5-netty-1.0-SNAPSHOT.jar io.netty.proxy.auth.PasswordHash 密码
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class PasswordHash {
+
+    private static final String PBKDF2_SHA256 = "pbkdf2-sha256";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    /**
+     * 新生成哈希的迭代次数
+     */
+    public static final int DEFAULT_ITERATIONS = 310_000;
+
+    private static final int SALT_BYTES = 16;
+
+    private static final int HASH_BYTES = 32;
+
+    private final int iterations;
+
+    private final byte[] salt;
+
+    /**
+     * 哈希值，明文密码时为密码的UTF-8字节
+     */
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * 解析配置中的密码
+     *
+     * @throws IllegalArgumentException 以pbkdf2-sha256$开头但格式错误
+     */
+    public static PasswordHash parse(String value) {
+        if (!value.startsWith(PBKDF2_SHA256 + "$")) {
+            return new PasswordHash(0, null, value.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = value.split("\\$");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("bad password hash, expect " + PBKDF2_SHA256 + "$iterations$salt$hash");
+        }
+        int iterations = Integer.parseInt(parts[1]);
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("bad password hash iterations " + iterations);
+        }
+        return new PasswordHash(iterations, Base64.getDecoder().decode(parts[2]), Base64.getDecoder().decode(parts[3]));
+    }
+
+    /**
+     * 为明文密码生成随机盐的哈希
+     */
+    public static PasswordHash create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        return new PasswordHash(iterations, salt, pbkdf2(password, salt, iterations, HASH_BYTES));
+    }
+
+    /**
+     * 是否是慢哈希，明文密码的校验不需要离开EventLoop
+     */
+    public boolean isHashed() {
+        return salt != null;
+    }
+
+    /**
+     * 校验密码，慢哈希时耗时与迭代次数成正比
+     */
+    public boolean verify(String password) {
+        byte[] actual = isHashed()
+                ? pbkdf2(password, salt, iterations, hash.length)
+                : password.getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(actual, hash);
+    }
+
+    @Override
+    public String toString() {
+        if (!isHashed()) {
+            return "(plain)";
+        }
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PBKDF2_SHA256 + "$" + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bytes) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bytes * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: PasswordHash <password> [iterations]");
+            System.exit(1);
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+        System.out.println(create(args[0], iterations));
+    }
+}
@@ -0,0 +1,170 @@
+package io.netty.proxy.bind;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * socks5 BIND的监听端口分配
+ * <p>
+ * 每个BIND在控制连接的本地IP上打开一个只接受一条连接的监听socket，监听与连入的连接都注册在控制连接所在的EventLoop上，
+ * 连入后与控制连接之间可以直接splice零拷贝转发。监听在连入、超时或者控制连接关闭时立即关闭，端口马上可以再次分配
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class BindRelay {
+
+    private final AppProperties properties;
+
+    private final EventLoops eventLoops;
+
+    private final DnsResolver dns;
+
+    private final Reaper reaper;
+
+    /**
+     * 端口范围的起点与端口数，端口数为0时由内核分配临时端口
+     */
+    private final int firstPort;
+
+    private final int portCount;
+
+    /**
+     * 下一次分配从范围内的哪个偏移开始尝试
+     */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    public BindRelay(AppProperties properties, EventLoops eventLoops, DnsResolver dns, Reaper reaper) {
+        this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.dns = dns;
+        this.reaper = reaper;
+        String range = properties.getBindPortRange();
+        if (StringUtils.isEmpty(range)) {
+            this.firstPort = 0;
+            this.portCount = 0;
+        } else {
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            if (first <= 0 || last > 65535 || last < first) {
+                throw new IllegalArgumentException("bad bind port range " + range);
+            }
+            this.firstPort = first;
+            this.portCount = last - first + 1;
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnableBind();
+    }
+
+    /**
+     * 打开BIND监听
+     *
+     * @param peerHost BIND请求中的DST.ADDR，即将要连入的主机；是IP地址或者可以解析的域名时只接受该主机连入，全0时接受任意主机
+     * @param accepted 连入的连接，pipeline为空且没有开始读取；超时或者控制连接关闭时失败
+     * @return 监听地址，即第一个应答中的BND.ADDR/BND.PORT，在控制连接的EventLoop中回调
+     */
+    public Future<InetSocketAddress> listen(Channel control, String peerHost, Promise<Channel> accepted) {
+        EventLoop loop = control.eventLoop();
+        Promise<InetSocketAddress> promise = loop.newPromise();
+        InetAddress literal = DnsResolver.ipLiteral(peerHost);
+        if (literal != null) {
+            listen(control, literal.isAnyLocalAddress() ? null : literal, accepted, promise);
+            return promise;
+        }
+        dns.resolve(loop, peerHost, 0).addListener((Future<InetSocketAddress> resolved) -> {
+            if (!resolved.isSuccess()) {
+                promise.setFailure(resolved.cause());
+            } else {
+                listen(control, resolved.getNow().getAddress(), accepted, promise);
+            }
+        });
+        return promise;
+    }
+
+    private void listen(Channel control, InetAddress peer, Promise<Channel> accepted, Promise<InetSocketAddress> promise) {
+        TransportType transport = eventLoops.getTransport();
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(control.eventLoop())
+                .channel(transport.serverChannelClass())
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_BACKLOG, 1)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark())
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        InetAddress remote = ((InetSocketAddress) ch.remoteAddress()).getAddress();
+                        if (peer != null && !peer.equals(remote)) {
+                            log.warn("BIND拒绝非预期的连入,expected={},actual={}", peer, ch.remoteAddress());
+                            ch.close();
+                        } else if (!accepted.trySuccess(ch)) {
+                            ch.close();
+                        }
+                    }
+                });
+        if (properties.isZeroCopy() && transport == TransportType.EPOLL) {
+            SpliceRelay.configure(bootstrap);
+        }
+        InetAddress local = ((InetSocketAddress) control.localAddress()).getAddress();
+        bind(bootstrap, local, cursor.getAndIncrement(), portCount, promise, accepted, control);
+    }
+
+    /**
+     * 从offset开始依次尝试范围内的端口，端口被占用时换下一个，remaining为还可以尝试的次数
+     */
+    private void bind(ServerBootstrap bootstrap, InetAddress local, int offset, int remaining,
+                      Promise<InetSocketAddress> promise, Promise<Channel> accepted, Channel control) {
+        int port = portCount == 0 ? 0 : firstPort + Math.floorMod(offset, portCount);
+        bootstrap.bind(local, port).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                if (remaining > 1) {
+                    bind(bootstrap, local, cursor.getAndIncrement(), remaining - 1, promise, accepted, control);
+                } else {
+                    promise.setFailure(future.cause());
+                }
+                return;
+            }
+            Channel listener = future.channel();
+            ProxyMetrics.BIND_LISTENERS_ACTIVE.increment();
+            listener.closeFuture().addListener(closed -> ProxyMetrics.BIND_LISTENERS_ACTIVE.decrement());
+            long acceptTimeout = properties.getBindAcceptTimeout();
+            Timeout timeout = reaper.schedule(TimeoutPhase.BIND_ACCEPT, acceptTimeout, () -> accepted.tryFailure(
+                    new TimeoutException("no inbound connection within " + acceptTimeout + "ms")));
+            // 只接受一条连接，连入或者放弃后立即释放端口；连入时正处在监听socket的accept循环中，关闭放到循环结束之后
+            accepted.addListener(done -> {
+                timeout.cancel();
+                listener.eventLoop().execute(listener::close);
+            });
+            control.closeFuture().addListener(closed -> accepted.tryFailure(new IllegalStateException("control closed")));
+            log.debug("BIND监听已打开,local={}", listener.localAddress());
+            promise.setSuccess((InetSocketAddress) listener.localAddress());
+        });
+    }
+}
@@ -0,0 +1,143 @@
+package io.netty.proxy.dns;
+
+import io.netty.channel.EventLoop;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.transport.TransportType;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProvider;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 非阻塞DNS解析
+ * <p>
+ * 每个EventLoop一个解析器，查询在EventLoop上异步完成；所有解析器共享同一份遵循TTL的正/负缓存，
+ * 同一个域名同时只会有一个查询在进行中，后来的解析请求等待同一个结果
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class DnsResolver implements DisposableBean {
+
+    private static final int DNS_PORT = 53;
+
+    private final DnsAddressResolverGroup group;
+
+    public DnsResolver(AppProperties properties) {
+        TransportType transport = TransportType.of(properties.getTransport());
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .channelType(transport.datagramChannelClass())
+                .socketChannelType(transport.socketChannelClass())
+                .queryTimeoutMillis(properties.getDnsQueryTimeout())
+                .resolveCache(new DefaultDnsCache(properties.getDnsMinTtl(),
+                        properties.getDnsMaxTtl(),
+                        properties.getDnsNegativeTtl()))
+                .nameServerProvider(nameServers(properties.getDnsServers()));
+        this.group = new DnsAddressResolverGroup(builder);
+    }
+
+    /**
+     * 交给{@link io.netty.bootstrap.Bootstrap#resolver(AddressResolverGroup)}，connect未解析的地址时异步解析
+     */
+    public AddressResolverGroup<InetSocketAddress> group() {
+        return group;
+    }
+
+    /**
+     * 在loop上解析域名，结果也在loop中回调
+     */
+    public Future<InetSocketAddress> resolve(EventLoop loop, String host, int port) {
+        return group.getResolver(loop).resolve(InetSocketAddress.createUnresolved(normalize(host), port));
+    }
+
+    /**
+     * 在loop上解析域名的全部地址(A与AAAA)，结果也在loop中回调
+     */
+    public Future<List<InetSocketAddress>> resolveAll(EventLoop loop, String host, int port) {
+        return group.getResolver(loop).resolveAll(InetSocketAddress.createUnresolved(normalize(host), port));
+    }
+
+    /**
+     * 缓存按域名区分大小写，统一转为小写使大小写不同的同一个域名共享缓存与进行中的查询
+     */
+    private static String normalize(String host) {
+        return host.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * IP地址字面量转为InetAddress(不查询DNS)，域名返回null
+     */
+    public static InetAddress ipLiteral(String host) {
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(host);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        group.close();
+    }
+
+    private static DnsServerAddressStreamProvider nameServers(List<String> servers) {
+        if (servers == null || servers.isEmpty()) {
+            return DnsServerAddressStreamProviders.platformDefault();
+        }
+        InetSocketAddress[] addresses = new InetSocketAddress[servers.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = parseServer(servers.get(i).trim());
+        }
+        log.info("dns servers: {}", servers);
+        return new SequentialDnsServerAddressStreamProvider(addresses);
+    }
+
+    /**
+     * 解析ip、ip:port、[ipv6]:port形式的DNS服务器地址，只接受IP地址
+     */
+    private static InetSocketAddress parseServer(String server) {
+        String host = server;
+        int port = DNS_PORT;
+        if (server.startsWith("[")) {
+            int end = server.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("bad dns server " + server);
+            }
+            host = server.substring(1, end);
+            if (end + 1 < server.length()) {
+                port = Integer.parseInt(server.substring(end + 2));
+            }
+        } else if (server.indexOf(':') > 0 && server.indexOf(':') == server.lastIndexOf(':')) {
+            host = server.substring(0, server.indexOf(':'));
+            port = Integer.parseInt(server.substring(server.indexOf(':') + 1));
+        }
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(host);
+        if (address == null) {
+            throw new IllegalArgumentException("dns server must be an ip address: " + server);
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("bad dns server " + server, e);
+        }
+    }
+}
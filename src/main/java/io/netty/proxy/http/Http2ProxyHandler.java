@@ -0,0 +1,83 @@
+package io.netty.proxy.http;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.lifecycle.ServerChannels;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.timeout.Reaper;
+
+/**
+ * HTTP代理端口上的一个HTTP/2连接，安装在{@link Http2FrameCodec}之前
+ * <p>
+ * 每个流由{@link Http2MultiplexHandler}创建一个子channel交给{@link Http2StreamHandler}，同一个客户端连接上的
+ * 隧道与请求互不阻塞。这里只记录最后一次收到数据的时间供空闲检查，停止服务时发送GOAWAY，等待已有的流结束后关闭
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class Http2ProxyHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * SETTINGS_ENABLE_CONNECT_PROTOCOL(RFC 8441)，声明接受扩展CONNECT
+     */
+    private static final char SETTINGS_ENABLE_CONNECT_PROTOCOL = 8;
+
+    private volatile long lastRead = System.nanoTime();
+
+    private Http2ProxyHandler() {
+    }
+
+    /**
+     * 把已经收到连接前言的客户端连接切换为HTTP/2，必须在channel的EventLoop中调用
+     *
+     * @param streams 每个新建流的子channel的初始化
+     */
+    static void install(Channel ch, AppProperties properties, Reaper reaper, ChannelHandler streams)
+            throws Http2Exception {
+        Http2Settings settings = Http2Settings.defaultSettings()
+                .maxConcurrentStreams(properties.getHttp2MaxConcurrentStreams())
+                .initialWindowSize(properties.getHttp2InitialWindowSize())
+                .maxHeaderListSize(properties.getHttpMaxHeadSize());
+        settings.put(SETTINGS_ENABLE_CONNECT_PROTOCOL, (Long) 1L);
+        Http2FrameCodec codec = Http2FrameCodecBuilder.forServer()
+                .initialSettings(settings)
+                // 这个版本的HPACK校验不认识扩展CONNECT的:protocol，请求头由Http2StreamHandler校验
+                .validateHeaders(false)
+                .gracefulShutdownTimeoutMillis(properties.getDrainTimeout())
+                .build();
+        Http2ProxyHandler handler = new Http2ProxyHandler();
+        ch.pipeline().addLast(handler, codec, new Http2MultiplexHandler(streams));
+        // 连接级窗口不受SETTINGS影响，初始只有64KB，直接用WINDOW_UPDATE放大
+        Http2Connection connection = codec.connection();
+        int delta = properties.getHttp2ConnectionWindowSize() - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+        if (delta > 0) {
+            connection.local().flowController().incrementWindowSize(connection.connectionStream(), delta);
+        }
+        reaper.watchIdle(ch, () -> handler.lastRead, properties.getReadTimeout());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        lastRead = System.nanoTime();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt == ServerChannels.DRAIN) {
+            AccessRecord.closing(ctx.channel(), AccessRecord.DRAIN);
+            // 从pipeline末尾关闭，经过Http2FrameCodec的优雅关闭
+            ctx.channel().close();
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+}
@@ -0,0 +1,594 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpScheme;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.upstream.Socks5UpstreamException;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP/2连接上的一个流，安装在{@link Http2MultiplexHandler}为每个流创建的子channel上
+ * <p>
+ * 流的第一个HEADERS决定用途：
+ * <ul>
+ * <li>CONNECT：与目标主机建立隧道，回复200之后DATA帧的内容与目标主机双向转发</li>
+ * <li>扩展CONNECT(RFC 8441，:protocol为websocket)：先与目标主机完成HTTP/1.1的websocket升级，之后同CONNECT</li>
+ * <li>其他方法：经{@link Http2StreamFrameToHttpObjectCodec}转换为HTTP/1.1请求交给{@link HttpForwardHandler}</li>
+ * </ul>
+ * 子channel暂停读取时不归还流的接收窗口，所以隧道与请求转发原有的背压(目标主机写缓冲、限速)直接成为客户端在这个流上的流控，
+ * 不影响同一个连接上的其他流
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+class Http2StreamHandler extends ChannelDuplexHandler {
+
+    private static final AsciiString PROTOCOL = AsciiString.cached(":protocol");
+
+    private static final AsciiString WEBSOCKET = AsciiString.cached("websocket");
+
+    private static final AsciiString TRAILERS = AsciiString.cached("trailers");
+
+    /**
+     * HTTP/2中不允许出现的连接级请求头
+     */
+    private static final AsciiString[] CONNECTION_HEADERS = {
+            HttpHeaderNames.CONNECTION, AsciiString.cached("keep-alive"), AsciiString.cached("proxy-connection"),
+            HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.UPGRADE
+    };
+
+    private final HttpProxyServer server;
+
+    private final HttpUpstreamPool pool;
+
+    private final Reaper reaper;
+
+    private final HttpCache cache;
+
+    private final int maxHeadSize;
+
+    private ChannelHandlerContext ctx;
+
+    private Channel stream;
+
+    /**
+     * 是否已经收到第一个HEADERS
+     */
+    private boolean dispatched;
+
+    /**
+     * 是否是CONNECT流，之后的DATA帧不再交给HTTP转发
+     */
+    private boolean connect;
+
+    /**
+     * 隧道是否已经建立，之后读到的DATA帧转为字节，写出的字节转为DATA帧
+     */
+    private boolean tunneled;
+
+    /**
+     * 是否已经发送END_STREAM
+     */
+    private boolean ended;
+
+    /**
+     * 客户端是否已经发送END_STREAM
+     */
+    private boolean inputEnded;
+
+    private String desc;
+
+    /**
+     * 隧道的限流配额，隧道建立后交给{@link Tunnel}释放
+     */
+    private Lease lease;
+
+    private Channel remote;
+
+    /**
+     * 扩展CONNECT等待目标主机101的handler
+     */
+    private WebSocketUpgrade upgrade;
+
+    /**
+     * 隧道建立之前收到的数据
+     */
+    private final List<ByteBuf> pending = new ArrayList<>(2);
+
+    Http2StreamHandler(HttpProxyServer server, HttpUpstreamPool pool, Reaper reaper, HttpCache cache, int maxHeadSize) {
+        this.server = server;
+        this.pool = pool;
+        this.reaper = reaper;
+        this.cache = cache;
+        this.maxHeadSize = maxHeadSize;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        this.stream = ctx.channel();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Http2HeadersFrame) {
+            Http2HeadersFrame frame = (Http2HeadersFrame) msg;
+            String error = validate(frame.headers(), !dispatched);
+            if (error != null) {
+                log.error("bad http2 request from {}: {}", stream.remoteAddress(), error);
+                AccessRecord.closing(stream, AccessRecord.BAD_REQUEST);
+                if (dispatched) {
+                    ctx.close();
+                } else {
+                    dispatched = true;
+                    respond(HttpResponseStatus.BAD_REQUEST);
+                }
+                return;
+            }
+            if (!dispatched) {
+                dispatched = true;
+                dispatch(frame);
+                return;
+            }
+        }
+        if (!connect) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).content().isReadable()) {
+            ByteBuf content = ((Http2DataFrame) msg).content();
+            if (tunneled) {
+                ctx.fireChannelRead(content);
+            } else {
+                pending.add(content);
+            }
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+        if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream()
+                || msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream()) {
+            inputEnded = true;
+            if (tunneled) {
+                shutdownRemoteOutput();
+            }
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!tunneled || !(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        if (!buf.isReadable()) {
+            // 关闭前用来等待写缓冲的空数据，不需要单独发送一个DATA帧
+            buf.release();
+            promise.trySuccess();
+            return;
+        }
+        ctx.write(new DefaultHttp2DataFrame(buf), promise);
+    }
+
+    /**
+     * 隧道关闭时先发送END_STREAM并等待之前的DATA帧发送完成，直接关闭子channel会发送RST_STREAM，流控窗口中排队的数据会被丢弃
+     */
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        if (!tunneled || ended || !ctx.channel().isActive()) {
+            ctx.close(promise);
+            return;
+        }
+        ended = true;
+        ctx.writeAndFlush(new DefaultHttp2DataFrame(true)).addListener(future -> ctx.close(promise));
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        for (ByteBuf buf : pending) {
+            buf.release();
+        }
+        pending.clear();
+        if (!tunneled) {
+            if (lease != null) {
+                lease.close();
+            }
+            if (remote != null) {
+                remote.close();
+            }
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error("Unexpected error " + cause.toString());
+        ctx.close();
+    }
+
+    private void dispatch(Http2HeadersFrame frame) {
+        Http2Headers headers = frame.headers();
+        if (!HttpMethod.CONNECT.asciiName().contentEquals(headers.method())) {
+            forward(frame);
+            return;
+        }
+        connect = true;
+        inputEnded = frame.isEndStream();
+        stream.config().setAutoRead(false);
+        reaper.arm(stream, TimeoutPhase.CONNECT);
+        CharSequence protocol = headers.get(PROTOCOL);
+        boolean extended = protocol != null;
+        if (extended && (!WEBSOCKET.contentEqualsIgnoreCase(protocol)
+                || !HttpScheme.HTTP.name().contentEquals(headers.scheme()))) {
+            log.error("unsupported extended CONNECT {} {}://{}", protocol, headers.scheme(), headers.authority());
+            AccessRecord.closing(stream, AccessRecord.UNSUPPORTED);
+            respond(HttpResponseStatus.NOT_IMPLEMENTED);
+            return;
+        }
+        InetSocketAddress target;
+        try {
+            target = parseAuthority(headers.authority(), extended ? 80 : 443);
+        } catch (IllegalArgumentException err) {
+            log.error("bad CONNECT authority {}: {}", headers.authority(), err.toString());
+            AccessRecord.closing(stream, AccessRecord.BAD_REQUEST);
+            respond(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        (extended ? ProxyMetrics.HTTP2_EXTENDED_CONNECT : ProxyMetrics.HTTP2_CONNECT).increment();
+        String host = target.getHostString();
+        int port = target.getPort();
+        desc = "[CONNECT] " + host + ":" + port;
+        AccessRecord.command(stream, HttpMethod.CONNECT.name(), host, port);
+        CharSequence authorization = headers.get(HttpHeaderNames.PROXY_AUTHORIZATION);
+        server.authorize(stream, authorization == null ? null : authorization.toString(), desc)
+                .addListener((Future<Boolean> future) -> {
+                    if (!future.getNow()) {
+                        respond(HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED);
+                        return;
+                    }
+                    if (!stream.isActive()) {
+                        return;
+                    }
+                    lease = server.openLease(stream, host, desc);
+                    if (lease == null) {
+                        respond(HttpResponseStatus.TOO_MANY_REQUESTS);
+                        return;
+                    }
+                    server.connect(stream, host, port, desc).addListener((Future<Channel> connected) ->
+                            onStream(() -> onServerConnected(connected, extended ? headers : null)));
+                });
+    }
+
+    /**
+     * 普通请求转换为HTTP/1.1对象交给{@link HttpForwardHandler}，每个流只有一个请求
+     */
+    private void forward(Http2HeadersFrame frame) {
+        CharSequence scheme = frame.headers().scheme();
+        if (frame.headers().contains(PROTOCOL)) {
+            log.error("unexpected :protocol in {} request from {}", frame.headers().method(), stream.remoteAddress());
+            AccessRecord.closing(stream, AccessRecord.BAD_REQUEST);
+            respond(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        if (!HttpScheme.HTTP.name().contentEquals(scheme)) {
+            // 代理不与目标主机建立TLS，https只能经CONNECT隧道
+            log.error("unsupported scheme {} from {}", scheme, stream.remoteAddress());
+            AccessRecord.closing(stream, AccessRecord.UNSUPPORTED);
+            respond(HttpResponseStatus.NOT_IMPLEMENTED);
+            return;
+        }
+        ProxyMetrics.HTTP2_REQUEST.increment();
+        ctx.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true),
+                new HttpForwardHandler(server, pool, reaper, cache));
+        ctx.fireChannelRead(frame);
+    }
+
+    /**
+     * @param websocket 扩展CONNECT的请求头，普通CONNECT时为null
+     */
+    private void onServerConnected(Future<Channel> future, Http2Headers websocket) {
+        if (!future.isSuccess()) {
+            Socks5CommandStatus status = Socks5UpstreamException.statusOf(future.cause());
+            // 被路由规则拒绝时返回403，其他失败返回502
+            respond(status == Socks5CommandStatus.FORBIDDEN
+                    ? HttpResponseStatus.FORBIDDEN
+                    : HttpResponseStatus.BAD_GATEWAY);
+            return;
+        }
+        Channel ch = future.getNow();
+        if (!stream.isActive()) {
+            ch.close();
+            return;
+        }
+        remote = ch;
+        if (websocket == null) {
+            established(new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText()));
+            return;
+        }
+        upgrade = new WebSocketUpgrade();
+        remote.pipeline().addLast(new HttpResponseDecoder(4096, maxHeadSize, 8192), upgrade);
+        remote.writeAndFlush(upgradeRequest(websocket));
+    }
+
+    /**
+     * 回复客户端并开始双向转发
+     */
+    private void established(Http2Headers response) {
+        if (!remote.isActive()) {
+            log.warn("{} upstream closed before tunnel established", desc);
+            AccessRecord.closing(stream, AccessRecord.REMOTE);
+            respond(HttpResponseStatus.BAD_GATEWAY);
+            return;
+        }
+        ctx.write(new DefaultHttp2HeadersFrame(response));
+        tunneled = true;
+        Tunnel tunnel = Tunnel.create(stream, remote, lease);
+        AccessRecord.connected(stream, tunnel);
+        if (upgrade != null) {
+            // 101之后已经读到的字节由这两个handler移除时交给隧道
+            remote.pipeline().remove(upgrade);
+            remote.pipeline().remove(HttpResponseDecoder.class);
+            remote.config().setAutoRead(true);
+        }
+        for (ByteBuf buf : pending) {
+            remote.write(buf, remote.voidPromise());
+        }
+        pending.clear();
+        remote.flush();
+        ctx.flush();
+        if (inputEnded) {
+            shutdownRemoteOutput();
+        }
+        reaper.watch(tunnel);
+        stream.config().setAutoRead(true);
+    }
+
+    /**
+     * 客户端发送了END_STREAM，已经转发的数据写完后关闭目标主机连接的写方向，继续转发目标主机的回复
+     */
+    private void shutdownRemoteOutput() {
+        if (remote instanceof DuplexChannel) {
+            DuplexChannel duplex = (DuplexChannel) remote;
+            remote.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> duplex.shutdownOutput());
+        }
+    }
+
+    /**
+     * 回复一个没有响应体的状态码并结束这个流
+     */
+    private void respond(HttpResponseStatus status) {
+        if (!stream.isActive()) {
+            return;
+        }
+        ended = true;
+        Http2Headers headers = new DefaultHttp2Headers().status(status.codeAsText());
+        ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void onStream(Runnable task) {
+        if (stream.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            stream.eventLoop().execute(task);
+        }
+    }
+
+    /**
+     * 把扩展CONNECT翻译为发给目标主机的HTTP/1.1 websocket握手请求，Sec-WebSocket-Key由代理生成，
+     * 目标主机回复的Sec-WebSocket-Accept不再转给客户端(HTTP/2中没有这个握手)
+     */
+    private ByteBuf upgradeRequest(Http2Headers headers) {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        StringBuilder head = new StringBuilder(256);
+        head.append("GET ").append(headers.path() == null ? "/" : headers.path()).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(headers.authority()).append("\r\n")
+                .append("Connection: Upgrade\r\nUpgrade: websocket\r\n")
+                .append("Sec-WebSocket-Key: ").append(Base64.getEncoder().encodeToString(nonce)).append("\r\n");
+        boolean version = false;
+        for (Map.Entry<CharSequence, CharSequence> header : headers) {
+            CharSequence name = header.getKey();
+            if (name.charAt(0) == ':' || HttpHeaderNames.PROXY_AUTHORIZATION.contentEqualsIgnoreCase(name)
+                    || HttpHeaderNames.HOST.contentEqualsIgnoreCase(name)
+                    || HttpHeaderNames.SEC_WEBSOCKET_KEY.contentEqualsIgnoreCase(name)) {
+                continue;
+            }
+            version |= HttpHeaderNames.SEC_WEBSOCKET_VERSION.contentEqualsIgnoreCase(name);
+            head.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!version) {
+            head.append("Sec-WebSocket-Version: 13\r\n");
+        }
+        head.append("\r\n");
+        return ByteBufUtil.writeAscii(remote.alloc(), head);
+    }
+
+    /**
+     * 关闭了HPACK的校验，这里按RFC 7540 8.1.2检查：伪头部只能是请求的四个加上:protocol，名称必须小写，
+     * 不能有连接级请求头，值不能包含CR/LF/NUL(转换为HTTP/1.1之后会被当作多个请求头)
+     *
+     * @param request 是否是请求头，否则是trailers
+     * @return 错误原因，合法时返回null
+     */
+    private static String validate(Http2Headers headers, boolean request) {
+        for (Map.Entry<CharSequence, CharSequence> header : headers) {
+            CharSequence name = header.getKey();
+            CharSequence value = header.getValue();
+            if (name.length() == 0) {
+                return "empty header name";
+            }
+            if (name.charAt(0) == ':') {
+                if (!request || !isRequestPseudoHeader(name)) {
+                    return "unexpected pseudo-header " + name;
+                }
+            } else {
+                for (int i = 0; i < name.length(); i++) {
+                    char c = name.charAt(i);
+                    if (c >= 'A' && c <= 'Z' || c <= ' ' || c >= 0x7f || c == ':') {
+                        return "bad header name " + name;
+                    }
+                }
+                for (AsciiString connection : CONNECTION_HEADERS) {
+                    if (connection.contentEquals(name)) {
+                        return "connection-specific header " + name;
+                    }
+                }
+                if (HttpHeaderNames.TE.contentEquals(name) && !TRAILERS.contentEqualsIgnoreCase(value)) {
+                    return "te other than trailers";
+                }
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) {
+                    return "bad value of header " + name;
+                }
+            }
+        }
+        if (request && headers.method() == null) {
+            return "missing :method";
+        }
+        return null;
+    }
+
+    private static boolean isRequestPseudoHeader(CharSequence name) {
+        Http2Headers.PseudoHeaderName pseudo = Http2Headers.PseudoHeaderName.getPseudoHeader(name);
+        return pseudo != null ? pseudo.isRequestOnly() : PROTOCOL.contentEquals(name);
+    }
+
+    private static InetSocketAddress parseAuthority(CharSequence authority, int defaultPort) {
+        if (authority == null) {
+            throw new IllegalArgumentException("missing :authority");
+        }
+        URI parsed = URI.create("http://" + authority);
+        String host = parsed.getHost();
+        if (host == null) {
+            throw new IllegalArgumentException("bad authority " + authority);
+        }
+        if (host.startsWith("[")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return InetSocketAddress.createUnresolved(host, parsed.getPort() > 0 ? parsed.getPort() : defaultPort);
+    }
+
+    /**
+     * 在目标主机连接上等待websocket握手的101，之后暂停读取，101之后已经读到的字节留到隧道建立
+     */
+    private final class WebSocketUpgrade extends ChannelInboundHandlerAdapter {
+
+        private HttpResponse response;
+
+        private boolean upgraded;
+
+        private boolean refused;
+
+        /**
+         * 101之后HttpResponseDecoder原样交出的字节，只在目标主机的EventLoop中访问
+         */
+        private final List<ByteBuf> early = new ArrayList<>(1);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (upgraded && msg instanceof ByteBuf) {
+                early.add((ByteBuf) msg);
+                return;
+            }
+            ReferenceCountUtil.release(msg);
+            if (refused) {
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                response = (HttpResponse) msg;
+                if (response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                    log.warn("{} websocket upgrade refused with {}", desc, response.status());
+                    refused = true;
+                    HttpResponseStatus status = response.status();
+                    onStream(() -> respond(status));
+                    ctx.close();
+                    return;
+                }
+            }
+            if (msg instanceof LastHttpContent && response != null) {
+                upgraded = true;
+                ctx.channel().config().setAutoRead(false);
+                Http2Headers headers = new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText());
+                CharSequence protocol = response.headers().get(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL);
+                if (protocol != null) {
+                    headers.set(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, protocol);
+                }
+                CharSequence extensions = response.headers().get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+                if (extensions != null) {
+                    headers.set(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, extensions);
+                }
+                onStream(() -> {
+                    if (stream.isActive()) {
+                        established(headers);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!upgraded && !refused) {
+                log.warn("{} upstream closed before websocket upgrade", desc);
+                AccessRecord.closing(stream, AccessRecord.REMOTE);
+                onStream(() -> respond(HttpResponseStatus.BAD_GATEWAY));
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            for (ByteBuf buf : early) {
+                ctx.fireChannelRead(buf);
+            }
+            early.clear();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error("{} websocket upgrade error {}", desc, cause.toString());
+            ctx.close();
+        }
+    }
+}
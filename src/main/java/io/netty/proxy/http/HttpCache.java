@@ -0,0 +1,446 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 普通HTTP GET响应的共享缓存，由{@link HttpForwardHandler}使用
+ * <p>
+ * 响应体保存在堆外的直接内存中，命中时回复的是同一块内存的duplicate，不再复制；按响应体总字节数上限做LRU淘汰。
+ * 遵循Cache-Control/Expires计算新鲜度，过期后带上ETag/Last-Modified发送条件请求，目标主机回复304时继续使用缓存；
+ * Vary中列出的请求头在命中时必须与缓存时相同。同一个URL同时只有一个请求回源，其他请求等待回源结束后再查一次缓存
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class HttpCache implements DisposableBean {
+
+    private static final AsciiString AGE = AsciiString.cached("Age");
+
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+
+    /**
+     * 没有明确有效期、只有Last-Modified时，按(Date - Last-Modified)的比例估算有效期(RFC 7234 4.2.2)，并且不超过一天
+     */
+    private static final long HEURISTIC_DIVISOR = 10;
+
+    private static final long HEURISTIC_MAX = TimeUnit.DAYS.toSeconds(1);
+
+    /**
+     * 不保存到缓存中、也不从缓存回复的逐跳头
+     */
+    private static final AsciiString[] HOP_BY_HOP = {
+            HttpHeaderNames.CONNECTION, KEEP_ALIVE, HttpHeaderNames.TRANSFER_ENCODING,
+            HttpHeaderNames.PROXY_AUTHENTICATE, HttpHeaderNames.TRAILER, HttpHeaderNames.UPGRADE
+    };
+
+    private final long maxBytes;
+
+    private final int maxObjectSize;
+
+    /**
+     * 请求key -> 缓存的响应，按访问顺序排列
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 正在回源的请求key -> 回源结束通知
+     */
+    private final Map<String, Promise<Void>> fetching = new HashMap<>();
+
+    private long bytes;
+
+    public HttpCache(AppProperties properties) {
+        this.maxBytes = properties.getHttpCacheSize();
+        this.maxObjectSize = properties.getHttpCacheMaxObjectSize();
+        if (maxBytes > 0) {
+            log.info("http cache enabled with {} bytes, objects up to {} bytes", maxBytes, maxObjectSize);
+        }
+    }
+
+    int getMaxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * 请求是否可以使用缓存：开启缓存的GET请求，没有Authorization、Range，客户端没有自己发条件请求，也没有要求no-store
+     *
+     * @return 缓存key，不能使用缓存时为null
+     */
+    String keyOf(HttpRequest request, String host, int port) {
+        HttpHeaders headers = request.headers();
+        if (maxBytes <= 0
+                || !HttpMethod.GET.equals(request.method())
+                || headers.contains(HttpHeaderNames.AUTHORIZATION)
+                || headers.contains(HttpHeaderNames.RANGE)
+                || headers.contains(HttpHeaderNames.IF_NONE_MATCH)
+                || headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE)
+                || directive(headers.get(HttpHeaderNames.CACHE_CONTROL), "no-store") >= 0) {
+            return null;
+        }
+        return host + ":" + port + request.uri();
+    }
+
+    /**
+     * 查找与请求匹配(Vary)的缓存，返回的缓存已经retain，用完后必须{@link Entry#release()}
+     */
+    Entry lookup(String key, HttpRequest request) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || !entry.matches(request)) {
+                return null;
+            }
+            entry.body.retain();
+            return entry;
+        }
+    }
+
+    /**
+     * 登记一次回源
+     *
+     * @return 同一个key已经在回源时返回其结束通知，否则登记为由调用方回源并返回null，回源结束时必须调用{@link #fetched(String)}
+     */
+    Future<Void> join(String key) {
+        synchronized (entries) {
+            Promise<Void> running = fetching.get(key);
+            if (running != null) {
+                return running;
+            }
+            fetching.put(key, ImmediateEventExecutor.INSTANCE.newPromise());
+            return null;
+        }
+    }
+
+    /**
+     * 回源结束(无论是否缓存成功)，通知等待中的请求
+     */
+    void fetched(String key) {
+        Promise<Void> running;
+        synchronized (entries) {
+            running = fetching.remove(key);
+        }
+        if (running != null) {
+            running.setSuccess(null);
+        }
+    }
+
+    /**
+     * 响应是否可以缓存，可以时返回需要保存的响应头(已经去掉逐跳头)，否则返回null
+     */
+    HttpHeaders storable(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (response.status().code() != HttpResponseStatus.OK.code()
+                || directive(cacheControl, "no-store") >= 0
+                || directive(cacheControl, "private") >= 0
+                || headers.contains(HttpHeaderNames.SET_COOKIE)
+                || "*".equals(headers.get(HttpHeaderNames.VARY))
+                || HttpUtil.getContentLength(response, 0L) > maxObjectSize) {
+            return null;
+        }
+        if (freshness(headers) <= 0
+                && !headers.contains(HttpHeaderNames.ETAG)
+                && !headers.contains(HttpHeaderNames.LAST_MODIFIED)) {
+            // 既不新鲜也无法重新验证
+            return null;
+        }
+        HttpHeaders copy = new DefaultHttpHeaders().set(headers);
+        for (AsciiString name : HOP_BY_HOP) {
+            copy.remove(name);
+        }
+        return copy;
+    }
+
+    /**
+     * 保存一个完整的响应，body的所有权交给缓存
+     */
+    void store(String key, HttpRequest request, HttpResponseStatus status, HttpHeaders headers, ByteBuf body) {
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        put(key, new Entry(status, headers, body, request));
+    }
+
+    /**
+     * 目标主机对过期缓存回复了304，用304中的响应头更新缓存并重新计算有效期
+     *
+     * @return 更新后的缓存(已经retain)
+     */
+    Entry refresh(String key, Entry stale, HttpResponse notModified) {
+        HttpHeaders headers = new DefaultHttpHeaders().set(stale.headers);
+        for (String name : notModified.headers().names()) {
+            if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+                headers.set(name, notModified.headers().getAll(name));
+            }
+        }
+        for (AsciiString name : HOP_BY_HOP) {
+            headers.remove(name);
+        }
+        Entry refreshed = new Entry(stale.status, headers, stale.body, stale);
+        // 一次由缓存持有，一次交给调用方
+        stale.body.retain(2);
+        put(key, refreshed);
+        return refreshed;
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.release();
+            }
+            ProxyMetrics.HTTP_CACHE_BYTES_USED.add(-bytes);
+            bytes = 0;
+            entries.clear();
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        int size = entry.body.readableBytes();
+        synchronized (entries) {
+            Entry replaced = entries.put(key, entry);
+            long delta = size;
+            if (replaced != null) {
+                delta -= replaced.body.readableBytes();
+                replaced.release();
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes + delta > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                delta -= evicted.body.readableBytes();
+                evicted.release();
+            }
+            bytes += delta;
+            ProxyMetrics.HTTP_CACHE_BYTES_USED.add(delta);
+        }
+    }
+
+    /**
+     * 响应的有效期(秒)：s-maxage > max-age > Expires - Date > 按Last-Modified估算，no-cache时为0
+     */
+    private static long freshness(HttpHeaders headers) {
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (directive(cacheControl, "no-cache") >= 0) {
+            return 0;
+        }
+        long maxAge = directive(cacheControl, "s-maxage");
+        if (maxAge < 0) {
+            maxAge = directive(cacheControl, "max-age");
+        }
+        if (maxAge >= 0) {
+            return maxAge;
+        }
+        long date = dateOf(headers, HttpHeaderNames.DATE, System.currentTimeMillis());
+        long expires = dateOf(headers, HttpHeaderNames.EXPIRES, -1);
+        if (headers.contains(HttpHeaderNames.EXPIRES)) {
+            // 无法解析的Expires表示已经过期
+            return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(expires - date));
+        }
+        long lastModified = dateOf(headers, HttpHeaderNames.LAST_MODIFIED, -1);
+        if (lastModified > 0 && lastModified < date) {
+            return Math.min(HEURISTIC_MAX, TimeUnit.MILLISECONDS.toSeconds(date - lastModified) / HEURISTIC_DIVISOR);
+        }
+        return 0;
+    }
+
+    private static long dateOf(HttpHeaders headers, AsciiString name, long defaultValue) {
+        String value = headers.get(name);
+        Date date = value == null ? null : DateFormatter.parseHttpDate(value);
+        return date == null ? defaultValue : date.getTime();
+    }
+
+    /**
+     * Cache-Control中指令的值(秒)
+     *
+     * @return 指令不存在时为-1，没有值时为0
+     */
+    static long directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String part : cacheControl.split(",")) {
+            String directive = part.trim();
+            int eq = directive.indexOf('=');
+            String directiveName = eq < 0 ? directive : directive.substring(0, eq).trim();
+            if (!directiveName.equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (eq < 0) {
+                return 0;
+            }
+            String value = directive.substring(eq + 1).trim();
+            if (value.length() > 1 && value.charAt(0) == '"') {
+                value = value.substring(1, value.length() - 1);
+            }
+            try {
+                return Math.max(0, Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 一个缓存的响应，除了响应体的引用计数以外不可变
+     */
+    static final class Entry {
+
+        private final HttpResponseStatus status;
+
+        private final HttpHeaders headers;
+
+        private final ByteBuf body;
+
+        /**
+         * Vary中列出的请求头名称与缓存时请求中的值
+         */
+        private final String[] varyNames;
+
+        private final String[] varyValues;
+
+        /**
+         * 缓存的时间(System.nanoTime)
+         */
+        private final long storedNanos = System.nanoTime();
+
+        /**
+         * 缓存时响应已经存在的时间(秒)
+         */
+        private final long initialAge;
+
+        /**
+         * 有效期(秒)
+         */
+        private final long freshness;
+
+        Entry(HttpResponseStatus status, HttpHeaders headers, ByteBuf body, HttpRequest request) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            List<String> vary = headers.getAll(HttpHeaderNames.VARY);
+            this.varyNames = vary.stream()
+                    .flatMap(value -> Arrays.stream(value.split(",")))
+                    .map(String::trim)
+                    .filter(name -> !name.isEmpty())
+                    .toArray(String[]::new);
+            this.varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; i++) {
+                varyValues[i] = varyValueOf(request, varyNames[i]);
+            }
+            this.initialAge = Math.max(0, headers.getInt(AGE, 0));
+            this.freshness = freshness(headers);
+        }
+
+        /**
+         * 304更新后的缓存，Vary的值不变
+         */
+        private Entry(HttpResponseStatus status, HttpHeaders headers, ByteBuf body, Entry stale) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.varyNames = stale.varyNames;
+            this.varyValues = stale.varyValues;
+            this.initialAge = Math.max(0, headers.getInt(AGE, 0));
+            this.freshness = freshness(headers);
+        }
+
+        /**
+         * 在请求的要求下(Cache-Control: no-cache/max-age、Pragma: no-cache)是否仍然新鲜
+         */
+        boolean isFresh(HttpRequest request) {
+            HttpHeaders requestHeaders = request.headers();
+            String cacheControl = requestHeaders.get(HttpHeaderNames.CACHE_CONTROL);
+            if (directive(cacheControl, "no-cache") >= 0
+                    || (cacheControl == null && requestHeaders.contains(HttpHeaderNames.PRAGMA, "no-cache", true))) {
+                return false;
+            }
+            long age = age();
+            long maxAge = directive(cacheControl, "max-age");
+            return age < freshness && (maxAge < 0 || age <= maxAge);
+        }
+
+        /**
+         * 是否可以发送条件请求重新验证
+         */
+        boolean hasValidators() {
+            return headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+        }
+
+        /**
+         * 把ETag/Last-Modified作为条件加到回源请求上
+         */
+        void addConditions(HttpRequest request) {
+            String etag = headers.get(HttpHeaderNames.ETAG);
+            if (etag != null) {
+                request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+            }
+            String lastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+            if (lastModified != null) {
+                request.headers().set(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        /**
+         * 从缓存生成回复，响应体是缓存内存的duplicate
+         */
+        FullHttpResponse toResponse(boolean keepAlive) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                    body.retainedDuplicate());
+            response.headers().set(headers);
+            response.headers().set(AGE, age());
+            HttpUtil.setKeepAlive(response, keepAlive);
+            return response;
+        }
+
+        void release() {
+            body.release();
+        }
+
+        private long age() {
+            return initialAge + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - storedNanos);
+        }
+
+        private boolean matches(HttpRequest request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                if (!varyValues[i].equals(varyValueOf(request, varyNames[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String varyValueOf(HttpRequest request, String name) {
+            return String.join(",", request.headers().getAll(name));
+        }
+    }
+}
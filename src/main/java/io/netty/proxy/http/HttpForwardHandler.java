@@ -0,0 +1,808 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.lifecycle.ServerChannels;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.upstream.Socks5UpstreamException;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 普通(非CONNECT)HTTP请求的转发，安装在{@link HttpServerCodec}之后，HTTP/2的流上安装在{@link Http2StreamHandler}转换之后
+ * <p>
+ * 每个请求单独解析目标主机并从{@link HttpUpstreamPool}借出连接，响应读取完整(Content-Length/chunked)后归还连接。
+ * 同一个客户端连接上的请求按顺序处理，流水线中后续的请求先排队，保证响应顺序与请求顺序一致。
+ * 开启{@link HttpCache}时可以缓存的GET请求先查缓存，命中时不再借出连接
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+class HttpForwardHandler extends ChannelInboundHandlerAdapter {
+
+    private final HttpProxyServer server;
+
+    private final HttpUpstreamPool pool;
+
+    private final Reaper reaper;
+
+    private final HttpCache cache;
+
+    private Channel clientChannel;
+
+    /**
+     * 正在处理的请求
+     */
+    private Exchange current;
+
+    /**
+     * 当前请求之后已经收到的流水线请求
+     */
+    private final ArrayDeque<HttpObject> queued = new ArrayDeque<>();
+
+    /**
+     * 代理服务正在停止，当前请求处理完成后关闭连接
+     */
+    private boolean draining;
+
+    HttpForwardHandler(HttpProxyServer server, HttpUpstreamPool pool, Reaper reaper, HttpCache cache) {
+        this.server = server;
+        this.pool = pool;
+        this.reaper = reaper;
+        this.cache = cache;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        clientChannel = ctx.channel();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpObject)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (current != null && (current.requestDone || !queued.isEmpty())) {
+            queued.add((HttpObject) msg);
+            updateClientRead();
+            return;
+        }
+        dispatch((HttpObject) msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (current != null && current.upstream != null) {
+            current.upstream.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && current != null && current.upstream != null && !current.downloadThrottled) {
+            current.upstream.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt == ServerChannels.DRAIN) {
+            draining = true;
+            if (current == null && queued.isEmpty()) {
+                AccessRecord.closing(ctx.channel(), AccessRecord.DRAIN);
+                ctx.close();
+            }
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        for (HttpObject msg : queued) {
+            ReferenceCountUtil.release(msg);
+        }
+        queued.clear();
+        if (current != null) {
+            current.abort();
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error("Unexpected error " + cause.toString());
+        ctx.close();
+    }
+
+    private void dispatch(HttpObject msg) {
+        if (msg instanceof HttpRequest) {
+            start((HttpRequest) msg);
+        } else if (current != null && !current.requestDone) {
+            current.forward((HttpContent) msg);
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void start(HttpRequest request) {
+        if (request.decoderResult().isFailure()) {
+            log.error("bad request from {}: {}", clientChannel.remoteAddress(), request.decoderResult().cause().toString());
+            ReferenceCountUtil.release(request);
+            AccessRecord.closing(clientChannel, AccessRecord.BAD_REQUEST);
+            sendErrorAndClose(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        String desc;
+        Exchange exchange;
+        try {
+            exchange = new Exchange(request);
+            desc = exchange.desc();
+        } catch (IllegalArgumentException err) {
+            log.error("bad request target {}: {}", request.uri(), err.toString());
+            ReferenceCountUtil.release(request);
+            AccessRecord.closing(clientChannel, AccessRecord.BAD_REQUEST);
+            sendErrorAndClose(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        AccessRecord.command(clientChannel, exchange.method, exchange.host, exchange.port);
+        String authorization = request.headers().get(HttpHeaderNames.PROXY_AUTHORIZATION);
+        request.headers().remove(HttpHeaderNames.PROXY_AUTHORIZATION);
+        request.headers().remove("Proxy-Connection");
+        // HTTP/2的流转换为HTTP/1.1请求时加入的扩展头
+        request.headers().remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+        request.headers().remove(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text());
+        // 到目标主机的连接由代理自己管理，总是尝试保持
+        HttpUtil.setKeepAlive(request, true);
+        reaper.arm(clientChannel, TimeoutPhase.CONNECT);
+        current = exchange;
+        exchange.connect(request, authorization, desc);
+    }
+
+    /**
+     * 一个请求处理完成，继续处理排队中的请求
+     */
+    private void finish(Exchange exchange) {
+        if (current != exchange) {
+            return;
+        }
+        current = null;
+        while (!queued.isEmpty() && (current == null || !current.requestDone)) {
+            dispatch(queued.poll());
+        }
+        if (current != null && current.upstream != null) {
+            current.upstream.flush();
+        }
+        if (current == null && draining) {
+            AccessRecord.closing(clientChannel, AccessRecord.DRAIN);
+            clientChannel.close();
+            return;
+        }
+        if (current == null) {
+            // keep-alive连接等待下一个请求
+            reaper.arm(clientChannel, TimeoutPhase.IDLE);
+        }
+        updateClientRead();
+    }
+
+    /**
+     * 有排队中的请求、正在与目标主机建连、目标主机写缓冲超过高水位或者上行超出限速时暂停读取客户端
+     */
+    private void updateClientRead() {
+        boolean read = queued.isEmpty()
+                && (current == null || current.requestDone || current.cached
+                || (current.upstream != null && current.upstream.isWritable() && !current.uploadThrottled));
+        clientChannel.config().setAutoRead(read);
+    }
+
+    private void sendErrorAndClose(HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        HttpUtil.setContentLength(response, 0);
+        HttpUtil.setKeepAlive(response, false);
+        clientChannel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 一次请求/响应交换
+     */
+    private final class Exchange extends ChannelInboundHandlerAdapter {
+
+        private final String method;
+
+        private final HttpRequest request;
+
+        private final String host;
+
+        private final int port;
+
+        /**
+         * 客户端是否要求保持连接
+         */
+        private final boolean clientKeepAlive;
+
+        /**
+         * 目标主机连接，建连完成之前为null
+         */
+        private Channel upstream;
+
+        /**
+         * 建连完成之前收到的请求头和请求体
+         */
+        private List<HttpObject> pending;
+
+        private boolean requestDone;
+
+        private boolean responseStarted;
+
+        /**
+         * 当前响应是否是1xx中间响应
+         */
+        private boolean informational;
+
+        /**
+         * 目标主机连接在响应结束后是否可以复用
+         */
+        private boolean upstreamKeepAlive;
+
+        private boolean switchingProtocols;
+
+        private boolean done;
+
+        /**
+         * 限流配额，认证通过后申请
+         */
+        private Lease lease;
+
+        /**
+         * 上行/下行是否因为限速暂停读取
+         */
+        private boolean uploadThrottled;
+
+        private boolean downloadThrottled;
+
+        /**
+         * 最后一次从任一方向收到数据的时间(System.nanoTime)，等待响应期间的空闲检查使用，只在EventLoop中访问
+         */
+        private long lastActivity;
+
+        /**
+         * 缓存key，请求不能使用缓存时为null
+         */
+        private String cacheKey;
+
+        /**
+         * 是否由本次请求回源，结束时通知等待同一个key的请求
+         */
+        private boolean fetching;
+
+        /**
+         * 是否已经等待过同一个key的回源
+         */
+        private boolean coalesced;
+
+        /**
+         * 正在重新验证的过期缓存
+         */
+        private HttpCache.Entry stale;
+
+        /**
+         * 目标主机对条件请求回复的304，不转发给客户端
+         */
+        private HttpResponse notModified;
+
+        /**
+         * 可以缓存的响应头与正在复制的响应体
+         */
+        private HttpHeaders captureHeaders;
+
+        private HttpResponseStatus captureStatus;
+
+        private ByteBuf capture;
+
+        /**
+         * 是否已经从缓存回复
+         */
+        private boolean cached;
+
+        Exchange(HttpRequest request) {
+            this.method = request.method().name();
+            this.clientKeepAlive = HttpUtil.isKeepAlive(request);
+            String uri = request.uri();
+            String authority;
+            if (uri.startsWith("/")) {
+                authority = request.headers().get(HttpHeaderNames.HOST);
+                if (authority == null) {
+                    throw new IllegalArgumentException("cannot find header 'Host'");
+                }
+            } else {
+                // 代理请求使用绝对URI，转发给目标主机时改为origin-form
+                URI target = URI.create(uri);
+                if (target.getRawAuthority() == null) {
+                    throw new IllegalArgumentException("no authority in request target");
+                }
+                authority = target.getRawAuthority();
+                String path = target.getRawPath() == null || target.getRawPath().isEmpty() ? "/" : target.getRawPath();
+                request.setUri(target.getRawQuery() == null ? path : path + "?" + target.getRawQuery());
+            }
+            URI parsed = URI.create("http://" + authority);
+            if (parsed.getHost() == null) {
+                throw new IllegalArgumentException("bad authority " + authority);
+            }
+            String h = parsed.getHost();
+            this.host = h.startsWith("[") ? h.substring(1, h.length() - 1) : h;
+            this.port = parsed.getPort() > 0 ? parsed.getPort() : 80;
+            this.requestDone = request instanceof LastHttpContent;
+            this.request = request;
+            this.cacheKey = cache.keyOf(request, host, port);
+        }
+
+        String desc() {
+            return "[" + method + "] " + host + ":" + port;
+        }
+
+        /**
+         * 每个请求都要带上Proxy-Authorization，校验通过后再借出到目标主机的连接
+         */
+        void connect(HttpRequest request, String authorization, String desc) {
+            pending = new ArrayList<>(2);
+            pending.add(request);
+            updateClientRead();
+            server.authorize(clientChannel, authorization, desc).addListener((Future<Boolean> future) -> {
+                if (!future.getNow()) {
+                    abort();
+                    clientChannel.close();
+                } else if (!done && clientChannel.isActive()) {
+                    lease = server.openLease(clientChannel, host, desc);
+                    if (lease == null) {
+                        abort();
+                        sendErrorAndClose(HttpResponseStatus.TOO_MANY_REQUESTS);
+                        return;
+                    }
+                    if (cacheKey != null) {
+                        lookup(request);
+                    } else {
+                        acquire();
+                    }
+                }
+            });
+        }
+
+        /**
+         * 新鲜的缓存直接回复；同一个key正在回源时等待一次；过期但可以验证的缓存带上条件回源
+         */
+        private void lookup(HttpRequest request) {
+            HttpCache.Entry entry = cache.lookup(cacheKey, request);
+            if (entry != null && entry.isFresh(request)) {
+                ProxyMetrics.HTTP_CACHE_HIT.increment();
+                serveCached(entry);
+                entry.release();
+                return;
+            }
+            if (!coalesced) {
+                Future<Void> running = cache.join(cacheKey);
+                if (running != null) {
+                    ProxyMetrics.HTTP_CACHE_COALESCED.increment();
+                    coalesced = true;
+                    if (entry != null) {
+                        entry.release();
+                    }
+                    running.addListener(future -> clientChannel.eventLoop().execute(() -> {
+                        if (!done && clientChannel.isActive()) {
+                            lookup(request);
+                        }
+                    }));
+                    return;
+                }
+                fetching = true;
+            }
+            if (entry != null && entry.hasValidators()) {
+                stale = entry;
+                entry.addConditions(request);
+            } else {
+                ProxyMetrics.HTTP_CACHE_MISS.increment();
+                if (entry != null) {
+                    entry.release();
+                }
+            }
+            acquire();
+        }
+
+        /**
+         * 从缓存回复，请求体不再转发，读完后继续处理下一个请求
+         */
+        private void serveCached(HttpCache.Entry entry) {
+            done = true;
+            cached = true;
+            AccessRecord.route(clientChannel, "cache");
+            releasePending();
+            lease.close();
+            endCache();
+            clientChannel.writeAndFlush(entry.toResponse(clientKeepAlive));
+            completeCached();
+        }
+
+        private void completeCached() {
+            if (!requestDone) {
+                updateClientRead();
+                return;
+            }
+            if (!clientKeepAlive) {
+                clientChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            finish(this);
+        }
+
+        /**
+         * 结束本次请求对缓存的使用，可以重复调用
+         */
+        private void endCache() {
+            if (capture != null) {
+                capture.release();
+                capture = null;
+            }
+            if (stale != null) {
+                stale.release();
+                stale = null;
+            }
+            if (fetching) {
+                fetching = false;
+                cache.fetched(cacheKey);
+            }
+        }
+
+        private void acquire() {
+            pool.acquire(clientChannel.eventLoop(), host, port).addListener((Future<Channel> future) -> {
+                if (!future.isSuccess()) {
+                    log.error("{} connect failed: {}", desc(), future.cause().toString());
+                    Socks5CommandStatus status = Socks5UpstreamException.statusOf(future.cause());
+                    AccessRecord.failed(clientChannel, AccessRecord.CONNECT_FAILED, future.cause());
+                    ProxyMetrics.connectFailures(ProxyMetrics.HTTP, status).increment();
+                    releasePending();
+                    lease.close();
+                    endCache();
+                    // 被路由规则拒绝时返回403，其他失败返回502
+                    sendErrorAndClose(status == Socks5CommandStatus.FORBIDDEN
+                            ? HttpResponseStatus.FORBIDDEN
+                            : HttpResponseStatus.BAD_GATEWAY);
+                    return;
+                }
+                Channel ch = future.getNow();
+                if (done || !clientChannel.isActive()) {
+                    releasePending();
+                    lease.close();
+                    ch.close();
+                    return;
+                }
+                upstream = ch;
+                AccessRecord.route(clientChannel, HttpUpstreamPool.routeOf(ch));
+                AccessRecord.connected(clientChannel, null);
+                // 响应的总时间不限制，但两个方向超过read-timeout都没有数据时关闭，
+                // 目标主机响应到一半停止发送又不断开时不会一直挂着
+                reaper.disarm(clientChannel);
+                lastActivity = System.nanoTime();
+                reaper.watchIdle(clientChannel, () -> lastActivity, server.readTimeout());
+                ch.pipeline().addLast(this);
+                ch.config().setAutoRead(true);
+                for (HttpObject msg : pending) {
+                    ch.write(msg, ch.voidPromise());
+                }
+                pending = null;
+                ch.flush();
+                updateClientRead();
+            });
+        }
+
+        void forward(HttpContent content) {
+            if (content instanceof LastHttpContent) {
+                requestDone = true;
+            }
+            if (done) {
+                // 认证失败，连接正在关闭；或者已经从缓存回复，丢弃请求体
+                ReferenceCountUtil.release(content);
+                if (cached && requestDone) {
+                    completeCached();
+                }
+                return;
+            }
+            int bytes = content.content().readableBytes();
+            lastActivity = System.nanoTime();
+            ProxyMetrics.BYTES_UPSTREAM.add(bytes);
+            AccessRecord.relayed(clientChannel, bytes, 0);
+            long wait = lease == null ? 0 : lease.upload(bytes);
+            if (upstream == null) {
+                pending.add(content);
+            } else {
+                upstream.write(content, upstream.voidPromise());
+                if (!upstream.isWritable()) {
+                    upstream.flush();
+                    updateClientRead();
+                }
+            }
+            if (wait > 0 && !uploadThrottled) {
+                throttleUpload(wait);
+            }
+        }
+
+        /**
+         * 上行超出限速，暂停读取客户端直到令牌足够
+         */
+        private void throttleUpload(long nanos) {
+            ProxyMetrics.THROTTLED_UPSTREAM.increment();
+            uploadThrottled = true;
+            updateClientRead();
+            clientChannel.eventLoop().schedule(() -> {
+                uploadThrottled = false;
+                if (current == this) {
+                    updateClientRead();
+                }
+            }, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * 下行超出限速，暂停读取目标主机直到令牌足够
+         */
+        private void throttleDownload(ChannelHandlerContext ctx, long nanos) {
+            ProxyMetrics.THROTTLED_DOWNSTREAM.increment();
+            downloadThrottled = true;
+            ctx.channel().config().setAutoRead(false);
+            ctx.executor().schedule(() -> {
+                downloadThrottled = false;
+                if (!done && clientChannel.isWritable()) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (done) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            lastActivity = System.nanoTime();
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                int code = response.status().code();
+                informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                        && code != HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+                switchingProtocols = code == HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+                if (!informational && stale != null && code == HttpResponseStatus.NOT_MODIFIED.code()) {
+                    notModified = response;
+                    upstreamKeepAlive = HttpUtil.isKeepAlive(response);
+                } else if (!informational) {
+                    responseStarted = true;
+                    upstreamKeepAlive = HttpUtil.isKeepAlive(response);
+                    if (cacheKey != null && !switchingProtocols) {
+                        startCapture(response);
+                    }
+                    if (!switchingProtocols) {
+                        HttpUtil.setKeepAlive(response, clientKeepAlive);
+                    }
+                }
+            }
+            if (notModified != null) {
+                revalidated(msg);
+                return;
+            }
+            long wait = 0;
+            if (msg instanceof HttpContent) {
+                int bytes = ((HttpContent) msg).content().readableBytes();
+                ProxyMetrics.BYTES_DOWNSTREAM.add(bytes);
+                AccessRecord.relayed(clientChannel, 0, bytes);
+                wait = lease.download(bytes);
+                if (capture != null) {
+                    copyToCapture(((HttpContent) msg).content());
+                }
+            }
+            clientChannel.write(msg, clientChannel.voidPromise());
+            if (msg instanceof LastHttpContent) {
+                if (informational) {
+                    informational = false;
+                } else if (switchingProtocols) {
+                    upgrade();
+                    return;
+                } else {
+                    complete();
+                    return;
+                }
+            }
+            if (!clientChannel.isWritable()) {
+                // flush可能同步写完并且已经触发过可写事件，flush之后仍然不可写才暂停
+                clientChannel.flush();
+                if (!clientChannel.isWritable()) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+            }
+            if (wait > 0 && !downloadThrottled) {
+                throttleDownload(ctx, wait);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            clientChannel.flush();
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (current == this) {
+                updateClientRead();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!done) {
+                // 响应还没有结束目标主机就断开了
+                log.warn("{} upstream closed before response completed", desc());
+                AccessRecord.closing(clientChannel, AccessRecord.REMOTE);
+                done = true;
+                endCache();
+                lease.close();
+                if (responseStarted) {
+                    clientChannel.close();
+                } else {
+                    sendErrorAndClose(HttpResponseStatus.BAD_GATEWAY);
+                }
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error("{} upstream error {}", desc(), cause.toString());
+            ctx.close();
+        }
+
+        /**
+         * 响应可以缓存时开始复制响应体，响应头需要在改写keep-alive之前复制
+         */
+        private void startCapture(HttpResponse response) {
+            captureHeaders = cache.storable(response);
+            if (captureHeaders == null) {
+                return;
+            }
+            captureStatus = response.status();
+            long length = HttpUtil.getContentLength(response, -1L);
+            int initial = length < 0 ? 8192 : (int) length;
+            capture = clientChannel.alloc().directBuffer(initial, cache.getMaxObjectSize());
+        }
+
+        private void copyToCapture(ByteBuf content) {
+            if (capture.readableBytes() + content.readableBytes() > cache.getMaxObjectSize()) {
+                // 没有Content-Length的响应超过单个缓存上限
+                capture.release();
+                capture = null;
+                return;
+            }
+            capture.writeBytes(content, content.readerIndex(), content.readableBytes());
+        }
+
+        /**
+         * 目标主机确认过期缓存仍然有效，304不转发，读完后用更新后的缓存回复客户端
+         */
+        private void revalidated(Object msg) {
+            ReferenceCountUtil.release(msg);
+            if (!(msg instanceof LastHttpContent)) {
+                return;
+            }
+            ProxyMetrics.HTTP_CACHE_REVALIDATED.increment();
+            HttpCache.Entry refreshed = cache.refresh(cacheKey, stale, notModified);
+            clientChannel.write(refreshed.toResponse(clientKeepAlive), clientChannel.voidPromise());
+            refreshed.release();
+            responseStarted = true;
+            complete();
+        }
+
+        /**
+         * 响应已经完整写给客户端
+         */
+        private void complete() {
+            done = true;
+            reaper.unwatchIdle(clientChannel);
+            if (capture != null) {
+                cache.store(cacheKey, request, captureStatus, captureHeaders, capture);
+                capture = null;
+            }
+            endCache();
+            lease.close();
+            upstream.pipeline().remove(this);
+            upstream.config().setAutoRead(true);
+            if (upstreamKeepAlive && requestDone) {
+                pool.release(upstream);
+            } else {
+                upstream.close();
+            }
+            if (!clientKeepAlive || !requestDone) {
+                // 请求体还没有发送完成时无法确定下一个请求的边界，只能关闭
+                clientChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            clientChannel.flush();
+            finish(this);
+        }
+
+        /**
+         * 101 Switching Protocols(如websocket)之后两端不再是HTTP，改为双向字节转发
+         */
+        private void upgrade() {
+            done = true;
+            endCache();
+            clientChannel.flush();
+            log.debug("{} switched protocols, relay raw bytes", desc());
+            Tunnel tunnel = Tunnel.create(clientChannel, upstream, lease);
+            AccessRecord.connected(clientChannel, tunnel);
+            upstream.pipeline().remove(this);
+            upstream.pipeline().remove(HttpUpstreamPool.CODEC);
+            clientChannel.pipeline().remove(HttpForwardHandler.this);
+            clientChannel.pipeline().remove(HttpServerCodec.class);
+            upstream.config().setAutoRead(true);
+            clientChannel.config().setAutoRead(true);
+            reaper.watch(tunnel);
+        }
+
+        /**
+         * 客户端断开
+         */
+        void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            releasePending();
+            endCache();
+            if (lease != null) {
+                lease.close();
+            }
+            if (upstream != null) {
+                upstream.close();
+            }
+        }
+
+        private void releasePending() {
+            if (pending != null) {
+                for (HttpObject msg : pending) {
+                    ReferenceCountUtil.release(msg);
+                }
+                pending = null;
+            }
+        }
+    }
+}
@@ -1,30 +1,51 @@
 package io.netty.proxy.http;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.proxy.Socks5ProxyHandler;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.proxy.access.AccessLog;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.lifecycle.ListenerHandoff;
+import io.netty.proxy.lifecycle.ServerChannels;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.limit.Limiter;
+import io.netty.proxy.metrics.ConnectionMetricsHandler;
+import io.netty.proxy.metrics.ProxyMetrics;
 import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.tls.TlsContexts;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.proxy.upstream.Socks5UpstreamException;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationListener;
-import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
-import java.net.InetSocketAddress;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <h2>HTTP/HTTPS代理服务器</h2>
@@ -37,41 +58,194 @@ import java.util.Objects;
  */
 @Slf4j
 @Component
-public class HttpProxyServer implements ApplicationListener<ContextRefreshedEvent> {
+public class HttpProxyServer implements SmartLifecycle {
+
+    private static final AsciiString PROXY_AUTHORIZATION = AsciiString.cached("Proxy-Authorization");
+
+    private static final AsciiString TOO_MANY_REQUESTS = AsciiString.cached("HTTP/1.1 429 Too Many Requests\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+
+    private static final ConnectionMetricsHandler METRICS = new ConnectionMetricsHandler(ProxyMetrics.HTTP);
 
     @Autowired
     private AppProperties properties;
 
+    @Autowired
+    private EventLoops eventLoops;
+
+    @Autowired
+    private Router router;
+
+    @Autowired
+    private Authenticator authenticator;
+
+    @Autowired
+    private Limiter limiter;
+
+    @Autowired
+    private HttpUpstreamPool httpUpstreamPool;
+
+    @Autowired
+    private Reaper reaper;
+
+    @Autowired
+    private ListenerHandoff handoff;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private HttpCache httpCache;
+
+    @Autowired
+    private TlsContexts tls;
+
+    /**
+     * 监听socket与客户端连接
+     */
+    private final ServerChannels channels = new ServerChannels(ProxyMetrics.HTTP, new ChannelInitializer<SocketChannel>() {
+        @Override
+        public void initChannel(SocketChannel ch) {
+            SslHandler ssl = tls.newHandler(ch, ProxyMetrics.HTTP);
+            if (ssl != null) {
+                ch.pipeline().addLast(ssl);
+            }
+            ch.pipeline().addLast(METRICS);
+            accessLog.open(ch, ProxyMetrics.HTTP);
+            reaper.arm(ch, TimeoutPhase.COMMAND);
+            ch.pipeline().addLast(new HttpProxyClientHandler());
+        }
+    });
+
+    /**
+     * HTTP/2连接上新建的流
+     */
+    private final ChannelInitializer<Http2StreamChannel> http2Streams = new ChannelInitializer<Http2StreamChannel>() {
+        @Override
+        public void initChannel(Http2StreamChannel stream) {
+            ProxyMetrics.HTTP2_STREAMS_ACTIVE.increment();
+            stream.closeFuture().addListener(future -> ProxyMetrics.HTTP2_STREAMS_ACTIVE.decrement());
+            accessLog.open(stream, ProxyMetrics.HTTP);
+            reaper.arm(stream, TimeoutPhase.COMMAND);
+            stream.pipeline().addLast(new Http2StreamHandler(HttpProxyServer.this, httpUpstreamPool, reaper, httpCache,
+                    properties.getHttpMaxHeadSize()));
+        }
+    };
+
     @Override
-    public void onApplicationEvent(ContextRefreshedEvent contextRefreshedEvent) {
-        new Thread(() -> {
-            EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-            EventLoopGroup workerGroup = new NioEventLoopGroup();
-            try {
-                ServerBootstrap serverBootstrap = new ServerBootstrap();
-                ChannelFuture future = serverBootstrap.group(bossGroup, workerGroup)
-                        .channel(NioServerSocketChannel.class)
-                        .childHandler(new ChannelInitializer<SocketChannel>() {
-                            @Override
-                            public void initChannel(SocketChannel ch) throws Exception {
-                                ch.pipeline().addLast(new HttpProxyClientHandler());
-                            }
-                        })
-                        .bind(properties.getHttpPort()).sync();
-                log.info("http proxy server has started on port {}", properties.getHttpPort());
-                future.channel().closeFuture().sync();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } finally {
-                bossGroup.shutdownGracefully();
-                workerGroup.shutdownGracefully();
+    public void start() {
+        TransportType transport = eventLoops.getTransport();
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        // TLS连接的数据需要经过SslHandler加解密，不能splice
+        if (properties.isZeroCopy() && transport == TransportType.EPOLL && !tls.isEnabled(ProxyMetrics.HTTP)) {
+            SpliceRelay.configure(serverBootstrap);
+        }
+        serverBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark())
+                .childHandler(channels);
+        try {
+            List<Channel> listeners = handoff.bind(serverBootstrap, ProxyMetrics.HTTP, properties.getHttpPort());
+            router.warmUp(eventLoops.outboundGroup());
+            channels.listening(listeners);
+            log.info("http proxy server has started on port {} with {} transport, {} acceptor(s)",
+                    properties.getHttpPort(), transport, listeners.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("http proxy server start interrupted", e);
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        channels.drain(properties.getDrainTimeout(), callback);
+    }
+
+    @Override
+    public void stop() {
+        channels.drain(properties.getDrainTimeout());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return channels.isListening();
+    }
+
+    @Override
+    public int getPhase() {
+        return ServerChannels.PHASE;
+    }
+
+    /**
+     * 校验Proxy-Authorization，结果在客户端channel的EventLoop中通知
+     * <p>
+     * https://developer.mozilla.org/zh-CN/docs/Web/HTTP/requests/Proxy-Authorization
+     */
+    Future<Boolean> authorize(Channel client, String authorization, String desc) {
+        EventLoop loop = client.eventLoop();
+        if (!properties.isEnableAuth()) {
+            log.debug("{}", desc);
+            return loop.newSucceededFuture(true);
+        }
+        if (StringUtils.isEmpty(authorization)) {
+            log.error("{} deny by empty authorization", desc);
+            AccessRecord.closing(client, AccessRecord.AUTH_FAILED);
+            return loop.newSucceededFuture(false);
+        }
+        Promise<Boolean> promise = loop.newPromise();
+        authenticator.verifyBasic(loop, authorization).addListener((Future<String> future) -> {
+            String username = future.getNow();
+            if (username == null) {
+                log.error("{} deny by bad authorization from {}", desc, client.remoteAddress());
+                AccessRecord.closing(client, AccessRecord.AUTH_FAILED);
+            } else {
+                log.debug("{} by user={}", desc, username);
+                client.attr(Authenticator.USER).set(username);
             }
-        }).start();
+            promise.setSuccess(username != null);
+        });
+        return promise;
+    }
+
+    /**
+     * 为一次CONNECT隧道或普通HTTP请求申请限流配额，超出限制时返回null
+     */
+    Lease openLease(Channel client, String host, String desc) {
+        Lease lease = limiter.open(client, host);
+        if (lease == null) {
+            log.warn("{} deny by limits, user={}", desc, Limiter.userOf(client));
+            AccessRecord.closing(client, AccessRecord.LIMITED);
+        }
+        return lease;
     }
 
+    /**
+     * 普通HTTP请求等待响应期间两个方向都没有数据的最长时间(毫秒)
+     */
+    long readTimeout() {
+        return properties.getReadTimeout();
+    }
+
+    /**
+     * 按路由规则与目标主机建立出站连接，失败时记录原因，结果在出站连接的EventLoop中通知
+     */
+    Future<Channel> connect(Channel client, String host, int port, String desc) {
+        String target = router.route(host, port);
+        AccessRecord.route(client, target);
+        return router.connect(eventLoops.outboundLoop(client), target, host, port)
+                .addListener((Future<Channel> future) -> {
+                    if (!future.isSuccess()) {
+                        log.error("{} connect failed: {}", desc, future.cause().toString());
+                        AccessRecord.failed(client, AccessRecord.CONNECT_FAILED, future.cause());
+                        ProxyMetrics.connectFailures(ProxyMetrics.HTTP,
+                                Socks5UpstreamException.statusOf(future.cause())).increment();
+                    }
+                });
+    }
 
     /**
      * 代理客户端去请求目标主机
+     * <p>
+     * 只解析连接上的第一个请求头：CONNECT在这里建立隧道，普通HTTP请求交给{@link HttpForwardHandler}，
+     * HTTP/2连接前言交给{@link Http2ProxyHandler}
      */
     private class HttpProxyClientHandler extends ChannelInboundHandlerAdapter {
 
@@ -85,10 +259,20 @@ public class HttpProxyServer implements ApplicationListener<ContextRefreshedEven
          */
         private Channel remoteChannel;
 
+        /**
+         * 隧道的限流配额，隧道建立后交给{@link Tunnel}释放
+         */
+        private Lease lease;
+
         /**
          * 解析真实客户端的request
          */
-        private final HttpRequestContext request = new HttpRequestContext();
+        private final HttpRequestContext request = new HttpRequestContext(properties.getHttpMaxHeadSize());
+
+        /**
+         * 请求头之后、与目标主机建连完成之前收到的数据
+         */
+        private final List<ByteBuf> pending = new ArrayList<>(2);
 
         @Override
         public void channelActive(ChannelHandlerContext ctx) {
@@ -101,84 +285,69 @@ public class HttpProxyServer implements ApplicationListener<ContextRefreshedEven
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) {
             ByteBuf input = (ByteBuf) msg;
+            if (request.isCompleted()) {
+                // 请求头已经解析过，正在与目标主机建连，先缓存起来
+                pending.add(input);
+                return;
+            }
             try {
                 // 1.读包与完整性校验
-                if (!request.isCompleted()) {
-                    if (request.read(input)) {
-                        clientChannel.config().setAutoRead(false);
-                    }
-                    // 2.登录授权校验
-                    // https://developer.mozilla.org/zh-CN/docs/Web/HTTP/requests/Proxy-Authorization
-                    if (properties.isEnableAuth()) {
-                        BasicAuthorization auth = BasicAuthorization.decode(request.getHeaders().get("Proxy-Authorization"));
-                        if (auth == null) {
-                            log.error("{} deny by empty authorization", request.desc());
-                            clientChannel.close();
-                            return;
-                        } else if (!Objects.equals(properties.getAuth().get(auth.getUsername()), auth.getPassword())) {
-                            log.error("{} deny by bad authorization user={} password={}",
-                                    request.desc(),
-                                    auth.getUsername(),
-                                    auth.getPassword());
-                            clientChannel.close();
-                            return;
-                        } else {
-                            log.info("{} by user={}", request.desc(), auth.getUsername());
-                        }
-                    } else {
-                        log.info("{}", request.desc());
-                    }
-
-                } else {
-                    // 如果本次请求中已经解析过request了, 说明代理客户端已经在目标主机建立了连接，直接将真实客户端的数据写给目标主机
-                    sendToRemote(input);
+                if (!request.read(input)) {
+                    return;
+                }
+                clientChannel.config().setAutoRead(false);
+                reaper.arm(clientChannel, TimeoutPhase.CONNECT);
+                if (input.isReadable()) {
+                    pending.add(input.retainedSlice());
+                }
+                if (request.isHttp2Preface()) {
+                    switchToHttp2(ctx);
+                    return;
+                }
+                if (!request.isConnect()) {
+                    // 普通HTTP请求交给HTTP编解码逐个请求转发
+                    switchToForward(ctx);
                     return;
                 }
-
             } catch (Throwable err) {
                 log.error("Unexpected error " + err.toString());
+                AccessRecord.failed(clientChannel, AccessRecord.BAD_REQUEST, err);
                 clientChannel.close();
                 return;
+            } finally {
+                input.release();
             }
 
-            if (request.isConnect()) {
-                connEstablished();
-            }
-
-            remoteChannel = connectToServer(
-                    // 后端要经过一次socks5代理
-                    new Socks5ProxyHandler(new InetSocketAddress(properties.getProxyHost(), properties.getProxyPort())),
-                    //new LoggingHandler(LogLevel.INFO),
-                    new ChannelInboundHandlerAdapter() {
-
-                        private Channel remoteChannel;
-
-                        @Override
-                        public void channelActive(ChannelHandlerContext ctx) {
-                            this.remoteChannel = ctx.channel();
-                        }
-
-                        @Override
-                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
-                            clientChannel.writeAndFlush(msg);
-                        }
-
-                        @Override
-                        public void channelInactive(ChannelHandlerContext ctx) {
-                            flushAndClose(clientChannel);
-                        }
-
-                        @Override
-                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable e) {
-                            log.error("Unexpected error " + e.toString());
-                            flushAndClose(remoteChannel);
+            AccessRecord.command(clientChannel, "CONNECT", request.getHost(), request.getPort());
+            // CONNECT请求头不需要转发，取出认证信息后立即释放
+            String authorization = request.getHeader(PROXY_AUTHORIZATION);
+            request.release();
+            // 2.登录授权校验
+            authorize(clientChannel, authorization, request.desc())
+                    .addListener((Future<Boolean> future) -> {
+                        if (!future.getNow()) {
+                            clientChannel.close();
+                        } else if (clientChannel.isActive()) {
+                            lease = openLease(clientChannel, request.getHost(), request.desc());
+                            if (lease == null) {
+                                clientChannel.writeAndFlush(Unpooled.wrappedBuffer(TOO_MANY_REQUESTS.array()))
+                                        .addListener(ChannelFutureListener.CLOSE);
+                                return;
+                            }
+                            connEstablished();
+                            // 后端要经过一次socks5代理
+                            connectToServer();
                         }
-                    }).channel();
+                    });
         }
 
-
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
+            if (lease != null && remoteChannel == null) {
+                lease.close();
+            }
+            releasePending();
+            request.release();
             flushAndClose(remoteChannel);
         }
 
@@ -188,40 +357,88 @@ public class HttpProxyServer implements ApplicationListener<ContextRefreshedEven
             flushAndClose(clientChannel);
         }
 
-        private void sendToRemote(ByteBuf msg) {
-            remoteChannel.writeAndFlush(msg);
+        private void releasePending() {
+            for (ByteBuf buf : pending) {
+                buf.release();
+            }
+            pending.clear();
+        }
+
+        /**
+         * 把已经读到的请求头和之后的数据重新交给HTTP编解码处理
+         */
+        private void switchToForward(ChannelHandlerContext ctx) {
+            ChannelPipeline pipeline = clientChannel.pipeline();
+            pipeline.addLast(new HttpServerCodec(4096, properties.getHttpMaxHeadSize(), 8192));
+            pipeline.addLast(new HttpForwardHandler(HttpProxyServer.this, httpUpstreamPool, reaper, httpCache));
+            pipeline.remove(this);
+            replay(ctx);
+        }
+
+        /**
+         * h2c prior knowledge：把连接前言和之后的数据交给HTTP/2编解码，之后每个流单独处理
+         */
+        private void switchToHttp2(ChannelHandlerContext ctx) throws Http2Exception {
+            if (!properties.isEnableHttp2()) {
+                throw new IllegalStateException("http2 is disabled");
+            }
+            AccessRecord.command(clientChannel, request.getMethod(), null, 0);
+            reaper.disarm(clientChannel);
+            ChannelPipeline pipeline = clientChannel.pipeline();
+            Http2ProxyHandler.install(clientChannel, properties, reaper, http2Streams);
+            pipeline.remove(this);
+            replay(ctx);
+            clientChannel.config().setAutoRead(true);
+        }
+
+        /**
+         * 从这个handler的位置把已经读到的数据交给后面新加入的handler；前面可能还有SslHandler，不能从pipeline头部重新投递。
+         * handler移除后ctx仍然指向原来的下一个handler
+         */
+        private void replay(ChannelHandlerContext ctx) {
+            ctx.fireChannelRead(request.takeByteBuf());
+            for (ByteBuf buf : pending) {
+                ctx.fireChannelRead(buf);
+            }
+            pending.clear();
+            ctx.fireChannelReadComplete();
         }
 
         /**
          * 与后端进行建连操作
          */
-        private ChannelFuture connectToServer(ChannelHandler... proxyHandler) {
-            Bootstrap clientBootstrap = new Bootstrap();
-            clientBootstrap.group(clientChannel.eventLoop())
-                    .channel(clientChannel.getClass())
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            for (ChannelHandler handler : proxyHandler) {
-                                ch.pipeline().addLast(handler);
-                            }
+        private void connectToServer() {
+            connect(clientChannel, request.getHost(), request.getPort(), request.desc())
+                    .addListener((Future<Channel> future) -> {
+                        if (!future.isSuccess()) {
+                            clientChannel.close();
+                        } else if (!clientChannel.isActive()) {
+                            future.getNow().close();
+                        } else {
+                            remoteChannel = future.getNow();
+                            onServerConnected(remoteChannel);
                         }
                     });
-            ChannelFuture future = clientBootstrap.connect(request.getHost(), request.getPort());
-            future.addListener((ChannelFutureListener) futureResult -> {
-                if (futureResult.isSuccess()) {
-                    // connection is ready, enable AutoRead
-                    clientChannel.config().setAutoRead(true);
-                    // forward request and remaining bytes
-                    if (!request.isConnect()) {
-                        //request读取一次缓冲区就没有了，request.byteBuf里面存了一份
-                        sendToRemote(request.getByteBuf());
-                    }
-                } else {
-                    clientChannel.close();
-                }
-            });
-            return future;
+        }
+
+        private void onServerConnected(Channel remote) {
+            // 请求头之后的数据不再需要解析，交给双向转发
+            Tunnel tunnel = Tunnel.create(clientChannel, remote, lease);
+            AccessRecord.connected(clientChannel, tunnel);
+            clientChannel.pipeline().remove(this);
+            // forward remaining bytes
+            for (ByteBuf buf : pending) {
+                remote.write(buf);
+            }
+            pending.clear();
+            remote.flush();
+            if (properties.isZeroCopy() && tunnel.trySplice()) {
+                // CONNECT隧道两端都是epoll时直接在内核中splice转发
+                log.debug("{} switched to splice relay", request.desc());
+            }
+            reaper.watch(tunnel);
+            // connection is ready, enable AutoRead
+            clientChannel.config().setAutoRead(true);
         }
 
         /**
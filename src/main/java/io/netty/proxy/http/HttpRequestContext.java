@@ -1,18 +1,57 @@
 package io.netty.proxy.http;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import lombok.Data;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * 真实主机的请求头信息
+ * <p>
+ * 使用{@link ByteBuf#forEachByte(int, int, ByteProcessor)}按行扫描，请求头只记录在{@link #byteBuf}中的偏移，
+ * 除了目标主机以外，只有在真正用到某个header时才会创建字符串
+ * <p>
+ * 请求头不复制，按行保留读入数据的切片拼成{@link CompositeByteBuf}，由channel的分配器分配，
+ * 持有期间引用着读入的缓冲区，用完后必须{@link #release()}或者经{@link #takeByteBuf()}交出
  */
-@Data
 final class HttpRequestContext {
 
+    private static final AsciiString CONNECT = AsciiString.cached("CONNECT");
+
+    /**
+     * HTTP/2连接前言的第一行"PRI * HTTP/2.0"
+     */
+    private static final AsciiString PRI = AsciiString.cached("PRI");
+
+    private static final AsciiString ASTERISK = AsciiString.cached("*");
+
+    private static final AsciiString HOST = AsciiString.cached("Host");
+
+    private static final ByteProcessor FIND_COLON = new ByteProcessor.IndexOfProcessor((byte) ':');
+
+    private static final ByteProcessor FIND_SLASH = new ByteProcessor.IndexOfProcessor((byte) '/');
+
+    private static final ByteProcessor FIND_RIGHT_BRACKET = new ByteProcessor.IndexOfProcessor((byte) ']');
+
+    /**
+     * 每个header占用的偏移数：nameStart, nameEnd, valueStart, valueEnd
+     */
+    private static final int HEADER_SLOTS = 4;
+
+    /**
+     * 组合缓冲区的最大切片数，超过后合并为一个连续的缓冲区
+     */
+    private static final int MAX_COMPONENTS = 16;
+
+    /**
+     * 请求头最大字节数
+     */
+    private final int maxHeadSize;
+
     /**
      * 是否是CONNECT方法
      */
@@ -34,90 +73,312 @@ final class HttpRequestContext {
     private int port;
 
     /**
-     * 访问授权信息
+     * 是否解析完成
      */
-    private Map<String, String> headers = new HashMap<>();
+    private boolean completed;
 
     /**
-     * 是否解析完成
+     * 是否是h2c prior knowledge的连接前言，此时没有目标主机
      */
-    private boolean completed;
+    private boolean http2Preface;
+
+    /**
+     * 请求头数据，读到第一个字节时创建
+     */
+    private CompositeByteBuf byteBuf;
+
+    /**
+     * 当前行在byteBuf中的起始位置
+     */
+    private int lineStart;
+
+    /**
+     * 请求行起始位置，请求行之前可能有空行
+     */
+    private int requestLineStart;
+
+    /**
+     * 请求行中方法结束位置，-1表示还没有读到请求行
+     */
+    private int methodEnd = -1;
 
     /**
-     * 数据缓存
+     * 请求行中request-target的起止位置
      */
-    private ByteBuf byteBuf = Unpooled.buffer();
+    private int targetStart;
+
+    private int targetEnd;
 
     /**
-     * 行缓存
+     * 请求头偏移表
      */
-    private final StringBuilder lines = new StringBuilder();
+    private int[] headers = new int[16 * HEADER_SLOTS];
+
+    private int headerCount;
+
+    HttpRequestContext(int maxHeadSize) {
+        this.maxHeadSize = maxHeadSize;
+    }
 
     /**
      * 访问描述
      */
     String desc() {
-        return "[" + method + "] " + host + ":" + port;
+        return "[" + getMethod() + "] " + host + ":" + port;
     }
 
+    boolean isConnect() {
+        return connect;
+    }
+
+    boolean isCompleted() {
+        return completed;
+    }
+
+    boolean isHttp2Preface() {
+        return http2Preface;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * 交出请求头数据，之后由调用方负责释放
+     */
+    ByteBuf takeByteBuf() {
+        // 交出前保留请求方法，desc()仍然可用
+        getMethod();
+        ByteBuf taken = byteBuf;
+        byteBuf = null;
+        return taken;
+    }
+
+    /**
+     * 释放请求头数据，已经释放或者交出时什么也不做
+     */
+    void release() {
+        ByteBuf buf = takeByteBuf();
+        if (buf != null) {
+            buf.release();
+        }
+    }
+
+    String getMethod() {
+        if (method == null && methodEnd >= 0 && byteBuf != null) {
+            method = byteBuf.toString(requestLineStart, methodEnd - requestLineStart, CharsetUtil.US_ASCII);
+        }
+        return method;
+    }
+
+    /**
+     * 按名称(忽略大小写)查找请求头，不存在时返回null
+     */
+    String getHeader(AsciiString name) {
+        int index = indexOfHeader(name);
+        if (index < 0) {
+            return null;
+        }
+        int valueStart = headers[index + 2];
+        return byteBuf.toString(valueStart, headers[index + 3] - valueStart, CharsetUtil.ISO_8859_1);
+    }
+
+    /**
+     * 读取请求头，只消费到请求头结束(空行)为止，之后的数据留在in中
+     * <p>
+     * 每次读入只保留一个切片：先把不超过最大长度的数据整体加入{@link #byteBuf}，按行解析到空行后，
+     * 再把空行之后多加入的部分从byteBuf末尾去掉并退回in
+     *
+     * @return 请求头是否已经完整
+     * @throws TooLongFrameException 请求头超过最大长度
+     */
     boolean read(ByteBuf in) {
-        while (in.isReadable()) {
-            if (completed) {
-                return true;
+        if (completed || !in.isReadable()) {
+            return completed;
+        }
+        if (byteBuf == null) {
+            byteBuf = in.alloc().compositeDirectBuffer(MAX_COMPONENTS);
+        }
+        int length = Math.min(in.readableBytes(), maxHeadSize - byteBuf.writerIndex());
+        byteBuf.addComponent(true, in.readRetainedSlice(length));
+        int lf;
+        while (!completed
+                && (lf = byteBuf.forEachByte(lineStart, byteBuf.writerIndex() - lineStart, ByteProcessor.FIND_LF)) >= 0) {
+            int lineEnd = lf;
+            if (lineEnd > lineStart && byteBuf.getByte(lineEnd - 1) == '\r') {
+                lineEnd--;
             }
+            parseLine(lineStart, lineEnd);
+            lineStart = lf + 1;
+        }
+        if (completed) {
+            int excess = byteBuf.writerIndex() - lineStart;
+            byteBuf.writerIndex(lineStart);
+            in.readerIndex(in.readerIndex() - excess);
+        } else if (byteBuf.writerIndex() >= maxHeadSize) {
+            throw new TooLongFrameException("HTTP request head is larger than " + maxHeadSize + " bytes");
+        }
+        return completed;
+    }
 
-            String line = readLine(in);
-            if (line == null) {
-                return false;
+    private void parseLine(int start, int end) {
+        if (start == end) {
+            if (methodEnd < 0) {
+                // 请求行之前允许出现空行
+                return;
             }
-
-            if (method == null) {
-                String[] seg = line.split(" ");
-                method = seg[0];
-                connect = method.equalsIgnoreCase("CONNECT");
+            // 连接前言在HTTP/1.x看来是一个没有请求头的PRI请求，空行之后的"SM\r\n\r\n"留在读入数据中
+            http2Preface = regionEqualsIgnoreCase(requestLineStart, methodEnd, PRI)
+                    && regionEqualsIgnoreCase(targetStart, targetEnd, ASTERISK);
+            if (!http2Preface) {
+                resolveTarget();
             }
+            completed = true;
+        } else if (methodEnd < 0) {
+            parseRequestLine(start, end);
+        } else {
+            parseHeader(start, end);
+        }
+    }
+
+    private void parseRequestLine(int start, int end) {
+        int sp = byteBuf.forEachByte(start, end - start, ByteProcessor.FIND_ASCII_SPACE);
+        if (sp < 0) {
+            throw new IllegalStateException("bad request line");
+        }
+        requestLineStart = start;
+        methodEnd = sp;
+        connect = regionEqualsIgnoreCase(start, sp, CONNECT);
+        targetStart = sp + 1;
+        int sp2 = byteBuf.forEachByte(targetStart, end - targetStart, ByteProcessor.FIND_ASCII_SPACE);
+        targetEnd = sp2 < 0 ? end : sp2;
+    }
 
-            if (line.startsWith("Host: ")) {
-                String[] arr = line.split(":");
-                host = arr[1].trim();
-                if (arr.length == 3) {
-                    port = Integer.parseInt(arr[2]);
-                } else if (connect) {
-                    port = 443;
-                } else {
-                    port = 80;
-                }
+    private void parseHeader(int start, int end) {
+        int colon = byteBuf.forEachByte(start, end - start, FIND_COLON);
+        if (colon < 0) {
+            return;
+        }
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(byteBuf.getByte(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(byteBuf.getByte(valueEnd - 1))) {
+            valueEnd--;
+        }
+        int index = headerCount * HEADER_SLOTS;
+        if (index + HEADER_SLOTS > headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[index] = start;
+        headers[index + 1] = colon;
+        headers[index + 2] = valueStart;
+        headers[index + 3] = valueEnd;
+        headerCount++;
+    }
+
+    /**
+     * CONNECT方法的目标在请求行中，其他方法优先使用Host头，没有Host头时使用绝对URI中的authority
+     */
+    private void resolveTarget() {
+        int start;
+        int end;
+        int hostIndex = indexOfHeader(HOST);
+        if (connect) {
+            start = targetStart;
+            end = targetEnd;
+        } else if (hostIndex >= 0) {
+            start = headers[hostIndex + 2];
+            end = headers[hostIndex + 3];
+        } else {
+            int scheme = byteBuf.forEachByte(targetStart, targetEnd - targetStart, FIND_COLON);
+            if (scheme < 0 || scheme + 3 > targetEnd || byteBuf.getByte(scheme + 1) != '/') {
+                throw new IllegalStateException("cannot find header 'Host'");
             }
+            start = scheme + 3;
+            int slash = byteBuf.forEachByte(start, targetEnd - start, FIND_SLASH);
+            end = slash < 0 ? targetEnd : slash;
+        }
+        parseAuthority(start, end);
+        if (host == null || host.isEmpty() || port <= 0) {
+            throw new IllegalStateException("cannot find header 'Host'");
+        }
+    }
 
-            if (line.contains(":")) {
-                String[] arr = line.split(":");
-                headers.put(arr[0], arr[1].trim());
+    private void parseAuthority(int start, int end) {
+        int hostStart = start;
+        int hostEnd = end;
+        int portStart = -1;
+        if (start < end && byteBuf.getByte(start) == '[') {
+            // IPv6字面量: [::1]:8080
+            int bracket = byteBuf.forEachByte(start, end - start, FIND_RIGHT_BRACKET);
+            if (bracket < 0) {
+                throw new IllegalStateException("bad IPv6 authority");
+            }
+            hostStart = start + 1;
+            hostEnd = bracket;
+            if (bracket + 1 < end && byteBuf.getByte(bracket + 1) == ':') {
+                portStart = bracket + 2;
+            }
+        } else {
+            int colon = byteBuf.forEachByte(start, end - start, FIND_COLON);
+            if (colon >= 0) {
+                hostEnd = colon;
+                portStart = colon + 1;
             }
+        }
+        host = byteBuf.toString(hostStart, hostEnd - hostStart, CharsetUtil.US_ASCII);
+        if (portStart < 0) {
+            port = connect ? 443 : 80;
+            return;
+        }
+        int value = 0;
+        for (int i = portStart; i < end; i++) {
+            byte b = byteBuf.getByte(i);
+            if (b < '0' || b > '9' || value > 65535) {
+                throw new IllegalStateException("bad port in authority");
+            }
+            value = value * 10 + (b - '0');
+        }
+        // 循环内的检查只防止溢出，最后一位数字之后才能判断范围
+        if (portStart == end || value == 0 || value > 65535) {
+            throw new IllegalStateException("bad port in authority");
+        }
+        port = value;
+    }
 
-            if (line.isEmpty()) {
-                if (host == null || port == 0) {
-                    throw new IllegalStateException("cannot find header \'Host\'");
-                }
-                byteBuf = byteBuf.asReadOnly();
-                completed = true;
-                break;
+    private int indexOfHeader(AsciiString name) {
+        for (int i = 0; i < headerCount; i++) {
+            int index = i * HEADER_SLOTS;
+            if (regionEqualsIgnoreCase(headers[index], headers[index + 1], name)) {
+                return index;
             }
         }
-        return completed;
+        return -1;
     }
 
-    private String readLine(ByteBuf in) {
-        while (in.isReadable()) {
-            byte b = in.readByte();
-            byteBuf.writeByte(b);
-            lines.append((char) b);
-            int len = lines.length();
-            if (len >= 2 && lines.substring(len - 2).equals("\r\n")) {
-                String line = lines.substring(0, len - 2);
-                lines.delete(0, len);
-                return line;
+    private boolean regionEqualsIgnoreCase(int start, int end, AsciiString name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (toLowerCase(byteBuf.getByte(start + i)) != toLowerCase(name.byteAt(i))) {
+                return false;
             }
         }
-        return null;
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
     }
-}
\ No newline at end of file
+}
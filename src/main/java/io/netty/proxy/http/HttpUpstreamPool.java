@@ -0,0 +1,214 @@
+package io.netty.proxy.http;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.route.Router;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 普通HTTP请求到目标主机的keep-alive连接池，按出口与host:port分组
+ * <p>
+ * 连接经由{@link Router}按路由规则建立，pipeline中只保留{@link HttpClientCodec}。
+ * 与socks5连接池一样，每个EventLoop拥有独立的子池，只在所属EventLoop中访问
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class HttpUpstreamPool {
+
+    static final String CODEC = "http-client-codec";
+
+    /**
+     * 连接所属的分组: 出口|host:port
+     */
+    private static final AttributeKey<String> POOL_KEY = AttributeKey.valueOf(HttpUpstreamPool.class, "poolKey");
+
+    private final AppProperties properties;
+
+    private final Router router;
+
+    private final Map<EventLoop, LoopPool> pools = new ConcurrentHashMap<>();
+
+    public HttpUpstreamPool(AppProperties properties, Router router) {
+        this.properties = properties;
+        this.router = router;
+    }
+
+    /**
+     * 借出一个到host:port的连接，没有空闲连接时新建
+     * <p>
+     * 空闲连接按出口分组，路由规则重新加载后不会再借出按旧规则建立的连接
+     *
+     * @param loop 必须在该EventLoop中调用
+     * @return 已经安装{@link HttpClientCodec}的channel
+     */
+    Future<Channel> acquire(EventLoop loop, String host, int port) {
+        String route = router.route(host, port);
+        String key = route + "|" + host + ":" + port;
+        Channel pooled = pool(loop).poll(key);
+        if (pooled != null) {
+            return loop.newSucceededFuture(pooled);
+        }
+        Promise<Channel> promise = loop.newPromise();
+        router.connect(loop, route, host, port).addListener((Future<Channel> future) -> {
+            if (future.isSuccess()) {
+                Channel ch = future.getNow();
+                ch.attr(POOL_KEY).set(key);
+                int maxHeadSize = properties.getHttpMaxHeadSize();
+                ch.pipeline().addLast(CODEC, new HttpClientCodec(4096, maxHeadSize, 8192));
+                promise.setSuccess(ch);
+            } else {
+                promise.setFailure(future.cause());
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 归还一个响应已经完整读取的连接，超过每个host的空闲上限时直接关闭
+     */
+    void release(Channel ch) {
+        if (!ch.isActive()) {
+            return;
+        }
+        pool(ch.eventLoop()).offer(ch.attr(POOL_KEY).get(), ch);
+    }
+
+    /**
+     * 借出的连接经由的出口
+     */
+    static String routeOf(Channel ch) {
+        String key = ch.attr(POOL_KEY).get();
+        return key == null ? null : key.substring(0, key.indexOf('|'));
+    }
+
+    private LoopPool pool(EventLoop loop) {
+        return pools.computeIfAbsent(loop, LoopPool::new);
+    }
+
+    /**
+     * 单个EventLoop上的子池
+     */
+    private final class LoopPool {
+
+        /**
+         * 出口|host:port -> 空闲连接，尾部最新
+         */
+        private final Map<String, ArrayDeque<IdleConnection>> idle = new HashMap<>();
+
+        LoopPool(EventLoop loop) {
+            long interval = properties.getProxyPoolCheckInterval();
+            loop.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        Channel poll(String key) {
+            ArrayDeque<IdleConnection> deque = idle.get(key);
+            if (deque == null) {
+                return null;
+            }
+            IdleConnection conn;
+            while ((conn = deque.pollLast()) != null) {
+                conn.channel.pipeline().remove(conn);
+                if (conn.channel.isActive()) {
+                    return conn.channel;
+                }
+                conn.channel.close();
+            }
+            return null;
+        }
+
+        void offer(String key, Channel ch) {
+            ArrayDeque<IdleConnection> deque = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (deque.size() >= properties.getHttpPoolMaxIdlePerHost()) {
+                ch.close();
+                return;
+            }
+            IdleConnection conn = new IdleConnection(key, ch);
+            ch.pipeline().addLast(conn);
+            deque.addLast(conn);
+        }
+
+        private void remove(IdleConnection conn) {
+            ArrayDeque<IdleConnection> deque = idle.get(conn.key);
+            if (deque != null && deque.remove(conn) && deque.isEmpty()) {
+                idle.remove(conn.key);
+            }
+        }
+
+        /**
+         * 剔除失效和空闲超时的连接
+         */
+        private void check() {
+            long expireBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(properties.getHttpPoolIdleTimeout());
+            Iterator<ArrayDeque<IdleConnection>> groups = idle.values().iterator();
+            while (groups.hasNext()) {
+                ArrayDeque<IdleConnection> deque = groups.next();
+                Iterator<IdleConnection> it = deque.iterator();
+                while (it.hasNext()) {
+                    IdleConnection conn = it.next();
+                    if (!conn.channel.isActive() || conn.idleSince < expireBefore) {
+                        it.remove();
+                        conn.channel.close();
+                    }
+                }
+                if (deque.isEmpty()) {
+                    groups.remove();
+                }
+            }
+        }
+
+        /**
+         * 空闲连接守卫：空闲期间不应该收到任何数据，收到数据或者连接断开时从池中移除
+         */
+        private final class IdleConnection extends ChannelInboundHandlerAdapter {
+
+            private final String key;
+
+            private final Channel channel;
+
+            private final long idleSince = System.nanoTime();
+
+            IdleConnection(String key, Channel channel) {
+                this.key = key;
+                this.channel = channel;
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+                log.debug("unexpected data on idle connection to {}, discard it", key);
+                remove(this);
+                ctx.close();
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                remove(this);
+                ctx.fireChannelInactive();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                remove(this);
+                ctx.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package io.netty.proxy.lifecycle;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.DomainSocketReadMode;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.TransportType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 重启时把监听socket交接给新进程，交接前后两个进程都在同一个socket上accept，accept队列中的连接一个也不丢
+ * <pre>
+ * 新进程启动 --connect handoffPath--> 旧进程发送全部监听socket的fd(SCM_RIGHTS)后关闭连接
+ * 新进程按端口接管收到的监听socket，没有收到的端口正常bind，再在handoffPath上等待下一次交接
+ * 旧进程关闭自己的fd副本(socket仍由新进程持有)，按{@link ServerChannels#drain}等待已有连接结束后退出
+ * </pre>
+ * 只在epoll传输层下可用
+ * <p>
+ * 代理服务依赖本组件，Spring会先于它们启动、后于它们停止依赖的Lifecycle，并且把它们并入本组件的阶段一起停止，
+ * 所以这里不实现Lifecycle：全部代理服务启动完成(认领接管的监听socket)之后才开始等待交接，context开始关闭时先停止等待交接，
+ * 代理服务仍按{@link ServerChannels#PHASE}各自停止
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class ListenerHandoff {
+
+    /**
+     * 等待旧进程发送fd的最长时间(毫秒)
+     */
+    private static final long RECEIVE_TIMEOUT = 5_000;
+
+    private final AppProperties properties;
+
+    private final EventLoops eventLoops;
+
+    private final ConfigurableApplicationContext context;
+
+    private final boolean enabled;
+
+    /**
+     * 从旧进程接管、还没有被代理服务认领的监听socket，端口 -> socket
+     */
+    private final Map<Integer, List<EpollServerSocketChannel>> inherited = new HashMap<>();
+
+    /**
+     * 本进程正在使用的全部监听socket
+     */
+    private final List<Channel> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean handedOff = new AtomicBoolean();
+
+    private volatile Channel server;
+
+    public ListenerHandoff(AppProperties properties, EventLoops eventLoops, ConfigurableApplicationContext context) {
+        this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.context = context;
+        boolean configured = !StringUtils.isEmpty(properties.getHandoffPath());
+        if (configured && eventLoops.getTransport() != TransportType.EPOLL) {
+            log.warn("监听socket交接需要epoll传输层，{}传输层下不交接", eventLoops.getTransport());
+        }
+        this.enabled = configured && eventLoops.getTransport() == TransportType.EPOLL;
+        if (enabled && new File(properties.getHandoffPath()).exists()) {
+            receive();
+        }
+    }
+
+    /**
+     * 在port上监听，有从旧进程接管的同端口监听socket时直接使用，否则新建
+     *
+     * @param server 指标中的server标签
+     */
+    public List<Channel> bind(ServerBootstrap bootstrap, String server, int port) throws InterruptedException {
+        List<EpollServerSocketChannel> sockets;
+        synchronized (inherited) {
+            sockets = inherited.remove(port);
+        }
+        List<Channel> channels;
+        if (sockets == null) {
+            channels = eventLoops.bind(bootstrap, server, port);
+        } else {
+            channels = eventLoops.adopt(bootstrap, server, sockets);
+            log.info("{} took over {} listener(s) on port {} from previous process", server, channels.size(), port);
+        }
+        listeners.addAll(channels);
+        for (Channel channel : channels) {
+            channel.closeFuture().addListener(closed -> listeners.remove(channel));
+        }
+        return channels;
+    }
+
+    /**
+     * 代理服务都已经启动，关闭没有被认领的监听socket，开始等待下一次交接
+     */
+    @EventListener
+    public void start(ContextRefreshedEvent event) {
+        if (event.getApplicationContext() != context) {
+            return;
+        }
+        synchronized (inherited) {
+            // 新配置中不再监听的端口
+            inherited.values().forEach(sockets -> sockets.forEach(ListenerHandoff::closeUnclaimed));
+            inherited.clear();
+        }
+        if (!enabled) {
+            return;
+        }
+        File path = new File(properties.getHandoffPath());
+        if (path.exists() && !path.delete()) {
+            log.error("cannot remove stale handoff socket {}", path);
+            return;
+        }
+        server = new ServerBootstrap()
+                .group(eventLoops.getBossGroup(), eventLoops.getWorkerGroup())
+                .channel(EpollServerDomainSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) {
+                        handOff(ctx.channel());
+                    }
+                })
+                .bind(new DomainSocketAddress(path))
+                .syncUninterruptibly()
+                .channel();
+        log.info("waiting for listener handoff on {}", path);
+    }
+
+    /**
+     * context开始关闭，在代理服务停止之前停止等待交接
+     */
+    @EventListener
+    public void stop(ContextClosedEvent event) {
+        if (event.getApplicationContext() != context) {
+            return;
+        }
+        Channel channel = server;
+        server = null;
+        if (channel == null) {
+            return;
+        }
+        channel.close().syncUninterruptibly();
+        if (!handedOff.get()) {
+            // 已经交接时路径属于新进程
+            new File(properties.getHandoffPath()).delete();
+        }
+    }
+
+    /**
+     * 把全部监听socket的fd发给新进程，发送完成后停止本进程：停止接受新连接并等待已有连接结束
+     */
+    private void handOff(Channel ch) {
+        if (!handedOff.compareAndSet(false, true)) {
+            ch.close();
+            return;
+        }
+        log.info("handing off {} listener(s) to new process", listeners.size());
+        ChannelFuture sent = ch.newSucceededFuture();
+        for (Channel listener : listeners) {
+            sent = ch.write(((EpollServerSocketChannel) listener).fd());
+        }
+        ch.flush();
+        sent.addListener(ChannelFutureListener.CLOSE).addListener(future -> {
+            if (!future.isSuccess()) {
+                log.error("listener handoff failed: {}", future.cause().toString());
+                handedOff.set(false);
+                return;
+            }
+            // 不能在EventLoop中关闭context，关闭过程要等待EventLoop退出
+            new Thread(context::close, "proxy-handoff").start();
+        });
+    }
+
+    private static void closeUnclaimed(EpollServerSocketChannel socket) {
+        log.info("closing inherited listener {} not configured any more", socket.localAddress());
+        try {
+            // 没有注册到EventLoop上，直接关闭fd
+            socket.fd().close();
+        } catch (IOException e) {
+            log.warn("close inherited listener failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * 从旧进程接收监听socket，旧进程不存在(路径是上次异常退出留下的)时正常启动
+     */
+    private void receive() {
+        List<FileDescriptor> received = new CopyOnWriteArrayList<>();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoops.getBossGroup())
+                .channel(EpollDomainSocketChannel.class)
+                .option(EpollChannelOption.DOMAIN_SOCKET_READ_MODE, DomainSocketReadMode.FILE_DESCRIPTORS)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                received.add((FileDescriptor) msg);
+                            }
+                        });
+                    }
+                });
+        Channel channel;
+        try {
+            channel = bootstrap.connect(new DomainSocketAddress(properties.getHandoffPath())).sync().channel();
+        } catch (Exception e) {
+            log.info("no previous process on {}: {}", properties.getHandoffPath(), e.toString());
+            return;
+        }
+        if (!channel.closeFuture().awaitUninterruptibly(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            log.error("listener handoff timed out after {}ms", RECEIVE_TIMEOUT);
+            channel.close();
+        }
+        for (FileDescriptor fd : received) {
+            EpollServerSocketChannel socket = new EpollServerSocketChannel(fd.intValue());
+            InetSocketAddress local = socket.localAddress();
+            inherited.computeIfAbsent(local.getPort(), port -> new ArrayList<>()).add(socket);
+        }
+        log.info("received {} listener(s) from previous process: ports {}", received.size(), inherited.keySet());
+    }
+}
@@ -0,0 +1,132 @@
+package io.netty.proxy.lifecycle;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个代理服务的监听socket与客户端连接
+ * <p>
+ * 停止时先关闭监听socket不再接受新连接，通知已有连接{@link #DRAIN}，等待连接自然结束，超过期限后强制关闭剩下的连接
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public final class ServerChannels extends ChannelInitializer<Channel> {
+
+    /**
+     * 代理服务的启动阶段
+     */
+    public static final int PHASE = Integer.MAX_VALUE - 1;
+
+    /**
+     * 停止时发给每个客户端连接的用户事件，空闲的keep-alive连接收到后可以立即关闭
+     */
+    public static final Object DRAIN = new Object() {
+        @Override
+        public String toString() {
+            return "DRAIN";
+        }
+    };
+
+    /**
+     * 剩余连接数的输出间隔(秒)
+     */
+    private static final long REPORT_INTERVAL = 5;
+
+    private final String server;
+
+    private final ChannelHandler initializer;
+
+    private final ChannelGroup connections;
+
+    private volatile List<Channel> listeners = Collections.emptyList();
+
+    /**
+     * @param initializer 客户端连接的pipeline初始化，加入连接组之后再执行
+     */
+    public ServerChannels(String server, ChannelHandler initializer) {
+        this.server = server;
+        this.initializer = initializer;
+        this.connections = new DefaultChannelGroup(server, GlobalEventExecutor.INSTANCE);
+    }
+
+    @Override
+    protected void initChannel(Channel ch) {
+        connections.add(ch);
+        ch.pipeline().addLast(initializer);
+    }
+
+    public void listening(List<Channel> listeners) {
+        this.listeners = listeners;
+    }
+
+    public boolean isListening() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * 停止接受新连接并等待已有连接结束，全部结束或者超过timeoutMillis强制关闭后回调callback
+     */
+    public void drain(long timeoutMillis, Runnable callback) {
+        List<Channel> closing = listeners;
+        listeners = Collections.emptyList();
+        for (Channel listener : closing) {
+            listener.close().syncUninterruptibly();
+        }
+        log.info("{} stopped accepting, draining {} connection(s), {} tunnel(s) for up to {}ms",
+                server, connections.size(), tunnels(), timeoutMillis);
+        for (Channel ch : connections) {
+            ch.pipeline().fireUserEventTriggered(DRAIN);
+        }
+        ScheduledFuture<?> report = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(() ->
+                        log.info("{} draining, {} connection(s), {} tunnel(s) remain", server, connections.size(), tunnels()),
+                REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+        ScheduledFuture<?> deadline = GlobalEventExecutor.INSTANCE.schedule(() -> {
+            log.warn("{} drain timed out, closing {} connection(s), {} tunnel(s)", server, connections.size(), tunnels());
+            for (Channel ch : connections) {
+                AccessRecord.closing(ch, AccessRecord.DRAIN);
+            }
+            connections.close();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        connections.newCloseFuture().addListener(closed -> {
+            report.cancel(false);
+            deadline.cancel(false);
+            log.info("{} drained", server);
+            callback.run();
+        });
+    }
+
+    /**
+     * 同{@link #drain(long, Runnable)}，等待回调之后再返回
+     */
+    public void drain(long timeoutMillis) {
+        CountDownLatch drained = new CountDownLatch(1);
+        drain(timeoutMillis, drained::countDown);
+        try {
+            drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 已经建立隧道的连接数
+     */
+    private long tunnels() {
+        return connections.stream().filter(ch -> ch.hasAttr(Tunnel.KEY)).count();
+    }
+}
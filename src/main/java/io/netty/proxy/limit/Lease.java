@@ -0,0 +1,89 @@
+package io.netty.proxy.limit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一条隧道占用的限流名额与所属的令牌桶，隧道关闭时{@link #close()}归还名额
+ * <p>
+ * upload/download在读入端channel的EventLoop中调用，返回值为需要暂停读取的纳秒数；
+ * UDP转发没有固定的目标主机，destination为null
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class Lease {
+
+    /**
+     * 不限速也不占用名额
+     */
+    public static final Lease UNLIMITED = new Lease(null, null, null, false);
+
+    private final Limiter.Buckets global;
+
+    private final Limiter.State user;
+
+    private final Limiter.State destination;
+
+    /**
+     * 限制是否会在隧道打开期间重新加载
+     */
+    private final boolean reloadable;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Lease(Limiter.Buckets global, Limiter.State user, Limiter.State destination, boolean reloadable) {
+        this.global = global;
+        this.user = user;
+        this.destination = destination;
+        this.reloadable = reloadable;
+    }
+
+    /**
+     * 客户端到目标主机方向转发了bytes字节
+     */
+    public long upload(int bytes) {
+        if (global == null) {
+            return 0;
+        }
+        return Math.max(global.upload.acquire(bytes),
+                Math.max(user.upload.acquire(bytes), destination == null ? 0 : destination.upload.acquire(bytes)));
+    }
+
+    /**
+     * 目标主机到客户端方向转发了bytes字节
+     */
+    public long download(int bytes) {
+        if (global == null) {
+            return 0;
+        }
+        return Math.max(global.download.acquire(bytes),
+                Math.max(user.download.acquire(bytes), destination == null ? 0 : destination.download.acquire(bytes)));
+    }
+
+    /**
+     * 是否有带宽限制
+     */
+    boolean isShaped() {
+        return global != null && !(global.isUnlimited() && user.isUnlimited()
+                && (destination == null || destination.isUnlimited()));
+    }
+
+    /**
+     * 隧道能否切换为splice零拷贝：splice绕过了用户态计数，有带宽限制时不能使用；
+     * 配置了限速文件时现在不限速之后也可能限速，同样不能使用
+     */
+    public boolean isSpliceable() {
+        return !reloadable && !isShaped();
+    }
+
+    /**
+     * 归还名额，可以重复调用
+     */
+    public void close() {
+        if (global != null && closed.compareAndSet(false, true)) {
+            user.release();
+            if (destination != null) {
+                destination.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package io.netty.proxy.limit;
+
+import io.netty.channel.Channel;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.metrics.Counter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.LimitProperties;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySource;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按用户、按目标主机与全局的限速和限流
+ * <ul>
+ *     <li>带宽：每个方向一个{@link TokenBucket}，转发的字节数超出后由转发handler暂停读取一段时间</li>
+ *     <li>每个用户每秒新建的隧道数、每个用户与每个目标主机同时打开的隧道数，超出时拒绝建立隧道</li>
+ * </ul>
+ * 用户与目标主机的状态保存在ConcurrentHashMap中，名额计数与令牌桶都是CAS，不需要加锁；
+ * 长时间没有使用的状态定期清理。限制来自app.limits，app.limit-file修改后自动重新加载，
+ * 已经打开的隧道也按新的限制执行；配置了app.limit-file时隧道不再切换为splice零拷贝，否则这些隧道会绕过之后的限制
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class Limiter implements DisposableBean {
+
+    private static final String PREFIX = "app.limits";
+
+    private static final long SWEEP_INTERVAL = 60_000;
+
+    private final AppProperties properties;
+
+    private final Environment environment;
+
+    private final ConcurrentMap<String, State> users = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, State> destinations = new ConcurrentHashMap<>();
+
+    private final Buckets global;
+
+    private final Counter limitedByRate = ProxyMetrics.limited("connection_rate");
+
+    private final Counter limitedByUser = ProxyMetrics.limited("user_tunnels");
+
+    private final Counter limitedByDestination = ProxyMetrics.limited("destination_tunnels");
+
+    private volatile LimitProperties limits;
+
+    /**
+     * 上次加载的限速文件修改时间，只在重新加载任务中访问
+     */
+    private long limitFileModified;
+
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>(2);
+
+    public Limiter(AppProperties properties, Environment environment) {
+        this.properties = properties;
+        this.environment = environment;
+        this.limits = properties.getLimitFile() == null ? properties.getLimits() : load();
+        this.global = new Buckets(limits.getGlobalBandwidth(), limits.getBurstSeconds());
+        tasks.add(GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(
+                this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        if (properties.getLimitFile() != null) {
+            long interval = properties.getLimitCheckInterval();
+            tasks.add(GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(
+                    this::reloadIfModified, interval, interval, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * 客户端的用户：认证通过的用户名，没有认证时为客户端IP
+     */
+    public static String userOf(Channel client) {
+        String user = client.attr(Authenticator.USER).get();
+        if (user != null) {
+            return user;
+        }
+        SocketAddress address = client.remoteAddress();
+        return address instanceof InetSocketAddress
+                ? ((InetSocketAddress) address).getAddress().getHostAddress()
+                : String.valueOf(address);
+    }
+
+    /**
+     * 为客户端到destination的隧道占用名额
+     *
+     * @return 超出建连速率或者并发隧道数时返回null
+     */
+    public Lease open(Channel client, String destination) {
+        LimitProperties limits = this.limits;
+        String user = userOf(client);
+        State userState = reserve(users, user, true, limits.maxTunnelsOf(user));
+        if (userState == null) {
+            limitedByUser.increment();
+            return null;
+        }
+        State destinationState = null;
+        if (destination != null) {
+            destinationState = reserve(destinations, destination.toLowerCase(), false,
+                    limits.getDestinationMaxTunnels());
+            if (destinationState == null) {
+                userState.release();
+                limitedByDestination.increment();
+                return null;
+            }
+        }
+        if (!userState.connect.tryAcquire(1)) {
+            userState.release();
+            if (destinationState != null) {
+                destinationState.release();
+            }
+            limitedByRate.increment();
+            return null;
+        }
+        return new Lease(global, userState, destinationState, properties.getLimitFile() != null);
+    }
+
+    /**
+     * 为客户端的UDP ASSOCIATE占用名额，一个UDP转发可以发往任意目标主机，只计入用户的并发隧道数、建连速率与带宽
+     *
+     * @return 超出建连速率或者并发隧道数时返回null
+     */
+    public Lease openAssociation(Channel client) {
+        return open(client, null);
+    }
+
+    /**
+     * 运行时替换限制，已经打开的隧道立即按新的带宽执行(splice零拷贝的隧道除外，见{@link Lease#isSpliceable()})
+     */
+    public void update(LimitProperties limits) {
+        this.limits = limits;
+        global.setRate(limits.getGlobalBandwidth(), limits.getBurstSeconds());
+        users.forEach((user, state) -> state.apply(limits, user));
+        destinations.forEach((destination, state) -> state.apply(limits, null));
+    }
+
+    @Override
+    public void destroy() {
+        tasks.forEach(task -> task.cancel(false));
+    }
+
+    /**
+     * 取出key的状态并占用一个名额，max为0时不限制并发数
+     *
+     * @param user key是用户名还是目标主机
+     */
+    private State reserve(ConcurrentMap<String, State> states, String key, boolean user, int max) {
+        while (true) {
+            State state = states.computeIfAbsent(key, k -> new State(limits, user ? k : null));
+            int reserved = state.tryReserve(max);
+            if (reserved > 0) {
+                return state;
+            }
+            if (reserved == 0) {
+                return null;
+            }
+            // 状态刚好被清理，重新创建
+        }
+    }
+
+    /**
+     * 清理没有隧道、令牌桶已满的状态
+     */
+    private void sweep() {
+        sweep(users);
+        sweep(destinations);
+    }
+
+    private static void sweep(ConcurrentMap<String, State> states) {
+        states.forEach((key, state) -> {
+            if (state.isIdle() && state.retire()) {
+                states.remove(key, state);
+            }
+        });
+    }
+
+    private LimitProperties load() {
+        Path path = Paths.get(properties.getLimitFile());
+        Properties file = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            limitFileModified = Files.getLastModifiedTime(path).toMillis();
+            file.load(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot read limit file " + path, e);
+        }
+        Map<String, String> prefixed = new HashMap<>();
+        file.stringPropertyNames().forEach(key -> prefixed.put(PREFIX + "." + key, file.getProperty(key)));
+        // 文件中的值优先，文件中没有的沿用app.limits
+        List<ConfigurationPropertySource> sources = new ArrayList<>();
+        sources.add(new MapConfigurationPropertySource(prefixed));
+        ConfigurationPropertySources.get(environment).forEach(sources::add);
+        return new Binder(sources).bind(PREFIX, LimitProperties.class).orElseGet(LimitProperties::new);
+    }
+
+    private void reloadIfModified() {
+        Path path = Paths.get(properties.getLimitFile());
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() == limitFileModified) {
+                return;
+            }
+            update(load());
+            log.info("limit file {} reloaded", path);
+        } catch (IOException | RuntimeException e) {
+            log.error("reload limit file {} failed, keep the previous limits: {}", path, e.toString());
+        }
+    }
+
+    /**
+     * 上行与下行两个带宽令牌桶
+     */
+    static class Buckets {
+
+        final TokenBucket upload;
+
+        final TokenBucket download;
+
+        Buckets(long bandwidth, double burstSeconds) {
+            this.upload = new TokenBucket(bandwidth, burstSeconds);
+            this.download = new TokenBucket(bandwidth, burstSeconds);
+        }
+
+        void setRate(long bandwidth, double burstSeconds) {
+            upload.setRate(bandwidth, burstSeconds);
+            download.setRate(bandwidth, burstSeconds);
+        }
+
+        boolean isUnlimited() {
+            return upload.isUnlimited() && download.isUnlimited();
+        }
+    }
+
+    /**
+     * 一个用户或者一个目标主机的限流状态
+     */
+    static final class State extends Buckets {
+
+        /**
+         * 新建隧道的令牌桶，目标主机不限制
+         */
+        final TokenBucket connect;
+
+        /**
+         * 正在使用的隧道数，-1表示已经被清理
+         */
+        private final AtomicInteger tunnels = new AtomicInteger();
+
+        /**
+         * @param user 用户名，为null时是目标主机
+         */
+        State(LimitProperties limits, String user) {
+            super(user != null ? limits.bandwidthOf(user) : limits.getDestinationBandwidth(), limits.getBurstSeconds());
+            this.connect = new TokenBucket(user != null ? limits.connectionRateOf(user) : 0, limits.getBurstSeconds());
+        }
+
+        void apply(LimitProperties limits, String user) {
+            setRate(user != null ? limits.bandwidthOf(user) : limits.getDestinationBandwidth(), limits.getBurstSeconds());
+            connect.setRate(user != null ? limits.connectionRateOf(user) : 0, limits.getBurstSeconds());
+        }
+
+        /**
+         * @return 1成功，0名额已满，-1已经被清理
+         */
+        int tryReserve(int max) {
+            while (true) {
+                int current = tunnels.get();
+                if (current < 0) {
+                    return -1;
+                }
+                if (max > 0 && current >= max) {
+                    return 0;
+                }
+                if (tunnels.compareAndSet(current, current + 1)) {
+                    return 1;
+                }
+            }
+        }
+
+        void release() {
+            tunnels.decrementAndGet();
+        }
+
+        boolean isIdle() {
+            return tunnels.get() == 0 && upload.isFull() && download.isFull() && connect.isFull();
+        }
+
+        boolean retire() {
+            return tunnels.compareAndSet(0, -1);
+        }
+    }
+}
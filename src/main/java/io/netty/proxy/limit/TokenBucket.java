@@ -0,0 +1,112 @@
+package io.netty.proxy.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶，按GCRA(generic cell rate algorithm)实现：只保存下一个令牌的理论到达时间(TAT)，
+ * 每次取令牌是对一个AtomicLong的CAS，多个EventLoop并发使用不需要加锁
+ * <pre>
+ * tat' = max(tat, now) + permits * interval
+ * 需要等待 = tat' - now - burst
+ * </pre>
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+    /**
+     * 每个令牌的间隔(纳秒)，0表示不限制
+     */
+    private volatile double interval;
+
+    /**
+     * 允许提前透支的时间(纳秒)，即桶的容量
+     */
+    private volatile long burst;
+
+    TokenBucket(double permitsPerSecond, double burstSeconds) {
+        setRate(permitsPerSecond, burstSeconds);
+    }
+
+    /**
+     * 运行时调整速率，已经透支的令牌按新速率偿还：透支记录为tat超出当前时间的部分，按令牌数换算为新速率下的时间
+     */
+    void setRate(double permitsPerSecond, double burstSeconds) {
+        double previous = this.interval;
+        double interval = permitsPerSecond > 0 ? NANOS_PER_SECOND / permitsPerSecond : 0;
+        this.interval = interval;
+        this.burst = permitsPerSecond > 0 ? (long) (Math.max(burstSeconds, 0) * NANOS_PER_SECOND) : 0;
+        long now = System.nanoTime();
+        while (true) {
+            long prev = tat.get();
+            long debt = prev - now;
+            if (debt <= 0 || previous == interval) {
+                return;
+            }
+            // 不限速时不再有透支
+            long next = previous == 0 || interval == 0 ? now : now + (long) (debt / previous * interval);
+            if (tat.compareAndSet(prev, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean isUnlimited() {
+        return interval == 0;
+    }
+
+    /**
+     * 无条件取走令牌(可以透支)
+     *
+     * @return 透支后需要暂停的纳秒数，0表示不需要暂停
+     */
+    long acquire(long permits) {
+        double interval = this.interval;
+        if (interval == 0) {
+            return 0;
+        }
+        long cost = (long) (permits * interval);
+        long now = System.nanoTime();
+        long next;
+        long prev;
+        do {
+            prev = tat.get();
+            next = Math.max(prev, now) + cost;
+        } while (!tat.compareAndSet(prev, next));
+        return Math.max(0, next - now - burst);
+    }
+
+    /**
+     * 令牌足够时取走，否则不取
+     */
+    boolean tryAcquire(long permits) {
+        double interval = this.interval;
+        if (interval == 0) {
+            return true;
+        }
+        long cost = (long) (permits * interval);
+        long now = System.nanoTime();
+        while (true) {
+            long prev = tat.get();
+            long next = Math.max(prev, now) + cost;
+            if (next - now > Math.max(burst, cost)) {
+                return false;
+            }
+            if (tat.compareAndSet(prev, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 桶是否已经满了(长时间没有使用)，满的桶可以丢弃后重建
+     */
+    boolean isFull() {
+        return tat.get() <= System.nanoTime();
+    }
+}
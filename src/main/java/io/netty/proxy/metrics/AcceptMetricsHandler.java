@@ -0,0 +1,35 @@
+package io.netty.proxy.metrics;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * 安装在监听socket上，统计每个监听socket接受的连接数与accept异常数
+ *
+ * @author chpengzh@foxmail.com
+ */
+@ChannelHandler.Sharable
+public final class AcceptMetricsHandler extends ChannelInboundHandlerAdapter {
+
+    private final Counter accepts;
+
+    private final Counter errors;
+
+    public AcceptMetricsHandler(String server, int listener) {
+        this.accepts = ProxyMetrics.accepts(server, listener);
+        this.errors = ProxyMetrics.acceptErrors(server, listener);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        accepts.increment();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        errors.increment();
+        ctx.fireExceptionCaught(cause);
+    }
+}
@@ -0,0 +1,55 @@
+package io.netty.proxy.metrics;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+/**
+ * 统计客户端连接数，并记录连接建立时间作为握手耗时的起点
+ *
+ * @author chpengzh@foxmail.com
+ */
+@ChannelHandler.Sharable
+public final class ConnectionMetricsHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * 当前握手阶段的开始时间(System.nanoTime)
+     */
+    private static final AttributeKey<Long> PHASE_START = AttributeKey.valueOf(ConnectionMetricsHandler.class, "phaseStart");
+
+    private final Gauge active;
+
+    private final Counter total;
+
+    public ConnectionMetricsHandler(String server) {
+        this.active = ProxyMetrics.activeConnections(server);
+        this.total = ProxyMetrics.totalConnections(server);
+    }
+
+    /**
+     * 记录从上一个阶段结束到现在的耗时，并把现在作为下一个阶段的开始
+     */
+    public static void phaseCompleted(Channel ch, Histogram histogram) {
+        long now = System.nanoTime();
+        Long start = ch.attr(PHASE_START).getAndSet(now);
+        if (start != null) {
+            histogram.record(now - start);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ctx.channel().attr(PHASE_START).set(System.nanoTime());
+        active.increment();
+        total.increment();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        active.decrement();
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,25 @@
+package io.netty.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单调递增计数，基于{@link LongAdder}，多线程并发累加时没有锁和CAS竞争
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,29 @@
+package io.netty.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可增可减的当前值，如活跃连接数
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class Gauge {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,85 @@
+package io.netty.proxy.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时分布，记录纳秒、按秒输出
+ * <p>
+ * 每个桶一个{@link LongAdder}，记录时只对落入的那个桶累加，输出时再转换为prometheus要求的累积计数
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class Histogram {
+
+    /**
+     * 桶上界(秒)：100us ~ 10s
+     */
+    static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    /**
+     * 输出用的le标签值，最后一个为+Inf
+     */
+    static final String[] LE = new String[BOUNDS.length + 1];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = (long) (BOUNDS[i] * 1_000_000_000L);
+            LE[i] = BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+        }
+        LE[BOUNDS.length] = "+Inf";
+    }
+
+    /**
+     * 最后一个桶为+Inf
+     */
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        int i = 0;
+        while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 记录从startNanos到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 各桶的累积计数，最后一个元素为总数
+     */
+    long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
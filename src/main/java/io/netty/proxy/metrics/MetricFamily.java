@@ -0,0 +1,56 @@
+package io.netty.proxy.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 同名、不同标签值的一组指标
+ * <p>
+ * 标签组合第一次出现时创建，之后只是一次map查找；热路径上应当把{@link #labels(String...)}的结果缓存为字段
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class MetricFamily<T> {
+
+    final String name;
+
+    final String help;
+
+    final String type;
+
+    final String[] labelNames;
+
+    private final Supplier<T> factory;
+
+    /**
+     * 标签值 -> 指标，key为渲染好的标签字符串，如 server="socks5"
+     */
+    final Map<String, T> children = new ConcurrentHashMap<>();
+
+    MetricFamily(String name, String help, String type, Supplier<T> factory, String... labelNames) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.factory = factory;
+        this.labelNames = labelNames;
+    }
+
+    T labels(String... values) {
+        if (values.length != labelNames.length) {
+            throw new IllegalArgumentException(name + " expects labels " + String.join(",", labelNames));
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(labelNames[i]).append("=\"").append(escape(values[i])).append('"');
+        }
+        return children.computeIfAbsent(key.toString(), k -> factory.get());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
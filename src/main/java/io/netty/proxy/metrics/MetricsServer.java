@@ -0,0 +1,144 @@
+package io.netty.proxy.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.proxy.lifecycle.ServerChannels;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.transport.EventLoops;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+
+/**
+ * prometheus抓取端点：GET /metrics
+ * <p>
+ * 使用代理服务共享的boss/worker线程组，默认只监听本机地址；停止时在代理服务排空之后关闭，排空期间仍然可以抓取
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class MetricsServer implements SmartLifecycle {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final AppProperties properties;
+
+    private final EventLoops eventLoops;
+
+    private final ServerChannels channels;
+
+    public MetricsServer(AppProperties properties, EventLoops eventLoops) {
+        this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.channels = new ServerChannels("metrics", new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new HttpServerCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(4096));
+                ch.pipeline().addLast(new ScrapeHandler());
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        if (!properties.isEnableMetrics()) {
+            return;
+        }
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(eventLoops.getBossGroup(), eventLoops.getWorkerGroup())
+                .channel(eventLoops.getTransport().serverChannelClass())
+                .childHandler(channels);
+        try {
+            Channel listener = bootstrap.bind(properties.getMetricsHost(), properties.getMetricsPort())
+                    .sync()
+                    .channel();
+            channels.listening(Collections.singletonList(listener));
+            log.info("metrics endpoint has started on {}:{}", properties.getMetricsHost(), properties.getMetricsPort());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("metrics endpoint start interrupted", e);
+        } catch (RuntimeException e) {
+            log.error("metrics endpoint failed to bind {}:{}: {}",
+                    properties.getMetricsHost(), properties.getMetricsPort(), e.toString());
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        channels.drain(properties.getDrainTimeout(), callback);
+    }
+
+    @Override
+    public void stop() {
+        channels.drain(properties.getDrainTimeout());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return channels.isListening();
+    }
+
+    /**
+     * 比代理服务先启动、后停止
+     */
+    @Override
+    public int getPhase() {
+        return ServerChannels.PHASE - 1;
+    }
+
+    private static final class ScrapeHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            if (request.method() != HttpMethod.GET) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else if (!"/metrics".equals(new QueryStringDecoder(request.uri()).path())) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+            } else {
+                StringBuilder text = new StringBuilder(4096);
+                ProxyMetrics.scrape(text);
+                ByteBuf body = ByteBufUtil.writeUtf8(ctx.alloc(), text);
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.OK, body);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            }
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            // 抓取请求在channelRead中同步应答，收到时连接一定是空闲的
+            if (evt == ServerChannels.DRAIN) {
+                ctx.close();
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+}
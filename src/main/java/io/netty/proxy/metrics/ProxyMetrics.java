@@ -0,0 +1,381 @@
+package io.netty.proxy.metrics;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 代理的全部运行指标，以prometheus文本格式输出
+ * <p>
+ * 指标是进程级的静态实例，记录时只是一次{@link java.util.concurrent.atomic.LongAdder}累加，
+ * 可以在任意EventLoop中直接调用，不需要注入
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class ProxyMetrics {
+
+    public static final String SOCKS5 = "socks5";
+
+    public static final String HTTP = "http";
+
+    private static final MetricFamily<Gauge> CONNECTIONS_ACTIVE = new MetricFamily<>("proxy_connections_active",
+            "Client connections currently open", "gauge", Gauge::new, "server");
+
+    private static final MetricFamily<Counter> CONNECTIONS_TOTAL = new MetricFamily<>("proxy_connections_total",
+            "Client connections accepted", "counter", Counter::new, "server");
+
+    private static final MetricFamily<Histogram> HANDSHAKE = new MetricFamily<>("socks5_handshake_seconds",
+            "SOCKS5 handshake phase latency", "histogram", Histogram::new, "phase");
+
+    private static final MetricFamily<Histogram> UPSTREAM_CONNECT = new MetricFamily<>("upstream_connect_seconds",
+            "Upstream connect latency: hop=proxy is TCP+greeting to the chained proxy hop, "
+                    + "hop=destination is the CONNECT through it, hop=direct is a direct TCP connect",
+            "histogram", Histogram::new, "hop");
+
+    private static final MetricFamily<Counter> RELAYED_BYTES = new MetricFamily<>("proxy_relayed_bytes_total",
+            "Bytes relayed between clients and destinations (spliced tunnels are not counted)",
+            "counter", Counter::new, "direction");
+
+    private static final MetricFamily<Counter> CONNECT_FAILURES = new MetricFamily<>("proxy_connect_failures_total",
+            "Failed destination connects by SOCKS5 reply status", "counter", Counter::new, "server", "status");
+
+    private static final MetricFamily<Counter> ROUTED = new MetricFamily<>("proxy_routed_total",
+            "Destination connects by selected route (direct, reject or upstream name)",
+            "counter", Counter::new, "route");
+
+    private static final MetricFamily<Gauge> ENDPOINT_ACTIVE = new MetricFamily<>("upstream_endpoint_active",
+            "Connections in use or being established per balanced upstream endpoint",
+            "gauge", Gauge::new, "upstream", "endpoint");
+
+    private static final MetricFamily<Gauge> ENDPOINT_HEALTHY = new MetricFamily<>("upstream_endpoint_healthy",
+            "1 if the balanced upstream endpoint is in rotation, 0 if ejected",
+            "gauge", Gauge::new, "upstream", "endpoint");
+
+    private static final MetricFamily<Counter> ACCEPTS = new MetricFamily<>("proxy_accepts_total",
+            "Connections accepted per listener socket", "counter", Counter::new, "server", "listener");
+
+    private static final MetricFamily<Counter> ACCEPT_ERRORS = new MetricFamily<>("proxy_accept_errors_total",
+            "Errors raised while accepting, e.g. too many open files", "counter", Counter::new, "server", "listener");
+
+    private static final MetricFamily<Counter> AUTH_HASHES_REJECTED = new MetricFamily<>(
+            "proxy_auth_hashes_rejected_total",
+            "Password verifications failed because the hash queue was full", "counter", Counter::new);
+
+    private static final MetricFamily<Counter> LIMITED = new MetricFamily<>("proxy_limited_total",
+            "Tunnels refused by connection-rate or concurrent-tunnel limits", "counter", Counter::new, "reason");
+
+    private static final MetricFamily<Counter> THROTTLED = new MetricFamily<>("proxy_throttled_total",
+            "Times a tunnel direction paused reading to stay within its bandwidth limit",
+            "counter", Counter::new, "direction");
+
+    private static final MetricFamily<Gauge> UDP_ASSOCIATIONS = new MetricFamily<>("proxy_udp_associations_active",
+            "SOCKS5 UDP ASSOCIATE relays currently open", "gauge", Gauge::new);
+
+    private static final MetricFamily<Counter> UDP_DATAGRAMS = new MetricFamily<>("proxy_udp_datagrams_total",
+            "Datagrams relayed by UDP associations", "counter", Counter::new, "direction");
+
+    private static final MetricFamily<Counter> UDP_DROPPED = new MetricFamily<>("proxy_udp_dropped_total",
+            "Datagrams dropped by UDP associations", "counter", Counter::new, "reason");
+
+    private static final MetricFamily<Gauge> BIND_LISTENERS = new MetricFamily<>("proxy_bind_listeners_active",
+            "SOCKS5 BIND listeners waiting for the inbound connection", "gauge", Gauge::new);
+
+    /**
+     * 因带宽限制暂停读取客户端
+     */
+    public static final Counter THROTTLED_UPSTREAM = THROTTLED.labels("upstream");
+
+    /**
+     * 因带宽限制暂停读取目标主机
+     */
+    public static final Counter THROTTLED_DOWNSTREAM = THROTTLED.labels("downstream");
+
+    private static final MetricFamily<Counter> TIMEOUTS = new MetricFamily<>("proxy_timeouts_total",
+            "Connections closed by the timeout reaper per phase", "counter", Counter::new, "phase");
+
+    private static final MetricFamily<Counter> ACCESS_LOG = new MetricFamily<>("proxy_access_log_records_total",
+            "Access log records written or dropped because the queue was full or the file failed",
+            "counter", Counter::new, "result");
+
+    /**
+     * 已写入文件的访问记录
+     */
+    public static final Counter ACCESS_LOG_WRITTEN = ACCESS_LOG.labels("written");
+
+    /**
+     * 队列满或者写文件失败丢弃的访问记录
+     */
+    public static final Counter ACCESS_LOG_DROPPED = ACCESS_LOG.labels("dropped");
+
+    private static final MetricFamily<Counter> HTTP_CACHE = new MetricFamily<>("proxy_http_cache_requests_total",
+            "Cacheable plain HTTP requests by cache result", "counter", Counter::new, "result");
+
+    private static final MetricFamily<Gauge> HTTP_CACHE_BYTES = new MetricFamily<>("proxy_http_cache_bytes",
+            "Bytes of response bodies held by the HTTP cache", "gauge", Gauge::new);
+
+    /**
+     * 缓存新鲜，直接回复
+     */
+    public static final Counter HTTP_CACHE_HIT = HTTP_CACHE.labels("hit");
+
+    /**
+     * 缓存过期，目标主机回复304后使用缓存回复
+     */
+    public static final Counter HTTP_CACHE_REVALIDATED = HTTP_CACHE.labels("revalidated");
+
+    /**
+     * 没有可用的缓存，回源
+     */
+    public static final Counter HTTP_CACHE_MISS = HTTP_CACHE.labels("miss");
+
+    /**
+     * 等待同一个URL正在进行的回源
+     */
+    public static final Counter HTTP_CACHE_COALESCED = HTTP_CACHE.labels("coalesced");
+
+    public static final Gauge HTTP_CACHE_BYTES_USED = HTTP_CACHE_BYTES.labels();
+
+    private static final MetricFamily<Counter> HTTP2_STREAMS = new MetricFamily<>("proxy_http2_streams_total",
+            "HTTP/2 streams accepted on the HTTP proxy listener by request type", "counter", Counter::new, "type");
+
+    private static final MetricFamily<Gauge> HTTP2_STREAMS_OPEN = new MetricFamily<>("proxy_http2_streams_active",
+            "HTTP/2 streams currently open on the HTTP proxy listener", "gauge", Gauge::new);
+
+    /**
+     * CONNECT隧道
+     */
+    public static final Counter HTTP2_CONNECT = HTTP2_STREAMS.labels("connect");
+
+    /**
+     * 扩展CONNECT(websocket)隧道
+     */
+    public static final Counter HTTP2_EXTENDED_CONNECT = HTTP2_STREAMS.labels("extended_connect");
+
+    /**
+     * 普通HTTP请求
+     */
+    public static final Counter HTTP2_REQUEST = HTTP2_STREAMS.labels("request");
+
+    public static final Gauge HTTP2_STREAMS_ACTIVE = HTTP2_STREAMS_OPEN.labels();
+
+    private static final MetricFamily<Counter> TLS_HANDSHAKES = new MetricFamily<>("proxy_tls_handshakes_total",
+            "TLS handshakes on the proxy listeners by result (full, resumed from a session cache or ticket, failed)",
+            "counter", Counter::new, "server", "result");
+
+    private static final MetricFamily<Counter> TLS_CERTIFICATE_RELOADS = new MetricFamily<>(
+            "proxy_tls_certificate_reloads_total", "Times the TLS certificate was reloaded after the files changed",
+            "counter", Counter::new);
+
+    public static final Counter TLS_RELOADS = TLS_CERTIFICATE_RELOADS.labels();
+
+    private static final MetricFamily<Gauge> MUX_CONNECTIONS = new MetricFamily<>("proxy_mux_connections_active",
+            "HTTP/2 connections currently open to mux upstream nodes", "gauge", Gauge::new);
+
+    private static final MetricFamily<Counter> MUX_STREAMS = new MetricFamily<>("proxy_mux_streams_total",
+            "CONNECT streams opened on mux upstream connections by result", "counter", Counter::new, "result");
+
+    public static final Gauge MUX_CONNECTIONS_ACTIVE = MUX_CONNECTIONS.labels();
+
+    private static final MetricFamily<Counter> DIRECT_CONNECT_ATTEMPTS = new MetricFamily<>(
+            "proxy_direct_connect_attempts_total",
+            "TCP connect attempts to resolved destination addresses by result", "counter", Counter::new, "result");
+
+    /**
+     * 最先连上，成为隧道的出站连接
+     */
+    public static final Counter DIRECT_ATTEMPT_WON = DIRECT_CONNECT_ATTEMPTS.labels("won");
+
+    /**
+     * 连接失败或者超时
+     */
+    public static final Counter DIRECT_ATTEMPT_FAILED = DIRECT_CONNECT_ATTEMPTS.labels("failed");
+
+    /**
+     * 其他地址先连上后被取消
+     */
+    public static final Counter DIRECT_ATTEMPT_CANCELLED = DIRECT_CONNECT_ATTEMPTS.labels("cancelled");
+
+    /**
+     * 对端节点回复2xx，隧道建立
+     */
+    public static final Counter MUX_STREAMS_ESTABLISHED = MUX_STREAMS.labels("established");
+
+    /**
+     * 节点间连接失败、对端节点拒绝或者流被重置
+     */
+    public static final Counter MUX_STREAMS_FAILED = MUX_STREAMS.labels("failed");
+
+    private static final MetricFamily<?>[] FAMILIES = {
+            ACCEPTS, ACCEPT_ERRORS, CONNECTIONS_ACTIVE, CONNECTIONS_TOTAL, HANDSHAKE, UPSTREAM_CONNECT,
+            RELAYED_BYTES, CONNECT_FAILURES, ROUTED, ENDPOINT_ACTIVE, ENDPOINT_HEALTHY, LIMITED, THROTTLED,
+            UDP_ASSOCIATIONS, UDP_DATAGRAMS, UDP_DROPPED, BIND_LISTENERS, TIMEOUTS, ACCESS_LOG,
+            HTTP_CACHE, HTTP_CACHE_BYTES, HTTP2_STREAMS, HTTP2_STREAMS_OPEN, TLS_HANDSHAKES,
+            TLS_CERTIFICATE_RELOADS, MUX_CONNECTIONS, MUX_STREAMS, DIRECT_CONNECT_ATTEMPTS,
+            AUTH_HASHES_REJECTED
+    };
+
+    public static final Histogram HANDSHAKE_GREETING = HANDSHAKE.labels("greeting");
+
+    public static final Histogram HANDSHAKE_AUTH = HANDSHAKE.labels("auth");
+
+    public static final Counter AUTH_HASH_REJECTED = AUTH_HASHES_REJECTED.labels();
+
+    public static final Histogram CONNECT_PROXY_HOP = UPSTREAM_CONNECT.labels("proxy");
+
+    public static final Histogram CONNECT_DESTINATION = UPSTREAM_CONNECT.labels("destination");
+
+    public static final Histogram CONNECT_DIRECT = UPSTREAM_CONNECT.labels("direct");
+
+    /**
+     * 客户端到目标主机方向
+     */
+    public static final Counter BYTES_UPSTREAM = RELAYED_BYTES.labels("upstream");
+
+    /**
+     * 目标主机到客户端方向
+     */
+    public static final Counter BYTES_DOWNSTREAM = RELAYED_BYTES.labels("downstream");
+
+    public static final Gauge UDP_ASSOCIATIONS_ACTIVE = UDP_ASSOCIATIONS.labels();
+
+    public static final Gauge BIND_LISTENERS_ACTIVE = BIND_LISTENERS.labels();
+
+    /**
+     * 客户端发往目标主机的数据报
+     */
+    public static final Counter UDP_DATAGRAMS_UPSTREAM = UDP_DATAGRAMS.labels("upstream");
+
+    /**
+     * 目标主机回给客户端的数据报
+     */
+    public static final Counter UDP_DATAGRAMS_DOWNSTREAM = UDP_DATAGRAMS.labels("downstream");
+
+    /**
+     * 需要统计待执行任务数的线程组
+     */
+    private static final Map<String, EventLoopGroup> EVENT_LOOP_GROUPS = new ConcurrentHashMap<>();
+
+    private ProxyMetrics() {
+    }
+
+    public static Gauge activeConnections(String server) {
+        return CONNECTIONS_ACTIVE.labels(server);
+    }
+
+    public static Counter totalConnections(String server) {
+        return CONNECTIONS_TOTAL.labels(server);
+    }
+
+    public static Counter accepts(String server, int listener) {
+        return ACCEPTS.labels(server, String.valueOf(listener));
+    }
+
+    public static Counter acceptErrors(String server, int listener) {
+        return ACCEPT_ERRORS.labels(server, String.valueOf(listener));
+    }
+
+    /**
+     * 按端口与结果(full/resumed/failed)统计的TLS握手数
+     */
+    public static Counter tlsHandshakes(String server, String result) {
+        return TLS_HANDSHAKES.labels(server, result);
+    }
+
+    public static Counter limited(String reason) {
+        return LIMITED.labels(reason);
+    }
+
+    /**
+     * 按原因统计丢弃的UDP数据报，如fragmented、malformed、rejected
+     */
+    public static Counter udpDropped(String reason) {
+        return UDP_DROPPED.labels(reason);
+    }
+
+    /**
+     * 按阶段统计超时关闭的连接，如greeting、connect、idle
+     */
+    public static Counter timeouts(String phase) {
+        return TIMEOUTS.labels(phase);
+    }
+
+    public static Counter routed(String route) {
+        return ROUTED.labels(route);
+    }
+
+    public static Gauge endpointActive(String upstream, String endpoint) {
+        return ENDPOINT_ACTIVE.labels(upstream, endpoint);
+    }
+
+    public static Gauge endpointHealthy(String upstream, String endpoint) {
+        return ENDPOINT_HEALTHY.labels(upstream, endpoint);
+    }
+
+    /**
+     * 按socks5应答状态统计的建连失败数，标签值如FAILURE、HOST_UNREACHABLE
+     */
+    public static Counter connectFailures(String server, Socks5CommandStatus status) {
+        String text = status.toString();
+        int paren = text.indexOf('(');
+        return CONNECT_FAILURES.labels(server, paren < 0 ? text : text.substring(0, paren));
+    }
+
+    public static void registerEventLoopGroup(String name, EventLoopGroup group) {
+        EVENT_LOOP_GROUPS.put(name, group);
+    }
+
+    public static void unregisterEventLoopGroup(String name) {
+        EVENT_LOOP_GROUPS.remove(name);
+    }
+
+    /**
+     * 输出prometheus文本格式(version 0.0.4)
+     */
+    public static void scrape(StringBuilder out) {
+        for (MetricFamily<?> family : FAMILIES) {
+            writeFamily(out, family);
+        }
+        out.append("# HELP eventloop_pending_tasks Tasks waiting in the event loop queue\n");
+        out.append("# TYPE eventloop_pending_tasks gauge\n");
+        for (Map.Entry<String, EventLoopGroup> entry : EVENT_LOOP_GROUPS.entrySet()) {
+            int index = 0;
+            for (EventExecutor executor : entry.getValue()) {
+                if (executor instanceof SingleThreadEventExecutor) {
+                    out.append("eventloop_pending_tasks{group=\"").append(entry.getKey())
+                            .append("\",loop=\"").append(index).append("\"} ")
+                            .append(((SingleThreadEventExecutor) executor).pendingTasks()).append('\n');
+                }
+                index++;
+            }
+        }
+    }
+
+    private static void writeFamily(StringBuilder out, MetricFamily<?> family) {
+        out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+        out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+        for (Map.Entry<String, ?> entry : family.children.entrySet()) {
+            String labels = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram) {
+                writeHistogram(out, family.name, labels, (Histogram) metric);
+            } else {
+                long value = metric instanceof Counter ? ((Counter) metric).get() : ((Gauge) metric).get();
+                out.append(family.name).append('{').append(labels).append("} ").append(value).append('\n');
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            out.append(name).append("_bucket{").append(labels).append(",le=\"").append(Histogram.LE[i]).append("\"} ")
+                    .append(counts[i]).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.sumSeconds()).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(counts[counts.length - 1]).append('\n');
+    }
+}
@@ -1,10 +1,15 @@
 package io.netty.proxy.properties;
 
+import io.netty.channel.WriteBufferWaterMark;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -25,6 +30,31 @@ public class AppProperties {
      */
     private boolean enableAuth = false;
 
+    /**
+     * 用户凭据文件，每行user:password，密码可以是PasswordHash生成的哈希，修改后自动重新加载
+     */
+    private String authFile;
+
+    /**
+     * 凭据文件修改检查间隔(毫秒)
+     */
+    private long authCheckInterval = 5_000;
+
+    /**
+     * 校验成功的凭据缓存条数，0表示每次都重新计算哈希
+     */
+    private int authCacheSize = 1_024;
+
+    /**
+     * 计算密码哈希的线程数
+     */
+    private int authThreads = 2;
+
+    /**
+     * 每个哈希线程最多排队等待的计算数，队列满时新的校验直接失败
+     */
+    private int authMaxPendingHashes = 64;
+
     /**
      * 服务绑定的端口号
      */
@@ -35,6 +65,21 @@ public class AppProperties {
      */
     private Integer httpPort = 8992;
 
+    /**
+     * 是否开启prometheus指标端点
+     */
+    private boolean enableMetrics = true;
+
+    /**
+     * 指标端点监听的地址，端点没有认证，默认只允许本机抓取
+     */
+    private String metricsHost = "127.0.0.1";
+
+    /**
+     * 指标端点绑定的端口号
+     */
+    private Integer metricsPort = 8993;
+
     /**
      * 代理地址
      */
@@ -45,6 +90,411 @@ public class AppProperties {
      */
     private Integer proxyPort = 1080;
 
+    /**
+     * 上游代理认证用户名，为空时不认证
+     */
+    private String proxyUsername;
+
+    /**
+     * 上游代理认证密码
+     */
+    private String proxyPassword;
+
+    /**
+     * 多个上游socks5代理地址(host:port)，配置后忽略proxyHost/proxyPort
+     */
+    private List<String> proxyEndpoints = new ArrayList<>();
+
+    /**
+     * 多个上游代理之间的负载均衡策略: round-robin/least-active/ewma/consistent-hash
+     */
+    private String proxyBalance = "round-robin";
+
+    /**
+     * 多个上游代理时，一个代理建连失败后换其他代理重试的次数
+     */
+    private int proxyRetries = 2;
+
+    /**
+     * 上游代理连续失败多少次后摘除，摘除后由健康检查恢复
+     */
+    private int proxyEjectFailures = 3;
+
+    /**
+     * 上游代理健康检查间隔(毫秒)
+     */
+    private long proxyHealthCheckInterval = 5_000;
+
+    /**
+     * 每个EventLoop上保持的已完成socks5协商的上游连接数
+     */
+    private int proxyPoolMinIdle = 2;
+
+    /**
+     * 每个EventLoop上预热连接(空闲+建立中)的上限
+     */
+    private int proxyPoolMaxTotal = 16;
+
+    /**
+     * 预热连接最长空闲时间(毫秒)，超过后关闭重建
+     */
+    private long proxyPoolIdleTimeout = 60_000;
+
+    /**
+     * 预热连接健康检查间隔(毫秒)
+     */
+    private long proxyPoolCheckInterval = 5_000;
+
+    /**
+     * 命名的上游代理，名称在路由规则中作为出口使用；名称proxy默认由proxyHost/proxyPort配置
+     */
+    private final Map<String, UpstreamProperties> upstreams = new LinkedHashMap<>();
+
+    /**
+     * 路由规则，格式见RouteTable
+     */
+    private List<String> routes = new ArrayList<>();
+
+    /**
+     * 路由规则文件，追加在routes之后，修改后自动重新加载
+     */
+    private String routeFile;
+
+    /**
+     * 路由规则文件修改检查间隔(毫秒)
+     */
+    private long routeCheckInterval = 5_000;
+
+    /**
+     * 限速与限流
+     */
+    private final LimitProperties limits = new LimitProperties();
+
+    /**
+     * 限速配置文件(properties格式，键与app.limits.*相同)，修改后自动重新加载并覆盖app.limits
+     */
+    private String limitFile;
+
+    /**
+     * 限速配置文件修改检查间隔(毫秒)
+     */
+    private long limitCheckInterval = 5_000;
+
+    /**
+     * 访问日志文件(NDJSON，每个客户端连接一行)，为空时不记录
+     */
+    private String accessLogFile;
+
+    /**
+     * 等待写出的访问记录队列长度，队列满时丢弃新记录
+     */
+    private int accessLogQueueSize = 65_536;
+
+    /**
+     * 访问日志单个文件的最大字节数，超过后滚动为accessLogFile.1
+     */
+    private long accessLogMaxFileSize = 100L * 1024 * 1024;
+
+    /**
+     * 保留的滚动文件个数
+     */
+    private int accessLogMaxFiles = 10;
+
+    /**
+     * 访问日志最长刷盘间隔(毫秒)，也是写线程空闲时的检查间隔
+     */
+    private long accessLogFlushInterval = 1_000;
+
+    /**
+     * 是否把目标主机域名原样交给上游socks5代理解析，关闭时在本地解析后以IP地址发送CONNECT
+     */
+    private boolean remoteDns = true;
+
+    /**
+     * DNS服务器(ip或ip:port)，为空时使用系统配置(/etc/resolv.conf)
+     */
+    private List<String> dnsServers = new ArrayList<>();
+
+    /**
+     * DNS查询超时(毫秒)
+     */
+    private long dnsQueryTimeout = 2_000;
+
+    /**
+     * DNS缓存最短/最长有效期(秒)，在此范围内遵循记录本身的TTL
+     */
+    private int dnsMinTtl = 0;
+
+    private int dnsMaxTtl = 3_600;
+
+    /**
+     * 解析失败结果的缓存有效期(秒)
+     */
+    private int dnsNegativeTtl = 5;
+
+    /**
+     * 网络传输层: auto/epoll/nio，auto时在linux上优先使用epoll
+     */
+    private String transport = "auto";
+
+    /**
+     * 隧道建立后是否使用splice零拷贝转发(仅epoll传输层生效)
+     * <p>
+     * 开启后监听与出站连接在注册前就要切换为水平触发并使用固定64KiB的读分配器，普通HTTP转发、h2c等不会splice的连接也一样，默认关闭
+     */
+    private boolean zeroCopy = false;
+
+    /**
+     * 两个代理服务共享的accept线程数
+     */
+    private int bossThreads = 1;
+
+    /**
+     * 每个代理服务在同一个端口上绑定的监听socket数(SO_REUSEPORT，仅epoll传输层)，每个监听socket有自己的accept线程
+     */
+    private int acceptors = 1;
+
+    /**
+     * 是否总是在监听socket上开启SO_REUSEPORT(仅epoll传输层)，重启时新进程可以在旧进程退出之前绑定同一个端口
+     */
+    private boolean reusePort = false;
+
+    /**
+     * 监听socket交接用的unix domain socket路径(仅epoll传输层)，为空时不交接
+     */
+    private String handoffPath;
+
+    /**
+     * 停止时等待已有连接结束的最长时间(毫秒)，超过后强制关闭，需要小于spring.lifecycle.timeout-per-shutdown-phase
+     */
+    private long drainTimeout = 25_000;
+
+    /**
+     * 监听socket的accept队列长度，实际值不超过内核net.core.somaxconn
+     */
+    private int acceptBacklog = 1024;
+
+    /**
+     * accept线程每次被唤醒后最多连续接受的连接数
+     */
+    private int acceptBatch = 16;
+
+    /**
+     * 两个代理服务共享的IO线程数，0表示CPU核数
+     */
+    private int workerThreads = 0;
+
+    /**
+     * IO线程绑定的CPU列表，例如"0-3,6"，依次绑定到每个IO线程，为空时不绑定
+     */
+    private String workerCpuAffinity;
+
+    /**
+     * 出站连接是否注册在客户端连接所在的EventLoop上，关闭时使用独立的出站线程组(splice零拷贝时始终为同一个EventLoop)
+     */
+    private boolean outboundSameLoop = true;
+
+    /**
+     * 独立出站线程组的线程数，0表示与IO线程数相同
+     */
+    private int outboundThreads = 0;
+
+    /**
+     * 转发写缓冲低水位，回落到该值以下时恢复读取对端
+     */
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    /**
+     * 转发写缓冲高水位，超过该值时暂停读取对端
+     */
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    /**
+     * 是否支持socks5 UDP ASSOCIATE，没有开启认证时任何能连上socks5端口的客户端都可以使用，默认关闭
+     */
+    private boolean enableUdp = false;
+
+    /**
+     * UDP转发没有任何数据报往来多久后关闭(毫秒)
+     */
+    private long udpIdleTimeout = 60_000;
+
+    /**
+     * 转发的单个数据报最大字节数(含socks5 UDP头)，超出的部分被截断
+     */
+    private int udpMaxDatagramSize = 4096;
+
+    /**
+     * epoll传输层下每次recvmmsg最多读取的数据报数
+     */
+    private int udpBatch = 16;
+
+    /**
+     * 是否支持socks5 BIND，用于需要目标主机反向连入的旧协议，会在本机打开监听端口，默认关闭
+     */
+    private boolean enableBind = false;
+
+    /**
+     * BIND监听使用的端口范围，例如"40000-40999"，为空时由内核分配临时端口
+     */
+    private String bindPortRange;
+
+    /**
+     * BIND监听等待对端连入的最长时间(毫秒)，超时后关闭监听
+     */
+    private long bindAcceptTimeout = 60_000;
+
+    /**
+     * 超时检查时间轮的刻度(毫秒)，超时最多晚一个刻度触发
+     */
+    private long timeoutTick = 100;
+
+    /**
+     * 客户端建立连接后发送socks5初始化请求的最长时间(毫秒)，0表示不限制，下同
+     */
+    private long greetingTimeout = 10_000;
+
+    /**
+     * 发送socks5认证请求以及完成认证的最长时间(毫秒)
+     */
+    private long authTimeout = 10_000;
+
+    /**
+     * 发送socks5命令或者HTTP代理请求头的最长时间(毫秒)
+     */
+    private long commandTimeout = 10_000;
+
+    /**
+     * 单次出站TCP建连的超时(毫秒)，0表示不限制
+     */
+    private int connectTimeout = 10_000;
+
+    /**
+     * 直连的目标主机解析出多个地址时，前一个地址多久没有连上就并行尝试下一个(毫秒，RFC 8305的Connection Attempt Delay)，
+     * 有建连延迟记录的地址按记录缩短，0表示只在前一个地址失败后才尝试下一个
+     */
+    private long connectAttemptDelay = 250;
+
+    /**
+     * 按目标地址记录最近建连延迟与失败的条目数，决定多个地址的尝试顺序，0表示不记录
+     */
+    private int connectHistorySize = 4_096;
+
+    /**
+     * 建连失败的目标地址在这段时间内(毫秒)排在最后尝试
+     */
+    private long connectFailurePenalty = 60_000;
+
+    /**
+     * 收到命令或者请求后拿到可用出站连接的最长时间(毫秒)，包括DNS解析、建连重试与上游代理协商
+     */
+    private int connectionRequestTimeout = 30_000;
+
+    /**
+     * 隧道两端都没有收到数据多久后关闭(毫秒)，也是HTTP keep-alive连接等待下一个请求的最长时间
+     */
+    private int readTimeout = 300_000;
+
+    /**
+     * 隧道建立后的最长存活时间(毫秒)，到期后无论是否空闲都关闭，0表示不限制
+     */
+    private long tunnelMaxLifetime = 0;
+
+    /**
+     * HTTP代理请求头最大字节数，超过后直接断开
+     */
+    private int httpMaxHeadSize = 32 * 1024;
+
+    /**
+     * 是否在HTTP代理端口上接受HTTP/2(h2c prior knowledge)
+     */
+    private boolean enableHttp2 = true;
+
+    /**
+     * 每个HTTP/2连接上同时打开的流数上限
+     */
+    private int http2MaxConcurrentStreams = 256;
+
+    /**
+     * HTTP/2每个流的初始接收窗口(字节)，流对应的隧道或请求暂停读取时客户端最多再发送这么多数据
+     */
+    private int http2InitialWindowSize = 256 * 1024;
+
+    /**
+     * HTTP/2连接级接收窗口(字节)，所有流共享
+     */
+    private int http2ConnectionWindowSize = 4 * 1024 * 1024;
+
+    /**
+     * 普通HTTP请求每个目标host:port保留的keep-alive空闲连接数
+     */
+    private int httpPoolMaxIdlePerHost = 8;
+
+    /**
+     * 普通HTTP请求keep-alive空闲连接最长空闲时间(毫秒)
+     */
+    private long httpPoolIdleTimeout = 60_000;
+
+    /**
+     * 普通HTTP GET响应缓存的最大字节数(响应体，堆外内存)，0表示不缓存
+     */
+    private long httpCacheSize = 0;
+
+    /**
+     * 单个响应体超过该字节数时不缓存
+     */
+    private int httpCacheMaxObjectSize = 8 * 1024 * 1024;
+
+    /**
+     * socks5端口是否只接受TLS连接
+     */
+    private boolean socks5Tls = false;
+
+    /**
+     * HTTP代理端口是否只接受TLS连接，开启HTTP/2时通过ALPN协商h2
+     */
+    private boolean httpTls = false;
+
+    /**
+     * 服务端证书链文件(PEM)，与私钥文件修改后自动重新加载，只影响之后建立的连接
+     */
+    private String tlsCertFile;
+
+    /**
+     * 服务端私钥文件(PEM，PKCS#8)
+     */
+    private String tlsKeyFile;
+
+    /**
+     * 私钥文件的密码，为空时私钥没有加密
+     */
+    private String tlsKeyPassword;
+
+    /**
+     * TLS实现: auto/openssl/jdk，auto时netty-tcnative可用则使用OpenSSL，否则使用JDK的SSLEngine
+     */
+    private String tlsProvider = "auto";
+
+    /**
+     * 启用的TLS协议版本，当前实现不支持的版本自动忽略
+     */
+    private List<String> tlsProtocols = new ArrayList<>(Arrays.asList("TLSv1.3", "TLSv1.2"));
+
+    /**
+     * 服务端TLS会话缓存条数，0表示使用实现的默认值
+     */
+    private long tlsSessionCacheSize = 20_480;
+
+    /**
+     * TLS会话缓存与会话票据的有效期(秒)
+     */
+    private long tlsSessionTimeout = 3_600;
+
+    /**
+     * 证书与私钥文件修改检查间隔(毫秒)
+     */
+    private long tlsCheckInterval = 5_000;
+
     private boolean doLog = true;
 
     private boolean doForwardIP = true;
@@ -61,12 +511,24 @@ public class AppProperties {
 
     private boolean doHandleCompression = false;
 
-    private int connectTimeout = -1;
-
-    private int readTimeout = -1;
+    private int maxConnections = -1;
 
-    private int connectionRequestTimeout = -1;
+    /**
+     * 由proxyHost/proxyPort等配置的上游socks5代理，可以被upstreams.proxy覆盖
+     */
+    public UpstreamProperties defaultUpstream() {
+        UpstreamProperties upstream = new UpstreamProperties();
+        upstream.setHost(proxyHost);
+        upstream.setPort(proxyPort);
+        upstream.setUsername(proxyUsername);
+        upstream.setPassword(proxyPassword);
+        upstream.setEndpoints(proxyEndpoints);
+        upstream.setBalance(proxyBalance);
+        return upstream;
+    }
 
-    private int maxConnections = -1;
+    public WriteBufferWaterMark writeBufferWaterMark() {
+        return new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+    }
 
 }
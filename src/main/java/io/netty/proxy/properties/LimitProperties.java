@@ -0,0 +1,80 @@
+package io.netty.proxy.properties;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 限速与限流，0表示不限制；带宽按上行(客户端到目标主机)与下行分别计算
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Data
+public class LimitProperties {
+
+    /**
+     * 整个代理每个方向的带宽(字节/秒)
+     */
+    private long globalBandwidth = 0;
+
+    /**
+     * 每个用户每个方向的带宽(字节/秒)，没有认证时按客户端IP计算
+     */
+    private long userBandwidth = 0;
+
+    /**
+     * 每个目标主机每个方向的带宽(字节/秒)
+     */
+    private long destinationBandwidth = 0;
+
+    /**
+     * 每个用户每秒新建的隧道数
+     */
+    private double userConnectionRate = 0;
+
+    /**
+     * 每个用户同时打开的隧道数
+     */
+    private int userMaxTunnels = 0;
+
+    /**
+     * 每个目标主机同时打开的隧道数
+     */
+    private int destinationMaxTunnels = 0;
+
+    /**
+     * 令牌桶容量，可以连续突发多少秒的速率
+     */
+    private double burstSeconds = 1;
+
+    /**
+     * 按用户名覆盖userBandwidth/userConnectionRate/userMaxTunnels
+     */
+    private final Map<String, UserLimit> users = new LinkedHashMap<>();
+
+    @Data
+    public static class UserLimit {
+
+        private Long bandwidth;
+
+        private Double connectionRate;
+
+        private Integer maxTunnels;
+    }
+
+    public long bandwidthOf(String user) {
+        UserLimit limit = users.get(user);
+        return limit != null && limit.bandwidth != null ? limit.bandwidth : userBandwidth;
+    }
+
+    public double connectionRateOf(String user) {
+        UserLimit limit = users.get(user);
+        return limit != null && limit.connectionRate != null ? limit.connectionRate : userConnectionRate;
+    }
+
+    public int maxTunnelsOf(String user) {
+        UserLimit limit = users.get(user);
+        return limit != null && limit.maxTunnels != null ? limit.maxTunnels : userMaxTunnels;
+    }
+}
@@ -0,0 +1,103 @@
+package io.netty.proxy.properties;
+
+import lombok.Data;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 命名的上游代理，在路由规则中以名称引用
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Data
+public class UpstreamProperties {
+
+    /**
+     * 代理协议: socks5/http/mux，mux为另一个代理节点HTTP代理端口上的HTTP/2多路复用隧道
+     */
+    private String type = "socks5";
+
+    /**
+     * 代理地址
+     */
+    private String host;
+
+    /**
+     * 代理端口
+     */
+    private Integer port;
+
+    /**
+     * 多个代理地址(host:port，IPv6为[addr]:port)，配置后忽略host/port，按balance策略负载均衡
+     */
+    private List<String> endpoints = new ArrayList<>();
+
+    /**
+     * 负载均衡策略: round-robin/least-active/ewma/consistent-hash
+     */
+    private String balance = "round-robin";
+
+    /**
+     * 代理认证用户名，为空时不认证
+     */
+    private String username;
+
+    /**
+     * 代理认证密码
+     */
+    private String password;
+
+    /**
+     * 仅mux: 节点间是否使用TLS(ALPN h2)，对端节点需要开启app.http-tls
+     */
+    private boolean tls = false;
+
+    /**
+     * 仅mux: 校验对端节点证书的CA证书文件(PEM)，为空时使用JVM默认的信任库
+     */
+    private String tlsTrustFile;
+
+    /**
+     * 仅mux: 目标端口到HTTP/2流权重(1-256)，没有配置的端口使用默认权重16，同一个连接上的流按权重分配带宽
+     */
+    private Map<Integer, Integer> streamWeights = new HashMap<>();
+
+    /**
+     * 仅mux: 节点间连接的PING间隔(毫秒)，需要小于对端节点的app.read-timeout，0表示不发送
+     */
+    private long pingInterval = 60_000;
+
+    /**
+     * 全部代理地址，均未解析
+     */
+    public List<InetSocketAddress> endpointAddresses() {
+        if (endpoints.isEmpty()) {
+            if (host == null || port == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(InetSocketAddress.createUnresolved(host, port));
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>(endpoints.size());
+        for (String endpoint : endpoints) {
+            addresses.add(parseEndpoint(endpoint.trim()));
+        }
+        return addresses;
+    }
+
+    private static InetSocketAddress parseEndpoint(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        if (colon <= 0 || colon == endpoint.length() - 1) {
+            throw new IllegalArgumentException("bad upstream endpoint " + endpoint);
+        }
+        String endpointHost = endpoint.substring(0, colon);
+        if (endpointHost.startsWith("[") && endpointHost.endsWith("]")) {
+            endpointHost = endpointHost.substring(1, endpointHost.length() - 1);
+        }
+        return InetSocketAddress.createUnresolved(endpointHost, Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,106 @@
+package io.netty.proxy.relay;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把本端读到的数据写给对端，对端写缓冲超过高水位时关闭本端autoRead，对端回落到低水位时由对端的handler重新打开；
+ * 超出带宽限制时关闭本端autoRead，到时间后由定时任务重新打开
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+class RelayHandler extends ChannelInboundHandlerAdapter {
+
+    private final Channel peer;
+
+    /**
+     * 本端读、对端写的方向
+     */
+    private final Tunnel.Flow inbound;
+
+    /**
+     * 对端读、本端写的方向
+     */
+    private final Tunnel.Flow outbound;
+
+    RelayHandler(Channel peer, Tunnel.Flow inbound, Tunnel.Flow outbound) {
+        this.peer = peer;
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!peer.isActive()) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        long throttle = 0;
+        if (msg instanceof ByteBuf) {
+            throttle = inbound.onRelayed(((ByteBuf) msg).readableBytes());
+        }
+        peer.write(msg, peer.voidPromise());
+        if (!peer.isWritable() && !inbound.isPaused()) {
+            peer.flush();
+            ctx.channel().config().setAutoRead(false);
+            inbound.onPause();
+            // 对端可能在暂停标记设置之前就已经回到可写状态(跨EventLoop时)，这里补一次检查避免永久暂停
+            if (peer.isWritable() && inbound.onResume() && !inbound.isThrottled()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+        if (throttle > 0 && !inbound.isThrottled()) {
+            throttle(ctx, throttle);
+        }
+    }
+
+    private void throttle(ChannelHandlerContext ctx, long nanos) {
+        inbound.onThrottle();
+        ctx.channel().config().setAutoRead(false);
+        ctx.executor().schedule(() -> {
+            inbound.onThrottleEnd();
+            if (!inbound.isPaused()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        inbound.onReadComplete();
+        peer.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && outbound.onResume() && !outbound.isThrottled()) {
+            peer.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (peer.isActive()) {
+            // 等待已经写出的数据发送完成之后再关闭
+            peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error("RelayHandler exception " + cause);
+        ctx.close();
+    }
+}
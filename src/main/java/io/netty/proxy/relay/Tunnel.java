@@ -0,0 +1,232 @@
+package io.netty.proxy.relay;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.metrics.Counter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+
+import java.util.function.IntToLongFunction;
+
+/**
+ * 代理隧道：真实客户端channel与目标主机(或上游代理)channel之间的双向转发
+ * <pre>
+ *            ---- upstream ---->
+ * 真实客户端                        目标主机
+ *            <--- downstream ---
+ * </pre>
+ * 每个方向由一个{@link RelayHandler}负责，写出端超过高水位时暂停读入端，回落到低水位后恢复；
+ * 超出{@link Lease}的带宽限制时读入端暂停到令牌足够为止
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Getter
+public final class Tunnel {
+
+    public static final AttributeKey<Tunnel> KEY = AttributeKey.valueOf(Tunnel.class, "tunnel");
+
+    private final Channel client;
+
+    private final Channel remote;
+
+    /**
+     * 占用的限流名额，两端任意一端关闭时归还
+     */
+    private final Lease lease;
+
+    /**
+     * 客户端到目标主机方向
+     */
+    private final Flow upstream;
+
+    /**
+     * 目标主机到客户端方向
+     */
+    private final Flow downstream;
+
+    /**
+     * 是否已经切换为splice零拷贝转发，此时字节计数不再更新
+     */
+    private volatile boolean spliced;
+
+    private Tunnel(Channel client, Channel remote, Lease lease) {
+        this.client = client;
+        this.remote = remote;
+        this.lease = lease;
+        this.upstream = new Flow(ProxyMetrics.BYTES_UPSTREAM, ProxyMetrics.THROTTLED_UPSTREAM, lease::upload);
+        this.downstream = new Flow(ProxyMetrics.BYTES_DOWNSTREAM, ProxyMetrics.THROTTLED_DOWNSTREAM, lease::download);
+    }
+
+    /**
+     * 不限速的隧道
+     *
+     * @see #create(Channel, Channel, Lease)
+     */
+    public static Tunnel create(Channel client, Channel remote) {
+        return create(client, remote, Lease.UNLIMITED);
+    }
+
+    /**
+     * 在两端pipeline末尾安装转发handler，之后两端读到的数据都会写给对端
+     */
+    public static Tunnel create(Channel client, Channel remote, Lease lease) {
+        Tunnel tunnel = new Tunnel(client, remote, lease);
+        client.attr(KEY).set(tunnel);
+        remote.attr(KEY).set(tunnel);
+        if (lease != Lease.UNLIMITED) {
+            ChannelFutureListener release = future -> lease.close();
+            client.closeFuture().addListener(release);
+            remote.closeFuture().addListener(release);
+        }
+        client.pipeline().addLast(new RelayHandler(remote, tunnel.upstream, tunnel.downstream));
+        remote.pipeline().addLast(new RelayHandler(client, tunnel.downstream, tunnel.upstream));
+        return tunnel;
+    }
+
+    /**
+     * 尝试切换为splice零拷贝转发，必须在两端协议握手的handler都已经移除之后调用；有带宽限制或者限制可能重新加载时不切换
+     */
+    public boolean trySplice() {
+        if (!lease.isSpliceable()) {
+            return false;
+        }
+        spliced = SpliceRelay.start(client, remote);
+        return spliced;
+    }
+
+    /**
+     * 已经写入客户端但还没有发送出去的字节数
+     */
+    public long clientBufferedBytes() {
+        return bufferedBytes(client);
+    }
+
+    /**
+     * 已经写入目标主机但还没有发送出去的字节数
+     */
+    public long remoteBufferedBytes() {
+        return bufferedBytes(remote);
+    }
+
+    /**
+     * 两端最后一次收到数据的时间(System.nanoTime)；splice转发时数据不经过pipeline，取内核记录的最后收到数据的时间
+     */
+    public long lastActivity() {
+        long last = Math.max(upstream.lastRead, downstream.lastRead);
+        if (spliced) {
+            last = Math.max(last, Math.max(SpliceRelay.lastReceived(client), SpliceRelay.lastReceived(remote)));
+        }
+        return last;
+    }
+
+    private static long bufferedBytes(Channel ch) {
+        ChannelOutboundBuffer buffer = ch.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    /**
+     * 单方向转发统计，只由读入端channel所在的EventLoop更新
+     */
+    @Getter
+    public static final class Flow {
+
+        /**
+         * 进程级的同方向字节计数
+         */
+        private final Counter total;
+
+        /**
+         * 进程级的同方向限速暂停次数
+         */
+        private final Counter throttledTotal;
+
+        /**
+         * 转发字节数 -> 需要暂停读取的纳秒数
+         */
+        private final IntToLongFunction shaper;
+
+        /**
+         * 已转发字节数
+         */
+        private volatile long bytes;
+
+        /**
+         * 因写出端不可写而暂停读入的次数
+         */
+        private volatile long pauses;
+
+        /**
+         * 累计暂停时长
+         */
+        private volatile long pausedNanos;
+
+        /**
+         * 暂停开始时间，0表示未暂停
+         */
+        private volatile long pausedSince;
+
+        /**
+         * 是否因为带宽限制暂停读取，暂停期间写出端恢复可写也不能恢复读取
+         */
+        private volatile boolean throttled;
+
+        /**
+         * 最后一次读取完成的时间(System.nanoTime)
+         */
+        private volatile long lastRead = System.nanoTime();
+
+        Flow(Counter total, Counter throttledTotal, IntToLongFunction shaper) {
+            this.total = total;
+            this.throttledTotal = throttledTotal;
+            this.shaper = shaper;
+        }
+
+        public boolean isPaused() {
+            return pausedSince != 0;
+        }
+
+        /**
+         * @return 超出带宽限制时需要暂停读取的纳秒数
+         */
+        long onRelayed(int bytes) {
+            this.bytes += bytes;
+            total.add(bytes);
+            return shaper.applyAsLong(bytes);
+        }
+
+        void onReadComplete() {
+            lastRead = System.nanoTime();
+        }
+
+        void onThrottle() {
+            throttled = true;
+            throttledTotal.increment();
+        }
+
+        void onThrottleEnd() {
+            throttled = false;
+        }
+
+        void onPause() {
+            pauses++;
+            pausedSince = System.nanoTime();
+        }
+
+        /**
+         * @return 是否由本次调用结束了暂停状态
+         */
+        synchronized boolean onResume() {
+            long since = pausedSince;
+            if (since == 0) {
+                return false;
+            }
+            pausedSince = 0;
+            pausedNanos += System.nanoTime() - since;
+            return true;
+        }
+    }
+}
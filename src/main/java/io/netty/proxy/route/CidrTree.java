@@ -0,0 +1,61 @@
+package io.netty.proxy.route;
+
+/**
+ * 按bit逐位分支的CIDR前缀树，IPv4与IPv6各一棵
+ * <p>
+ * 节点记录以它为前缀的规则最小序号，匹配时沿地址的bit向下走，取路径上最小的序号
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class CidrTree {
+
+    private final Node v4 = new Node();
+
+    private final Node v6 = new Node();
+
+    /**
+     * @param address 4或16字节的网络地址
+     * @param prefix  前缀长度
+     */
+    void insert(byte[] address, int prefix, int rule) {
+        Node node = address.length == 4 ? v4 : v6;
+        for (int i = 0; i < prefix; i++) {
+            int bit = bit(address, i);
+            Node next = node.children[bit];
+            if (next == null) {
+                next = new Node();
+                node.children[bit] = next;
+            }
+            node = next;
+        }
+        node.rule = Math.min(node.rule, rule);
+    }
+
+    /**
+     * @return 命中规则的最小序号，没有命中时返回{@link Integer#MAX_VALUE}
+     */
+    int match(byte[] address) {
+        Node node = address.length == 4 ? v4 : v6;
+        int best = node.rule;
+        int bits = address.length * 8;
+        for (int i = 0; i < bits; i++) {
+            node = node.children[bit(address, i)];
+            if (node == null) {
+                break;
+            }
+            best = Math.min(best, node.rule);
+        }
+        return best;
+    }
+
+    private static int bit(byte[] address, int index) {
+        return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    private static final class Node {
+
+        private final Node[] children = new Node[2];
+
+        private int rule = Integer.MAX_VALUE;
+    }
+}
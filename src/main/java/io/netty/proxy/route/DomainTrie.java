@@ -0,0 +1,71 @@
+package io.netty.proxy.route;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 域名后缀树，按label从顶级域名开始逐级匹配
+ * <p>
+ * 每个节点记录以它结尾的后缀规则与精确规则的最小序号，匹配时取路径上最小的序号，即规则表中最靠前的命中规则
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class DomainTrie {
+
+    private final Node root = new Node();
+
+    /**
+     * @param exact true表示只匹配该域名本身，false表示匹配该域名及其所有子域名
+     */
+    void insert(String domain, int rule, boolean exact) {
+        Node node = root;
+        String normalized = normalize(domain);
+        int end = normalized.length();
+        while (end > 0) {
+            int dot = normalized.lastIndexOf('.', end - 1);
+            String label = normalized.substring(dot + 1, end);
+            node = node.children.computeIfAbsent(label, key -> new Node());
+            end = dot;
+        }
+        if (exact) {
+            node.exactRule = Math.min(node.exactRule, rule);
+        } else {
+            node.suffixRule = Math.min(node.suffixRule, rule);
+        }
+    }
+
+    /**
+     * @return 命中规则的最小序号，没有命中时返回{@link Integer#MAX_VALUE}
+     */
+    int match(String host) {
+        String normalized = normalize(host);
+        int best = Integer.MAX_VALUE;
+        Node node = root;
+        int end = normalized.length();
+        while (end > 0) {
+            int dot = normalized.lastIndexOf('.', end - 1);
+            node = node.children.get(normalized.substring(dot + 1, end));
+            if (node == null) {
+                return best;
+            }
+            best = Math.min(best, node.suffixRule);
+            end = dot;
+        }
+        return Math.min(best, node.exactRule);
+    }
+
+    private static String normalize(String domain) {
+        String lower = domain.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".") ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>(4);
+
+        private int suffixRule = Integer.MAX_VALUE;
+
+        private int exactRule = Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,215 @@
+package io.netty.proxy.route;
+
+import io.netty.util.NetUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 编译后的路由规则表，创建后不再修改，重新加载时整体替换
+ * <p>
+ * 规则每行一条，格式为{@code 类型,值,出口}，出口是direct、reject或者上游代理名称，按规则表中的顺序第一条命中的规则生效：
+ * <pre>
+ * DOMAIN,intranet.example.com,direct
+ * DOMAIN-SUFFIX,example.com,direct
+ * IP-CIDR,10.0.0.0/8,direct
+ * IP-CIDR,fd00::/8,direct
+ * DST-PORT,25,reject
+ * DST-PORT,6881-6889,reject
+ * MATCH,proxy
+ * </pre>
+ * IP-CIDR只匹配以IP地址访问的目标主机，域名不会为了匹配规则而解析，IPv4映射的IPv6地址按IPv4地址匹配；
+ * 都没有命中时使用MATCH指定的出口
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class RouteTable {
+
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    /**
+     * IPv4映射的IPv6地址中IPv4地址之前的bit数
+     */
+    private static final int MAPPED_PREFIX = 96;
+
+    /**
+     * 规则序号 -> 出口
+     */
+    private final String[] targets;
+
+    /**
+     * 没有命中任何规则时的出口
+     */
+    private final String fallback;
+
+    private final DomainTrie domains = new DomainTrie();
+
+    private final CidrTree cidrs = new CidrTree();
+
+    /**
+     * 端口 -> 规则序号，没有端口规则时为null
+     */
+    private int[] ports;
+
+    private final int size;
+
+    private RouteTable(int size, String fallback) {
+        this.targets = new String[size];
+        this.fallback = fallback;
+        this.size = size;
+    }
+
+    /**
+     * 编译规则
+     *
+     * @param rules    规则行，空行和#开头的注释行会被忽略
+     * @param known    可用的出口名称
+     * @param fallback 规则中没有MATCH时的出口
+     * @throws IllegalArgumentException 规则格式错误或者引用了不存在的出口
+     */
+    static RouteTable compile(List<String> rules, Collection<String> known, String fallback) {
+        List<String[]> parsed = new ArrayList<>(rules.size());
+        String match = fallback;
+        for (int i = 0; i < rules.size(); i++) {
+            String line = rules.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            for (int j = 0; j < fields.length; j++) {
+                fields[j] = fields[j].trim();
+            }
+            String type = fields[0].toUpperCase(Locale.ROOT);
+            if ("MATCH".equals(type) || "FINAL".equals(type)) {
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException("bad route rule at line " + (i + 1) + ": " + line);
+                }
+                match = checkTarget(fields[1], known, i, line);
+                continue;
+            }
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("bad route rule at line " + (i + 1) + ": " + line);
+            }
+            checkTarget(fields[2], known, i, line);
+            fields[0] = type;
+            parsed.add(fields);
+        }
+        if (!known.contains(match)) {
+            throw new IllegalArgumentException("unknown route target " + match);
+        }
+        RouteTable table = new RouteTable(parsed.size(), match);
+        for (int rule = 0; rule < parsed.size(); rule++) {
+            table.add(rule, parsed.get(rule));
+        }
+        return table;
+    }
+
+    /**
+     * 选择目标主机的出口
+     *
+     * @param host 域名或者IP地址(IPv6不带方括号)
+     */
+    String route(String host, int port) {
+        int rule = ports == null || port < 0 || port >= ports.length ? NO_RULE : ports[port];
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(host);
+        if (address != null) {
+            rule = Math.min(rule, cidrs.match(address));
+            byte[] ipv4 = unmap(address);
+            if (ipv4 != null) {
+                rule = Math.min(rule, cidrs.match(ipv4));
+            }
+        } else {
+            rule = Math.min(rule, domains.match(host));
+        }
+        return rule == NO_RULE ? fallback : targets[rule];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void add(int rule, String[] fields) {
+        String type = fields[0];
+        String value = fields[1];
+        targets[rule] = fields[2];
+        switch (type) {
+            case "DOMAIN":
+                domains.insert(value, rule, true);
+                break;
+            case "DOMAIN-SUFFIX":
+                domains.insert(value, rule, false);
+                break;
+            case "IP-CIDR":
+            case "IP-CIDR6":
+                addCidr(value, rule);
+                break;
+            case "DST-PORT":
+                addPorts(value, rule);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown route rule type " + type);
+        }
+    }
+
+    private void addCidr(String value, int rule) {
+        int slash = value.indexOf('/');
+        String ip = slash < 0 ? value : value.substring(0, slash);
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(ip);
+        if (address == null) {
+            throw new IllegalArgumentException("bad cidr " + value);
+        }
+        int prefix = slash < 0 ? address.length * 8 : Integer.parseInt(value.substring(slash + 1));
+        if (prefix < 0 || prefix > address.length * 8) {
+            throw new IllegalArgumentException("bad cidr " + value);
+        }
+        byte[] ipv4 = unmap(address);
+        if (ipv4 != null && prefix >= MAPPED_PREFIX) {
+            cidrs.insert(ipv4, prefix - MAPPED_PREFIX, rule);
+        } else {
+            cidrs.insert(address, prefix, rule);
+        }
+    }
+
+    /**
+     * IPv4映射的IPv6地址(::ffff:a.b.c.d)与IPv4地址是同一个目标，按IPv4的规则匹配，否则以IPv6形式访问就能绕过IPv4的规则
+     *
+     * @return 映射的IPv4地址，不是IPv4映射地址时返回null
+     */
+    private static byte[] unmap(byte[] address) {
+        if (address.length != 16 || address[10] != (byte) 0xff || address[11] != (byte) 0xff) {
+            return null;
+        }
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return null;
+            }
+        }
+        return Arrays.copyOfRange(address, 12, 16);
+    }
+
+    private void addPorts(String value, int rule) {
+        int dash = value.indexOf('-');
+        int from = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+        int to = dash < 0 ? from : Integer.parseInt(value.substring(dash + 1));
+        if (from < 0 || to > 65535 || from > to) {
+            throw new IllegalArgumentException("bad port range " + value);
+        }
+        if (ports == null) {
+            ports = new int[65536];
+            Arrays.fill(ports, NO_RULE);
+        }
+        for (int port = from; port <= to; port++) {
+            ports[port] = Math.min(ports[port], rule);
+        }
+    }
+
+    private static String checkTarget(String target, Collection<String> known, int index, String line) {
+        if (!known.contains(target)) {
+            throw new IllegalArgumentException("unknown route target '" + target + "' at line " + (index + 1) + ": " + line);
+        }
+        return target;
+    }
+}
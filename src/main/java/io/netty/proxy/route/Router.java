@@ -0,0 +1,244 @@
+package io.netty.proxy.route;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.Counter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.UpstreamProperties;
+import io.netty.proxy.upstream.BalancedConnector;
+import io.netty.proxy.upstream.DirectConnector;
+import io.netty.proxy.upstream.HttpProxyConnector;
+import io.netty.proxy.upstream.MuxConnector;
+import io.netty.proxy.upstream.Socks5UpstreamException;
+import io.netty.proxy.upstream.Socks5UpstreamPool;
+import io.netty.proxy.upstream.UpstreamConnector;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由：按目标主机选择直连、某个命名的上游代理或者拒绝
+ * <p>
+ * 规则来自app.routes与app.route-file，编译为{@link RouteTable}；规则文件修改后自动重新编译并整体替换，
+ * 编译失败时继续使用旧的规则表
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class Router implements DisposableBean {
+
+    public static final String DIRECT = "direct";
+
+    public static final String REJECT = "reject";
+
+    /**
+     * 由app.proxy-host/app.proxy-port配置的上游代理名称，也是默认出口
+     */
+    public static final String DEFAULT_UPSTREAM = "proxy";
+
+    private final AppProperties properties;
+
+    private final DnsResolver dns;
+
+    private final Map<String, UpstreamConnector> connectors = new LinkedHashMap<>();
+
+    private final Map<String, Counter> routed = new HashMap<>();
+
+    private volatile RouteTable table;
+
+    /**
+     * 上次加载的规则文件修改时间，只在重新加载任务中访问
+     */
+    private long routeFileModified;
+
+    private final ScheduledFuture<?> reloadTask;
+
+    public Router(AppProperties properties, DnsResolver dns) {
+        this.properties = properties;
+        this.dns = dns;
+        connectors.put(DIRECT, new DirectConnector(properties, dns));
+        connectors.put(REJECT, (loop, host, port) -> loop.newFailedFuture(new Socks5UpstreamException(
+                Socks5CommandStatus.FORBIDDEN, new IllegalStateException("rejected by route rule"))));
+        Map<String, UpstreamProperties> upstreams = new LinkedHashMap<>();
+        upstreams.put(DEFAULT_UPSTREAM, properties.defaultUpstream());
+        upstreams.putAll(properties.getUpstreams());
+        upstreams.forEach((name, upstream) -> connectors.put(name, newConnector(name, upstream)));
+        for (String name : connectors.keySet()) {
+            routed.put(name, ProxyMetrics.routed(name));
+        }
+        this.table = load();
+        log.info("route table loaded with {} rules, targets {}", table.size(), connectors.keySet());
+        if (properties.getRouteFile() != null) {
+            long interval = properties.getRouteCheckInterval();
+            this.reloadTask = GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(
+                    this::reloadIfModified, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.reloadTask = null;
+        }
+    }
+
+    /**
+     * 为线程组中的每个EventLoop预热各个上游代理的连接
+     */
+    public void warmUp(EventLoopGroup group) {
+        for (UpstreamConnector connector : connectors.values()) {
+            connector.warmUp(group);
+        }
+    }
+
+    /**
+     * 按当前的路由规则选择出口
+     *
+     * @return direct、reject或者上游代理名称
+     */
+    public String route(String host, int port) {
+        return table.route(host, port);
+    }
+
+    /**
+     * 按路由规则连接目标主机
+     *
+     * @param loop 出站channel注册的EventLoop
+     * @return 见{@link UpstreamConnector#connect(EventLoop, String, int)}
+     */
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        return connect(loop, route(host, port), host, port);
+    }
+
+    /**
+     * 经由指定的出口连接目标主机
+     * <p>
+     * 经由上游代理时，remoteDns开启则域名原样交给上游代理解析，否则先在本地解析，再以IP地址发送CONNECT
+     *
+     * @param target {@link #route(String, int)}返回的出口
+     */
+    public Future<Channel> connect(EventLoop loop, String target, String host, int port) {
+        routed.get(target).increment();
+        log.debug("route {}:{} -> {}", host, port, target);
+        UpstreamConnector connector = connectors.get(target);
+        if (properties.isRemoteDns()
+                || DIRECT.equals(target)
+                || REJECT.equals(target)
+                || NetUtil.isValidIpV4Address(host)
+                || NetUtil.isValidIpV6Address(host)) {
+            return connector.connect(loop, host, port);
+        }
+        Promise<Channel> promise = loop.newPromise();
+        dns.resolve(loop, host, port).addListener((Future<InetSocketAddress> resolved) -> {
+            if (!resolved.isSuccess()) {
+                log.debug("resolve {} failed: {}", host, resolved.cause().toString());
+                promise.tryFailure(new Socks5UpstreamException(Socks5CommandStatus.HOST_UNREACHABLE, resolved.cause()));
+                return;
+            }
+            String address = NetUtil.toAddressString(resolved.getNow().getAddress());
+            connector.connect(loop, address, port).addListener((Future<Channel> future) -> {
+                if (future.isSuccess()) {
+                    promise.trySuccess(future.getNow());
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            });
+        });
+        return promise;
+    }
+
+    @Override
+    public void destroy() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+        }
+    }
+
+    /**
+     * 只有一个代理地址时直接使用该代理的连接器，多个时由{@link BalancedConnector}负载均衡
+     */
+    private UpstreamConnector newConnector(String name, UpstreamProperties upstream) {
+        if (DIRECT.equals(name) || REJECT.equals(name)) {
+            throw new IllegalArgumentException("upstream name '" + name + "' is reserved");
+        }
+        List<InetSocketAddress> addresses = upstream.endpointAddresses();
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("upstream '" + name + "' needs host and port or endpoints");
+        }
+        if (addresses.size() == 1) {
+            return newEndpointConnector(name, upstream, addresses.get(0));
+        }
+        List<String> names = new ArrayList<>(addresses.size());
+        List<UpstreamConnector> endpoints = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            names.add(address.getHostString() + ":" + address.getPort());
+            endpoints.add(newEndpointConnector(name, upstream, address));
+        }
+        log.info("upstream {} balances {} by {}", name, names, upstream.getBalance());
+        return new BalancedConnector(name, names, endpoints,
+                BalancedConnector.Balance.of(upstream.getBalance()),
+                properties.getProxyRetries(),
+                properties.getProxyEjectFailures(),
+                properties.getProxyHealthCheckInterval());
+    }
+
+    private UpstreamConnector newEndpointConnector(String name, UpstreamProperties upstream, InetSocketAddress address) {
+        switch (upstream.getType().toLowerCase()) {
+            case "socks5":
+                return new Socks5UpstreamPool(upstream, address, properties, dns);
+            case "http":
+                return new HttpProxyConnector(upstream, address, properties, dns);
+            case "mux":
+                return new MuxConnector(upstream, address, properties, dns);
+            default:
+                throw new IllegalArgumentException("unknown upstream type " + upstream.getType() + " of " + name);
+        }
+    }
+
+    private RouteTable load() {
+        List<String> rules = new ArrayList<>(properties.getRoutes());
+        if (properties.getRouteFile() != null) {
+            Path path = Paths.get(properties.getRouteFile());
+            try {
+                routeFileModified = Files.getLastModifiedTime(path).toMillis();
+                rules.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read route file " + path, e);
+            }
+        }
+        return RouteTable.compile(rules, connectors.keySet(), DEFAULT_UPSTREAM);
+    }
+
+    private void reloadIfModified() {
+        Path path = Paths.get(properties.getRouteFile());
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() == routeFileModified) {
+                return;
+            }
+            RouteTable reloaded = load();
+            table = reloaded;
+            log.info("route file {} reloaded with {} rules", path, reloaded.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("reload route file {} failed, keep the previous rules: {}", path, e.toString());
+        }
+    }
+}
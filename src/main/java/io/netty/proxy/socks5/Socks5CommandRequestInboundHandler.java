@@ -1,25 +1,37 @@
 package io.netty.proxy.socks5;
 
-import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandRequest;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
 import io.netty.handler.codec.socksx.v5.Socks5AddressType;
 import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
 import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
 import io.netty.handler.codec.socksx.v5.Socks5CommandType;
-import io.netty.handler.proxy.Socks5ProxyHandler;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.bind.BindRelay;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.limit.Limiter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.TransportType;
+import io.netty.proxy.udp.UdpRelay;
+import io.netty.proxy.upstream.Socks5UpstreamException;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import lombok.extern.slf4j.Slf4j;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 /**
@@ -28,58 +40,196 @@ import java.net.InetSocketAddress;
 @Slf4j
 public class Socks5CommandRequestInboundHandler extends SimpleChannelInboundHandler<DefaultSocks5CommandRequest> {
 
-    private final EventLoopGroup eventExecutors;
+    private final EventLoops eventLoops;
 
-    private final String proxyHost;
+    /**
+     * 是否使用splice零拷贝转发，开启时出站连接总是注册在客户端channel的EventLoop上
+     */
+    private final boolean zeroCopy;
 
-    private final int proxyPort;
+    private final Router router;
 
-    Socks5CommandRequestInboundHandler(EventLoopGroup eventExecutors, String proxyHost, int proxyPort) {
-        this.eventExecutors = eventExecutors;
-        this.proxyHost = proxyHost;
-        this.proxyPort = proxyPort;
+    private final Limiter limiter;
+
+    private final UdpRelay udpRelay;
+
+    private final BindRelay bindRelay;
+
+    private final Reaper reaper;
+
+    Socks5CommandRequestInboundHandler(EventLoops eventLoops,
+                                       AppProperties properties,
+                                       Router router,
+                                       Limiter limiter,
+                                       UdpRelay udpRelay,
+                                       BindRelay bindRelay,
+                                       Reaper reaper) {
+        this.eventLoops = eventLoops;
+        this.limiter = limiter;
+        this.udpRelay = udpRelay;
+        this.bindRelay = bindRelay;
+        this.reaper = reaper;
+        this.zeroCopy = properties.isZeroCopy() && eventLoops.getTransport() == TransportType.EPOLL;
+        this.router = router;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DefaultSocks5CommandRequest msg) {
-        Socks5AddressType socks5AddressType = msg.dstAddrType();
+        // 命令已经收到，之后到隧道建立之前是出站建连阶段
+        reaper.arm(ctx.channel(), TimeoutPhase.CONNECT);
+        AccessRecord.command(ctx.channel(), msg.type().toString(), msg.dstAddr(), msg.dstPort());
+        if (msg.type().equals(Socks5CommandType.UDP_ASSOCIATE) && udpRelay.isEnabled()) {
+            associate(ctx, msg);
+            return;
+        }
+        if (msg.type().equals(Socks5CommandType.BIND) && bindRelay.isEnabled()) {
+            bind(ctx, msg);
+            return;
+        }
         if (!msg.type().equals(Socks5CommandType.CONNECT)) {
-            log.debug("receive commandRequest type={}", msg.type());
-            ReferenceCountUtil.retain(msg);
-            ctx.fireChannelRead(msg);
+            log.debug("不支持的命令,type={}", msg.type());
+            AccessRecord.closing(ctx.channel(), AccessRecord.UNSUPPORTED);
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.COMMAND_UNSUPPORTED,
+                    Socks5AddressType.IPv4)).addListener(ChannelFutureListener.CLOSE);
             return;
         }
         log.debug("准备连接目标服务器，ip={},port={}", msg.dstAddr(), msg.dstPort());
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(eventExecutors)
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.TCP_NODELAY, true)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) {
-                        //添加服务端写客户端的Handler
-                        ch.pipeline().addFirst(new Socks5ProxyHandler(new InetSocketAddress(proxyHost, proxyPort)));
-                        ch.pipeline().addLast(new Dest2ClientInboundHandler(ctx));
-                    }
-                });
-        ChannelFuture future = bootstrap.connect(msg.dstAddr(), msg.dstPort());
-        future.addListener((ChannelFutureListener) resultFuture -> {
-            if (resultFuture.isSuccess()) {
-                log.debug("目标服务器连接成功");
-                //添加客户端转发请求到服务端的Handler
-                ctx.pipeline().addLast(new Client2DestInboundHandler(resultFuture));
-                DefaultSocks5CommandResponse commandResponse = new DefaultSocks5CommandResponse(
-                        Socks5CommandStatus.SUCCESS, socks5AddressType);
-                ctx.writeAndFlush(commandResponse);
-                ctx.pipeline().remove(Socks5CommandRequestInboundHandler.class);
-                ctx.pipeline().remove(Socks5CommandRequestDecoder.class);
+        Lease lease = limiter.open(ctx.channel(), msg.dstAddr());
+        if (lease == null) {
+            log.warn("超出限流，拒绝连接目标服务器,user={},address={}", Limiter.userOf(ctx.channel()), msg.dstAddr());
+            AccessRecord.closing(ctx.channel(), AccessRecord.LIMITED);
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FORBIDDEN, Socks5AddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        EventLoop loop = eventLoops.outboundLoop(ctx.channel());
+        String target = router.route(msg.dstAddr(), msg.dstPort());
+        AccessRecord.route(ctx.channel(), target);
+        router.connect(loop, target, msg.dstAddr(), msg.dstPort()).addListener((Future<Channel> future) -> {
+            if (!future.isSuccess()) {
+                lease.close();
+                onConnectFailure(ctx, msg, future.cause());
+            } else if (!ctx.channel().isActive()) {
+                lease.close();
+                future.getNow().close();
             } else {
-                log.error("连接目标服务器失败,address={},port={}", msg.dstAddr(), msg.dstPort());
-                DefaultSocks5CommandResponse commandResponse = new DefaultSocks5CommandResponse(
-                        Socks5CommandStatus.FAILURE, socks5AddressType);
-                ctx.writeAndFlush(commandResponse);
-                resultFuture.channel().close();
+                onConnectSuccess(ctx, future.getNow(), lease);
             }
         });
     }
+
+    private void onConnectSuccess(ChannelHandlerContext ctx, Channel dstChannel, Lease lease) {
+        log.debug("目标服务器连接成功");
+        DefaultSocks5CommandResponse commandResponse = new DefaultSocks5CommandResponse(
+                Socks5CommandStatus.SUCCESS, Socks5AddressType.IPv4);
+        ctx.writeAndFlush(commandResponse);
+        relay(ctx, dstChannel, lease);
+    }
+
+    /**
+     * 添加客户端与目标服务器之间双向转发的Handler，移除解码器时残留的数据会直接转发出去
+     */
+    private void relay(ChannelHandlerContext ctx, Channel dstChannel, Lease lease) {
+        Tunnel tunnel = Tunnel.create(ctx.channel(), dstChannel, lease);
+        AccessRecord.connected(ctx.channel(), tunnel);
+        ctx.pipeline().remove(Socks5CommandRequestInboundHandler.class);
+        ctx.pipeline().remove(Socks5CommandRequestDecoder.class);
+        if (zeroCopy && tunnel.trySplice()) {
+            log.debug("隧道已切换为splice零拷贝转发");
+        }
+        reaper.watch(tunnel);
+    }
+
+    /**
+     * 打开BIND监听，先应答监听地址，对端连入后再应答对端地址，之后与CONNECT一样双向转发
+     */
+    private void bind(ChannelHandlerContext ctx, DefaultSocks5CommandRequest msg) {
+        log.debug("BIND,peer={}:{}", msg.dstAddr(), msg.dstPort());
+        Lease lease = limiter.open(ctx.channel(), msg.dstAddr());
+        if (lease == null) {
+            log.warn("超出限流，拒绝BIND,user={},address={}", Limiter.userOf(ctx.channel()), msg.dstAddr());
+            AccessRecord.closing(ctx.channel(), AccessRecord.LIMITED);
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FORBIDDEN, Socks5AddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        Promise<Channel> accepted = ctx.executor().newPromise();
+        bindRelay.listen(ctx.channel(), msg.dstAddr(), accepted).addListener((Future<InetSocketAddress> listening) -> {
+            if (!listening.isSuccess()) {
+                lease.close();
+                accepted.cancel(false);
+                log.error("BIND监听失败,cause={}", listening.cause().toString());
+                AccessRecord.failed(ctx.channel(), AccessRecord.CONNECT_FAILED, listening.cause());
+                ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ctx.writeAndFlush(response(listening.getNow()));
+            // 等待对端连入的时间由BIND监听自己的超时限制
+            reaper.disarm(ctx.channel());
+            accepted.addListener((Future<Channel> future) -> {
+                if (!future.isSuccess()) {
+                    lease.close();
+                    log.debug("BIND没有等到对端连入,cause={}", future.cause().toString());
+                    AccessRecord.failed(ctx.channel(), AccessRecord.CONNECT_FAILED, future.cause());
+                    ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE,
+                            Socks5AddressType.IPv4)).addListener(ChannelFutureListener.CLOSE);
+                } else if (!ctx.channel().isActive()) {
+                    lease.close();
+                    future.getNow().close();
+                } else {
+                    ctx.writeAndFlush(response((InetSocketAddress) future.getNow().remoteAddress()));
+                    relay(ctx, future.getNow(), lease);
+                    future.getNow().config().setAutoRead(true);
+                }
+            });
+        });
+    }
+
+    private static DefaultSocks5CommandResponse response(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        return new DefaultSocks5CommandResponse(Socks5CommandStatus.SUCCESS,
+                ip instanceof Inet4Address ? Socks5AddressType.IPv4 : Socks5AddressType.IPv6,
+                NetUtil.toAddressString(ip),
+                address.getPort());
+    }
+
+    /**
+     * 打开UDP转发并把绑定的地址应答给客户端，之后控制连接只用来维持UDP转发的生命周期
+     */
+    private void associate(ChannelHandlerContext ctx, DefaultSocks5CommandRequest msg) {
+        log.debug("UDP ASSOCIATE,client={}:{}", msg.dstAddr(), msg.dstPort());
+        Lease lease = limiter.openAssociation(ctx.channel());
+        if (lease == null) {
+            log.warn("超出限流，拒绝UDP转发,user={}", Limiter.userOf(ctx.channel()));
+            AccessRecord.closing(ctx.channel(), AccessRecord.LIMITED);
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FORBIDDEN, Socks5AddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        udpRelay.associate(ctx.channel(), msg.dstAddr(), msg.dstPort(), lease)
+                .addListener((Future<InetSocketAddress> future) -> {
+                    if (!future.isSuccess()) {
+                        log.error("UDP转发绑定失败,cause={}", future.cause().toString());
+                        AccessRecord.failed(ctx.channel(), AccessRecord.CONNECT_FAILED, future.cause());
+                        ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE,
+                                Socks5AddressType.IPv4)).addListener(ChannelFutureListener.CLOSE);
+                        return;
+                    }
+                    ctx.writeAndFlush(response(future.getNow()));
+                    // 控制连接的生命周期跟随UDP转发，由UDP转发的空闲超时限制
+                    reaper.disarm(ctx.channel());
+                    ctx.pipeline().remove(Socks5CommandRequestInboundHandler.this);
+                    ctx.pipeline().remove(Socks5CommandRequestDecoder.class);
+                });
+    }
+
+    private void onConnectFailure(ChannelHandlerContext ctx, DefaultSocks5CommandRequest msg, Throwable cause) {
+        log.error("连接目标服务器失败,address={},port={},cause={}", msg.dstAddr(), msg.dstPort(), cause.toString());
+        Socks5CommandStatus status = Socks5UpstreamException.statusOf(cause);
+        AccessRecord.failed(ctx.channel(), AccessRecord.CONNECT_FAILED, cause);
+        ProxyMetrics.connectFailures(ProxyMetrics.SOCKS5, status).increment();
+        DefaultSocks5CommandResponse commandResponse = new DefaultSocks5CommandResponse(status, Socks5AddressType.IPv4);
+        ctx.writeAndFlush(commandResponse).addListener(ChannelFutureListener.CLOSE);
+    }
 }
@@ -1,6 +1,10 @@
 package io.netty.proxy.socks5;
 
+import io.netty.proxy.metrics.ConnectionMetricsHandler;
+import io.netty.proxy.metrics.ProxyMetrics;
 import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialRequest;
@@ -21,6 +25,8 @@ public class Socks5InitialRequestInboundHandler extends SimpleChannelInboundHand
 
     private final AppProperties properties;
 
+    private final Reaper reaper;
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DefaultSocks5InitialRequest msg) {
         log.debug("初始化socks5链接");
@@ -38,6 +44,8 @@ public class Socks5InitialRequestInboundHandler extends SimpleChannelInboundHand
             Socks5InitialResponse socks5InitialResponse = new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH);
             ctx.writeAndFlush(socks5InitialResponse);
         }
+        ConnectionMetricsHandler.phaseCompleted(ctx.channel(), ProxyMetrics.HANDSHAKE_GREETING);
+        reaper.arm(ctx.channel(), properties.isEnableAuth() ? TimeoutPhase.AUTH : TimeoutPhase.COMMAND);
         ctx.pipeline().remove(this);
         ctx.pipeline().remove(Socks5InitialRequestDecoder.class);
     }
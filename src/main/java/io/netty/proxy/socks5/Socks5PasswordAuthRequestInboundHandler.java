@@ -1,40 +1,111 @@
 package io.netty.proxy.socks5;
 
-import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.metrics.ConnectionMetricsHandler;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5PasswordAuthRequest;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5PasswordAuthResponse;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthRequestDecoder;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponse;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthStatus;
-import lombok.AllArgsConstructor;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * 用户名密码认证
+ * <p>
+ * 慢哈希校验是异步的，校验完成之前客户端提前发来的CONNECT请求先缓存，认证成功后再交给后面的handler
+ *
  * @author chpengzh@foxmail.com
  */
 @Slf4j
-@AllArgsConstructor
-public class Socks5PasswordAuthRequestInboundHandler extends SimpleChannelInboundHandler<DefaultSocks5PasswordAuthRequest> {
+public class Socks5PasswordAuthRequestInboundHandler extends ChannelInboundHandlerAdapter {
 
-    private final AppProperties properties;
+    private final Authenticator authenticator;
+
+    private final Reaper reaper;
+
+    /**
+     * 认证完成之前收到的后续数据，null表示还没有收到认证请求
+     */
+    private List<Object> pending;
+
+    public Socks5PasswordAuthRequestInboundHandler(Authenticator authenticator, Reaper reaper) {
+        this.authenticator = authenticator;
+        this.reaper = reaper;
+    }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, DefaultSocks5PasswordAuthRequest msg) {
-        //认证成功
-        if (Objects.equals(properties.getAuth().get(msg.username()), msg.password().trim())) {
-            Socks5PasswordAuthResponse passwordAuthResponse = new DefaultSocks5PasswordAuthResponse(Socks5PasswordAuthStatus.SUCCESS);
-            ctx.writeAndFlush(passwordAuthResponse);
-            ctx.pipeline().remove(this);
-            ctx.pipeline().remove(Socks5PasswordAuthRequestDecoder.class);
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (pending != null) {
+            pending.add(msg);
             return;
         }
+        if (!(msg instanceof DefaultSocks5PasswordAuthRequest)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        DefaultSocks5PasswordAuthRequest request = (DefaultSocks5PasswordAuthRequest) msg;
+        ConnectionMetricsHandler.phaseCompleted(ctx.channel(), ProxyMetrics.HANDSHAKE_AUTH);
+        pending = new ArrayList<>(1);
+        ctx.channel().config().setAutoRead(false);
+        authenticator.verify(ctx.channel().eventLoop(), request.username(), request.password().trim())
+                .addListener((Future<String> future) -> {
+                    if (ctx.isRemoved()) {
+                        // 校验期间连接已经关闭
+                        return;
+                    }
+                    if (future.getNow() != null) {
+                        ctx.channel().attr(Authenticator.USER).set(future.getNow());
+                        onSuccess(ctx);
+                    } else {
+                        onFailure(ctx, request.username());
+                    }
+                });
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releasePending();
+    }
+
+    private void onSuccess(ChannelHandlerContext ctx) {
+        Socks5PasswordAuthResponse passwordAuthResponse = new DefaultSocks5PasswordAuthResponse(Socks5PasswordAuthStatus.SUCCESS);
+        ctx.writeAndFlush(passwordAuthResponse);
+        reaper.arm(ctx.channel(), TimeoutPhase.COMMAND);
+        ctx.pipeline().remove(Socks5PasswordAuthRequestDecoder.class);
+        List<Object> received = pending;
+        pending = null;
+        for (Object msg : received) {
+            ctx.fireChannelRead(msg);
+        }
+        ctx.pipeline().remove(this);
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    private void onFailure(ChannelHandlerContext ctx, String username) {
+        log.warn("socks5 auth failed, user={} from {}", username, ctx.channel().remoteAddress());
+        AccessRecord.closing(ctx.channel(), AccessRecord.AUTH_FAILED);
+        releasePending();
         Socks5PasswordAuthResponse passwordAuthResponse = new DefaultSocks5PasswordAuthResponse(Socks5PasswordAuthStatus.FAILURE);
         //发送鉴权失败消息，完成后关闭channel
         ctx.writeAndFlush(passwordAuthResponse).addListener(ChannelFutureListener.CLOSE);
     }
+
+    private void releasePending() {
+        if (pending != null) {
+            pending.forEach(ReferenceCountUtil::release);
+            pending.clear();
+        }
+    }
 }
@@ -1,83 +1,121 @@
 package io.netty.proxy.socks5;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
-import io.netty.handler.codec.socksx.v5.Socks5InitialRequestDecoder;
-import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthRequestDecoder;
-import io.netty.handler.codec.socksx.v5.Socks5ServerEncoder;
+import io.netty.proxy.access.AccessLog;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.bind.BindRelay;
+import io.netty.proxy.lifecycle.ListenerHandoff;
+import io.netty.proxy.lifecycle.ServerChannels;
+import io.netty.proxy.limit.Limiter;
+import io.netty.proxy.metrics.ProxyMetrics;
 import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.tls.TlsContexts;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.proxy.udp.UdpRelay;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.ApplicationListener;
-import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
+
 /**
+ * socks5代理服务，随spring容器启动与停止，停止时等待已有连接结束
+ *
  * @author chpengzh@foxmail.com
  */
 @Slf4j
 @Component
-public class Socks5Server implements ApplicationListener<ContextRefreshedEvent> {
+public class Socks5Server implements SmartLifecycle {
 
     private final AppProperties properties;
 
-    public Socks5Server(AppProperties properties) {
+    private final EventLoops eventLoops;
+
+    private final Router router;
+
+    private final ListenerHandoff handoff;
+
+    private final TlsContexts tls;
+
+    /**
+     * 监听socket与客户端连接
+     */
+    private final ServerChannels channels;
+
+    public Socks5Server(AppProperties properties,
+                        EventLoops eventLoops,
+                        Router router,
+                        Authenticator authenticator,
+                        Limiter limiter,
+                        UdpRelay udpRelay,
+                        BindRelay bindRelay,
+                        Reaper reaper,
+                        AccessLog accessLog,
+                        ListenerHandoff handoff,
+                        TlsContexts tls) {
         this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.router = router;
+        this.handoff = handoff;
+        this.tls = tls;
+        this.channels = new ServerChannels(ProxyMetrics.SOCKS5, new Socks5ServerInitializer(properties,
+                eventLoops,
+                router,
+                authenticator,
+                limiter,
+                udpRelay,
+                bindRelay,
+                reaper,
+                accessLog,
+                tls));
     }
 
     @Override
-    public void onApplicationEvent(ContextRefreshedEvent contextRefreshedEvent) {
-        new Thread(() -> {
-            EventLoopGroup clientWorkGroup = new NioEventLoopGroup();
-            EventLoopGroup bossGroup = new NioEventLoopGroup();
-            EventLoopGroup workerGroup = new NioEventLoopGroup();
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            try {
-                bootstrap.group(bossGroup, workerGroup)
-                        .channel(NioServerSocketChannel.class)
-                        .option(ChannelOption.SO_BACKLOG, 256)
-                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 1000)
-                        .childHandler(new ChannelInitializer<SocketChannel>() {
-                            @Override
-                            protected void initChannel(SocketChannel ch) throws Exception {
-                                ChannelPipeline pipeline = ch.pipeline();
+    public void start() {
+        TransportType transport = eventLoops.getTransport();
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark())
+                .childHandler(channels);
+        // TLS连接的数据需要经过SslHandler加解密，不能splice
+        if (properties.isZeroCopy() && transport == TransportType.EPOLL && !tls.isEnabled(ProxyMetrics.SOCKS5)) {
+            SpliceRelay.configure(bootstrap);
+        }
+        // 出站连接所在的线程组预先建立到上游代理的连接
+        router.warmUp(eventLoops.outboundGroup());
+        try {
+            List<Channel> listeners = handoff.bind(bootstrap, ProxyMetrics.SOCKS5, properties.getSocks5Port());
+            channels.listening(listeners);
+            log.info("socks5 proxy server has started on port {} with {} transport, {} acceptor(s)",
+                    properties.getSocks5Port(), transport, listeners.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("socks5 proxy server start interrupted", e);
+        }
+    }
 
-                                // socks5响应最后一个encode
-                                pipeline.addLast(Socks5ServerEncoder.DEFAULT);
+    @Override
+    public void stop(Runnable callback) {
+        channels.drain(properties.getDrainTimeout(), callback);
+    }
 
-                                // 处理socks5初始化请求
-                                pipeline.addLast(new Socks5InitialRequestDecoder());
-                                pipeline.addLast(new Socks5InitialRequestInboundHandler(properties));
+    @Override
+    public void stop() {
+        channels.drain(properties.getDrainTimeout());
+    }
 
-                                // 处理认证请求
-                                if (properties.isEnableAuth()) {
-                                    pipeline.addLast(new Socks5PasswordAuthRequestDecoder());
-                                    pipeline.addLast(new Socks5PasswordAuthRequestInboundHandler(properties));
-                                }
+    @Override
+    public boolean isRunning() {
+        return channels.isListening();
+    }
 
-                                // 处理connection请求
-                                pipeline.addLast(new Socks5CommandRequestDecoder());
-                                pipeline.addLast(new Socks5CommandRequestInboundHandler(clientWorkGroup,
-                                        properties.getProxyHost(),
-                                        properties.getProxyPort()));
-                            }
-                        });
-                ChannelFuture future = bootstrap.bind(properties.getSocks5Port()).sync();
-                log.info("socks5 proxy server has started on port {}", properties.getSocks5Port());
-                future.channel().closeFuture().sync();
-            } catch (InterruptedException e) {
-                log.info("socks5 nett server terminated by interrupted");
-            } finally {
-                bossGroup.shutdownGracefully();
-                workerGroup.shutdownGracefully();
-            }
-        }).start();
+    @Override
+    public int getPhase() {
+        return ServerChannels.PHASE;
     }
 }
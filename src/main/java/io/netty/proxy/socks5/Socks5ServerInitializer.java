@@ -0,0 +1,116 @@
+package io.netty.proxy.socks5;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5ServerEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.proxy.access.AccessLog;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.bind.BindRelay;
+import io.netty.proxy.limit.Limiter;
+import io.netty.proxy.metrics.ConnectionMetricsHandler;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.timeout.TimeoutPhase;
+import io.netty.proxy.tls.TlsContexts;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.udp.UdpRelay;
+
+/**
+ * socks5服务端握手pipeline
+ *
+ * @author chpengzh@foxmail.com
+ */
+public class Socks5ServerInitializer extends ChannelInitializer<Channel> {
+
+    private static final ConnectionMetricsHandler METRICS = new ConnectionMetricsHandler(ProxyMetrics.SOCKS5);
+
+    private final AppProperties properties;
+
+    private final EventLoops eventLoops;
+
+    private final Router router;
+
+    private final Authenticator authenticator;
+
+    private final Limiter limiter;
+
+    private final UdpRelay udpRelay;
+
+    private final BindRelay bindRelay;
+
+    private final Reaper reaper;
+
+    private final AccessLog accessLog;
+
+    private final TlsContexts tls;
+
+    public Socks5ServerInitializer(AppProperties properties,
+                                   EventLoops eventLoops,
+                                   Router router,
+                                   Authenticator authenticator,
+                                   Limiter limiter,
+                                   UdpRelay udpRelay,
+                                   BindRelay bindRelay,
+                                   Reaper reaper,
+                                   AccessLog accessLog,
+                                   TlsContexts tls) {
+        this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.router = router;
+        this.authenticator = authenticator;
+        this.limiter = limiter;
+        this.udpRelay = udpRelay;
+        this.bindRelay = bindRelay;
+        this.reaper = reaper;
+        this.accessLog = accessLog;
+        this.tls = tls;
+    }
+
+    @Override
+    protected void initChannel(Channel ch) {
+        ChannelPipeline pipeline = ch.pipeline();
+
+        // TLS终结，之后的handler只看到明文
+        SslHandler ssl = tls.newHandler(ch, ProxyMetrics.SOCKS5);
+        if (ssl != null) {
+            pipeline.addLast(ssl);
+        }
+
+        // 连接数与握手耗时统计
+        pipeline.addLast(METRICS);
+        accessLog.open(ch, ProxyMetrics.SOCKS5);
+
+        // 客户端必须在超时之前完成TLS握手并发送初始化请求
+        reaper.arm(ch, TimeoutPhase.GREETING);
+
+        // socks5响应最后一个encode
+        pipeline.addLast(Socks5ServerEncoder.DEFAULT);
+
+        // 处理socks5初始化请求
+        pipeline.addLast(new Socks5InitialRequestDecoder());
+        pipeline.addLast(new Socks5InitialRequestInboundHandler(properties, reaper));
+
+        // 处理认证请求
+        if (properties.isEnableAuth()) {
+            pipeline.addLast(new Socks5PasswordAuthRequestDecoder());
+            pipeline.addLast(new Socks5PasswordAuthRequestInboundHandler(authenticator, reaper));
+        }
+
+        // 处理connection请求
+        pipeline.addLast(new Socks5CommandRequestDecoder());
+        pipeline.addLast(new Socks5CommandRequestInboundHandler(eventLoops,
+                properties,
+                router,
+                limiter,
+                udpRelay,
+                bindRelay,
+                reaper));
+    }
+}
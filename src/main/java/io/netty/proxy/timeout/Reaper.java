@@ -0,0 +1,279 @@
+package io.netty.proxy.timeout;
+
+import io.netty.channel.Channel;
+import io.netty.proxy.access.AccessRecord;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.relay.Tunnel;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * 连接超时的统一回收
+ * <p>
+ * 所有连接的握手阶段超时、空闲超时与最长存活时间都挂在同一个{@link HashedWheelTimer}上，不为每个channel在EventLoop上创建定时任务。
+ * 超时在时间轮线程触发后回到channel所在的EventLoop中确认，阶段已经切换或者连接已经关闭时忽略；
+ * 空闲检查只在到期时比较最后一次收到数据的时间，没有到期就按剩余时间重新挂上，数据转发路径上不需要取消或者重建定时任务
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class Reaper implements DisposableBean {
+
+    private static final AttributeKey<Deadlines> DEADLINES = AttributeKey.valueOf(Reaper.class, "deadlines");
+
+    /**
+     * 时间轮的格数，超出一圈的超时按圈数递减
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final AppProperties properties;
+
+    private final HashedWheelTimer timer;
+
+    public Reaper(AppProperties properties) {
+        this.properties = properties;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("proxy-reaper", true),
+                properties.getTimeoutTick(), TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    /**
+     * 进入握手阶段，取代上一个阶段的超时；阶段超时时间不大于0时只取消上一个阶段。必须在channel的EventLoop中调用
+     */
+    public void arm(Channel ch, TimeoutPhase phase) {
+        Deadlines deadlines = deadlines(ch);
+        deadlines.cancelPhase();
+        long millis = timeoutOf(phase);
+        if (millis > 0) {
+            deadlines.phase = timer.newTimeout(new Expire(ch, null, phase, deadlines), millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 取消当前握手阶段的超时
+     */
+    public void disarm(Channel ch) {
+        Deadlines deadlines = ch.attr(DEADLINES).get();
+        if (deadlines != null) {
+            deadlines.cancelPhase();
+        }
+    }
+
+    /**
+     * 隧道建立，取消客户端的握手阶段超时，开始空闲检查与最长存活时间计时；超时时两端同时关闭，不等待写缓冲中的数据
+     */
+    public void watch(Tunnel tunnel) {
+        Channel client = tunnel.getClient();
+        Channel remote = tunnel.getRemote();
+        Deadlines deadlines = deadlines(client);
+        deadlines.cancelPhase();
+        deadlines.cancelIdle();
+        long idle = properties.getReadTimeout();
+        if (idle > 0) {
+            IdleCheck check = new IdleCheck(client, remote, tunnel::lastActivity, idle, deadlines);
+            deadlines.idle = timer.newTimeout(check, idle, TimeUnit.MILLISECONDS);
+        }
+        long lifetime = properties.getTunnelMaxLifetime();
+        if (lifetime > 0) {
+            Expire expire = new Expire(client, remote, TimeoutPhase.LIFETIME, deadlines);
+            deadlines.lifetime = timer.newTimeout(expire, lifetime, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 空闲检查，lastActivity返回最后一次收到数据的System.nanoTime，超过millis没有数据时关闭channel；
+     * 取代channel上已有的空闲检查。必须在channel的EventLoop中调用
+     */
+    public void watchIdle(Channel ch, LongSupplier lastActivity, long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        Deadlines deadlines = deadlines(ch);
+        deadlines.cancelIdle();
+        deadlines.idle = timer.newTimeout(new IdleCheck(ch, null, lastActivity, millis, deadlines),
+                millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取消{@link #watchIdle}开始的空闲检查，必须在channel的EventLoop中调用
+     */
+    public void unwatchIdle(Channel ch) {
+        Deadlines deadlines = ch.attr(DEADLINES).get();
+        if (deadlines != null) {
+            deadlines.cancelIdle();
+        }
+    }
+
+    /**
+     * 不关联channel的超时，到期时在时间轮线程中执行expire，返回true时计入该阶段的超时数
+     */
+    public Timeout schedule(TimeoutPhase phase, long millis, BooleanSupplier expire) {
+        return timer.newTimeout(timeout -> {
+            if (expire.getAsBoolean()) {
+                phase.getExpired().increment();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        timer.stop();
+    }
+
+    private long timeoutOf(TimeoutPhase phase) {
+        switch (phase) {
+            case GREETING:
+                return properties.getGreetingTimeout();
+            case AUTH:
+                return properties.getAuthTimeout();
+            case COMMAND:
+                return properties.getCommandTimeout();
+            case CONNECT:
+                return properties.getConnectionRequestTimeout();
+            case IDLE:
+                return properties.getReadTimeout();
+            default:
+                throw new IllegalArgumentException("not a handshake phase: " + phase);
+        }
+    }
+
+    private static Deadlines deadlines(Channel ch) {
+        Deadlines deadlines = ch.attr(DEADLINES).get();
+        if (deadlines == null) {
+            deadlines = new Deadlines();
+            ch.attr(DEADLINES).set(deadlines);
+            // 连接关闭时立即从时间轮上摘除，避免已关闭的channel在时间轮上滞留到超时
+            Deadlines created = deadlines;
+            ch.closeFuture().addListener(future -> created.cancelAll());
+        }
+        return deadlines;
+    }
+
+    private static void expire(Channel ch, Channel peer, TimeoutPhase phase) {
+        log.debug("{}超时,关闭连接{}", phase.getLabel(), ch);
+        phase.getExpired().increment();
+        AccessRecord.closing(ch, phase.getLabel() + "_timeout");
+        ch.close();
+        if (peer != null) {
+            peer.close();
+        }
+    }
+
+    /**
+     * 一个channel上挂在时间轮上的超时，只在channel的EventLoop中修改
+     */
+    private static final class Deadlines {
+
+        private Timeout phase;
+
+        private Timeout idle;
+
+        private Timeout lifetime;
+
+        void cancelPhase() {
+            if (phase != null) {
+                phase.cancel();
+                phase = null;
+            }
+        }
+
+        void cancelIdle() {
+            if (idle != null) {
+                idle.cancel();
+                idle = null;
+            }
+        }
+
+        void cancelAll() {
+            cancelPhase();
+            cancelIdle();
+            if (lifetime != null) {
+                lifetime.cancel();
+            }
+        }
+    }
+
+    /**
+     * 握手阶段超时或者最长存活时间到期
+     */
+    private static final class Expire implements TimerTask {
+
+        private final Channel channel;
+
+        private final Channel peer;
+
+        private final TimeoutPhase phase;
+
+        private final Deadlines deadlines;
+
+        Expire(Channel channel, Channel peer, TimeoutPhase phase, Deadlines deadlines) {
+            this.channel = channel;
+            this.peer = peer;
+            this.phase = phase;
+            this.deadlines = deadlines;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            channel.eventLoop().execute(() -> {
+                // 触发的同时阶段可能已经切换
+                boolean current = phase == TimeoutPhase.LIFETIME ? deadlines.lifetime == timeout : deadlines.phase == timeout;
+                if (current && channel.isActive()) {
+                    expire(channel, peer, phase);
+                }
+            });
+        }
+    }
+
+    /**
+     * 空闲检查，没有到期时按剩余时间重新挂到时间轮上
+     */
+    private final class IdleCheck implements TimerTask {
+
+        private final Channel channel;
+
+        private final Channel peer;
+
+        private final LongSupplier lastActivity;
+
+        private final long timeoutNanos;
+
+        private final Deadlines deadlines;
+
+        IdleCheck(Channel channel, Channel peer, LongSupplier lastActivity, long millis, Deadlines deadlines) {
+            this.channel = channel;
+            this.peer = peer;
+            this.lastActivity = lastActivity;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            this.deadlines = deadlines;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            channel.eventLoop().execute(() -> check(timeout));
+        }
+
+        private void check(Timeout timeout) {
+            // 触发的同时空闲检查可能已经被取消或者取代
+            if (!channel.isActive() || deadlines.idle != timeout) {
+                return;
+            }
+            long remaining = timeoutNanos - (System.nanoTime() - lastActivity.getAsLong());
+            if (remaining > 0) {
+                deadlines.idle = timer.newTimeout(this, remaining, TimeUnit.NANOSECONDS);
+            } else {
+                expire(channel, peer, TimeoutPhase.IDLE);
+            }
+        }
+    }
+}
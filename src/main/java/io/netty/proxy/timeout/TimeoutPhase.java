@@ -0,0 +1,58 @@
+package io.netty.proxy.timeout;
+
+import io.netty.proxy.metrics.Counter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import lombok.Getter;
+
+/**
+ * 连接的各个阶段，每个阶段有自己的超时时间与超时计数
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Getter
+public enum TimeoutPhase {
+
+    /**
+     * 等待socks5初始化请求
+     */
+    GREETING("greeting"),
+
+    /**
+     * 等待socks5认证请求以及认证结果
+     */
+    AUTH("auth"),
+
+    /**
+     * 等待socks5命令或者HTTP代理请求头
+     */
+    COMMAND("command"),
+
+    /**
+     * 等待出站连接建立
+     */
+    CONNECT("connect"),
+
+    /**
+     * 隧道或者UDP转发空闲，HTTP keep-alive连接等待下一个请求
+     */
+    IDLE("idle"),
+
+    /**
+     * 隧道达到最长存活时间
+     */
+    LIFETIME("lifetime"),
+
+    /**
+     * BIND监听等待对端连入
+     */
+    BIND_ACCEPT("bind_accept");
+
+    private final String label;
+
+    private final Counter expired;
+
+    TimeoutPhase(String label) {
+        this.label = label;
+        this.expired = ProxyMetrics.timeouts(label);
+    }
+}
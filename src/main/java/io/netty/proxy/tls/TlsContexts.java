@@ -0,0 +1,246 @@
+package io.netty.proxy.tls;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.internal.tcnative.SSL;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两个代理端口的TLS终结
+ * <p>
+ * netty-tcnative可用时使用OpenSSL(BoringSSL)，否则使用JDK的SSLEngine。服务端会话缓存与会话票据让重连的客户端跳过证书校验
+ * 与密钥交换，OpenSSL的票据密钥在进程启动时随机生成，证书重新加载后之前发出的票据仍然有效。
+ * 证书与私钥文件修改后自动重新加载，只影响之后建立的连接，加载失败时继续使用旧的证书
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class TlsContexts implements DisposableBean {
+
+    private static final String TLS_V13 = "TLSv1.3";
+
+    private final AppProperties properties;
+
+    private final SslProvider provider;
+
+    private final String[] protocols;
+
+    /**
+     * OpenSSL会话票据密钥，JDK实现由SSLEngine自己管理
+     */
+    private final OpenSslSessionTicketKey ticketKey;
+
+    private volatile SslContext socks5Context;
+
+    private volatile SslContext httpContext;
+
+    /**
+     * 上次加载的证书与私钥文件修改时间，只在重新加载任务中访问
+     */
+    private long certModified;
+
+    private long keyModified;
+
+    private final ScheduledFuture<?> reloadTask;
+
+    public TlsContexts(AppProperties properties) throws IOException {
+        this.properties = properties;
+        if (!properties.isSocks5Tls() && !properties.isHttpTls()) {
+            this.provider = null;
+            this.protocols = null;
+            this.ticketKey = null;
+            this.reloadTask = null;
+            return;
+        }
+        if (StringUtils.isEmpty(properties.getTlsCertFile()) || StringUtils.isEmpty(properties.getTlsKeyFile())) {
+            throw new IllegalStateException("app.tls-cert-file and app.tls-key-file are required when TLS is enabled");
+        }
+        this.provider = provider(properties.getTlsProvider());
+        this.protocols = protocols(provider, properties.getTlsProtocols());
+        this.ticketKey = provider == SslProvider.OPENSSL ? newTicketKey() : null;
+        load();
+        log.info("tls enabled on {}{}{} with {} {}, protocols {}",
+                properties.isSocks5Tls() ? ProxyMetrics.SOCKS5 : "",
+                properties.isSocks5Tls() && properties.isHttpTls() ? " and " : "",
+                properties.isHttpTls() ? ProxyMetrics.HTTP : "",
+                provider, provider == SslProvider.OPENSSL ? OpenSsl.versionString() : "SSLEngine",
+                String.join(",", protocols));
+        long interval = properties.getTlsCheckInterval();
+        this.reloadTask = GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(
+                this::reloadIfModified, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 代理服务的端口是否开启了TLS
+     *
+     * @param server {@link ProxyMetrics#SOCKS5}或者{@link ProxyMetrics#HTTP}
+     */
+    public boolean isEnabled(String server) {
+        return ProxyMetrics.SOCKS5.equals(server) ? properties.isSocks5Tls() : properties.isHttpTls();
+    }
+
+    /**
+     * 为新接受的客户端连接创建SslHandler，端口没有开启TLS时返回null
+     * <p>
+     * 握手超时由{@link io.netty.proxy.timeout.Reaper}中连接的第一个阶段一并检查，这里关闭SslHandler自己的定时器
+     */
+    public SslHandler newHandler(Channel ch, String server) {
+        SslContext context = ProxyMetrics.SOCKS5.equals(server) ? socks5Context : httpContext;
+        if (context == null || !isEnabled(server)) {
+            return null;
+        }
+        SslHandler handler = context.newHandler(ch.alloc());
+        handler.setHandshakeTimeoutMillis(0);
+        long startMillis = System.currentTimeMillis();
+        handler.handshakeFuture().addListener((Future<Channel> future) -> {
+            if (!future.isSuccess()) {
+                ProxyMetrics.tlsHandshakes(server, "failed").increment();
+                log.debug("tls handshake with {} failed: {}", ch.remoteAddress(), future.cause().toString());
+                return;
+            }
+            ProxyMetrics.tlsHandshakes(server, isResumed(handler.engine(), startMillis) ? "resumed" : "full")
+                    .increment();
+        });
+        return handler;
+    }
+
+    @Override
+    public void destroy() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+        }
+    }
+
+    /**
+     * OpenSSL直接查询会话是否复用；JDK没有对应的接口，复用的会话创建时间早于本次握手。
+     * 客户端握手后立即断开时OpenSSL引擎可能已经释放，同样按创建时间判断
+     */
+    private static boolean isResumed(SSLEngine engine, long startMillis) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+            if (ssl != 0) {
+                return SSL.isSessionReused(ssl);
+            }
+        }
+        SSLSession session = engine.getSession();
+        return session != null && session.getCreationTime() < startMillis;
+    }
+
+    private static SslProvider provider(String name) {
+        if ("jdk".equalsIgnoreCase(name)) {
+            return SslProvider.JDK;
+        }
+        if (!"auto".equalsIgnoreCase(name) && !"openssl".equalsIgnoreCase(name)) {
+            throw new IllegalArgumentException("unknown tls provider " + name + ", expect auto/openssl/jdk");
+        }
+        if (OpenSsl.isAvailable()) {
+            return SslProvider.OPENSSL;
+        }
+        if ("openssl".equalsIgnoreCase(name)) {
+            log.warn("openssl is unavailable, fallback to jdk: {}", OpenSsl.unavailabilityCause().toString());
+        }
+        return SslProvider.JDK;
+    }
+
+    private static String[] protocols(SslProvider provider, List<String> configured) {
+        List<String> protocols = new ArrayList<>(configured);
+        if (protocols.contains(TLS_V13) && !SslProvider.isTlsv13Supported(provider)) {
+            log.warn("{} is not supported by the {} provider, disabled", TLS_V13, provider);
+            protocols.remove(TLS_V13);
+        }
+        if (protocols.isEmpty()) {
+            throw new IllegalStateException("no tls protocol enabled");
+        }
+        return protocols.toArray(new String[0]);
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        SecureRandom random = new SecureRandom();
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+
+    private void load() throws IOException {
+        certModified = Files.getLastModifiedTime(Paths.get(properties.getTlsCertFile())).toMillis();
+        keyModified = Files.getLastModifiedTime(Paths.get(properties.getTlsKeyFile())).toMillis();
+        // 两个端口共用证书，先全部构建成功再替换
+        SslContext socks5 = properties.isSocks5Tls() ? build(false) : null;
+        SslContext http = properties.isHttpTls() ? build(properties.isEnableHttp2()) : null;
+        socks5Context = socks5;
+        httpContext = http;
+    }
+
+    private SslContext build(boolean h2) throws SSLException {
+        SslContextBuilder builder = SslContextBuilder.forServer(new File(properties.getTlsCertFile()),
+                new File(properties.getTlsKeyFile()), properties.getTlsKeyPassword())
+                .sslProvider(provider)
+                .protocols(protocols)
+                .sessionCacheSize(properties.getTlsSessionCacheSize())
+                .sessionTimeout(properties.getTlsSessionTimeout());
+        if (h2 && SslProvider.isAlpnSupported(provider)) {
+            // RFC 7540 9.2.2: h2不能使用黑名单中的密码套件
+            builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        SslContext context = builder.build();
+        if (ticketKey != null) {
+            ((OpenSslSessionContext) context.sessionContext()).setTicketKeys(ticketKey);
+        }
+        return context;
+    }
+
+    private void reloadIfModified() {
+        String cert = properties.getTlsCertFile();
+        try {
+            if (Files.getLastModifiedTime(Paths.get(cert)).toMillis() == certModified
+                    && Files.getLastModifiedTime(Paths.get(properties.getTlsKeyFile())).toMillis() == keyModified) {
+                return;
+            }
+            load();
+            ProxyMetrics.TLS_RELOADS.increment();
+            log.info("tls certificate {} reloaded", cert);
+        } catch (IOException | RuntimeException e) {
+            log.error("reload tls certificate {} failed, keep the previous one: {}", cert, e.toString());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.netty.proxy.transport;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把EventLoop线程依次绑定到指定的CPU上
+ * <p>
+ * jdk没有设置线程亲和性的接口，线程启动时通过/proc/thread-self取得自己的线程号，再调用taskset绑定；
+ * 只在linux上有效，taskset不可用时只打印警告，线程照常运行
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+final class AffinityThreadFactory extends DefaultThreadFactory {
+
+    private final int[] cpus;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    AffinityThreadFactory(String poolName, int[] cpus) {
+        super(poolName);
+        this.cpus = cpus;
+    }
+
+    @Override
+    protected Thread newThread(Runnable r, String name) {
+        int cpu = cpus[next.getAndIncrement() % cpus.length];
+        return super.newThread(() -> {
+            pin(cpu);
+            r.run();
+        }, name);
+    }
+
+    private static void pin(int cpu) {
+        try {
+            Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            String tid = self.getFileName().toString();
+            Process process = new ProcessBuilder("taskset", "-p", "-c", String.valueOf(cpu), tid)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                    .start();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                // 不留下卡住的taskset进程
+                process.destroyForcibly();
+                log.warn("pin thread {} to cpu {} timed out", Thread.currentThread().getName(), cpu);
+                return;
+            }
+            if (process.exitValue() != 0) {
+                log.warn("pin thread {} to cpu {} failed", Thread.currentThread().getName(), cpu);
+                return;
+            }
+            log.debug("thread {} pinned to cpu {}", Thread.currentThread().getName(), cpu);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("pin thread {} to cpu {} is unsupported: {}", Thread.currentThread().getName(), cpu, e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 解析0-3,6形式的CPU列表
+     */
+    static int[] parseCpus(String value) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String range = part.trim();
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int cpu = from; cpu <= to; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        if (cpus.isEmpty()) {
+            throw new IllegalArgumentException("bad cpu list " + value);
+        }
+        return cpus.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
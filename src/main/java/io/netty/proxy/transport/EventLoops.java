@@ -0,0 +1,183 @@
+package io.netty.proxy.transport;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.proxy.metrics.AcceptMetricsHandler;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 两个代理服务共享的线程模型
+ * <ul>
+ *     <li>boss: 接受连接，epoll下可以用SO_REUSEPORT在同一个端口上绑定多个监听socket，每个占用一个boss线程</li>
+ *     <li>worker: 客户端连接，默认出站连接也注册在与客户端连接相同的EventLoop上，隧道两端的读写不跨线程</li>
+ *     <li>outbound: 只有关闭outboundSameLoop(且没有使用splice)时才创建，出站连接轮流注册在这个独立线程组上</li>
+ * </ul>
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Getter
+@Component
+public class EventLoops implements DisposableBean {
+
+    private final AppProperties properties;
+
+    private final TransportType transport;
+
+    /**
+     * 每个代理服务的监听socket数
+     */
+    private final int acceptors;
+
+    private final EventLoopGroup bossGroup;
+
+    private final EventLoopGroup workerGroup;
+
+    /**
+     * 独立的出站线程组，出站连接与客户端连接在同一个EventLoop上时为null
+     */
+    private final EventLoopGroup outboundGroup;
+
+    public EventLoops(AppProperties properties) {
+        this.properties = properties;
+        this.transport = TransportType.of(properties.getTransport());
+        if (properties.getAcceptors() > 1 && transport != TransportType.EPOLL) {
+            log.warn("SO_REUSEPORT需要epoll传输层，{}传输层只使用一个监听socket", transport);
+        }
+        this.acceptors = transport == TransportType.EPOLL ? Math.max(1, properties.getAcceptors()) : 1;
+        int workers = properties.getWorkerThreads() > 0
+                ? properties.getWorkerThreads()
+                : Runtime.getRuntime().availableProcessors();
+        this.bossGroup = transport.newEventLoopGroup(Math.max(properties.getBossThreads(), acceptors),
+                threadFactory("proxy-boss", null));
+        this.workerGroup = transport.newEventLoopGroup(workers,
+                threadFactory("proxy-worker", properties.getWorkerCpuAffinity()));
+        boolean splice = properties.isZeroCopy() && transport == TransportType.EPOLL;
+        int outbound = properties.getOutboundThreads() > 0 ? properties.getOutboundThreads() : workers;
+        if (properties.isOutboundSameLoop() || splice) {
+            this.outboundGroup = null;
+        } else {
+            this.outboundGroup = transport.newEventLoopGroup(outbound, threadFactory("proxy-outbound", null));
+        }
+        ProxyMetrics.registerEventLoopGroup("boss", bossGroup);
+        ProxyMetrics.registerEventLoopGroup("worker", workerGroup);
+        if (outboundGroup != null) {
+            ProxyMetrics.registerEventLoopGroup("outbound", outboundGroup);
+        }
+        log.info("event loops: transport={}, acceptors={}, boss={}, worker={}, outbound={}",
+                transport,
+                acceptors,
+                Math.max(properties.getBossThreads(), acceptors),
+                workers,
+                outboundGroup == null ? "same loop as inbound" : String.valueOf(outbound));
+    }
+
+    /**
+     * 在port上监听，acceptors大于1时用SO_REUSEPORT绑定多个监听socket，
+     * 每次bind都从boss线程组中取下一个EventLoop，由内核按四元组哈希把新连接分散到各个监听socket
+     *
+     * @param server 指标中的server标签
+     * @return 所有监听socket
+     */
+    public List<Channel> bind(ServerBootstrap bootstrap, String server, int port) throws InterruptedException {
+        configure(bootstrap).channel(transport.serverChannelClass());
+        List<Channel> channels = new ArrayList<>(acceptors);
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(bootstrap.handler(new AcceptMetricsHandler(server, i)).bind(port).sync().channel());
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            channels.forEach(Channel::close);
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * 接管已经在监听的socket(由上一个进程交接过来)，直接注册到boss线程组上开始accept，不再bind
+     *
+     * @param server 指标中的server标签
+     * @return 所有监听socket
+     */
+    public List<Channel> adopt(ServerBootstrap bootstrap, String server, List<? extends ServerChannel> inherited)
+            throws InterruptedException {
+        configure(bootstrap);
+        List<Channel> channels = new ArrayList<>(inherited.size());
+        try {
+            for (int i = 0; i < inherited.size(); i++) {
+                ServerChannel listener = inherited.get(i);
+                ServerBootstrap adopted = bootstrap.clone().handler(new AcceptMetricsHandler(server, i));
+                adopted.channelFactory((ChannelFactory<ServerChannel>) () -> listener);
+                channels.add(adopted.register().sync().channel());
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            channels.forEach(Channel::close);
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * 监听socket每次唤醒最多accept的连接数由读分配器的maxMessagesPerRead决定，与默认一样使用自适应分配器
+     */
+    private ServerBootstrap configure(ServerBootstrap bootstrap) {
+        bootstrap.group(bossGroup, workerGroup)
+                .option(ChannelOption.SO_BACKLOG, properties.getAcceptBacklog())
+                .option(ChannelOption.RCVBUF_ALLOCATOR,
+                        new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(properties.getAcceptBatch()));
+        if (acceptors > 1 || (properties.isReusePort() && transport == TransportType.EPOLL)) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 为客户端连接选择出站连接的EventLoop
+     */
+    public EventLoop outboundLoop(Channel inbound) {
+        return outboundGroup == null ? inbound.eventLoop() : outboundGroup.next();
+    }
+
+    /**
+     * 出站连接所在的线程组，上游连接池在这些EventLoop上预热
+     */
+    public EventLoopGroup outboundGroup() {
+        return outboundGroup == null ? workerGroup : outboundGroup;
+    }
+
+    @Override
+    public void destroy() {
+        ProxyMetrics.unregisterEventLoopGroup("boss");
+        ProxyMetrics.unregisterEventLoopGroup("worker");
+        ProxyMetrics.unregisterEventLoopGroup("outbound");
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+        if (outboundGroup != null) {
+            outboundGroup.shutdownGracefully();
+        }
+    }
+
+    private static ThreadFactory threadFactory(String poolName, String cpuAffinity) {
+        if (cpuAffinity == null || cpuAffinity.trim().isEmpty()) {
+            return new DefaultThreadFactory(poolName);
+        }
+        return new AffinityThreadFactory(poolName, AffinityThreadFactory.parseCpus(cpuAffinity));
+    }
+}
@@ -0,0 +1,207 @@
+package io.netty.proxy.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于splice(2)的零拷贝隧道转发，数据在内核中从一个socket经由pipe直接写入另一个socket，不进入jvm堆
+ * <p>
+ * 仅在两端都是{@link EpollSocketChannel}且注册在同一个EventLoop上时可用，否则调用方需要回退到ByteBuf拷贝转发
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+public final class SpliceRelay {
+
+    /**
+     * 单次splice的最大字节数，与linux默认pipe容量一致
+     */
+    private static final int SPLICE_CHUNK = 64 * 1024;
+
+    /**
+     * tcp_states.h: TCP_CLOSE
+     */
+    private static final int TCP_CLOSE = 7;
+
+    /**
+     * tcp_states.h: TCP_CLOSE_WAIT，对端已发送FIN
+     */
+    private static final int TCP_CLOSE_WAIT = 8;
+
+    private SpliceRelay() {
+    }
+
+    /**
+     * splice只支持水平触发，epoll模式必须在channel注册之前设置
+     * <p>
+     * 每轮splice的字节数取自读分配器的guess()，而分配器的handle在第一次读时就会被channel缓存，之后再修改分配器不会生效。
+     * 自适应分配器在splice期间每轮记录到的读取字节数都是0，会一直缩小到64字节，所以这里从一开始就使用固定大小
+     */
+    public static void configure(ServerBootstrap bootstrap) {
+        bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(SPLICE_CHUNK));
+    }
+
+    /**
+     * @see #configure(ServerBootstrap)
+     */
+    public static void configure(Bootstrap bootstrap) {
+        bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(SPLICE_CHUNK));
+    }
+
+    /**
+     * 两端channel是否满足splice条件
+     */
+    public static boolean isSupported(Channel client, Channel remote) {
+        return client instanceof EpollSocketChannel
+                && remote instanceof EpollSocketChannel
+                && client.eventLoop() == remote.eventLoop()
+                && ((EpollSocketChannel) client).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED
+                && ((EpollSocketChannel) remote).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED;
+    }
+
+    /**
+     * 在两个已建立连接的channel之间开启双向splice转发，必须在channel所在的EventLoop中调用
+     * <p>
+     * 调用之前pipeline中已读取的数据需要先通过普通write转发出去，splice只处理之后到达socket的数据
+     *
+     * @return 是否成功开启，false时调用方应当使用拷贝转发
+     */
+    public static boolean start(Channel client, Channel remote) {
+        if (!isSupported(client, remote)) {
+            return false;
+        }
+        EpollSocketChannel in = (EpollSocketChannel) client;
+        EpollSocketChannel out = (EpollSocketChannel) remote;
+        prepare(in, out);
+        prepare(out, in);
+
+        in.spliceTo(out, Integer.MAX_VALUE).addListener(new CloseOnFailure(in, out));
+        out.spliceTo(in, Integer.MAX_VALUE).addListener(new CloseOnFailure(out, in));
+        return true;
+    }
+
+    /**
+     * 内核记录的最后一次收到数据的时间(System.nanoTime)，精度为毫秒；已经关闭的channel返回0
+     */
+    public static long lastReceived(Channel ch) {
+        if (!ch.isActive()) {
+            return 0;
+        }
+        long sinceMillis = ((EpollSocketChannel) ch).tcpInfo().lastDataRecv();
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sinceMillis);
+    }
+
+    private static void flushAndClose(Channel ch) {
+        if (ch.isActive()) {
+            // 排在尚未写完的splice数据之后关闭
+            ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static void prepare(EpollSocketChannel ch, EpollSocketChannel peer) {
+        ch.pipeline().addFirst(new SpliceEofHandler(peer));
+    }
+
+    /**
+     * splice失败(对端重置或者channel被关闭)时关闭源端，目标端在写完已经进入pipe的数据之后关闭；
+     * 单次spliceTo最多转发{@link Integer#MAX_VALUE}字节，正常完成时两端仍然打开就继续下一轮，否则长连接会悄悄回退到拷贝转发
+     */
+    private static final class CloseOnFailure implements ChannelFutureListener {
+
+        private final Channel source;
+
+        private final Channel target;
+
+        CloseOnFailure(Channel source, Channel target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess()) {
+                if (source.isActive() && target.isActive()) {
+                    ((EpollSocketChannel) source).spliceTo((EpollSocketChannel) target, Integer.MAX_VALUE)
+                            .addListener(this);
+                }
+                return;
+            }
+            log.debug("splice relay terminated: {}", future.cause().toString());
+            source.close();
+            flushAndClose(target);
+        }
+    }
+
+    /**
+     * netty的splice实现无法区分EOF与EAGAIN(两者splice返回值均为0)，收到FIN后会一直空转读事件。
+     * 这里在每轮读完成时检查tcp状态，进入CLOSE_WAIT后对端不会再有新数据，
+     * 把接收缓冲区中残留的数据直接从fd读出并排在未写完的splice数据之后写给对端，随后关闭两端
+     */
+    private static final class SpliceEofHandler extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+
+        private final EpollTcpInfo tcpInfo = new EpollTcpInfo();
+
+        SpliceEofHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            EpollSocketChannel ch = (EpollSocketChannel) ctx.channel();
+            int state = ch.tcpInfo(tcpInfo).state();
+            if (state == TCP_CLOSE_WAIT || state == TCP_CLOSE) {
+                drainAndClose(ctx, ch);
+                return;
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        private void drainAndClose(ChannelHandlerContext ctx, EpollSocketChannel ch) {
+            try {
+                for (;;) {
+                    ByteBuf buf = ctx.alloc().directBuffer(SPLICE_CHUNK);
+                    int read;
+                    try {
+                        ByteBuffer nioBuf = buf.internalNioBuffer(0, buf.writableBytes());
+                        read = ch.fd().read(nioBuf, nioBuf.position(), nioBuf.limit());
+                    } catch (IOException e) {
+                        buf.release();
+                        throw e;
+                    }
+                    if (read <= 0) {
+                        buf.release();
+                        break;
+                    }
+                    buf.writerIndex(read);
+                    peer.write(buf);
+                }
+            } catch (IOException e) {
+                log.debug("drain spliced channel failed: {}", e.toString());
+            }
+            ctx.close();
+            flushAndClose(peer);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.netty.proxy.transport;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 网络传输层实现
+ * <ul>
+ *     <li>EPOLL: linux原生epoll，支持splice零拷贝转发</li>
+ *     <li>NIO: jdk selector，全平台可用</li>
+ * </ul>
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+public enum TransportType {
+
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+    },
+
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+    };
+
+    /**
+     * 创建事件循环线程组
+     *
+     * @param threads 线程数，0表示使用netty默认值(cpu核数*2)
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return newEventLoopGroup(threads, (ThreadFactory) null);
+    }
+
+    /**
+     * 创建事件循环线程组
+     *
+     * @param threads       线程数，0表示使用netty默认值(cpu核数*2)
+     * @param threadFactory 为null时使用netty默认的线程工厂
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannelClass();
+
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    /**
+     * 根据配置选择传输层，auto时优先使用epoll，不可用时回退到nio
+     *
+     * @param name auto/epoll/nio
+     */
+    public static TransportType of(String name) {
+        if (name == null || name.isEmpty() || "auto".equalsIgnoreCase(name)) {
+            return Epoll.isAvailable() ? EPOLL : NIO;
+        }
+        TransportType type = TransportType.valueOf(name.toUpperCase());
+        if (type == EPOLL && !Epoll.isAvailable()) {
+            log.warn("epoll transport is unavailable, fallback to nio: {}", Epoll.unavailabilityCause().toString());
+            return NIO;
+        }
+        return type;
+    }
+}
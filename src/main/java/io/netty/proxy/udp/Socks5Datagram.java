@@ -0,0 +1,96 @@
+package io.netty.proxy.udp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.socksx.v5.Socks5AddressType;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+
+/**
+ * socks5 UDP请求头(RFC 1928 第7节)的编解码
+ * <pre>
+ * +----+------+------+----------+----------+----------+
+ * |RSV | FRAG | ATYP | DST.ADDR | DST.PORT |   DATA   |
+ * +----+------+------+----------+----------+----------+
+ * | 2  |  1   |  1   | Variable |    2     | Variable |
+ * +----+------+------+----------+----------+----------+
+ * </pre>
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class Socks5Datagram {
+
+    private static final int RSV_FRAG = 3;
+
+    private Socks5Datagram() {
+    }
+
+    /**
+     * 请求头的长度(从readerIndex开始)，不完整或者地址类型未知时返回-1
+     */
+    static int headerLength(ByteBuf buf) {
+        int readable = buf.readableBytes();
+        if (readable < RSV_FRAG + 1) {
+            return -1;
+        }
+        byte type = buf.getByte(buf.readerIndex() + RSV_FRAG);
+        int length;
+        if (type == Socks5AddressType.IPv4.byteValue()) {
+            length = RSV_FRAG + 1 + 4 + 2;
+        } else if (type == Socks5AddressType.IPv6.byteValue()) {
+            length = RSV_FRAG + 1 + 16 + 2;
+        } else if (type == Socks5AddressType.DOMAIN.byteValue() && readable > RSV_FRAG + 1) {
+            length = RSV_FRAG + 2 + buf.getUnsignedByte(buf.readerIndex() + RSV_FRAG + 1) + 2;
+        } else {
+            return -1;
+        }
+        return length <= readable ? length : -1;
+    }
+
+    /**
+     * 分片编号，不为0表示是分片的数据报
+     */
+    static int fragment(ByteBuf buf) {
+        return buf.getUnsignedByte(buf.readerIndex() + 2);
+    }
+
+    /**
+     * 请求头中的目标主机(IP地址或者域名)
+     */
+    static String host(ByteBuf buf) {
+        int index = buf.readerIndex() + RSV_FRAG;
+        byte type = buf.getByte(index);
+        if (type == Socks5AddressType.IPv4.byteValue()) {
+            return NetUtil.intToIpAddress(buf.getInt(index + 1));
+        }
+        if (type == Socks5AddressType.IPv6.byteValue()) {
+            return NetUtil.bytesToIpAddress(ByteBufUtil.getBytes(buf, index + 1, 16));
+        }
+        return buf.toString(index + 2, buf.getUnsignedByte(index + 1), CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * 请求头中的目标端口，headerLength为{@link #headerLength(ByteBuf)}的返回值
+     */
+    static int port(ByteBuf buf, int headerLength) {
+        return buf.getUnsignedShort(buf.readerIndex() + headerLength - 2);
+    }
+
+    /**
+     * 回给客户端的数据报的请求头，地址是发出数据报的目标主机
+     */
+    static byte[] header(InetSocketAddress sender) {
+        byte[] address = sender.getAddress().getAddress();
+        byte[] header = new byte[RSV_FRAG + 1 + address.length + 2];
+        header[RSV_FRAG] = sender.getAddress() instanceof Inet4Address
+                ? Socks5AddressType.IPv4.byteValue()
+                : Socks5AddressType.IPv6.byteValue();
+        System.arraycopy(address, 0, header, RSV_FRAG + 1, address.length);
+        header[header.length - 2] = (byte) (sender.getPort() >>> 8);
+        header[header.length - 1] = (byte) sender.getPort();
+        return header;
+    }
+}
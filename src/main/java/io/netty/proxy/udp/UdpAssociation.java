@@ -0,0 +1,305 @@
+package io.netty.proxy.udp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.metrics.Counter;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.route.Router;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个UDP ASSOCIATE的数据报转发，客户端与目标主机共用同一个数据报socket
+ * <p>
+ * 客户端发来的数据报去掉socks5 UDP头后直接以切片转发，不复制数据；目标主机回的数据报加上UDP头后发给客户端。
+ * 只接受发往过的目标主机回的数据报，flush在一次读取结束后统一进行，epoll下多个数据报由sendmmsg一次发出。
+ * 两个方向共用一个socket，任一方向超出带宽时暂停读取整个socket，期间到达的数据报由内核接收缓冲暂存或者丢弃
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+final class UdpAssociation extends ChannelInboundHandlerAdapter {
+
+    /**
+     * 记住的目标主机数，超出后淘汰最久没有往来的
+     */
+    private static final int MAX_PEERS = 256;
+
+    private static final Counter DROPPED_MALFORMED = ProxyMetrics.udpDropped("malformed");
+
+    private static final Counter DROPPED_FRAGMENTED = ProxyMetrics.udpDropped("fragmented");
+
+    private static final Counter DROPPED_UNKNOWN_SOURCE = ProxyMetrics.udpDropped("unknown_source");
+
+    private static final Counter DROPPED_REJECTED = ProxyMetrics.udpDropped("rejected");
+
+    private static final Counter DROPPED_UPSTREAM = ProxyMetrics.udpDropped("upstream");
+
+    private static final Counter DROPPED_UNRESOLVED = ProxyMetrics.udpDropped("unresolved");
+
+    private static final Counter DROPPED_OVERFLOW = ProxyMetrics.udpDropped("overflow");
+
+    private final Router router;
+
+    private final DnsResolver dns;
+
+    /**
+     * 控制连接，关闭时UDP转发随之关闭
+     */
+    private final Channel control;
+
+    /**
+     * 客户端发送数据报的IP与端口(0表示任意端口)，收到第一个数据报后确定客户端地址
+     */
+    private final InetAddress clientAddress;
+
+    private final int clientPort;
+
+    /**
+     * 占用的限流名额与带宽，socket关闭时归还
+     */
+    private final Lease lease;
+
+    /**
+     * 是否因为超出带宽暂停了读取
+     */
+    private boolean throttled;
+
+    private InetSocketAddress client;
+
+    /**
+     * 目标主机地址 -> 回给客户端的UDP头
+     */
+    private final Map<InetSocketAddress, byte[]> peers = new LinkedHashMap<InetSocketAddress, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, byte[]> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+
+    /**
+     * 上一个数据报的UDP头与目标主机，发往同一个目标主机的连续数据报不再重复解析
+     */
+    private ByteBuf lastHeader = Unpooled.EMPTY_BUFFER;
+
+    private Target last;
+
+    /**
+     * 最后一次收到数据报的时间(System.nanoTime)，用于空闲检查
+     */
+    private volatile long lastActivity = System.nanoTime();
+
+    UdpAssociation(Router router,
+                   DnsResolver dns,
+                   Channel control,
+                   InetAddress clientAddress,
+                   int clientPort,
+                   Lease lease) {
+        this.router = router;
+        this.dns = dns;
+        this.control = control;
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+        this.lease = lease;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ProxyMetrics.UDP_ASSOCIATIONS_ACTIVE.increment();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        ProxyMetrics.UDP_ASSOCIATIONS_ACTIVE.decrement();
+        lease.close();
+        control.close();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        DatagramPacket packet = (DatagramPacket) msg;
+        try {
+            InetSocketAddress sender = packet.sender();
+            if (isClient(sender)) {
+                fromClient(ctx, packet.content());
+                return;
+            }
+            byte[] header = peers.get(sender);
+            if (header == null) {
+                DROPPED_UNKNOWN_SOURCE.increment();
+                return;
+            }
+            toClient(ctx, header, packet.content());
+        } finally {
+            packet.release();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        lastActivity = System.nanoTime();
+        ctx.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // 数据报socket上的错误(如ICMP不可达)只影响单个数据报
+        log.debug("UDP转发异常,client={},cause={}", client, cause.toString());
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    private boolean isClient(InetSocketAddress sender) {
+        if (client != null) {
+            return client.equals(sender);
+        }
+        if (sender.getAddress().equals(clientAddress) && (clientPort == 0 || clientPort == sender.getPort())) {
+            client = sender;
+            return true;
+        }
+        return false;
+    }
+
+    private void fromClient(ChannelHandlerContext ctx, ByteBuf buf) {
+        int length = Socks5Datagram.headerLength(buf);
+        if (length < 0) {
+            DROPPED_MALFORMED.increment();
+            return;
+        }
+        if (Socks5Datagram.fragment(buf) != 0) {
+            // 不支持分片重组，RFC 1928允许直接丢弃
+            DROPPED_FRAGMENTED.increment();
+            return;
+        }
+        Target target = target(buf, length);
+        String route = router.route(target.host, target.port);
+        if (Router.REJECT.equals(route)) {
+            DROPPED_REJECTED.increment();
+            return;
+        }
+        if (!Router.DIRECT.equals(route)) {
+            // 上游代理只用于TCP，经由上游的目标主机不转发UDP
+            DROPPED_UPSTREAM.increment();
+            return;
+        }
+        ByteBuf data = buf.retainedSlice(buf.readerIndex() + length, buf.readableBytes() - length);
+        if (target.address != null) {
+            send(ctx, target.address, data);
+            return;
+        }
+        Future<InetSocketAddress> resolved = dns.resolve(ctx.channel().eventLoop(), target.host, target.port);
+        if (resolved.isDone()) {
+            onResolved(ctx, resolved, data);
+        } else {
+            resolved.addListener((Future<InetSocketAddress> future) -> {
+                onResolved(ctx, future, data);
+                ctx.flush();
+            });
+        }
+    }
+
+    private void onResolved(ChannelHandlerContext ctx, Future<InetSocketAddress> resolved, ByteBuf data) {
+        if (resolved.isSuccess()) {
+            send(ctx, resolved.getNow(), data);
+        } else {
+            data.release();
+            DROPPED_UNRESOLVED.increment();
+        }
+    }
+
+    private void send(ChannelHandlerContext ctx, InetSocketAddress address, ByteBuf data) {
+        if (!ctx.channel().isWritable()) {
+            data.release();
+            DROPPED_OVERFLOW.increment();
+            return;
+        }
+        peers.computeIfAbsent(address, Socks5Datagram::header);
+        int bytes = data.readableBytes();
+        ProxyMetrics.UDP_DATAGRAMS_UPSTREAM.increment();
+        ProxyMetrics.BYTES_UPSTREAM.add(bytes);
+        ctx.write(new DatagramPacket(data, address), ctx.voidPromise());
+        throttle(ctx, lease.upload(bytes), ProxyMetrics.THROTTLED_UPSTREAM);
+    }
+
+    private void toClient(ChannelHandlerContext ctx, byte[] header, ByteBuf content) {
+        if (!ctx.channel().isWritable()) {
+            DROPPED_OVERFLOW.increment();
+            return;
+        }
+        int bytes = content.readableBytes();
+        ByteBuf out = ctx.alloc().directBuffer(header.length + bytes);
+        out.writeBytes(header).writeBytes(content);
+        ProxyMetrics.UDP_DATAGRAMS_DOWNSTREAM.increment();
+        ProxyMetrics.BYTES_DOWNSTREAM.add(bytes);
+        ctx.write(new DatagramPacket(out, client), ctx.voidPromise());
+        throttle(ctx, lease.download(bytes), ProxyMetrics.THROTTLED_DOWNSTREAM);
+    }
+
+    /**
+     * 数据报已经透支令牌发出，之后暂停读取nanos纳秒
+     */
+    private void throttle(ChannelHandlerContext ctx, long nanos, Counter counter) {
+        if (nanos <= 0 || throttled) {
+            return;
+        }
+        throttled = true;
+        counter.increment();
+        ctx.channel().config().setAutoRead(false);
+        ctx.executor().schedule(() -> {
+            throttled = false;
+            ctx.channel().config().setAutoRead(true);
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * UDP头与上一个数据报相同时直接复用，否则解析出新的目标主机
+     */
+    private Target target(ByteBuf buf, int length) {
+        if (last != null && lastHeader.readableBytes() == length
+                && ByteBufUtil.equals(buf, buf.readerIndex(), lastHeader, 0, length)) {
+            return last;
+        }
+        String host = Socks5Datagram.host(buf);
+        int port = Socks5Datagram.port(buf, length);
+        InetAddress address = DnsResolver.ipLiteral(host);
+        last = new Target(host, port, address == null ? null : new InetSocketAddress(address, port));
+        lastHeader = Unpooled.wrappedBuffer(ByteBufUtil.getBytes(buf, buf.readerIndex(), length));
+        return last;
+    }
+
+    /**
+     * 数据报的目标主机，域名每次都经过DNS缓存解析，IP地址直接使用
+     */
+    private static final class Target {
+
+        final String host;
+
+        final int port;
+
+        final InetSocketAddress address;
+
+        Target(String host, int port, InetSocketAddress address) {
+            this.host = host;
+            this.port = port;
+            this.address = address;
+        }
+    }
+}
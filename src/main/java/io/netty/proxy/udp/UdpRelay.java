@@ -0,0 +1,113 @@
+package io.netty.proxy.udp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.limit.Lease;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.route.Router;
+import io.netty.proxy.timeout.Reaper;
+import io.netty.proxy.transport.EventLoops;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * socks5 UDP ASSOCIATE的数据报转发
+ * <p>
+ * 每个UDP ASSOCIATE绑定一个数据报socket，注册在控制连接所在的EventLoop上；控制连接与数据报socket任意一个关闭，
+ * 另一个随之关闭。目标主机按路由规则处理：direct转发，reject以及经由上游代理的目标主机丢弃。
+ * epoll传输层下用recvmmsg一次读取多个数据报
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+@Component
+public class UdpRelay {
+
+    private final AppProperties properties;
+
+    private final EventLoops eventLoops;
+
+    private final Router router;
+
+    private final DnsResolver dns;
+
+    private final Reaper reaper;
+
+    public UdpRelay(AppProperties properties, EventLoops eventLoops, Router router, DnsResolver dns, Reaper reaper) {
+        this.properties = properties;
+        this.eventLoops = eventLoops;
+        this.router = router;
+        this.dns = dns;
+        this.reaper = reaper;
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnableUdp();
+    }
+
+    /**
+     * 为控制连接打开UDP转发，数据报socket绑定在控制连接的本地IP上
+     *
+     * @param clientHost UDP ASSOCIATE请求中客户端声明的发送地址，不是IP地址或者全0时使用控制连接的对端IP
+     * @param clientPort 客户端声明的发送端口，0表示任意端口
+     * @param lease      UDP转发占用的限流名额，数据报socket关闭或者绑定失败时归还
+     * @return 数据报socket绑定的地址，即应答中的BND.ADDR/BND.PORT，在控制连接的EventLoop中回调
+     */
+    public Future<InetSocketAddress> associate(Channel control, String clientHost, int clientPort, Lease lease) {
+        InetAddress declared = DnsResolver.ipLiteral(clientHost);
+        InetAddress clientAddress = declared == null || declared.isAnyLocalAddress()
+                ? ((InetSocketAddress) control.remoteAddress()).getAddress()
+                : declared;
+        UdpAssociation association = new UdpAssociation(router, dns, control, clientAddress, clientPort, lease);
+        int maxDatagramSize = properties.getUdpMaxDatagramSize();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(control.eventLoop())
+                .channel(eventLoops.getTransport().datagramChannelClass())
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(association);
+                    }
+                });
+        if (eventLoops.getTransport() == TransportType.EPOLL && properties.getUdpBatch() > 1) {
+            // 接收缓冲可以容纳多个数据报时，epoll用recvmmsg一次读取并切分
+            bootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, maxDatagramSize)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR,
+                            new FixedRecvByteBufAllocator(maxDatagramSize * properties.getUdpBatch()));
+        } else {
+            bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxDatagramSize));
+        }
+
+        Promise<InetSocketAddress> promise = control.eventLoop().newPromise();
+        InetAddress local = ((InetSocketAddress) control.localAddress()).getAddress();
+        ChannelFuture bind = bootstrap.bind(local, 0);
+        bind.addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                lease.close();
+                promise.setFailure(future.cause());
+                return;
+            }
+            Channel udp = future.channel();
+            reaper.watchIdle(udp, association::lastActivity, properties.getUdpIdleTimeout());
+            control.closeFuture().addListener(closed -> udp.close());
+            if (!control.isActive()) {
+                udp.close();
+            }
+            log.debug("UDP转发已绑定,local={},client={}", udp.localAddress(), clientAddress);
+            promise.setSuccess((InetSocketAddress) udp.localAddress());
+        });
+        return promise;
+    }
+}
@@ -0,0 +1,337 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.metrics.Gauge;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个同类上游代理之间的负载均衡与故障转移
+ * <p>
+ * 选择只读取各个代理的原子计数，不加锁；一个代理建连失败(没有连上代理或者代理回复FAILURE)时换下一个代理重试，
+ * 连续失败达到阈值的代理被摘除，由定时健康检查恢复。全部代理都被摘除时仍然在全部代理中选择
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+public class BalancedConnector implements UpstreamConnector {
+
+    /**
+     * 一致性哈希环上每个代理的虚拟节点数
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    /**
+     * 延迟EWMA的平滑系数
+     */
+    private static final double EWMA_ALPHA = 0.3;
+
+    public enum Balance {
+
+        /**
+         * 轮询
+         */
+        ROUND_ROBIN,
+
+        /**
+         * 正在使用的连接数最少
+         */
+        LEAST_ACTIVE,
+
+        /**
+         * 建连延迟EWMA乘以(正在使用的连接数+1)最小
+         */
+        EWMA,
+
+        /**
+         * 按目标主机一致性哈希，同一个目标主机固定走同一个代理
+         */
+        CONSISTENT_HASH;
+
+        public static Balance of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final String name;
+
+    private final Endpoint[] endpoints;
+
+    private final Balance balance;
+
+    private final int retries;
+
+    private final int ejectFailures;
+
+    private final long healthCheckInterval;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * 一致性哈希环：排好序的虚拟节点哈希值与对应的代理下标
+     */
+    private final int[] ring;
+
+    private final int[] ringOwners;
+
+    private final AtomicBoolean healthCheckStarted = new AtomicBoolean();
+
+    /**
+     * @param name       上游名称
+     * @param names      各个代理的描述(host:port)
+     * @param connectors 各个代理的连接器，与names一一对应
+     */
+    public BalancedConnector(String name,
+                             List<String> names,
+                             List<UpstreamConnector> connectors,
+                             Balance balance,
+                             int retries,
+                             int ejectFailures,
+                             long healthCheckInterval) {
+        if (connectors.isEmpty() || connectors.size() > Long.SIZE) {
+            throw new IllegalArgumentException("upstream " + name + " needs 1 to 64 endpoints");
+        }
+        this.name = name;
+        this.balance = balance;
+        this.retries = retries;
+        this.ejectFailures = ejectFailures;
+        this.healthCheckInterval = healthCheckInterval;
+        this.endpoints = new Endpoint[connectors.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(names.get(i), connectors.get(i));
+        }
+        long[] nodes = new long[endpoints.length * VIRTUAL_NODES];
+        for (int i = 0; i < endpoints.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                int hash = hash(endpoints[i].name + "#" + v);
+                // 高32位哈希值，低32位代理下标，排序后拆开
+                nodes[i * VIRTUAL_NODES + v] = ((long) hash << 32) | i;
+            }
+        }
+        Arrays.sort(nodes);
+        this.ring = new int[nodes.length];
+        this.ringOwners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ring[i] = (int) (nodes[i] >> 32);
+            ringOwners[i] = (int) nodes[i];
+        }
+    }
+
+    @Override
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        Promise<Channel> promise = loop.newPromise();
+        attempt(loop, host, port, 0L, 0, null, promise);
+        return promise;
+    }
+
+    /**
+     * 预热各个代理的连接，并在线程组中的一个EventLoop上开始健康检查
+     */
+    @Override
+    public void warmUp(EventLoopGroup group) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.connector.warmUp(group);
+        }
+        if (healthCheckStarted.compareAndSet(false, true)) {
+            EventLoop loop = (EventLoop) group.next();
+            loop.scheduleWithFixedDelay(() -> healthCheck(loop),
+                    healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param tried 已经尝试过的代理下标集合
+     */
+    private void attempt(EventLoop loop, String host, int port, long tried, int attempts,
+                         Throwable lastCause, Promise<Channel> promise) {
+        int index = select(host, tried);
+        if (index < 0) {
+            promise.tryFailure(lastCause);
+            return;
+        }
+        Endpoint endpoint = endpoints[index];
+        endpoint.acquire();
+        long start = System.nanoTime();
+        endpoint.connector.connect(loop, host, port).addListener((Future<Channel> future) -> {
+            if (future.isSuccess()) {
+                endpoint.onSuccess(System.nanoTime() - start);
+                future.getNow().closeFuture().addListener(closed -> endpoint.release());
+                promise.trySuccess(future.getNow());
+                return;
+            }
+            endpoint.release();
+            Throwable cause = future.cause();
+            boolean hopFailure = !(cause instanceof Socks5UpstreamException)
+                    || ((Socks5UpstreamException) cause).getStatus() == Socks5CommandStatus.FAILURE;
+            if (!(cause instanceof Socks5UpstreamException)) {
+                // 没有连上代理或者协商失败，代理本身有问题
+                endpoint.onFailure(cause);
+            }
+            if (hopFailure && attempts < retries && !promise.isDone()) {
+                log.debug("connect {}:{} via {} {} failed, retry with another one: {}",
+                        host, port, name, endpoint.name, cause.toString());
+                attempt(loop, host, port, tried | (1L << index), attempts + 1, cause, promise);
+            } else {
+                promise.tryFailure(cause);
+            }
+        });
+    }
+
+    /**
+     * @return 代理下标，没有可选的代理时返回-1
+     */
+    private int select(String host, long tried) {
+        boolean anyHealthy = false;
+        for (int i = 0; i < endpoints.length; i++) {
+            if ((tried & (1L << i)) == 0 && endpoints[i].healthy.get()) {
+                anyHealthy = true;
+                break;
+            }
+        }
+        int n = endpoints.length;
+        if (balance == Balance.CONSISTENT_HASH) {
+            int position = Arrays.binarySearch(ring, hash(host));
+            if (position < 0) {
+                position = -position - 1;
+            }
+            for (int i = 0; i < ring.length; i++) {
+                int owner = ringOwners[(position + i) % ring.length];
+                if (candidate(owner, tried, anyHealthy)) {
+                    return owner;
+                }
+            }
+            return -1;
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        int best = -1;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % n;
+            if (!candidate(index, tried, anyHealthy)) {
+                continue;
+            }
+            if (balance == Balance.ROUND_ROBIN) {
+                return index;
+            }
+            Endpoint endpoint = endpoints[index];
+            double score = balance == Balance.LEAST_ACTIVE
+                    ? endpoint.active.get()
+                    : endpoint.ewma * (endpoint.active.get() + 1);
+            if (score < bestScore) {
+                best = index;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private boolean candidate(int index, long tried, boolean anyHealthy) {
+        return (tried & (1L << index)) == 0 && (!anyHealthy || endpoints[index].healthy.get());
+    }
+
+    private void healthCheck(EventLoop loop) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.connector.probe(loop).addListener(future -> {
+                if (future.isSuccess()) {
+                    endpoint.reinstate();
+                } else {
+                    endpoint.onFailure(future.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * FNV-1a，再做一次murmur3的finalizer让相近的字符串在环上分散开
+     */
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 单个代理的状态，任意EventLoop都可能并发读写
+     */
+    private final class Endpoint {
+
+        private final String name;
+
+        private final UpstreamConnector connector;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+
+        /**
+         * 建连延迟EWMA(纳秒)，0表示还没有样本，会被优先选中；并发更新时丢失个别样本可以接受
+         */
+        private volatile double ewma;
+
+        private final Gauge activeGauge;
+
+        private final Gauge healthyGauge;
+
+        Endpoint(String name, UpstreamConnector connector) {
+            this.name = name;
+            this.connector = connector;
+            this.activeGauge = ProxyMetrics.endpointActive(BalancedConnector.this.name, name);
+            this.healthyGauge = ProxyMetrics.endpointHealthy(BalancedConnector.this.name, name);
+            healthyGauge.increment();
+        }
+
+        void acquire() {
+            active.incrementAndGet();
+            activeGauge.increment();
+        }
+
+        void release() {
+            active.decrementAndGet();
+            activeGauge.decrement();
+        }
+
+        void onSuccess(long nanos) {
+            failures.set(0);
+            double current = ewma;
+            ewma = current == 0 ? nanos : current + EWMA_ALPHA * (nanos - current);
+        }
+
+        void onFailure(Throwable cause) {
+            if (failures.incrementAndGet() >= ejectFailures && healthy.compareAndSet(true, false)) {
+                healthyGauge.decrement();
+                log.warn("upstream {} endpoint {} ejected after {} failures: {}",
+                        BalancedConnector.this.name, name, ejectFailures, cause.toString());
+            }
+        }
+
+        void reinstate() {
+            failures.set(0);
+            if (healthy.compareAndSet(false, true)) {
+                healthyGauge.increment();
+                log.info("upstream {} endpoint {} reinstated", BalancedConnector.this.name, name);
+            }
+        }
+    }
+}
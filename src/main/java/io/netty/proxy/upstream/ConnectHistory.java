@@ -0,0 +1,193 @@
+package io.netty.proxy.upstream;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目标地址最近的建连延迟与失败，决定下一次解析出多个地址时的尝试顺序(RFC 6724规则9：优先历史延迟小的地址)
+ * <p>
+ * 按访问顺序淘汰的有界缓存，所有EventLoop共享，锁内只有哈希查找；size为0时不记录，保持解析结果的顺序
+ *
+ * @author chpengzh@foxmail.com
+ */
+final class ConnectHistory {
+
+    /**
+     * 延迟EWMA的平滑系数
+     */
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final int size;
+
+    private final long failurePenaltyNanos;
+
+    private final Map<InetSocketAddress, Entry> entries;
+
+    ConnectHistory(int size, long failurePenaltyMillis) {
+        this.size = size;
+        this.failurePenaltyNanos = TimeUnit.MILLISECONDS.toNanos(failurePenaltyMillis);
+        this.entries = new LinkedHashMap<InetSocketAddress, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Entry> eldest) {
+                return size() > ConnectHistory.this.size;
+            }
+        };
+    }
+
+    /**
+     * 连接成功，记录建连耗时并清除失败记录
+     */
+    void succeeded(InetSocketAddress address, long nanos) {
+        if (size <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            Entry entry = entries.computeIfAbsent(address, key -> new Entry());
+            entry.sample(nanos);
+            entry.failedAt = 0;
+        }
+    }
+
+    void failed(InetSocketAddress address) {
+        if (size <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            entries.computeIfAbsent(address, key -> new Entry()).failedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * 其他地址先连上后被取消的尝试，已经等待的时间是建连延迟的下限，只在比记录的延迟更慢时计入
+     */
+    void cancelled(InetSocketAddress address, long nanos) {
+        if (size <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            Entry entry = entries.computeIfAbsent(address, key -> new Entry());
+            if (entry.ewma < nanos) {
+                entry.sample(nanos);
+            }
+        }
+    }
+
+    /**
+     * 记录的建连延迟(纳秒)，没有记录或者最近失败过时返回0
+     */
+    long latency(InetSocketAddress address) {
+        if (size <= 0) {
+            return 0;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(address);
+            return entry == null || entry.isPenalized(System.nanoTime()) ? 0 : (long) entry.ewma;
+        }
+    }
+
+    /**
+     * 尝试顺序：有延迟记录的地址按延迟从小到大，其次是没有记录的地址(保持解析顺序)，最近失败的地址排在最后；
+     * 之后按RFC 8305第4节以第一个地址的地址族开始交替排列IPv6与IPv4
+     */
+    List<InetSocketAddress> order(List<InetSocketAddress> addresses) {
+        if (addresses.size() <= 1) {
+            return addresses;
+        }
+        List<Ranked> ranked = new ArrayList<>(addresses.size());
+        if (size > 0) {
+            long now = System.nanoTime();
+            synchronized (entries) {
+                for (InetSocketAddress address : addresses) {
+                    ranked.add(new Ranked(address, entries.get(address), now));
+                }
+            }
+            ranked.sort(Comparator.comparingInt((Ranked r) -> r.rank).thenComparingDouble(r -> r.ewma));
+        } else {
+            for (InetSocketAddress address : addresses) {
+                ranked.add(new Ranked(address, null, 0));
+            }
+        }
+        return interleave(ranked);
+    }
+
+    /**
+     * 最近失败的地址不参与交替，仍然排在最后
+     */
+    private static List<InetSocketAddress> interleave(List<Ranked> ranked) {
+        boolean firstV6 = ranked.get(0).address.getAddress() instanceof Inet6Address;
+        List<InetSocketAddress> preferred = new ArrayList<>(ranked.size());
+        List<InetSocketAddress> other = new ArrayList<>(ranked.size());
+        List<InetSocketAddress> penalized = new ArrayList<>(0);
+        for (Ranked r : ranked) {
+            if (r.rank == 2) {
+                penalized.add(r.address);
+            } else {
+                (r.address.getAddress() instanceof Inet6Address == firstV6 ? preferred : other).add(r.address);
+            }
+        }
+        List<InetSocketAddress> ordered = new ArrayList<>(ranked.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                ordered.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                ordered.add(other.get(i));
+            }
+        }
+        ordered.addAll(penalized);
+        return ordered;
+    }
+
+    private final class Entry {
+
+        /**
+         * 建连延迟EWMA(纳秒)，0表示还没有样本
+         */
+        private double ewma;
+
+        /**
+         * 最近一次失败的时间(System.nanoTime)，0表示之后已经成功过
+         */
+        private long failedAt;
+
+        void sample(long nanos) {
+            ewma = ewma == 0 ? nanos : ewma + EWMA_ALPHA * (nanos - ewma);
+        }
+
+        boolean isPenalized(long now) {
+            return failedAt != 0 && now - failedAt < failurePenaltyNanos;
+        }
+    }
+
+    private static final class Ranked {
+
+        private final InetSocketAddress address;
+
+        /**
+         * 0: 有延迟记录，1: 没有记录，2: 最近失败过
+         */
+        private final int rank;
+
+        private final double ewma;
+
+        Ranked(InetSocketAddress address, Entry entry, long now) {
+            this.address = address;
+            if (entry == null || entry.ewma == 0 && !entry.isPenalized(now)) {
+                this.rank = 1;
+                this.ewma = 0;
+            } else if (entry.isPenalized(now)) {
+                this.rank = 2;
+                this.ewma = entry.ewma;
+            } else {
+                this.rank = 0;
+                this.ewma = entry.ewma;
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package io.netty.proxy.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不经过上游代理，直接连接目标主机，域名由{@link DnsResolver}异步解析
+ * <p>
+ * 解析出多个地址时按RFC 8305错开并行尝试：按{@link ConnectHistory}排好顺序后先连第一个地址，
+ * 超过尝试间隔还没有连上或者失败时开始下一个，最先连上的成为出站连接，其余的尝试立即关闭
+ *
+ * @author chpengzh@foxmail.com
+ */
+public class DirectConnector implements UpstreamConnector {
+
+    /**
+     * 按历史延迟缩短尝试间隔时的下限(毫秒)，RFC 8305第5节建议不低于100ms
+     */
+    private static final long MIN_ATTEMPT_DELAY = 100;
+
+    private final Bootstrap bootstrap;
+
+    private final DnsResolver dns;
+
+    private final long attemptDelay;
+
+    private final ConnectHistory history;
+
+    public DirectConnector(AppProperties properties, DnsResolver dns) {
+        TransportType transport = TransportType.of(properties.getTransport());
+        this.dns = dns;
+        this.attemptDelay = properties.getConnectAttemptDelay();
+        this.history = new ConnectHistory(properties.getConnectHistorySize(), properties.getConnectFailurePenalty());
+        this.bootstrap = new Bootstrap()
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, Math.max(properties.getConnectTimeout(), 0))
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark())
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        // 连接建立后pipeline为空，由调用方安装转发handler
+                    }
+                });
+        if (properties.isZeroCopy() && transport == TransportType.EPOLL) {
+            SpliceRelay.configure(bootstrap);
+        }
+    }
+
+    @Override
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        long start = System.nanoTime();
+        Promise<Channel> promise = loop.newPromise();
+        promise.addListener(future -> {
+            if (future.isSuccess()) {
+                ProxyMetrics.CONNECT_DIRECT.recordSince(start);
+            }
+        });
+        InetAddress literal = DnsResolver.ipLiteral(host);
+        if (literal != null) {
+            new Race(loop, Collections.singletonList(new InetSocketAddress(literal, port)), promise).next();
+            return promise;
+        }
+        dns.resolveAll(loop, host, port).addListener((Future<List<InetSocketAddress>> future) -> {
+            if (future.isSuccess() && !future.getNow().isEmpty()) {
+                new Race(loop, history.order(future.getNow()), promise).next();
+            } else if (future.isSuccess()) {
+                promise.tryFailure(new Socks5UpstreamException(Socks5CommandStatus.HOST_UNREACHABLE,
+                        new UnknownHostException(host)));
+            } else {
+                promise.tryFailure(new Socks5UpstreamException(status(future.cause()), future.cause()));
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 前一个地址多久没有连上就开始下一个：有延迟记录时为记录的两倍，不超过配置的间隔
+     */
+    private long attemptDelay(InetSocketAddress address) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(history.latency(address));
+        return latency == 0 ? attemptDelay : Math.min(attemptDelay, Math.max(MIN_ATTEMPT_DELAY, latency * 2));
+    }
+
+    /**
+     * 一次连接目标主机的多个地址的尝试，只在loop中访问
+     */
+    private final class Race {
+
+        private final EventLoop loop;
+
+        private final List<InetSocketAddress> addresses;
+
+        private final Promise<Channel> promise;
+
+        /**
+         * 还没有连上也没有失败的尝试
+         */
+        private final List<Attempt> pending = new ArrayList<>(2);
+
+        /**
+         * 下一个尝试的地址下标
+         */
+        private int index;
+
+        private ScheduledFuture<?> timer;
+
+        Race(EventLoop loop, List<InetSocketAddress> addresses, Promise<Channel> promise) {
+            this.loop = loop;
+            this.addresses = addresses;
+            this.promise = promise;
+        }
+
+        /**
+         * 开始下一个地址的尝试，还有剩余地址时定时开始再下一个
+         */
+        void next() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (promise.isDone() || index >= addresses.size()) {
+                return;
+            }
+            InetSocketAddress address = addresses.get(index++);
+            Attempt attempt = new Attempt(address);
+            pending.add(attempt);
+            attempt.future.addListener(attempt);
+            if (index < addresses.size() && attemptDelay > 0 && !attempt.future.isDone()) {
+                timer = loop.schedule(this::next, attemptDelay(address), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void cancelOthers() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            long now = System.nanoTime();
+            for (Attempt attempt : pending) {
+                history.cancelled(attempt.address, now - attempt.start);
+                ProxyMetrics.DIRECT_ATTEMPT_CANCELLED.increment();
+                attempt.future.channel().close();
+            }
+            pending.clear();
+        }
+
+        /**
+         * 到一个地址的建连
+         */
+        private final class Attempt implements ChannelFutureListener {
+
+            private final InetSocketAddress address;
+
+            private final long start = System.nanoTime();
+
+            private final ChannelFuture future;
+
+            Attempt(InetSocketAddress address) {
+                this.address = address;
+                this.future = bootstrap.clone(loop).connect(address);
+            }
+
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!pending.remove(this)) {
+                    // 已经被取消
+                    return;
+                }
+                if (future.isSuccess()) {
+                    history.succeeded(address, System.nanoTime() - start);
+                    if (promise.trySuccess(future.channel())) {
+                        ProxyMetrics.DIRECT_ATTEMPT_WON.increment();
+                        cancelOthers();
+                    } else {
+                        // 调用方已经放弃
+                        future.channel().close();
+                    }
+                    return;
+                }
+                ProxyMetrics.DIRECT_ATTEMPT_FAILED.increment();
+                history.failed(address);
+                if (index < addresses.size()) {
+                    // 失败时不等间隔，立即开始下一个
+                    next();
+                } else if (pending.isEmpty()) {
+                    promise.tryFailure(new Socks5UpstreamException(status(future.cause()), future.cause()));
+                }
+            }
+        }
+    }
+
+    private static Socks5CommandStatus status(Throwable cause) {
+        if (cause instanceof UnknownHostException || cause instanceof ConnectTimeoutException) {
+            return Socks5CommandStatus.HOST_UNREACHABLE;
+        } else if (cause instanceof NoRouteToHostException) {
+            return Socks5CommandStatus.NETWORK_UNREACHABLE;
+        } else if (cause instanceof ConnectException) {
+            return Socks5CommandStatus.CONNECTION_REFUSED;
+        }
+        return Socks5CommandStatus.FAILURE;
+    }
+}
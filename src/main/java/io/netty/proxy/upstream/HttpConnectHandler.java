@@ -0,0 +1,115 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.Base64;
+
+/**
+ * 向上游HTTP代理发送CONNECT，收到2xx响应后移除HTTP编解码，pipeline为空
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpConnectHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+    static final String CODEC = "http-connect-codec";
+
+    private final String authority;
+
+    private final String authorization;
+
+    private final Promise<Channel> promise;
+
+    private HttpResponseStatus status;
+
+    /**
+     * CONNECT请求发出的时间
+     */
+    private long sentAt;
+
+    HttpConnectHandler(String host, int port, String username, String password, Promise<Channel> promise) {
+        this.authority = NetUtil.isValidIpV6Address(host) ? "[" + host + "]:" + port : host + ":" + port;
+        this.authorization = username == null
+                ? null
+                : "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(CharsetUtil.UTF_8));
+        this.promise = promise;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, authority);
+        request.headers().set(HttpHeaderNames.HOST, authority);
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.PROXY_AUTHORIZATION, authorization);
+        }
+        sentAt = System.nanoTime();
+        ctx.writeAndFlush(request);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+        if (msg instanceof HttpResponse) {
+            status = ((HttpResponse) msg).status();
+        }
+        if (!(msg instanceof LastHttpContent)) {
+            return;
+        }
+        if (status == null || status.codeClass() != HttpStatusClass.SUCCESS) {
+            promise.tryFailure(new Socks5UpstreamException(status(status),
+                    new IllegalStateException("upstream http proxy replied " + status)));
+            ctx.close();
+            return;
+        }
+        ProxyMetrics.CONNECT_DESTINATION.recordSince(sentAt);
+        ctx.pipeline().remove(this);
+        // 与socks5一样先通知调用方安装转发handler，再移除编解码，残留的目标主机数据会交给转发handler
+        promise.trySuccess(ctx.channel());
+        ctx.pipeline().remove(CODEC);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        promise.tryFailure(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        promise.tryFailure(cause);
+        ctx.close();
+    }
+
+    static Socks5CommandStatus status(HttpResponseStatus status) {
+        if (status == null) {
+            return Socks5CommandStatus.FAILURE;
+        }
+        switch (status.code()) {
+            case 403:
+            case 407:
+                return Socks5CommandStatus.FORBIDDEN;
+            case 502:
+            case 504:
+                return Socks5CommandStatus.HOST_UNREACHABLE;
+            default:
+                return Socks5CommandStatus.FAILURE;
+        }
+    }
+}
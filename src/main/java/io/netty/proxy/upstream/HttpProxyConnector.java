@@ -0,0 +1,106 @@
+package io.netty.proxy.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.UpstreamProperties;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 经由上游HTTP代理的CONNECT隧道连接目标主机
+ * <p>
+ * HTTP代理的CONNECT不能复用，每次都新建连接，没有预热池
+ *
+ * @author chpengzh@foxmail.com
+ */
+public class HttpProxyConnector implements UpstreamConnector {
+
+    private final UpstreamProperties upstream;
+
+    private final InetSocketAddress proxyAddress;
+
+    private final Bootstrap bootstrap;
+
+    /**
+     * @param upstream     上游代理的认证信息
+     * @param proxyAddress 上游代理地址(未解析)
+     */
+    public HttpProxyConnector(UpstreamProperties upstream,
+                              InetSocketAddress proxyAddress,
+                              AppProperties properties,
+                              DnsResolver dns) {
+        TransportType transport = TransportType.of(properties.getTransport());
+        this.upstream = upstream;
+        this.proxyAddress = proxyAddress;
+        this.bootstrap = new Bootstrap()
+                .channel(transport.socketChannelClass())
+                .resolver(dns.group())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, Math.max(properties.getConnectTimeout(), 0))
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark());
+        if (properties.isZeroCopy() && transport == TransportType.EPOLL) {
+            SpliceRelay.configure(bootstrap);
+        }
+    }
+
+    @Override
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        long start = System.nanoTime();
+        Promise<Channel> promise = loop.newPromise();
+        bootstrap.clone(loop)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(HttpConnectHandler.CODEC, new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpConnectHandler(host, port,
+                                upstream.getUsername(), upstream.getPassword(), promise));
+                    }
+                })
+                .connect(proxyAddress)
+                .addListener((ChannelFuture future) -> {
+                    if (future.isSuccess()) {
+                        ProxyMetrics.CONNECT_PROXY_HOP.recordSince(start);
+                    } else {
+                        promise.tryFailure(future.cause());
+                    }
+                });
+        return promise;
+    }
+
+    /**
+     * 只检查TCP能否连上代理，连上后立即关闭
+     */
+    @Override
+    public Future<?> probe(EventLoop loop) {
+        Promise<Void> promise = loop.newPromise();
+        bootstrap.clone(loop)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                    }
+                })
+                .connect(proxyAddress)
+                .addListener((ChannelFuture future) -> {
+                    if (future.isSuccess()) {
+                        future.channel().close();
+                        promise.trySuccess(null);
+                    } else {
+                        promise.tryFailure(future.cause());
+                    }
+                });
+        return promise;
+    }
+}
@@ -0,0 +1,431 @@
+package io.netty.proxy.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http2.DefaultHttp2PingFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.UpstreamProperties;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.StringUtils;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 经由另一个代理节点的多路复用隧道连接目标主机
+ * <p>
+ * 节点之间使用HTTP/2(可选TLS + ALPN h2)，每个EventLoop保持到对端节点的少量长连接，每个目标连接是其中一个流上的CONNECT，
+ * 对端节点的HTTP代理端口按流分发到目标主机，不需要为每个目标连接做TCP握手与代理协商。
+ * 帧格式、流编号、每个流与连接级的窗口流控都由HTTP/2提供：隧道暂停读取时不归还流的接收窗口，只影响这一个流；
+ * 按目标端口配置的权重以PRIORITY发给对端节点，决定同一个连接上各个流分到的带宽。
+ * 连接上的流数达到对端的SETTINGS_MAX_CONCURRENT_STREAMS时另开一个连接，收到GOAWAY的连接不再打开新流，
+ * 已有的流结束后关闭
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+public class MuxConnector implements UpstreamConnector {
+
+    private final UpstreamProperties upstream;
+
+    private final AppProperties properties;
+
+    /**
+     * 对端节点地址(未解析)
+     */
+    private final InetSocketAddress proxyAddress;
+
+    private final Bootstrap bootstrap;
+
+    /**
+     * 节点间TLS，未开启时为null
+     */
+    private final SslContext sslContext;
+
+    private final String authorization;
+
+    private final Map<EventLoop, LoopConnections> loops = new ConcurrentHashMap<>();
+
+    /**
+     * 对端节点不会主动打开流，收到时直接关闭
+     */
+    private static final ChannelHandler REJECT_PUSHED = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+            ch.close();
+        }
+    };
+
+    /**
+     * @param upstream     对端节点的认证信息、TLS与流权重配置
+     * @param proxyAddress 对端节点HTTP代理端口的地址(未解析)
+     */
+    public MuxConnector(UpstreamProperties upstream,
+                        InetSocketAddress proxyAddress,
+                        AppProperties properties,
+                        DnsResolver dns) {
+        for (Map.Entry<Integer, Integer> weight : upstream.getStreamWeights().entrySet()) {
+            if (weight.getValue() < Http2CodecUtil.MIN_WEIGHT || weight.getValue() > Http2CodecUtil.MAX_WEIGHT) {
+                throw new IllegalArgumentException("stream weight of port " + weight.getKey() + " should be in ["
+                        + Http2CodecUtil.MIN_WEIGHT + ", " + Http2CodecUtil.MAX_WEIGHT + "]");
+            }
+        }
+        this.upstream = upstream;
+        this.properties = properties;
+        this.proxyAddress = proxyAddress;
+        this.bootstrap = new Bootstrap()
+                .channel(TransportType.of(properties.getTransport()).socketChannelClass())
+                .resolver(dns.group())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, Math.max(properties.getConnectTimeout(), 0));
+        this.sslContext = upstream.isTls() ? newSslContext(upstream.getTlsTrustFile()) : null;
+        this.authorization = upstream.getUsername() == null
+                ? null
+                : "Basic " + Base64.getEncoder().encodeToString(
+                (upstream.getUsername() + ":" + upstream.getPassword()).getBytes(CharsetUtil.UTF_8));
+    }
+
+    /**
+     * 为线程组中的每个EventLoop预先建立一个到对端节点的连接
+     */
+    @Override
+    public void warmUp(EventLoopGroup group) {
+        for (EventExecutor executor : group) {
+            EventLoop loop = (EventLoop) executor;
+            loop.execute(() -> connections(loop).acquire());
+        }
+    }
+
+    /**
+     * 在到对端节点的连接上打开一个CONNECT流，域名原样交给对端节点解析
+     */
+    @Override
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        Promise<Channel> promise = loop.newPromise();
+        if (loop.inEventLoop()) {
+            connections(loop).open(host, port, promise);
+        } else {
+            loop.execute(() -> connections(loop).open(host, port, promise));
+        }
+        return promise;
+    }
+
+    /**
+     * 确认这个EventLoop上有一个可用的节点间连接，没有时新建
+     */
+    @Override
+    public Future<?> probe(EventLoop loop) {
+        Promise<Void> promise = loop.newPromise();
+        connections(loop).acquire().addListener(future -> {
+            if (future.isSuccess()) {
+                promise.trySuccess(null);
+            } else {
+                promise.tryFailure(future.cause());
+            }
+        });
+        return promise;
+    }
+
+    private LoopConnections connections(EventLoop loop) {
+        return loops.computeIfAbsent(loop, LoopConnections::new);
+    }
+
+    /**
+     * 目标端口配置的流权重，没有配置时返回0
+     */
+    private short weight(int port) {
+        Integer weight = upstream.getStreamWeights().get(port);
+        return weight == null ? 0 : weight.shortValue();
+    }
+
+    private static SslContext newSslContext(String trustFile) {
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sslProvider(OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK)
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2));
+        if (!StringUtils.isEmpty(trustFile)) {
+            builder.trustManager(new File(trustFile));
+        }
+        try {
+            return builder.build();
+        } catch (SSLException e) {
+            throw new IllegalArgumentException("cannot build tls context with trust file " + trustFile, e);
+        }
+    }
+
+    /**
+     * 单个EventLoop上到对端节点的连接，只在所属EventLoop中访问
+     */
+    private final class LoopConnections {
+
+        private final EventLoop loop;
+
+        private final List<Connection> connections = new ArrayList<>(1);
+
+        LoopConnections(EventLoop loop) {
+            this.loop = loop;
+            long interval = upstream.getPingInterval();
+            if (interval > 0) {
+                loop.scheduleWithFixedDelay(this::ping, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void open(String host, int port, Promise<Channel> promise) {
+            Connection conn = available();
+            // 在连接建立之前就占用名额，同时到来的请求不会都挤在同一个连接上
+            conn.streams++;
+            conn.ready.addListener((Future<Connection> future) -> {
+                if (future.isSuccess()) {
+                    conn.open(host, port, promise);
+                } else {
+                    conn.streams--;
+                    promise.tryFailure(future.cause());
+                }
+            });
+            promise.addListener(future -> (future.isSuccess()
+                    ? ProxyMetrics.MUX_STREAMS_ESTABLISHED
+                    : ProxyMetrics.MUX_STREAMS_FAILED).increment());
+        }
+
+        Future<Connection> acquire() {
+            return available().ready;
+        }
+
+        /**
+         * 第一个还能打开新流的连接，都满了时新建一个
+         */
+        private Connection available() {
+            for (Connection conn : connections) {
+                if (conn.hasCapacity()) {
+                    return conn;
+                }
+            }
+            Connection conn = new Connection(this);
+            connections.add(conn);
+            return conn;
+        }
+
+        /**
+         * 定期PING保持节点间连接，对端节点的空闲检查不会关闭没有流的连接
+         */
+        private void ping() {
+            for (Connection conn : connections) {
+                if (conn.ready.isSuccess() && conn.channel.isActive()) {
+                    conn.channel.writeAndFlush(new DefaultHttp2PingFrame(System.nanoTime()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个节点间HTTP/2连接，安装在{@link Http2MultiplexHandler}之后处理连接级的帧
+     */
+    private final class Connection extends ChannelInboundHandlerAdapter {
+
+        private final LoopConnections owner;
+
+        private final Http2FrameCodec codec;
+
+        private final Channel channel;
+
+        /**
+         * TCP连接、TLS握手与ALPN都完成后成功
+         */
+        private final Promise<Connection> ready;
+
+        /**
+         * 打开中与已经打开的流
+         */
+        private int streams;
+
+        /**
+         * 是否已经收到GOAWAY
+         */
+        private boolean draining;
+
+        Connection(LoopConnections owner) {
+            this.owner = owner;
+            this.ready = owner.loop.newPromise();
+            this.codec = Http2FrameCodecBuilder.forClient()
+                    .initialSettings(Http2Settings.defaultSettings()
+                            .pushEnabled(false)
+                            .initialWindowSize(properties.getHttp2InitialWindowSize()))
+                    .build();
+            long start = System.nanoTime();
+            ready.addListener(future -> {
+                if (future.isSuccess()) {
+                    ProxyMetrics.CONNECT_PROXY_HOP.recordSince(start);
+                } else {
+                    owner.connections.remove(this);
+                    log.warn("connect upstream mux node {}:{} failed: {}",
+                            proxyAddress.getHostString(), proxyAddress.getPort(), future.cause().toString());
+                }
+            });
+            this.channel = bootstrap.clone(owner.loop)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            if (sslContext != null) {
+                                ch.pipeline().addLast(newSslHandler(ch));
+                            }
+                            ch.pipeline().addLast(codec, new Http2MultiplexHandler(REJECT_PUSHED), Connection.this);
+                        }
+                    })
+                    .connect(proxyAddress)
+                    .addListener(future -> {
+                        if (!future.isSuccess()) {
+                            ready.tryFailure(future.cause());
+                        }
+                    })
+                    .channel();
+        }
+
+        /**
+         * 还能打开新流：没有收到GOAWAY、没有失败，流数没有达到对端的SETTINGS_MAX_CONCURRENT_STREAMS
+         */
+        boolean hasCapacity() {
+            if (draining || ready.isDone() && (!ready.isSuccess() || !channel.isActive())) {
+                return false;
+            }
+            return streams < codec.connection().local().maxActiveStreams();
+        }
+
+        void open(String host, int port, Promise<Channel> promise) {
+            Http2Connection connection = codec.connection();
+            new Http2StreamChannelBootstrap(channel)
+                    .handler(new MuxStreamHandler(connection, host, port, authorization, weight(port), promise))
+                    .open()
+                    .addListener((Future<Http2StreamChannel> future) -> {
+                        if (future.isSuccess()) {
+                            future.getNow().closeFuture().addListener(closed -> streamClosed());
+                        } else {
+                            streamClosed();
+                            promise.tryFailure(future.cause());
+                        }
+                    });
+        }
+
+        private void streamClosed() {
+            streams--;
+            if (draining && streams == 0) {
+                channel.close();
+            }
+        }
+
+        private SslHandler newSslHandler(Channel ch) {
+            SslHandler handler = sslContext.newHandler(ch.alloc(),
+                    proxyAddress.getHostString(), proxyAddress.getPort());
+            handler.setHandshakeTimeoutMillis(Math.max(properties.getConnectTimeout(), 0));
+            SSLEngine engine = handler.engine();
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            return handler;
+        }
+
+        /**
+         * Http2FrameCodec已经发送了连接前言，连接级窗口不受SETTINGS影响，这时才能用WINDOW_UPDATE放大
+         */
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ProxyMetrics.MUX_CONNECTIONS_ACTIVE.increment();
+            Http2Connection connection = codec.connection();
+            int delta = properties.getHttp2ConnectionWindowSize() - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+            if (delta > 0) {
+                connection.local().flowController().incrementWindowSize(connection.connectionStream(), delta);
+                ctx.flush();
+            }
+            SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+            if (ssl == null) {
+                ready.trySuccess(this);
+            } else {
+                ssl.handshakeFuture().addListener(future -> {
+                    if (!future.isSuccess()) {
+                        ready.tryFailure(future.cause());
+                    } else if (!ApplicationProtocolNames.HTTP_2.equals(ssl.applicationProtocol())) {
+                        ready.tryFailure(new IllegalStateException("upstream mux node did not negotiate h2"));
+                        ctx.close();
+                    } else {
+                        ready.trySuccess(this);
+                    }
+                });
+            }
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2GoAwayFrame) {
+                log.info("upstream mux node {}:{} sent GOAWAY, {} streams left",
+                        proxyAddress.getHostString(), proxyAddress.getPort(), streams);
+                draining = true;
+                if (streams == 0) {
+                    ctx.close();
+                }
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            ProxyMetrics.MUX_CONNECTIONS_ACTIVE.decrement();
+            owner.connections.remove(this);
+            ready.tryFailure(new ClosedChannelException());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("upstream mux node {}:{} error: {}",
+                    proxyAddress.getHostString(), proxyAddress.getPort(), cause.toString());
+            ctx.close();
+        }
+    }
+}
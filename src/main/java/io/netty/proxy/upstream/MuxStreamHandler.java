@@ -0,0 +1,171 @@
+package io.netty.proxy.upstream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2PriorityFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * 节点间HTTP/2连接上的一个CONNECT流，安装在流子channel的pipeline首位
+ * <p>
+ * 打开时发送CONNECT，收到2xx后通知调用方；之后读到的DATA帧转为字节，写出的字节转为DATA帧，
+ * 对调用方而言与一条直连目标主机的连接相同
+ *
+ * @author chpengzh@foxmail.com
+ */
+class MuxStreamHandler extends ChannelDuplexHandler {
+
+    private final Http2Connection connection;
+
+    private final Http2Headers headers;
+
+    /**
+     * 流的权重，0表示使用默认权重，不发送PRIORITY
+     */
+    private final short weight;
+
+    private final Promise<Channel> promise;
+
+    /**
+     * 是否已经收到对端节点的2xx
+     */
+    private boolean established;
+
+    /**
+     * 是否已经发送END_STREAM
+     */
+    private boolean ended;
+
+    /**
+     * CONNECT发出的时间
+     */
+    private long sentAt;
+
+    MuxStreamHandler(Http2Connection connection, String host, int port, String authorization, short weight,
+                     Promise<Channel> promise) {
+        this.connection = connection;
+        this.headers = new DefaultHttp2Headers()
+                .method(HttpMethod.CONNECT.asciiName())
+                .authority(NetUtil.isValidIpV6Address(host) ? "[" + host + "]:" + port : host + ":" + port);
+        if (authorization != null) {
+            headers.set(HttpHeaderNames.PROXY_AUTHORIZATION, authorization);
+        }
+        this.weight = weight;
+        this.promise = promise;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        sentAt = System.nanoTime();
+        ctx.write(new DefaultHttp2HeadersFrame(headers));
+        if (weight > 0) {
+            // HEADERS写出后流才有编号。PRIORITY让对端节点按权重分配发回的数据，本端发出的数据由本地的依赖树分配
+            Http2Stream stream = connection.stream(((Http2StreamChannel) ctx.channel()).stream().id());
+            if (stream != null) {
+                connection.remote().flowController().updateDependencyTree(stream.id(),
+                        Http2CodecUtil.CONNECTION_STREAM_ID, weight, false);
+                ctx.write(new DefaultHttp2PriorityFrame(Http2CodecUtil.CONNECTION_STREAM_ID, weight, false));
+            }
+        }
+        ctx.flush();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (established) {
+            if (msg instanceof Http2DataFrame) {
+                Http2DataFrame frame = (Http2DataFrame) msg;
+                if (frame.content().isReadable()) {
+                    ctx.fireChannelRead(frame.content());
+                } else {
+                    frame.release();
+                }
+                if (frame.isEndStream()) {
+                    // 隧道没有半关闭，目标主机一侧结束即关闭整个流
+                    ctx.close();
+                }
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+            return;
+        }
+        ReferenceCountUtil.release(msg);
+        if (!(msg instanceof Http2HeadersFrame)) {
+            return;
+        }
+        HttpResponseStatus status = HttpResponseStatus.parseLine(((Http2HeadersFrame) msg).headers().status());
+        if (status.codeClass() != HttpStatusClass.SUCCESS || ((Http2HeadersFrame) msg).isEndStream()) {
+            promise.tryFailure(new Socks5UpstreamException(HttpConnectHandler.status(status),
+                    new IllegalStateException("upstream mux node replied " + status)));
+            ctx.close();
+            return;
+        }
+        ProxyMetrics.CONNECT_DESTINATION.recordSince(sentAt);
+        established = true;
+        promise.trySuccess(ctx.channel());
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!established || !(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        if (!buf.isReadable()) {
+            // 关闭前用来等待写缓冲的空数据，不需要单独发送一个DATA帧
+            buf.release();
+            promise.trySuccess();
+            return;
+        }
+        ctx.write(new DefaultHttp2DataFrame(buf), promise);
+    }
+
+    /**
+     * 先发送END_STREAM并等待之前的DATA帧发送完成，直接关闭子channel会发送RST_STREAM，流控窗口中排队的数据会被丢弃
+     */
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        if (!established || ended || !ctx.channel().isActive()) {
+            ctx.close(promise);
+            return;
+        }
+        ended = true;
+        ctx.writeAndFlush(new DefaultHttp2DataFrame(true)).addListener(future -> ctx.close(promise));
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        promise.tryFailure(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        promise.tryFailure(cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,51 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.socksx.v5.Socks5ClientEncoder;
+import io.netty.handler.codec.socksx.v5.Socks5CommandResponse;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * 等待上游socks5代理对CONNECT命令的响应，成功后移除socks5编解码器，channel成为到目标主机的透明隧道
+ *
+ * @author chpengzh@foxmail.com
+ */
+class Socks5ConnectHandler extends SimpleChannelInboundHandler<Socks5CommandResponse> {
+
+    private final Promise<Channel> promise;
+
+    Socks5ConnectHandler(Promise<Channel> promise) {
+        this.promise = promise;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Socks5CommandResponse msg) {
+        if (msg.status() != Socks5CommandStatus.SUCCESS) {
+            promise.tryFailure(new Socks5UpstreamException(msg.status()));
+            ctx.close();
+            return;
+        }
+        ctx.pipeline().remove(this);
+        ctx.pipeline().remove(Socks5ClientEncoder.class);
+        // 先通知调用方安装转发handler，再移除解码器，解码器中残留的目标主机数据会交给转发handler
+        promise.trySuccess(ctx.channel());
+        ctx.pipeline().remove(Socks5GreetingHandler.DECODER);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        promise.tryFailure(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        promise.tryFailure(cause);
+        ctx.close();
+    }
+}
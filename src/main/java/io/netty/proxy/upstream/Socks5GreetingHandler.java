@@ -0,0 +1,92 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialRequest;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5PasswordAuthRequest;
+import io.netty.handler.codec.socksx.v5.Socks5AuthMethod;
+import io.netty.handler.codec.socksx.v5.Socks5CommandResponseDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5InitialResponse;
+import io.netty.handler.codec.socksx.v5.Socks5Message;
+import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponse;
+import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponseDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthStatus;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * 与上游socks5代理完成协商(及用户名密码认证)，完成后pipeline中只保留编码器和CONNECT响应解码器，等待发送CONNECT命令
+ *
+ * @author chpengzh@foxmail.com
+ */
+class Socks5GreetingHandler extends SimpleChannelInboundHandler<Socks5Message> {
+
+    static final String DECODER = "socks5-decoder";
+
+    private final String username;
+
+    private final String password;
+
+    private final Promise<Void> promise;
+
+    Socks5GreetingHandler(String username, String password, Promise<Void> promise) {
+        this.username = username;
+        this.password = password;
+        this.promise = promise;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        Socks5AuthMethod[] methods = username == null
+                ? new Socks5AuthMethod[]{Socks5AuthMethod.NO_AUTH}
+                : new Socks5AuthMethod[]{Socks5AuthMethod.NO_AUTH, Socks5AuthMethod.PASSWORD};
+        ctx.writeAndFlush(new DefaultSocks5InitialRequest(methods));
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Socks5Message msg) {
+        if (msg instanceof Socks5InitialResponse) {
+            Socks5AuthMethod method = ((Socks5InitialResponse) msg).authMethod();
+            if (method == Socks5AuthMethod.NO_AUTH) {
+                greeted(ctx);
+            } else if (method == Socks5AuthMethod.PASSWORD && username != null) {
+                ctx.pipeline().replace(DECODER, DECODER, new Socks5PasswordAuthResponseDecoder());
+                ctx.writeAndFlush(new DefaultSocks5PasswordAuthRequest(username, password));
+            } else {
+                fail(ctx, new IllegalStateException("unsupported socks5 auth method " + method));
+            }
+        } else if (msg instanceof Socks5PasswordAuthResponse) {
+            if (((Socks5PasswordAuthResponse) msg).status() == Socks5PasswordAuthStatus.SUCCESS) {
+                greeted(ctx);
+            } else {
+                fail(ctx, new IllegalStateException("socks5 authentication rejected by upstream"));
+            }
+        } else {
+            fail(ctx, new IllegalStateException("unexpected socks5 message " + msg));
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        promise.tryFailure(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        fail(ctx, cause);
+    }
+
+    private void greeted(ChannelHandlerContext ctx) {
+        ctx.pipeline().replace(DECODER, DECODER, new Socks5CommandResponseDecoder());
+        ctx.pipeline().remove(this);
+        promise.trySuccess(null);
+    }
+
+    private void fail(ChannelHandlerContext ctx, Throwable cause) {
+        promise.tryFailure(cause);
+        ctx.close();
+    }
+}
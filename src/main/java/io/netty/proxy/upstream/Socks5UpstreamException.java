@@ -0,0 +1,37 @@
+package io.netty.proxy.upstream;
+
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import lombok.Getter;
+
+/**
+ * 上游socks5代理拒绝了CONNECT命令，或者在发送CONNECT之前就已经失败
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Getter
+public class Socks5UpstreamException extends Exception {
+
+    private final Socks5CommandStatus status;
+
+    public Socks5UpstreamException(Socks5CommandStatus status) {
+        super("upstream socks5 proxy replied " + status);
+        this.status = status;
+    }
+
+    /**
+     * 在本地失败(如解析目标主机失败)，以status应答客户端
+     */
+    public Socks5UpstreamException(Socks5CommandStatus status, Throwable cause) {
+        super("connect failed locally, reply " + status, cause);
+        this.status = status;
+    }
+
+    /**
+     * 建连失败对应的socks5应答状态，非上游拒绝的失败(如连不上上游代理)一律为FAILURE
+     */
+    public static Socks5CommandStatus statusOf(Throwable cause) {
+        return cause instanceof Socks5UpstreamException
+                ? ((Socks5UpstreamException) cause).getStatus()
+                : Socks5CommandStatus.FAILURE;
+    }
+}
@@ -0,0 +1,356 @@
+package io.netty.proxy.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandRequest;
+import io.netty.handler.codec.socksx.v5.Socks5AddressType;
+import io.netty.handler.codec.socksx.v5.Socks5ClientEncoder;
+import io.netty.handler.codec.socksx.v5.Socks5CommandType;
+import io.netty.handler.codec.socksx.v5.Socks5InitialResponseDecoder;
+import io.netty.proxy.dns.DnsResolver;
+import io.netty.proxy.metrics.ProxyMetrics;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.UpstreamProperties;
+import io.netty.proxy.transport.SpliceRelay;
+import io.netty.proxy.transport.TransportType;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 到一个上游socks5代理的预热连接池
+ * <p>
+ * 池中的连接已经完成TCP握手与socks5协商/认证，借出时只需要发送CONNECT命令。
+ * 每个EventLoop拥有独立的子池，子池只在所属EventLoop中访问，连接也注册在该EventLoop上，不需要任何锁。
+ * 借出的连接成为隧道的一端，不再归还
+ *
+ * @author chpengzh@foxmail.com
+ */
+@Slf4j
+public class Socks5UpstreamPool implements UpstreamConnector {
+
+    private final UpstreamProperties upstream;
+
+    private final AppProperties properties;
+
+    private final TransportType transport;
+
+    private final DnsResolver dns;
+
+    /**
+     * 上游代理地址，由{@link DnsResolver}在建连时异步解析
+     */
+    private final InetSocketAddress proxyAddress;
+
+    private final Map<EventLoop, LoopPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * @param upstream     上游代理的认证信息
+     * @param proxyAddress 上游代理地址(未解析)
+     */
+    public Socks5UpstreamPool(UpstreamProperties upstream,
+                              InetSocketAddress proxyAddress,
+                              AppProperties properties,
+                              DnsResolver dns) {
+        this.upstream = upstream;
+        this.properties = properties;
+        this.transport = TransportType.of(properties.getTransport());
+        this.dns = dns;
+        this.proxyAddress = proxyAddress;
+    }
+
+    /**
+     * 为线程组中的每个EventLoop预先建立minIdle个连接
+     */
+    @Override
+    public void warmUp(EventLoopGroup group) {
+        for (EventExecutor executor : group) {
+            EventLoop loop = (EventLoop) executor;
+            loop.execute(() -> pool(loop).replenish());
+        }
+    }
+
+    /**
+     * 经由上游socks5代理连接目标主机，域名原样交给上游代理解析
+     */
+    @Override
+    public Future<Channel> connect(EventLoop loop, String host, int port) {
+        Promise<Channel> promise = loop.newPromise();
+        if (loop.inEventLoop()) {
+            pool(loop).connect(host, port, promise);
+        } else {
+            loop.execute(() -> pool(loop).connect(host, port, promise));
+        }
+        return promise;
+    }
+
+    /**
+     * 建立一个新连接并完成socks5协商，成功后放入空闲池
+     */
+    @Override
+    public Future<?> probe(EventLoop loop) {
+        Promise<Void> promise = loop.newPromise();
+        LoopPool pool = pool(loop);
+        pool.greet().addListener((Future<Channel> future) -> {
+            if (future.isSuccess()) {
+                pool.offer(future.getNow());
+                promise.trySuccess(null);
+            } else {
+                promise.tryFailure(future.cause());
+            }
+        });
+        return promise;
+    }
+
+    private LoopPool pool(EventLoop loop) {
+        return pools.computeIfAbsent(loop, LoopPool::new);
+    }
+
+    private static Socks5AddressType addressType(String host) {
+        if (NetUtil.isValidIpV4Address(host)) {
+            return Socks5AddressType.IPv4;
+        }
+        if (NetUtil.isValidIpV6Address(host)) {
+            return Socks5AddressType.IPv6;
+        }
+        return Socks5AddressType.DOMAIN;
+    }
+
+    /**
+     * 单个EventLoop上的子池
+     */
+    private final class LoopPool {
+
+        private final EventLoop loop;
+
+        private final Bootstrap bootstrap;
+
+        /**
+         * 空闲连接，尾部最新
+         */
+        private final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+
+        /**
+         * 正在建立中的预热连接数
+         */
+        private int warming;
+
+        LoopPool(EventLoop loop) {
+            this.loop = loop;
+            this.bootstrap = new Bootstrap()
+                    .group(loop)
+                    .channel(transport.socketChannelClass())
+                    .resolver(dns.group())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, Math.max(properties.getConnectTimeout(), 0))
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, properties.writeBufferWaterMark());
+            if (properties.isZeroCopy() && transport == TransportType.EPOLL) {
+                SpliceRelay.configure(bootstrap);
+            }
+            long interval = properties.getProxyPoolCheckInterval();
+            loop.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        void connect(String host, int port, Promise<Channel> promise) {
+            IdleConnection pooled = borrow();
+            if (pooled != null) {
+                sendConnect(pooled.channel, host, port).addListener((Future<Channel> future) -> {
+                    if (future.isSuccess()) {
+                        promise.trySuccess(future.getNow());
+                    } else if (future.cause() instanceof ClosedChannelException) {
+                        // 空闲期间被上游关闭的连接，换一个新连接重试
+                        log.debug("pooled upstream connection is stale, retry with a new one");
+                        connectFresh(host, port, promise);
+                    } else {
+                        promise.tryFailure(future.cause());
+                    }
+                });
+            } else {
+                connectFresh(host, port, promise);
+            }
+            replenish();
+        }
+
+        private void connectFresh(String host, int port, Promise<Channel> promise) {
+            greet().addListener((Future<Channel> greeted) -> {
+                if (greeted.isSuccess()) {
+                    sendConnect(greeted.getNow(), host, port).addListener((Future<Channel> future) -> {
+                        if (future.isSuccess()) {
+                            promise.trySuccess(future.getNow());
+                        } else {
+                            promise.tryFailure(future.cause());
+                        }
+                    });
+                } else {
+                    promise.tryFailure(greeted.cause());
+                }
+            });
+        }
+
+        private IdleConnection borrow() {
+            IdleConnection conn;
+            while ((conn = idle.pollLast()) != null) {
+                conn.channel.pipeline().remove(conn);
+                if (conn.channel.isActive()) {
+                    return conn;
+                }
+                conn.channel.close();
+            }
+            return null;
+        }
+
+        private Future<Channel> sendConnect(Channel ch, String host, int port) {
+            long start = System.nanoTime();
+            Promise<Channel> promise = loop.newPromise();
+            promise.addListener(future -> {
+                if (future.isSuccess()) {
+                    ProxyMetrics.CONNECT_DESTINATION.recordSince(start);
+                }
+            });
+            ch.pipeline().addLast(new Socks5ConnectHandler(promise));
+            ch.writeAndFlush(new DefaultSocks5CommandRequest(Socks5CommandType.CONNECT, addressType(host), host, port))
+                    .addListener(future -> {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                        }
+                    });
+            return promise;
+        }
+
+        /**
+         * 建立一个完成socks5协商的连接
+         */
+        Future<Channel> greet() {
+            long start = System.nanoTime();
+            Promise<Channel> promise = loop.newPromise();
+            Promise<Void> greeting = loop.newPromise();
+            Channel ch = bootstrap.clone()
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(Socks5ClientEncoder.DEFAULT);
+                            ch.pipeline().addLast(Socks5GreetingHandler.DECODER, new Socks5InitialResponseDecoder());
+                            ch.pipeline().addLast(new Socks5GreetingHandler(
+                                    upstream.getUsername(), upstream.getPassword(), greeting));
+                        }
+                    })
+                    .connect(proxyAddress)
+                    .addListener(future -> {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                        }
+                    })
+                    .channel();
+            greeting.addListener(future -> {
+                if (future.isSuccess()) {
+                    ProxyMetrics.CONNECT_PROXY_HOP.recordSince(start);
+                    promise.trySuccess(ch);
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            });
+            return promise;
+        }
+
+        /**
+         * 补充预热连接到minIdle，总数不超过maxTotal
+         */
+        void replenish() {
+            int minIdle = properties.getProxyPoolMinIdle();
+            int maxTotal = properties.getProxyPoolMaxTotal();
+            while (idle.size() + warming < Math.min(minIdle, maxTotal)) {
+                warming++;
+                greet().addListener((Future<Channel> future) -> {
+                    warming--;
+                    if (future.isSuccess()) {
+                        offer(future.getNow());
+                    } else {
+                        log.warn("warm up upstream socks5 connection to {}:{} failed: {}",
+                                upstream.getHost(), upstream.getPort(), future.cause().toString());
+                    }
+                });
+            }
+        }
+
+        /**
+         * 放入一个完成协商的连接，超过maxTotal时关闭
+         */
+        void offer(Channel ch) {
+            if (idle.size() >= properties.getProxyPoolMaxTotal()) {
+                ch.close();
+                return;
+            }
+            IdleConnection conn = new IdleConnection(ch);
+            ch.pipeline().addLast(conn);
+            idle.addLast(conn);
+        }
+
+        /**
+         * 健康检查：剔除失效和空闲超时的连接，再补充到minIdle
+         */
+        private void check() {
+            long expireBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(properties.getProxyPoolIdleTimeout());
+            Iterator<IdleConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                IdleConnection conn = it.next();
+                if (!conn.channel.isActive() || conn.idleSince < expireBefore) {
+                    it.remove();
+                    conn.channel.close();
+                }
+            }
+            replenish();
+        }
+
+        /**
+         * 空闲连接守卫：空闲期间不应该收到任何数据，收到数据或者连接断开时从池中移除
+         */
+        private final class IdleConnection extends ChannelInboundHandlerAdapter {
+
+            private final Channel channel;
+
+            private final long idleSince = System.nanoTime();
+
+            IdleConnection(Channel channel) {
+                this.channel = channel;
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+                log.debug("unexpected data on idle upstream connection, discard it");
+                idle.remove(this);
+                ctx.close();
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                idle.remove(this);
+                ctx.fireChannelInactive();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                idle.remove(this);
+                ctx.close();
+            }
+        }
+    }
+}
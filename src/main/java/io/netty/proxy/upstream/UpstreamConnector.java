@@ -0,0 +1,38 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.Future;
+
+/**
+ * 到目标主机的一种出口：直连或者经由某个上游代理
+ *
+ * @author chpengzh@foxmail.com
+ */
+public interface UpstreamConnector {
+
+    /**
+     * 连接目标主机
+     *
+     * @param loop 出站channel注册的EventLoop
+     * @return 已经可以直接收发目标主机数据、pipeline为空的channel；在loop中完成，回调中可以直接安装转发handler。
+     * 失败原因如果需要以特定的socks5状态应答客户端，使用{@link Socks5UpstreamException}
+     */
+    Future<Channel> connect(EventLoop loop, String host, int port);
+
+    /**
+     * 为线程组中的每个EventLoop预先建立连接，默认什么都不做
+     */
+    default void warmUp(EventLoopGroup group) {
+    }
+
+    /**
+     * 健康检查：确认出口本身可用(不连接任何目标主机)，默认总是成功
+     *
+     * @param loop 在该EventLoop中调用，结果也在其中回调
+     */
+    default Future<?> probe(EventLoop loop) {
+        return loop.newSucceededFuture(null);
+    }
+}
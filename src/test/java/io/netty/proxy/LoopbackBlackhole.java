@@ -0,0 +1,42 @@
+package io.netty.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 丢弃SYN的本地地址：监听之后从不accept，先用几个连接占满accept队列，之后内核直接丢弃新的SYN，
+ * 对端的表现与路由黑洞相同，直到建连超时
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class LoopbackBlackhole implements AutoCloseable {
+
+    private final ServerSocket listener;
+
+    private final List<SocketChannel> fillers = new ArrayList<>();
+
+    public LoopbackBlackhole(InetAddress address, int port) throws IOException {
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(address, port), 1);
+        for (int i = 0; i < 4; i++) {
+            SocketChannel filler = SocketChannel.open();
+            filler.configureBlocking(false);
+            filler.connect(listener.getLocalSocketAddress());
+            fillers.add(filler);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SocketChannel filler : fillers) {
+            filler.close();
+        }
+        listener.close();
+    }
+}
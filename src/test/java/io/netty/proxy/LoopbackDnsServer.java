@@ -0,0 +1,112 @@
+package io.netty.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsSection;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地DNS服务器，按给定的顺序回答A/AAAA记录，其他域名回答空结果，并记录每个域名收到的查询数
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class LoopbackDnsServer implements AutoCloseable {
+
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+    /**
+     * 以点结尾的小写域名 -> 地址
+     */
+    private final Map<String, List<InetAddress>> records = new ConcurrentHashMap<>();
+
+    /**
+     * 以点结尾的小写域名 -> 收到的查询数(A与AAAA分别计数)
+     */
+    private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+
+    private Channel channel;
+
+    public void add(String name, List<InetAddress> addresses) {
+        records.put(name.toLowerCase(Locale.ROOT) + ".", addresses);
+    }
+
+    public void start() throws InterruptedException {
+        channel = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder());
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<DatagramDnsQuery>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+                                ctx.writeAndFlush(answer(query));
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    public int port() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * 到目前为止收到的name的查询数
+     */
+    public int queries(String name) {
+        AtomicInteger count = queries.get(name.toLowerCase(Locale.ROOT) + ".");
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void close() {
+        group.shutdownGracefully();
+    }
+
+    private DatagramDnsResponse answer(DatagramDnsQuery query) {
+        DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+        queries.computeIfAbsent(question.name().toLowerCase(Locale.ROOT), name -> new AtomicInteger()).incrementAndGet();
+        DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+        response.setRecursionDesired(query.isRecursionDesired()).setRecursionAvailable(true);
+        response.addRecord(DnsSection.QUESTION, question);
+        List<InetAddress> addresses = records.getOrDefault(question.name().toLowerCase(Locale.ROOT),
+                Collections.emptyList());
+        for (InetAddress address : addresses) {
+            boolean matched = question.type() == DnsRecordType.A
+                    ? address instanceof Inet4Address
+                    : question.type() == DnsRecordType.AAAA && address instanceof Inet6Address;
+            if (matched) {
+                response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord(question.name(), question.type(), 60,
+                        Unpooled.wrappedBuffer(address.getAddress())));
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,68 @@
+package io.netty.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本机回环上的TCP echo，每个连接一个线程，收到什么原样发回，客户端不读时随之阻塞
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class LoopbackEcho implements AutoCloseable {
+
+    private final ServerSocket server;
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "loopback-echo");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LoopbackEcho() throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        workers.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    workers.execute(() -> echo(socket));
+                }
+            } catch (IOException e) {
+                // socket关闭
+            }
+        });
+    }
+
+    public static LoopbackEcho start() throws IOException {
+        return new LoopbackEcho();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        workers.shutdownNow();
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // 客户端关闭
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.netty.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本机回环上的HTTP/1.1目标主机，每个请求回复"名称 方法 URI"，按请求保持连接，记录收到的请求与建立的连接数
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class LoopbackHttpOrigin implements AutoCloseable {
+
+    private final String name;
+
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+    private final Channel listener;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private LoopbackHttpOrigin(String name) throws InterruptedException {
+        this.name = name;
+        this.listener = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        connections.incrementAndGet();
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(1024 * 1024),
+                                new Responder());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    /**
+     * @param name 写在每个响应体开头，用来区分请求到了哪个目标主机
+     */
+    public static LoopbackHttpOrigin start(String name) throws InterruptedException {
+        return new LoopbackHttpOrigin(name);
+    }
+
+    public int port() {
+        return ((InetSocketAddress) listener.localAddress()).getPort();
+    }
+
+    /**
+     * 代理与这个目标主机建立过的连接数
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * 按到达顺序收到的请求，每个为"方法 URI"
+     */
+    public List<String> requests() {
+        return requests;
+    }
+
+    @Override
+    public void close() {
+        listener.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    private final class Responder extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String line = request.method() + " " + request.uri();
+            requests.add(line);
+            byte[] body = (name + " " + line).getBytes(StandardCharsets.US_ASCII);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(body));
+            HttpUtil.setContentLength(response, body.length);
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package io.netty.proxy;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.DataInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 测试中在进程内启动的代理，socks5、HTTP与指标端点的端口随机分配
+ *
+ * @author chpengzh@foxmail.com
+ */
+public final class LoopbackProxy implements AutoCloseable {
+
+    public final int socks5Port;
+
+    public final int httpPort;
+
+    public final int metricsPort;
+
+    private final ConfigurableApplicationContext context;
+
+    private LoopbackProxy(int socks5Port, int httpPort, int metricsPort, ConfigurableApplicationContext context) {
+        this.socks5Port = socks5Port;
+        this.httpPort = httpPort;
+        this.metricsPort = metricsPort;
+        this.context = context;
+    }
+
+    /**
+     * @param args 额外的命令行配置，如--app.enable-udp=true
+     */
+    public static LoopbackProxy start(String... args) throws IOException, InterruptedException {
+        return start(freePort(), freePort(), args);
+    }
+
+    /**
+     * 在指定端口上启动，用于在同一端口上先后启动两个代理
+     */
+    public static LoopbackProxy start(int socks5Port, int httpPort, String... args)
+            throws IOException, InterruptedException {
+        int metricsPort = freePort();
+        List<String> all = new ArrayList<>(Arrays.asList(
+                "--spring.main.banner-mode=off",
+                "--app.metrics-port=" + metricsPort,
+                "--app.socks5-port=" + socks5Port,
+                "--app.http-port=" + httpPort));
+        all.addAll(Arrays.asList(args));
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Socks5ProxyApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(all.toArray(new String[0]));
+        awaitListening(socks5Port);
+        return new LoopbackProxy(socks5Port, httpPort, metricsPort, context);
+    }
+
+    /**
+     * 从指标端点抓取一个时间序列的当前值，序列不存在时返回0
+     *
+     * @param series 指标名与标签，如proxy_accepts_total{server="socks5",listener="0"}
+     */
+    public double metric(String series) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", metricsPort)) {
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith(series + " ")) {
+                    return Double.parseDouble(line.substring(series.length() + 1).trim());
+                }
+            }
+        }
+        return 0;
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    /**
+     * context是否还没有关闭，交接之后旧代理会自行关闭
+     */
+    public boolean isRunning() {
+        return context.isActive();
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    /**
+     * 不开启SO_REUSEADDR绑定，避开还有TIME_WAIT连接的端口(之前的代理关闭的出站连接)，代理的监听socket也不开启它
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(false);
+            socket.bind(new InetSocketAddress(0));
+            return socket.getLocalPort();
+        }
+    }
+
+    public static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("proxy is not listening on port " + port);
+    }
+
+    /**
+     * 不认证的socks5握手之后发送命令，返回完整的应答，应答状态由调用方检查
+     *
+     * @param command 1: CONNECT，2: BIND，3: UDP ASSOCIATE
+     * @param host    IPv4地址或者域名
+     */
+    public static Socks5Reply socks5(Socket socket, int command, String host, int port) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.write(new byte[]{5, 1, 0});
+        byte[] method = new byte[2];
+        in.readFully(method);
+        if (method[1] != 0) {
+            throw new IOException("socks5 greeting failed with method " + method[1]);
+        }
+        byte[] address = addressOf(host);
+        byte[] request = new byte[3 + address.length + 2];
+        request[0] = 5;
+        request[1] = (byte) command;
+        System.arraycopy(address, 0, request, 3, address.length);
+        request[request.length - 2] = (byte) (port >> 8);
+        request[request.length - 1] = (byte) port;
+        out.write(request);
+        return Socks5Reply.read(in);
+    }
+
+    /**
+     * ATYP及之后的地址字段
+     */
+    private static byte[] addressOf(String host) throws IOException {
+        if (host.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+            byte[] ip = InetAddress.getByName(host).getAddress();
+            byte[] address = new byte[1 + ip.length];
+            address[0] = 1;
+            System.arraycopy(ip, 0, address, 1, ip.length);
+            return address;
+        }
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        byte[] address = new byte[2 + name.length];
+        address[0] = 3;
+        address[1] = (byte) name.length;
+        System.arraycopy(name, 0, address, 2, name.length);
+        return address;
+    }
+
+    /**
+     * socks5命令应答
+     */
+    public static final class Socks5Reply {
+
+        public final int status;
+
+        public final InetSocketAddress bound;
+
+        private Socks5Reply(int status, InetSocketAddress bound) {
+            this.status = status;
+            this.bound = bound;
+        }
+
+        public static Socks5Reply read(DataInputStream in) throws IOException {
+            byte[] head = new byte[4];
+            in.readFully(head);
+            byte[] ip;
+            if (head[3] == 1) {
+                ip = new byte[4];
+            } else if (head[3] == 4) {
+                ip = new byte[16];
+            } else {
+                throw new IOException("unexpected address type " + head[3]);
+            }
+            in.readFully(ip);
+            int port = in.readUnsignedShort();
+            return new Socks5Reply(head[1], new InetSocketAddress(InetAddress.getByAddress(ip), port));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.netty.proxy.bind;
+
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * socks5 BIND默认关闭，开启后对端连入监听端口并与控制连接双向转发
+ *
+ * @author chpengzh@foxmail.com
+ */
+class BindRelayTest {
+
+    private static final int COMMAND_UNSUPPORTED = 7;
+
+    @Test
+    void disabledByDefault() throws Exception {
+        try (LoopbackProxy proxy = LoopbackProxy.start();
+             Socket control = new Socket("127.0.0.1", proxy.socks5Port)) {
+            assertEquals(COMMAND_UNSUPPORTED, LoopbackProxy.socks5(control, 2, "0.0.0.0", 0).status);
+        }
+    }
+
+    @Test
+    void relaysAcceptedPeer() throws Exception {
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.enable-bind=true");
+             Socket control = new Socket("127.0.0.1", proxy.socks5Port)) {
+            LoopbackProxy.Socks5Reply listening = LoopbackProxy.socks5(control, 2, "127.0.0.1", 0);
+            assertEquals(0, listening.status);
+            try (Socket peer = new Socket(listening.bound.getAddress(), listening.bound.getPort())) {
+                DataInputStream in = new DataInputStream(control.getInputStream());
+                LoopbackProxy.Socks5Reply accepted = LoopbackProxy.Socks5Reply.read(in);
+                assertEquals(0, accepted.status);
+                assertEquals(peer.getLocalPort(), accepted.bound.getPort());
+
+                byte[] ping = "ping".getBytes(StandardCharsets.US_ASCII);
+                control.getOutputStream().write(ping);
+                byte[] received = new byte[ping.length];
+                new DataInputStream(peer.getInputStream()).readFully(received);
+                assertArrayEquals(ping, received);
+
+                byte[] pong = "pong".getBytes(StandardCharsets.US_ASCII);
+                peer.getOutputStream().write(pong);
+                in.readFully(received);
+                assertArrayEquals(pong, received);
+            }
+        }
+    }
+}
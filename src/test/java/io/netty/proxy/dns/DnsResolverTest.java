@@ -0,0 +1,165 @@
+package io.netty.proxy.dns;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.proxy.LoopbackDnsServer;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 经本地DNS服务器解析：各个EventLoop的解析器共享正/负缓存，解析失败通过Future报告
+ *
+ * @author chpengzh@foxmail.com
+ */
+class DnsResolverTest {
+
+    private static final String HOST = "cached.loopback.test";
+
+    private static final String MISSING = "missing.loopback.test";
+
+    private LoopbackDnsServer dns;
+
+    private EventLoopGroup loops;
+
+    private DnsResolver resolver;
+
+    @BeforeEach
+    void start() throws Exception {
+        dns = new LoopbackDnsServer();
+        dns.add(HOST, Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3")));
+        dns.start();
+        loops = new NioEventLoopGroup(2);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (resolver != null) {
+            resolver.destroy();
+        }
+        loops.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        dns.close();
+    }
+
+    @Test
+    void answersAreCachedAcrossEventLoops() throws Exception {
+        resolver = resolver("127.0.0.1:" + dns.port(), 5);
+        EventLoop first = loops.next();
+        EventLoop second = loops.next();
+
+        List<InetSocketAddress> all = resolver.resolveAll(first, HOST, 443).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("127.0.0.2:443", "127.0.0.3:443"), format(all));
+        int queries = dns.queries(HOST);
+        assertTrue(queries > 0);
+
+        // 同一个EventLoop与另一个EventLoop上的解析都命中缓存
+        InetSocketAddress one = resolver.resolve(first, HOST, 80).get(5, TimeUnit.SECONDS);
+        assertEquals("127.0.0.2:80", format(Collections.singletonList(one)).get(0));
+        assertEquals(format(all).size(), resolver.resolveAll(second, HOST, 443).get(5, TimeUnit.SECONDS).size());
+        // 域名不区分大小写
+        resolver.resolve(second, HOST.toUpperCase(Locale.ROOT), 80).get(5, TimeUnit.SECONDS);
+        assertEquals(queries, dns.queries(HOST));
+    }
+
+    @Test
+    void failuresAreReportedAndCached() throws Exception {
+        resolver = resolver("127.0.0.1:" + dns.port(), 5);
+        Future<InetSocketAddress> failed = resolver.resolve(loops.next(), MISSING, 443).await();
+        assertFalse(failed.isSuccess());
+        assertTrue(failed.cause() instanceof UnknownHostException, failed.cause().toString());
+        int queries = dns.queries(MISSING);
+        assertTrue(queries > 0);
+
+        // 负缓存有效期内不再查询，另一个EventLoop上也一样
+        Future<List<InetSocketAddress>> again = resolver.resolveAll(loops.next(), MISSING, 443).await();
+        assertTrue(again.cause() instanceof UnknownHostException, String.valueOf(again.cause()));
+        assertEquals(queries, dns.queries(MISSING));
+    }
+
+    @Test
+    void negativeAnswersExpire() throws Exception {
+        resolver = resolver("127.0.0.1:" + dns.port(), 1);
+        EventLoop loop = loops.next();
+        assertFalse(resolver.resolve(loop, MISSING, 443).await().isSuccess());
+        int queries = dns.queries(MISSING);
+
+        // 负缓存过期之后重新查询，这时已经有了记录
+        dns.add(MISSING, Collections.singletonList(InetAddress.getByName("127.0.0.4")));
+        assertFalse(resolver.resolve(loop, MISSING, 443).await().isSuccess());
+        Thread.sleep(1_500);
+        InetSocketAddress resolved = resolver.resolve(loop, MISSING, 443).get(5, TimeUnit.SECONDS);
+        assertEquals("127.0.0.4", resolved.getAddress().getHostAddress());
+        assertTrue(dns.queries(MISSING) > queries);
+    }
+
+    @Test
+    void unresponsiveServerFailsAfterTheQueryTimeout() throws Exception {
+        try (DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"))) {
+            resolver = resolver("127.0.0.1:" + silent.getLocalPort(), 5);
+            long start = System.nanoTime();
+            Future<InetSocketAddress> failed = resolver.resolve(loops.next(), HOST, 443).await();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertFalse(failed.isSuccess());
+            assertTrue(failed.cause() instanceof UnknownHostException, failed.cause().toString());
+            assertTrue(elapsed >= 250 && elapsed < 5_000, "failed after " + elapsed + "ms");
+        }
+    }
+
+    @Test
+    void ipLiterals() {
+        assertEquals("10.1.2.3", DnsResolver.ipLiteral("10.1.2.3").getHostAddress());
+        assertEquals(16, DnsResolver.ipLiteral("2001:db8::1").getAddress().length);
+        assertNull(DnsResolver.ipLiteral(HOST));
+        assertNull(DnsResolver.ipLiteral("10.1.2"));
+    }
+
+    @Test
+    void serversMustBeIpAddresses() {
+        assertThrows(IllegalArgumentException.class, () -> resolver("dns.example.com", 5));
+        assertThrows(IllegalArgumentException.class, () -> resolver("[::1:53", 5));
+        // ip、ip:port与[ipv6]:port都可以
+        new DnsResolver(properties("127.0.0.1")).destroy();
+        new DnsResolver(properties("[::1]:5353")).destroy();
+    }
+
+    private DnsResolver resolver(String server, int negativeTtl) {
+        AppProperties properties = properties(server);
+        properties.setDnsNegativeTtl(negativeTtl);
+        return new DnsResolver(properties);
+    }
+
+    private static AppProperties properties(String server) {
+        AppProperties properties = new AppProperties();
+        properties.setTransport("nio");
+        properties.setDnsServers(new ArrayList<>(Collections.singletonList(server)));
+        properties.setDnsQueryTimeout(300);
+        return properties;
+    }
+
+    private static List<String> format(List<InetSocketAddress> addresses) {
+        return addresses.stream()
+                .map(address -> address.getAddress().getHostAddress() + ":" + address.getPort())
+                .collect(Collectors.toList());
+    }
+}
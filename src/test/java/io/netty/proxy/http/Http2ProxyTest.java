@@ -0,0 +1,255 @@
+package io.netty.proxy.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.proxy.LoopbackEcho;
+import io.netty.proxy.LoopbackHttpOrigin;
+import io.netty.proxy.LoopbackProxy;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 同一个HTTP/2连接上同时打开一个CONNECT隧道流和普通GET流：h2c prior knowledge与TLS上ALPN协商的h2各一次
+ *
+ * @author chpengzh@foxmail.com
+ */
+class Http2ProxyTest {
+
+    private static final String CONNECT = "proxy_http2_streams_total{type=\"connect\"}";
+
+    private static final String REQUEST = "proxy_http2_streams_total{type=\"request\"}";
+
+    private LoopbackEcho echo;
+
+    private LoopbackHttpOrigin origin;
+
+    private EventLoopGroup group;
+
+    private SelfSignedCertificate certificate;
+
+    @BeforeEach
+    void start() throws Exception {
+        echo = LoopbackEcho.start();
+        origin = LoopbackHttpOrigin.start("origin");
+        group = new NioEventLoopGroup(1);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        origin.close();
+        echo.close();
+        if (certificate != null) {
+            certificate.delete();
+        }
+    }
+
+    @ParameterizedTest(name = "tls={0}")
+    @ValueSource(booleans = {false, true})
+    void connectAndGetShareOneConnection(boolean tls) throws Exception {
+        List<String> args = new ArrayList<>();
+        args.add("--app.routes[0]=MATCH,direct");
+        SslContext client = null;
+        if (tls) {
+            certificate = new SelfSignedCertificate("localhost");
+            args.add("--app.http-tls=true");
+            args.add("--app.tls-cert-file=" + certificate.certificate().getPath());
+            args.add("--app.tls-key-file=" + certificate.privateKey().getPath());
+            client = SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1))
+                    .build();
+        }
+        try (LoopbackProxy proxy = LoopbackProxy.start(args.toArray(new String[0]))) {
+            LoopbackProxy.awaitListening(proxy.httpPort);
+            double connects = proxy.metric(CONNECT);
+            double requests = proxy.metric(REQUEST);
+            Channel connection = connect(proxy.httpPort, client);
+            if (tls) {
+                SslHandler ssl = connection.pipeline().get(SslHandler.class);
+                ssl.handshakeFuture().sync();
+                assertEquals(ApplicationProtocolNames.HTTP_2, ssl.applicationProtocol());
+            }
+
+            StreamReader tunnel = new StreamReader();
+            Http2StreamChannel connectStream = open(connection, tunnel);
+            connectStream.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                    .method("CONNECT")
+                    .authority("127.0.0.1:" + echo.port())));
+            assertEquals("200", tunnel.headers().status().toString());
+            byte[] first = random(1, 64 * 1024);
+            connectStream.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.wrappedBuffer(first)));
+            assertArrayEquals(first, tunnel.read(first.length));
+
+            // 隧道打开期间，同一个连接上的普通请求
+            StreamReader get = new StreamReader();
+            Http2StreamChannel getStream = open(connection, get);
+            getStream.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                    .method("GET")
+                    .scheme("http")
+                    .authority("127.0.0.1:" + origin.port())
+                    .path("/multiplexed"), true));
+            assertEquals("200", get.headers().status().toString());
+            assertEquals("origin GET /multiplexed", new String(get.readToEnd(), StandardCharsets.US_ASCII));
+
+            // 请求结束后隧道仍然可用
+            byte[] second = random(2, 256 * 1024);
+            connectStream.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.wrappedBuffer(second)));
+            assertArrayEquals(second, tunnel.read(second.length));
+            connectStream.writeAndFlush(new DefaultHttp2DataFrame(true));
+            assertEquals(0, tunnel.readToEnd().length);
+
+            assertEquals(connects + 1, proxy.metric(CONNECT));
+            assertEquals(requests + 1, proxy.metric(REQUEST));
+            assertEquals(1, origin.connections());
+            assertTrue(connection.isActive());
+            connection.close().sync();
+        }
+    }
+
+    private Channel connect(int port, SslContext ssl) throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        if (ssl != null) {
+                            ch.pipeline().addLast(ssl.newHandler(ch.alloc(), "localhost", port));
+                        }
+                        // 客户端不接受服务端发起的流
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build(),
+                                new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                })
+                .connect("127.0.0.1", port).sync().channel();
+    }
+
+    private static Http2StreamChannel open(Channel connection, StreamReader reader) {
+        return new Http2StreamChannelBootstrap(connection).handler(reader).open().syncUninterruptibly().getNow();
+    }
+
+    private static byte[] random(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 收集一个流上收到的帧：HEADERS的请求头，DATA的内容，END_STREAM之后是一个空数组
+     */
+    private static final class StreamReader extends ChannelInboundHandlerAdapter {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<Object> frames = new LinkedBlockingQueue<>();
+
+        private boolean ended;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http2HeadersFrame) {
+                    frames.add(((Http2HeadersFrame) msg).headers());
+                    if (((Http2HeadersFrame) msg).isEndStream()) {
+                        frames.add(END);
+                    }
+                } else if (msg instanceof Http2DataFrame) {
+                    ByteBuf content = ((Http2DataFrame) msg).content();
+                    if (content.isReadable()) {
+                        frames.add(ByteBufUtil.getBytes(content));
+                    }
+                    if (((Http2DataFrame) msg).isEndStream()) {
+                        frames.add(END);
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        Http2Headers headers() throws InterruptedException {
+            Object frame = frames.poll(10, TimeUnit.SECONDS);
+            assertNotNull(frame, "no HEADERS received");
+            assertTrue(frame instanceof Http2Headers, "expected HEADERS but got " + frame);
+            return (Http2Headers) frame;
+        }
+
+        byte[] read(int length) throws InterruptedException {
+            ByteArrayOutputStream received = new ByteArrayOutputStream(length);
+            while (received.size() < length) {
+                byte[] data = data();
+                assertTrue(data != END, "stream ended after " + received.size() + " bytes");
+                received.write(data, 0, data.length);
+            }
+            return received.toByteArray();
+        }
+
+        byte[] readToEnd() throws InterruptedException {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            for (byte[] data; (data = data()) != END; ) {
+                received.write(data, 0, data.length);
+            }
+            return received.toByteArray();
+        }
+
+        private byte[] data() throws InterruptedException {
+            assertTrue(!ended, "stream already ended");
+            Object frame = frames.poll(10, TimeUnit.SECONDS);
+            assertNotNull(frame, "no DATA received");
+            assertTrue(frame instanceof byte[], "expected DATA but got " + frame);
+            ended = frame == END;
+            return (byte[]) frame;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存的新鲜度计算、Vary匹配、304更新与按字节数淘汰，以及同一个key的回源合并；
+ * 每个用例都核对响应体的引用计数，缓存持有的一次在{@link HttpCache#destroy()}时释放
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpCacheTest {
+
+    private static final String KEY = "example.com:80/index";
+
+    private HttpCache cache;
+
+    private final List<ByteBuf> bodies = new ArrayList<>();
+
+    @BeforeEach
+    void create() {
+        cache = cache(1024);
+    }
+
+    @AfterEach
+    void destroy() {
+        cache.destroy();
+        for (ByteBuf body : bodies) {
+            assertEquals(0, body.refCnt(), "body still referenced after destroy");
+        }
+    }
+
+    @Test
+    void keyOfOnlyPlainGets() {
+        assertEquals(KEY, cache.keyOf(request(), "example.com", 80));
+        HttpRequest post = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/index");
+        assertNull(cache.keyOf(post, "example.com", 80));
+        for (String name : new String[]{"Authorization", "Range", "If-None-Match", "If-Modified-Since"}) {
+            HttpRequest request = request();
+            request.headers().set(name, "x");
+            assertNull(cache.keyOf(request, "example.com", 80), name);
+        }
+        HttpRequest noStore = request();
+        noStore.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-store");
+        assertNull(cache.keyOf(noStore, "example.com", 80));
+        assertNull(cache(0).keyOf(request(), "example.com", 80));
+    }
+
+    @Test
+    void maxAgeFreshness() {
+        store(KEY, request(), response("Cache-Control", "public, max-age=60"), 16);
+        HttpCache.Entry entry = cache.lookup(KEY, request());
+        assertNotNull(entry);
+        assertTrue(entry.isFresh(request()));
+        HttpRequest noCache = request();
+        noCache.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+        assertFalse(entry.isFresh(noCache));
+        HttpRequest pragma = request();
+        pragma.headers().set(HttpHeaderNames.PRAGMA, "no-cache");
+        assertFalse(entry.isFresh(pragma));
+        entry.release();
+
+        // s-maxage优先于max-age
+        store(KEY, request(), response("Cache-Control", "max-age=60, s-maxage=0", "ETag", "\"v1\""), 16);
+        entry = cache.lookup(KEY, request());
+        assertFalse(entry.isFresh(request()));
+        entry.release();
+    }
+
+    @Test
+    void expiresFreshness() {
+        long now = System.currentTimeMillis();
+        store(KEY, request(), response("Date", date(now), "Expires", date(now + 60_000)), 16);
+        HttpCache.Entry entry = cache.lookup(KEY, request());
+        assertTrue(entry.isFresh(request()));
+        entry.release();
+
+        store(KEY, request(), response("Date", date(now), "Expires", date(now - 60_000), "ETag", "\"v1\""), 16);
+        entry = cache.lookup(KEY, request());
+        assertFalse(entry.isFresh(request()));
+        entry.release();
+
+        // 无法解析的Expires表示已经过期
+        store(KEY, request(), response("Expires", "0", "ETag", "\"v1\""), 16);
+        entry = cache.lookup(KEY, request());
+        assertFalse(entry.isFresh(request()));
+        entry.release();
+
+        // 已经过期又没有验证器的响应不保存
+        assertNull(cache.storable(response("Date", date(now), "Expires", date(now - 60_000))));
+    }
+
+    @Test
+    void heuristicFreshness() {
+        long now = System.currentTimeMillis();
+        // 100秒前修改，估算有效期10秒
+        store(KEY, request(), response("Date", date(now), "Last-Modified", date(now - 100_000)), 16);
+        HttpCache.Entry entry = cache.lookup(KEY, request());
+        assertTrue(entry.isFresh(request()));
+        entry.release();
+
+        // 5秒前修改，估算有效期不足1秒，只能重新验证
+        store(KEY, request(), response("Date", date(now), "Last-Modified", date(now - 5_000)), 16);
+        entry = cache.lookup(KEY, request());
+        assertFalse(entry.isFresh(request()));
+        assertTrue(entry.hasValidators());
+        entry.release();
+    }
+
+    @Test
+    void notStorable() {
+        assertNull(cache.storable(response()));
+        assertNull(cache.storable(response("Cache-Control", "max-age=60, private")));
+        assertNull(cache.storable(response("Cache-Control", "no-store")));
+        assertNull(cache.storable(response("Cache-Control", "max-age=60", "Set-Cookie", "a=b")));
+        assertNull(cache.storable(response("Cache-Control", "max-age=60", "Vary", "*")));
+        assertNull(cache.storable(response("Cache-Control", "max-age=60", "Content-Length", "4096")));
+        HttpResponse notFound = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        notFound.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        assertNull(cache.storable(notFound));
+
+        HttpHeaders headers = cache.storable(response("Cache-Control", "max-age=60",
+                "Connection", "keep-alive", "Keep-Alive", "timeout=5", "Transfer-Encoding", "chunked"));
+        assertNotNull(headers);
+        assertFalse(headers.contains(HttpHeaderNames.CONNECTION));
+        assertFalse(headers.contains("Keep-Alive"));
+        assertFalse(headers.contains(HttpHeaderNames.TRANSFER_ENCODING));
+    }
+
+    @Test
+    void varyMismatch() {
+        HttpRequest gzip = request("Accept-Encoding", "gzip");
+        store(KEY, gzip, response("Cache-Control", "max-age=60", "Vary", "Accept-Encoding, Accept-Language"), 16);
+        assertNull(cache.lookup(KEY, request("Accept-Encoding", "br")));
+        assertNull(cache.lookup(KEY, request()));
+        assertNull(cache.lookup(KEY, request("Accept-Encoding", "gzip", "Accept-Language", "en")));
+        HttpCache.Entry entry = cache.lookup(KEY, request("Accept-Encoding", "gzip"));
+        assertNotNull(entry);
+        entry.release();
+    }
+
+    @Test
+    void revalidationKeepsRefCntBalanced() {
+        ByteBuf body = store(KEY, request(), response("Cache-Control", "max-age=0", "ETag", "\"v1\""), 16);
+        assertEquals(1, body.refCnt());
+
+        HttpCache.Entry stale = cache.lookup(KEY, request());
+        assertFalse(stale.isFresh(request()));
+        assertEquals(2, body.refCnt());
+        HttpRequest conditional = request();
+        stale.addConditions(conditional);
+        assertEquals("\"v1\"", conditional.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+
+        HttpCache.Entry refreshed = cache.refresh(KEY, stale,
+                response("Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Length", "0"));
+        assertTrue(refreshed.isFresh(request()));
+        FullHttpResponse reply = refreshed.toResponse(true);
+        assertEquals("16", reply.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        assertEquals(16, reply.content().readableBytes());
+        reply.release();
+        refreshed.release();
+        stale.release();
+        // 只剩缓存持有的一次
+        assertEquals(1, body.refCnt());
+
+        HttpCache.Entry hit = cache.lookup(KEY, request());
+        assertTrue(hit.isFresh(request()));
+        hit.release();
+        assertEquals(1, body.refCnt());
+    }
+
+    @Test
+    void revalidationAfterEviction() {
+        ByteBuf body = store(KEY, request(), response("Cache-Control", "max-age=0", "ETag", "\"v1\""), 600);
+        HttpCache.Entry stale = cache.lookup(KEY, request());
+        // 验证期间被其他响应挤出缓存
+        store("example.com:80/other", request(), response("Cache-Control", "max-age=60"), 600);
+        assertNull(cache.lookup(KEY, request()));
+        assertEquals(1, body.refCnt());
+
+        HttpCache.Entry refreshed = cache.refresh(KEY, stale, response("Cache-Control", "max-age=60"));
+        refreshed.release();
+        stale.release();
+        assertEquals(1, body.refCnt());
+        HttpCache.Entry hit = cache.lookup(KEY, request());
+        assertTrue(hit.isFresh(request()));
+        hit.release();
+    }
+
+    @Test
+    void evictionAtByteCap() {
+        ByteBuf first = store("a", request(), response("Cache-Control", "max-age=60"), 400);
+        ByteBuf second = store("b", request(), response("Cache-Control", "max-age=60"), 400);
+        // 访问a之后b是最久没有使用的
+        cache.lookup("a", request()).release();
+        store("c", request(), response("Cache-Control", "max-age=60"), 400);
+        assertEquals(0, second.refCnt());
+        assertNull(cache.lookup("b", request()));
+        assertEquals(1, first.refCnt());
+
+        // 替换同一个key时释放旧的响应体
+        ByteBuf replaced = store("a", request(), response("Cache-Control", "max-age=60"), 100);
+        assertEquals(0, first.refCnt());
+        assertEquals(1, replaced.refCnt());
+
+        // 超过上限的单个响应把其他缓存全部挤出
+        store("d", request(), response("Cache-Control", "max-age=60"), 1000);
+        assertNull(cache.lookup("a", request()));
+        assertNull(cache.lookup("c", request()));
+        assertEquals(0, replaced.refCnt());
+    }
+
+    @Test
+    void concurrentMissesShareOneFetch() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch go = new CountDownLatch(1);
+            CountDownLatch joined = new CountDownLatch(threads);
+            List<Future<Void>> results = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        go.await();
+                        results.add(cache.join(KEY));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        joined.countDown();
+                    }
+                });
+            }
+            go.countDown();
+            assertTrue(joined.await(5, TimeUnit.SECONDS));
+            int fetchers = 0;
+            Future<Void> running = null;
+            for (Future<Void> waiting : results) {
+                if (waiting == null) {
+                    fetchers++;
+                } else {
+                    if (running != null) {
+                        assertSame(running, waiting);
+                    }
+                    running = waiting;
+                }
+            }
+            assertEquals(1, fetchers);
+            assertNotNull(running);
+            assertFalse(running.isDone());
+            // 其他key不受影响
+            assertNull(cache.join("other"));
+            cache.fetched("other");
+
+            cache.fetched(KEY);
+            assertTrue(running.isSuccess());
+            // 回源结束后下一次未命中重新回源
+            assertNull(cache.join(KEY));
+            cache.fetched(KEY);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ByteBuf store(String key, HttpRequest request, HttpResponse response, int size) {
+        HttpHeaders headers = cache.storable(response);
+        assertNotNull(headers, "response should be storable");
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+        body.writeBytes(new byte[size]);
+        bodies.add(body);
+        cache.store(key, request, response.status(), headers, body);
+        return body;
+    }
+
+    private static HttpCache cache(long size) {
+        AppProperties properties = new AppProperties();
+        properties.setHttpCacheSize(size);
+        properties.setHttpCacheMaxObjectSize(1024);
+        return new HttpCache(properties);
+    }
+
+    private static HttpRequest request(String... headers) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index");
+        for (int i = 0; i < headers.length; i += 2) {
+            request.headers().set(headers[i], headers[i + 1]);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(String... headers) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        for (int i = 0; i < headers.length; i += 2) {
+            response.headers().set(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    private static String date(long millis) {
+        return DateFormatter.format(new Date(millis));
+    }
+}
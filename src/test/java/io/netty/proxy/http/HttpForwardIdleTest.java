@@ -0,0 +1,146 @@
+package io.netty.proxy.http;
+
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 普通HTTP请求等待响应期间的空闲检查：目标主机响应到一半停止发送时按read-timeout关闭，持续发送的慢响应不受影响
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpForwardIdleTest {
+
+    private static final int BODY = 100;
+
+    private ServerSocket origin;
+
+    private Thread originThread;
+
+    @AfterEach
+    void stopOrigin() throws Exception {
+        origin.close();
+        originThread.join(1_000);
+    }
+
+    @Test
+    void stalledResponseIsReaped() throws Exception {
+        // 只发送响应头与10字节，之后既不发送也不断开
+        startOrigin(0, 10);
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.routes[0]=MATCH,direct",
+                "--app.read-timeout=500", "--app.timeout-tick=10");
+             Socket client = get(proxy)) {
+            client.setSoTimeout(5_000);
+            long start = System.nanoTime();
+            byte[] received = readToEnd(client.getInputStream());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(new String(received, StandardCharsets.US_ASCII).startsWith("HTTP/1.1 200"));
+            assertTrue(elapsed >= 400 && elapsed < 3_000, "closed after " + elapsed + "ms");
+        }
+    }
+
+    @Test
+    void slowButActiveResponseCompletes() throws Exception {
+        // 每200ms发送10字节，总时间超过read-timeout的3倍
+        startOrigin(200, BODY);
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.routes[0]=MATCH,direct",
+                "--app.read-timeout=500", "--app.timeout-tick=10");
+             Socket client = get(proxy)) {
+            client.setSoTimeout(5_000);
+            String response = readResponse(client.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.endsWith(new String(new byte[BODY]).replace('\0', 'x')), response);
+        }
+    }
+
+    /**
+     * @param interval 每10字节之间的间隔(毫秒)
+     * @param sent     发送的响应体字节数，少于Content-Length时之后保持连接不再发送
+     */
+    private void startOrigin(long interval, int sent) throws IOException {
+        origin = new ServerSocket();
+        origin.bind(new InetSocketAddress("127.0.0.1", 0));
+        originThread = new Thread(() -> {
+            try (Socket socket = origin.accept()) {
+                readHead(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + BODY + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                for (int i = 0; i < sent; i += 10) {
+                    out.write("xxxxxxxxxx".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    Thread.sleep(interval);
+                }
+                // 等待代理关闭连接
+                socket.getInputStream().read();
+            } catch (IOException | InterruptedException e) {
+                // 测试结束
+            }
+        }, "http-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+    }
+
+    private Socket get(LoopbackProxy proxy) throws IOException {
+        Socket client = new Socket("127.0.0.1", proxy.httpPort);
+        String target = "127.0.0.1:" + origin.getLocalPort();
+        client.getOutputStream().write(("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        return client;
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("connection was not closed, received " + out.size() + " bytes", e);
+        } catch (IOException e) {
+            // 连接被重置
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 读到响应头加上Content-Length字节的响应体为止
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        String head = readHead(in);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (body.size() < BODY) {
+            int b = in.read();
+            assertTrue(b >= 0, "closed after " + body.size() + " bytes of body");
+            body.write(b);
+        }
+        assertEquals(BODY, body.size());
+        return head + new String(body.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("closed while reading head");
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+}
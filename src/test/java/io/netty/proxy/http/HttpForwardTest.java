@@ -0,0 +1,153 @@
+package io.netty.proxy.http;
+
+import io.netty.proxy.LoopbackHttpOrigin;
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 经HTTP代理端口转发普通请求到两个本地目标主机：同一个keep-alive客户端连接上的每个请求各自选择目标主机，
+ * 流水线请求按顺序回复，到目标主机的连接在请求之间复用
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpForwardTest {
+
+    private LoopbackHttpOrigin first;
+
+    private LoopbackHttpOrigin second;
+
+    private LoopbackProxy proxy;
+
+    @BeforeEach
+    void start() throws Exception {
+        first = LoopbackHttpOrigin.start("first");
+        second = LoopbackHttpOrigin.start("second");
+        // 单个IO线程，所有客户端连接共享同一个连接池
+        proxy = LoopbackProxy.start("--app.routes[0]=MATCH,direct", "--app.worker-threads=1");
+    }
+
+    @AfterEach
+    void stop() {
+        proxy.close();
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void keepAliveRequestsChooseTheirOwnHost() throws Exception {
+        try (Socket client = connect()) {
+            send(client, get(first, "/one"));
+            assertEquals("first GET /one", readBody(client.getInputStream()));
+            // 同一个客户端连接上的第二个请求发往另一个目标主机
+            send(client, get(second, "/two"));
+            assertEquals("second GET /two", readBody(client.getInputStream()));
+            // origin-form加Host头的请求同样按Host选择
+            send(client, "GET /three HTTP/1.1\r\nHost: 127.0.0.1:" + first.port() + "\r\n\r\n");
+            assertEquals("first GET /three", readBody(client.getInputStream()));
+        }
+        assertEquals(Arrays.asList("GET /one", "GET /three"), first.requests());
+        assertEquals(Collections.singletonList("GET /two"), second.requests());
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        try (Socket client = connect()) {
+            StringBuilder pipeline = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                pipeline.append(get(i % 2 == 0 ? first : second, "/" + i));
+            }
+            send(client, pipeline.toString());
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < 6; i++) {
+                assertEquals((i % 2 == 0 ? "first" : "second") + " GET /" + i, readBody(in));
+            }
+        }
+        assertEquals(Arrays.asList("GET /0", "GET /2", "GET /4"), first.requests());
+        assertEquals(Arrays.asList("GET /1", "GET /3", "GET /5"), second.requests());
+    }
+
+    @Test
+    void upstreamConnectionsArePooled() throws Exception {
+        try (Socket client = connect()) {
+            for (int i = 0; i < 3; i++) {
+                send(client, get(first, "/" + i));
+                assertEquals("first GET /" + i, readBody(client.getInputStream()));
+            }
+        }
+        // 另一个客户端连接借出同一个空闲连接
+        try (Socket client = connect()) {
+            send(client, get(first, "/3"));
+            assertEquals("first GET /3", readBody(client.getInputStream()));
+            send(client, get(second, "/4"));
+            assertEquals("second GET /4", readBody(client.getInputStream()));
+        }
+        assertEquals(4, first.requests().size());
+        assertEquals(1, first.connections());
+        assertEquals(1, second.connections());
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket("127.0.0.1", proxy.httpPort);
+        client.setSoTimeout(5_000);
+        return client;
+    }
+
+    private static String get(LoopbackHttpOrigin origin, String path) {
+        String authority = "127.0.0.1:" + origin.port();
+        return "GET http://" + authority + path + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n";
+    }
+
+    private static void send(Socket client, String data) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(data.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * 读取一个200响应，返回按Content-Length读到的响应体
+     */
+    private static String readBody(InputStream in) throws IOException {
+        String status = readLine(in);
+        assertTrue(status.startsWith("HTTP/1.1 200"), status);
+        int length = -1;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        assertTrue(length >= 0, "no content-length");
+        byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(body, read, length - read);
+            assertTrue(n > 0, "unexpected end of response");
+            read += n;
+        }
+        return new String(body, StandardCharsets.US_ASCII);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            assertTrue(b >= 0, "unexpected end of response");
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
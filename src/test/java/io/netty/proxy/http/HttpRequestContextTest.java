@@ -0,0 +1,219 @@
+package io.netty.proxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 请求头解析：任意位置拆包、目标主机与端口、请求行之前的空行、超长请求头
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpRequestContextTest {
+
+    private static final int MAX_HEAD_SIZE = 1024;
+
+    private static final String HEAD = "GET http://ignored.example.com/index HTTP/1.1\r\n"
+            + "Host: example.com:8080\r\n"
+            + "Accept:  */* \r\n"
+            + "\r\n";
+
+    private final List<HttpRequestContext> contexts = new ArrayList<>();
+
+    @AfterEach
+    void release() {
+        contexts.forEach(HttpRequestContext::release);
+    }
+
+    @Test
+    void splitAtEveryByte() {
+        String data = HEAD + "BODY";
+        for (int split = 1; split < data.length(); split++) {
+            HttpRequestContext context = context();
+            ByteBuf first = ascii(data.substring(0, split));
+            ByteBuf second = ascii(data.substring(split));
+            boolean completed = context.read(first);
+            assertEquals(split >= HEAD.length(), completed, "split at " + split);
+            if (!completed) {
+                assertFalse(first.isReadable());
+                assertTrue(context.read(second), "split at " + split);
+            }
+            // 请求头之后的数据留在读入的缓冲区中
+            String remaining = first.toString(CharsetUtil.US_ASCII) + second.toString(CharsetUtil.US_ASCII);
+            assertEquals("BODY", remaining, "split at " + split);
+            assertParsed(context);
+            first.release();
+            second.release();
+        }
+    }
+
+    @Test
+    void oneByteAtATime() {
+        HttpRequestContext context = context();
+        byte[] data = HEAD.getBytes(CharsetUtil.US_ASCII);
+        for (int i = 0; i < data.length; i++) {
+            ByteBuf in = Unpooled.wrappedBuffer(new byte[]{data[i]});
+            assertEquals(i == data.length - 1, context.read(in));
+            assertFalse(in.isReadable());
+            in.release();
+        }
+        assertParsed(context);
+        // 交出的请求头与读入的完全一致
+        ByteBuf taken = context.takeByteBuf();
+        assertEquals(HEAD, taken.toString(CharsetUtil.US_ASCII));
+        taken.release();
+        assertEquals("[GET] example.com:8080", context.desc());
+    }
+
+    @Test
+    void connectTarget() {
+        HttpRequestContext context = parse("CONNECT example.com:65535 HTTP/1.1\r\nHost: other.com:80\r\n\r\n");
+        assertTrue(context.isConnect());
+        // CONNECT使用请求行中的目标，不看Host头
+        assertEquals("example.com", context.getHost());
+        assertEquals(65535, context.getPort());
+
+        context = parse("connect example.com HTTP/1.1\r\n\r\n");
+        assertTrue(context.isConnect());
+        assertEquals(443, context.getPort());
+    }
+
+    @Test
+    void badPorts() {
+        for (String authority : new String[]{"example.com:99999", "example.com:65536", "example.com:0",
+                "example.com:", "example.com:8o", "example.com:-1", "example.com:4294967377", "[::1]:",
+                "[::1]:0"}) {
+            IllegalStateException err = assertThrows(IllegalStateException.class,
+                    () -> parse("CONNECT " + authority + " HTTP/1.1\r\n\r\n"), authority);
+            assertEquals("bad port in authority", err.getMessage(), authority);
+        }
+        assertThrows(IllegalStateException.class, () -> parse("GET / HTTP/1.1\r\nHost: example.com:70000\r\n\r\n"));
+    }
+
+    @Test
+    void ipv6Literals() {
+        HttpRequestContext context = parse("CONNECT [::1]:443 HTTP/1.1\r\n\r\n");
+        assertEquals("::1", context.getHost());
+        assertEquals(443, context.getPort());
+
+        context = parse("GET / HTTP/1.1\r\nHost: [2001:db8::1]\r\n\r\n");
+        assertEquals("2001:db8::1", context.getHost());
+        assertEquals(80, context.getPort());
+
+        context = parse("GET http://[fe80::1]:8080/path HTTP/1.1\r\n\r\n");
+        assertEquals("fe80::1", context.getHost());
+        assertEquals(8080, context.getPort());
+
+        assertThrows(IllegalStateException.class, () -> parse("CONNECT [::1:443 HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    void absoluteUriWithoutHost() {
+        HttpRequestContext context = parse("GET http://example.com:8080/a/b HTTP/1.1\r\n\r\n");
+        assertEquals("example.com", context.getHost());
+        assertEquals(8080, context.getPort());
+        context = parse("GET http://example.com HTTP/1.1\r\n\r\n");
+        assertEquals("example.com", context.getHost());
+        assertEquals(80, context.getPort());
+
+        IllegalStateException err = assertThrows(IllegalStateException.class,
+                () -> parse("GET /index HTTP/1.1\r\nAccept: */*\r\n\r\n"));
+        assertEquals("cannot find header 'Host'", err.getMessage());
+        assertThrows(IllegalStateException.class, () -> parse("GET / HTTP/1.1\r\nHost: \r\n\r\n"));
+        assertThrows(IllegalStateException.class, () -> parse("GET\r\n\r\n"));
+    }
+
+    @Test
+    void leadingEmptyLines() {
+        HttpRequestContext context = parse("\r\n\n\r\nPOST /upload HTTP/1.1\r\nhost: example.com\r\n\r\n");
+        assertEquals("POST", context.getMethod());
+        assertEquals("example.com", context.getHost());
+        assertEquals("[POST] example.com:80", context.desc());
+        assertEquals("example.com", context.getHeader(AsciiString.cached("HOST")));
+    }
+
+    @Test
+    void http2Preface() {
+        ByteBuf in = ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+        HttpRequestContext context = context();
+        assertTrue(context.read(in));
+        assertTrue(context.isHttp2Preface());
+        assertNull(context.getHost());
+        assertEquals("SM\r\n\r\n", in.toString(CharsetUtil.US_ASCII));
+        in.release();
+    }
+
+    @Test
+    void maxHeadSize() {
+        String prefix = "GET / HTTP/1.1\r\nHost: example.com\r\nX-Padding: ";
+        String fits = prefix + repeat(MAX_HEAD_SIZE - prefix.length() - 4) + "\r\n\r\n";
+        assertEquals(MAX_HEAD_SIZE, fits.length());
+        assertEquals("example.com", parse(fits).getHost());
+
+        // 多出一个字节，分两次读入时在第二次读入时失败
+        String tooLong = prefix + repeat(MAX_HEAD_SIZE - prefix.length() - 3) + "\r\n\r\n";
+        HttpRequestContext context = context();
+        ByteBuf first = ascii(tooLong.substring(0, 100));
+        ByteBuf second = ascii(tooLong.substring(100));
+        assertFalse(context.read(first));
+        assertThrows(TooLongFrameException.class, () -> context.read(second));
+        first.release();
+        second.release();
+
+        // 只有请求行之前的空行也计入长度
+        assertThrows(TooLongFrameException.class, () -> parse(repeat(MAX_HEAD_SIZE).replace('x', '\n')));
+    }
+
+    private void assertParsed(HttpRequestContext context) {
+        assertFalse(context.isConnect());
+        assertFalse(context.isHttp2Preface());
+        assertEquals("GET", context.getMethod());
+        assertEquals("example.com", context.getHost());
+        assertEquals(8080, context.getPort());
+        assertEquals("*/*", context.getHeader(AsciiString.cached("accept")));
+        assertNull(context.getHeader(AsciiString.cached("Cookie")));
+    }
+
+    private HttpRequestContext parse(String head) {
+        ByteBuf in = ascii(head);
+        try {
+            HttpRequestContext context = context();
+            assertTrue(context.read(in));
+            assertFalse(in.isReadable());
+            return context;
+        } finally {
+            in.release();
+        }
+    }
+
+    private HttpRequestContext context() {
+        HttpRequestContext context = new HttpRequestContext(MAX_HEAD_SIZE);
+        contexts.add(context);
+        return context;
+    }
+
+    private static ByteBuf ascii(String data) {
+        return Unpooled.copiedBuffer(data, CharsetUtil.US_ASCII);
+    }
+
+    private static String repeat(int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,237 @@
+package io.netty.proxy.http;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.proxy.LoopbackProxy;
+import io.netty.util.ResourceLeakDetector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * paranoid级别泄漏检测下读取请求头：任意位置拆包、超长请求头、请求头之后连接关闭都不能留下没有释放的缓冲区
+ * <p>
+ * 泄漏在缓冲区被回收之后、下一次分配时由{@link ResourceLeakDetector}以LEAK开头的错误日志报告，
+ * 每个用例结束后反复GC并分配缓冲区，收集到任何LEAK日志即失败
+ *
+ * @author chpengzh@foxmail.com
+ */
+class HttpRequestLeakTest {
+
+    private static final String HEAD = "GET http://example.com:8080/index HTTP/1.1\r\n"
+            + "Host: example.com:8080\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+
+    private static final String BODY = "BODY";
+
+    private ListAppender<ILoggingEvent> leaks;
+
+    @BeforeAll
+    static void paranoid() {
+        assertEquals(ResourceLeakDetector.Level.PARANOID, ResourceLeakDetector.getLevel(),
+                "run with -Dio.netty.leakDetection.level=paranoid");
+    }
+
+    @AfterEach
+    void assertNoLeaks() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(20);
+            // 泄漏只在之后的分配中报告
+            PooledByteBufAllocator.DEFAULT.directBuffer(1).release();
+            UnpooledByteBufAllocator.DEFAULT.heapBuffer(1).release();
+        }
+        logger().detachAppender(leaks);
+        List<String> reports = leaks.list.stream()
+                .map(ILoggingEvent::getFormattedMessage)
+                .filter(message -> message.contains("LEAK"))
+                .collect(Collectors.toList());
+        assertTrue(reports.isEmpty(), () -> String.join("\n", reports));
+    }
+
+    @Test
+    void splitAtEveryByte() {
+        watchLeaks();
+        byte[] data = (HEAD + BODY).getBytes(StandardCharsets.US_ASCII);
+        for (int split = 1; split < data.length; split++) {
+            HttpRequestContext request = new HttpRequestContext(1024);
+            ByteBuf first = buffer(Arrays.copyOfRange(data, 0, split));
+            ByteBuf second = buffer(Arrays.copyOfRange(data, split, data.length));
+            StringBuilder rest = new StringBuilder();
+            if (request.read(first)) {
+                rest.append(first.toString(StandardCharsets.US_ASCII));
+                rest.append(second.toString(StandardCharsets.US_ASCII));
+            } else {
+                assertTrue(request.read(second), "split at " + split);
+                rest.append(second.toString(StandardCharsets.US_ASCII));
+            }
+            first.release();
+            second.release();
+            assertEquals("GET", request.getMethod());
+            assertEquals("example.com", request.getHost());
+            assertEquals(8080, request.getPort());
+            assertEquals(BODY, rest.toString(), "split at " + split);
+            ByteBuf head = request.takeByteBuf();
+            assertEquals(HEAD, head.toString(StandardCharsets.US_ASCII));
+            head.release();
+        }
+    }
+
+    @Test
+    void byteByByte() {
+        watchLeaks();
+        byte[] data = HEAD.getBytes(StandardCharsets.US_ASCII);
+        HttpRequestContext request = new HttpRequestContext(1024);
+        for (int i = 0; i < data.length; i++) {
+            ByteBuf in = buffer(new byte[]{data[i]});
+            assertEquals(i == data.length - 1, request.read(in));
+            in.release();
+        }
+        assertEquals("example.com", request.getHost());
+        request.release();
+    }
+
+    @Test
+    void oversizedHead() {
+        watchLeaks();
+        String head = "GET / HTTP/1.1\r\nHost: example.com\r\nX-Padding: " + repeat('x', 200) + "\r\n\r\n";
+        byte[] data = head.getBytes(StandardCharsets.US_ASCII);
+        for (int chunk : new int[]{1, 7, 64, data.length}) {
+            HttpRequestContext request = new HttpRequestContext(128);
+            List<ByteBuf> inputs = new ArrayList<>();
+            assertThrows(TooLongFrameException.class, () -> {
+                for (int offset = 0; offset < data.length; offset += chunk) {
+                    ByteBuf in = buffer(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunk)));
+                    inputs.add(in);
+                    request.read(in);
+                }
+            }, "chunk " + chunk);
+            inputs.forEach(ByteBuf::release);
+            request.release();
+        }
+    }
+
+    @Test
+    void partialHeadThenClose() {
+        watchLeaks();
+        byte[] data = HEAD.getBytes(StandardCharsets.US_ASCII);
+        for (int length = 1; length < data.length; length++) {
+            HttpRequestContext request = new HttpRequestContext(1024);
+            ByteBuf in = buffer(Arrays.copyOfRange(data, 0, length));
+            assertFalse(request.read(in));
+            in.release();
+            // 连接关闭时由channelInactive释放
+            request.release();
+        }
+    }
+
+    @Test
+    void badPorts() {
+        watchLeaks();
+        for (String authority : new String[]{"example.com:0", "example.com:65536", "example.com:", "example.com:8o"}) {
+            HttpRequestContext request = new HttpRequestContext(1024);
+            ByteBuf in = buffer(("CONNECT " + authority + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            assertThrows(IllegalStateException.class, () -> request.read(in), authority);
+            in.release();
+            request.release();
+        }
+    }
+
+    /**
+     * 经由代理的真实连接：请求头在每个位置拆成两次发送后关闭，只发送部分请求头后关闭，超长请求头
+     */
+    @Test
+    void proxyConnectionsCloseMidHead() throws Exception {
+        try (ServerSocket origin = new ServerSocket();
+             LoopbackProxy proxy = LoopbackProxy.start("--app.routes[0]=MATCH,direct",
+                     "--app.http-max-head-size=256")) {
+            origin.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+            // 代理启动时会重新初始化日志，之后再收集
+            watchLeaks();
+            String target = "127.0.0.1:" + origin.getLocalPort();
+            byte[] get = ("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\nContent-Length: 4\r\n\r\n"
+                    + BODY).getBytes(StandardCharsets.US_ASCII);
+            byte[] connect = ("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            for (byte[] data : new byte[][]{get, connect}) {
+                for (int split = 1; split < data.length; split++) {
+                    try (Socket client = new Socket("127.0.0.1", proxy.httpPort)) {
+                        client.setTcpNoDelay(true);
+                        OutputStream out = client.getOutputStream();
+                        out.write(data, 0, split);
+                        out.flush();
+                        Thread.sleep(1);
+                        out.write(data, split, data.length - split);
+                    }
+                    try (Socket client = new Socket("127.0.0.1", proxy.httpPort)) {
+                        client.getOutputStream().write(data, 0, split);
+                    }
+                }
+            }
+
+            byte[] oversized = ("GET http://" + target + "/ HTTP/1.1\r\nHost: " + target + "\r\nX-Padding: "
+                    + repeat('x', 512) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            try (Socket client = new Socket("127.0.0.1", proxy.httpPort)) {
+                client.setSoTimeout(5_000);
+                client.getOutputStream().write(oversized);
+                assertClosed(client.getInputStream());
+            }
+            // 等待代理处理完全部连接关闭
+            Thread.sleep(500);
+        }
+    }
+
+    private static void assertClosed(InputStream in) {
+        try {
+            while (in.read() >= 0) {
+                // 丢弃错误响应
+            }
+        } catch (IOException e) {
+            // 连接被重置
+        }
+    }
+
+    private void watchLeaks() {
+        leaks = new ListAppender<>();
+        leaks.start();
+        logger().addAppender(leaks);
+    }
+
+    private static Logger logger() {
+        return (Logger) LoggerFactory.getLogger(ResourceLeakDetector.class);
+    }
+
+    private static ByteBuf buffer(byte[] data) {
+        return PooledByteBufAllocator.DEFAULT.directBuffer(data.length).writeBytes(data);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
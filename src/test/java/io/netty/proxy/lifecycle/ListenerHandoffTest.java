@@ -0,0 +1,176 @@
+package io.netty.proxy.lifecycle;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 客户端持续建立socks5隧道期间启动新代理接管监听socket，旧代理交接后停止并等待已有连接结束，全程没有失败的连接
+ *
+ * @author chpengzh@foxmail.com
+ */
+class ListenerHandoffTest {
+
+    private static final int CLIENTS = 4;
+
+    private ServerSocket echo;
+
+    private ExecutorService echoWorkers;
+
+    private File handoffPath;
+
+    @BeforeEach
+    void startEcho() throws IOException {
+        echo = new ServerSocket();
+        echo.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        echoWorkers = Executors.newCachedThreadPool();
+        echoWorkers.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = echo.accept();
+                    echoWorkers.execute(() -> echo(socket));
+                }
+            } catch (IOException e) {
+                // socket关闭
+            }
+        });
+        handoffPath = File.createTempFile("handoff", ".sock");
+        handoffPath.delete();
+    }
+
+    @AfterEach
+    void stopEcho() throws IOException {
+        echo.close();
+        echoWorkers.shutdownNow();
+        handoffPath.delete();
+    }
+
+    @Test
+    void handOffAndDrainUnderLoad() throws Exception {
+        assumeTrue(Epoll.isAvailable(), "listener handoff needs epoll");
+        int socks5Port = LoopbackProxy.freePort();
+        int httpPort = LoopbackProxy.freePort();
+        String[] args = {"--app.transport=epoll",
+                "--app.handoff-path=" + handoffPath.getAbsolutePath(),
+                "--app.routes[0]=IP-CIDR,127.0.0.0/8,direct"};
+
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        List<Thread> clients = new ArrayList<>();
+        try (LoopbackProxy previous = LoopbackProxy.start(socks5Port, httpPort, args)) {
+            for (int i = 0; i < CLIENTS; i++) {
+                Thread client = new Thread(() -> {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            roundTrip(socks5Port);
+                            succeeded.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            firstFailure.compareAndSet(null, e);
+                        }
+                    }
+                }, "handoff-client-" + i);
+                client.start();
+                clients.add(client);
+            }
+            try {
+                awaitMore(succeeded, 200);
+                try (LoopbackProxy next = LoopbackProxy.start(socks5Port, httpPort, args)) {
+                    // 旧代理发送完监听socket后自行停止
+                    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                    while (previous.isRunning() && System.nanoTime() < deadline) {
+                        Thread.sleep(50);
+                    }
+                    assertFalse(previous.isRunning(), "previous proxy did not stop after handoff");
+                    assertTrue(next.isRunning());
+                    awaitMore(succeeded, 200);
+                    // 新代理关闭之前停止客户端
+                    stop(clients);
+                }
+            } finally {
+                stop(clients);
+            }
+        }
+        Throwable cause = firstFailure.get();
+        assertEquals(0, failed.get(), () -> failed.get() + " of " + (failed.get() + succeeded.get())
+                + " tunnels failed, first: " + cause);
+    }
+
+    /**
+     * 经由代理到echo服务建立隧道，发送随机数据并校验回显
+     */
+    private void roundTrip(int socks5Port) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", socks5Port)) {
+            socket.setSoTimeout(5_000);
+            LoopbackProxy.Socks5Reply reply = LoopbackProxy.socks5(socket, 1, "127.0.0.1", echo.getLocalPort());
+            if (reply.status != 0) {
+                throw new IOException("socks5 CONNECT failed with status " + reply.status);
+            }
+            byte[] payload = new byte[64];
+            ThreadLocalRandom.current().nextBytes(payload);
+            socket.getOutputStream().write(payload);
+            byte[] received = new byte[payload.length];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            if (!Arrays.equals(payload, received)) {
+                throw new IOException("echoed payload differs");
+            }
+        }
+    }
+
+    private static void stop(List<Thread> clients) throws InterruptedException {
+        for (Thread client : clients) {
+            client.interrupt();
+        }
+        for (Thread client : clients) {
+            client.join(5_000);
+        }
+    }
+
+    private static void awaitMore(AtomicLong succeeded, long count) throws InterruptedException {
+        long target = succeeded.get() + count;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (succeeded.get() < target && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(succeeded.get() >= target, "only " + succeeded.get() + " tunnels succeeded");
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // 客户端关闭
+        }
+    }
+}
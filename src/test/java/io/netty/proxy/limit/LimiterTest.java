@@ -0,0 +1,144 @@
+package io.netty.proxy.limit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.proxy.auth.Authenticator;
+import io.netty.proxy.properties.AppProperties;
+import io.netty.proxy.properties.LimitProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 并发隧道数与建连速率的名额：被拒绝时不占用名额，{@link Lease#close()}归还名额且只归还一次
+ *
+ * @author chpengzh@foxmail.com
+ */
+class LimiterTest {
+
+    private Limiter limiter;
+
+    private Path limitFile;
+
+    @AfterEach
+    void destroy() throws IOException {
+        if (limiter != null) {
+            limiter.destroy();
+        }
+        if (limitFile != null) {
+            Files.deleteIfExists(limitFile);
+        }
+    }
+
+    @Test
+    void closeReleasesTheTunnelSlotOnce() {
+        AppProperties properties = new AppProperties();
+        properties.getLimits().setUserMaxTunnels(2);
+        limiter = new Limiter(properties, new StandardEnvironment());
+        EmbeddedChannel alice = client("alice");
+
+        Lease first = limiter.open(alice, "a.example.com");
+        Lease second = limiter.open(alice, "b.example.com");
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.open(alice, "c.example.com"));
+        // 其他用户不受影响
+        assertNotNull(limiter.open(client("bob"), "c.example.com"));
+
+        first.close();
+        first.close();
+        Lease third = limiter.open(alice, "c.example.com");
+        assertNotNull(third);
+        // 重复close只归还了一个名额
+        assertNull(limiter.open(alice, "d.example.com"));
+        second.close();
+        third.close();
+        assertNotNull(limiter.open(alice, "d.example.com"));
+    }
+
+    @Test
+    void destinationLimitReleasesTheUserSlot() {
+        AppProperties properties = new AppProperties();
+        properties.getLimits().setUserMaxTunnels(1);
+        properties.getLimits().setDestinationMaxTunnels(1);
+        limiter = new Limiter(properties, new StandardEnvironment());
+
+        Lease lease = limiter.open(client("alice"), "Example.com");
+        assertNotNull(lease);
+        // 目标主机不区分大小写
+        assertNull(limiter.open(client("bob"), "example.COM"));
+        // bob被目标主机拒绝时归还了自己的名额
+        Lease other = limiter.open(client("bob"), "example.org");
+        assertNotNull(other);
+        lease.close();
+        other.close();
+        assertNotNull(limiter.open(client("bob"), "example.com"));
+    }
+
+    @Test
+    void connectionRateRejectsWithoutHoldingSlots() {
+        AppProperties properties = new AppProperties();
+        properties.getLimits().setUserConnectionRate(2);
+        properties.getLimits().setUserMaxTunnels(3);
+        properties.getLimits().setBurstSeconds(1);
+        limiter = new Limiter(properties, new StandardEnvironment());
+        EmbeddedChannel alice = client("alice");
+
+        Lease first = limiter.open(alice, "example.com");
+        Lease second = limiter.open(alice, "example.com");
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.open(alice, "example.com"));
+        first.close();
+        second.close();
+        // 名额都已归还，只受建连速率限制
+        assertNull(limiter.open(alice, "example.com"));
+        assertNotNull(limiter.open(client("bob"), "example.com"));
+    }
+
+    @Test
+    void updateAppliesToOpenLeases() {
+        AppProperties properties = new AppProperties();
+        limiter = new Limiter(properties, new StandardEnvironment());
+        Lease lease = limiter.open(client("alice"), "example.com");
+        assertFalse(lease.isShaped());
+        assertTrue(lease.isSpliceable());
+        assertTrue(Lease.UNLIMITED.isSpliceable());
+
+        LimitProperties limits = new LimitProperties();
+        limits.setUserBandwidth(1024);
+        limiter.update(limits);
+        assertTrue(lease.isShaped());
+        assertFalse(lease.isSpliceable());
+        lease.close();
+    }
+
+    @Test
+    void limitFileDisablesSplice() throws IOException {
+        limitFile = Files.createTempFile("limits", ".properties");
+        Files.write(limitFile, "user-max-tunnels=5\n".getBytes(StandardCharsets.UTF_8));
+        AppProperties properties = new AppProperties();
+        properties.setLimitFile(limitFile.toString());
+        limiter = new Limiter(properties, new StandardEnvironment());
+        Lease lease = limiter.open(client("alice"), "example.com");
+        // 现在不限速，但重新加载之后可能限速
+        assertFalse(lease.isShaped());
+        assertFalse(lease.isSpliceable());
+        lease.close();
+    }
+
+    private static EmbeddedChannel client(String user) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.attr(Authenticator.USER).set(user);
+        return channel;
+    }
+}
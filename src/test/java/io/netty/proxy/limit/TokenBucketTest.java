@@ -0,0 +1,95 @@
+package io.netty.proxy.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * GCRA令牌桶：桶满时可以一次取走burst的令牌，之后按速率补充，透支的令牌在调整速率时按新速率偿还
+ *
+ * @author chpengzh@foxmail.com
+ */
+class TokenBucketTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void burstThenReject() {
+        // 每秒100个，桶容量1秒即100个
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.isFull());
+        int acquired = 0;
+        while (bucket.tryAcquire(1)) {
+            acquired++;
+        }
+        // 取令牌期间每过10毫秒多补充一个
+        assertTrue(acquired >= 100 && acquired <= 105, "acquired " + acquired);
+        assertFalse(bucket.tryAcquire(1));
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    void refillAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.tryAcquire(100));
+        assertFalse(bucket.tryAcquire(5));
+        Thread.sleep(100);
+        // 100毫秒补充10个
+        assertTrue(bucket.tryAcquire(8));
+        assertFalse(bucket.tryAcquire(10));
+    }
+
+    @Test
+    void acquireOverdrawsAndReportsTheWait() {
+        TokenBucket bucket = new TokenBucket(1000, 0.1);
+        // 桶内100个，取走300个需要等待多出来的200个
+        long wait = bucket.acquire(300);
+        assertTrue(wait > 190 * MILLIS && wait <= 200 * MILLIS, "wait " + wait);
+        // 透支期间tryAcquire不取令牌
+        assertFalse(bucket.tryAcquire(1));
+        long more = bucket.acquire(0);
+        assertTrue(more > 180 * MILLIS && more <= 200 * MILLIS, "wait " + more);
+    }
+
+    @Test
+    void singleRequestLargerThanBurstPassesOnAFullBucket() {
+        TokenBucket bucket = new TokenBucket(10, 0.5);
+        assertTrue(bucket.tryAcquire(8));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void unlimited() {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        assertTrue(bucket.isUnlimited());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bucket.tryAcquire(Integer.MAX_VALUE));
+            assertEquals(0, bucket.acquire(Integer.MAX_VALUE));
+        }
+        assertTrue(bucket.isFull());
+    }
+
+    @Test
+    void debtIsRepaidAtTheNewRate() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        long wait = bucket.acquire(1000);
+        assertTrue(wait > 990 * MILLIS && wait <= 1000 * MILLIS, "wait " + wait);
+        // 速率加倍，剩余的1000个令牌只需要一半时间
+        bucket.setRate(2000, 0);
+        long halved = bucket.acquire(0);
+        assertTrue(halved > 480 * MILLIS && halved <= 500 * MILLIS, "wait " + halved);
+        // 速率减半，剩余时间加倍
+        bucket.setRate(1000, 0);
+        long doubled = bucket.acquire(0);
+        assertTrue(doubled > 960 * MILLIS && doubled <= 1000 * MILLIS, "wait " + doubled);
+        // 取消限速后不再有透支
+        bucket.setRate(0, 0);
+        assertTrue(bucket.isFull());
+        bucket.setRate(1000, 0);
+        assertTrue(bucket.tryAcquire(1));
+    }
+}
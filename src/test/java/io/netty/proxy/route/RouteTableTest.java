@@ -0,0 +1,169 @@
+package io.netty.proxy.route;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 路由规则的优先级与匹配：不同类型的规则之间按规则表中的顺序第一条命中的生效
+ *
+ * @author chpengzh@foxmail.com
+ */
+class RouteTableTest {
+
+    private static final List<String> TARGETS = Arrays.asList("direct", "reject", "proxy", "backup");
+
+    @Test
+    void firstMatchAcrossRuleTypes() {
+        RouteTable table = compile(
+                "DST-PORT,25,reject",
+                "DOMAIN-SUFFIX,example.com,direct",
+                "IP-CIDR,10.0.0.0/8,backup",
+                "DST-PORT,8000-8999,reject",
+                "MATCH,proxy");
+        // 端口规则在前
+        assertEquals("reject", table.route("mail.example.com", 25));
+        assertEquals("reject", table.route("10.1.2.3", 25));
+        // 端口规则在后
+        assertEquals("direct", table.route("www.example.com", 8080));
+        assertEquals("backup", table.route("10.1.2.3", 8080));
+        assertEquals("reject", table.route("www.example.org", 8080));
+        assertEquals("reject", table.route("192.168.1.1", 8999));
+        assertEquals("proxy", table.route("192.168.1.1", 9000));
+        assertEquals("proxy", table.route("www.example.org", 443));
+    }
+
+    @Test
+    void earlierDomainRuleWins() {
+        RouteTable table = compile(
+                "DOMAIN-SUFFIX,internal.example.com,direct",
+                "DOMAIN,www.example.com,backup",
+                "DOMAIN-SUFFIX,example.com,reject",
+                "DOMAIN,api.internal.example.com,proxy",
+                "MATCH,proxy");
+        assertEquals("direct", table.route("api.internal.example.com", 443));
+        assertEquals("backup", table.route("www.example.com", 443));
+        assertEquals("reject", table.route("static.www.example.com", 443));
+        assertEquals("reject", table.route("example.com", 443));
+        assertEquals("proxy", table.route("example.org", 443));
+        assertEquals("proxy", table.route("com", 443));
+    }
+
+    @Test
+    void suffixMatchesBareDomainButNotPartialLabels() {
+        RouteTable table = compile("DOMAIN-SUFFIX,example.com,direct", "DOMAIN,exact.org,backup", "MATCH,proxy");
+        assertEquals("direct", table.route("example.com", 80));
+        assertEquals("direct", table.route("a.b.example.com", 80));
+        assertEquals("proxy", table.route("badexample.com", 80));
+        assertEquals("proxy", table.route("example.com.evil.net", 80));
+        assertEquals("backup", table.route("exact.org", 80));
+        assertEquals("proxy", table.route("sub.exact.org", 80));
+    }
+
+    @Test
+    void trailingDotAndCaseAreNormalized() {
+        RouteTable table = compile("DOMAIN-SUFFIX,Example.COM.,direct", "DOMAIN,exact.org,backup", "MATCH,proxy");
+        assertEquals("direct", table.route("example.com", 80));
+        assertEquals("direct", table.route("WWW.example.com.", 80));
+        assertEquals("backup", table.route("exact.org.", 80));
+        assertEquals("backup", table.route("EXACT.ORG", 80));
+    }
+
+    @Test
+    void longestPrefixDoesNotOverrideRuleOrder() {
+        RouteTable table = compile(
+                "IP-CIDR,10.0.0.0/8,direct",
+                "IP-CIDR,10.1.0.0/16,reject",
+                "IP-CIDR,192.168.1.1,backup",
+                "MATCH,proxy");
+        assertEquals("direct", table.route("10.1.2.3", 80));
+        assertEquals("backup", table.route("192.168.1.1", 80));
+        assertEquals("proxy", table.route("192.168.1.2", 80));
+        assertEquals("proxy", table.route("11.0.0.1", 80));
+        // 域名不解析
+        assertEquals("proxy", table.route("localhost", 80));
+    }
+
+    @Test
+    void ipv6Cidrs() {
+        RouteTable table = compile(
+                "IP-CIDR6,fd00::/8,direct",
+                "IP-CIDR,2001:db8::/32,reject",
+                "IP-CIDR,::1/128,backup",
+                "IP-CIDR,0.0.0.0/0,backup",
+                "MATCH,proxy");
+        assertEquals("direct", table.route("fd12:3456::1", 80));
+        assertEquals("reject", table.route("2001:db8:1::1", 80));
+        assertEquals("reject", table.route("2001:DB8::", 80));
+        assertEquals("backup", table.route("::1", 80));
+        assertEquals("proxy", table.route("2001:db9::1", 80));
+        // IPv4的0.0.0.0/0不匹配IPv6地址
+        assertEquals("proxy", table.route("fe80::1", 80));
+        assertEquals("backup", table.route("8.8.8.8", 80));
+    }
+
+    @Test
+    void ipv4MappedAddressesFollowIpv4Rules() {
+        RouteTable table = compile(
+                "IP-CIDR,10.0.0.0/8,reject",
+                "IP-CIDR,::ffff:192.168.0.0/112,direct",
+                "IP-CIDR,::ffff:0:0/96,backup",
+                "MATCH,proxy");
+        assertEquals("reject", table.route("10.1.2.3", 80));
+        assertEquals("reject", table.route("::ffff:10.1.2.3", 80));
+        assertEquals("reject", table.route("::ffff:a01:203", 80));
+        // 以IPv4映射形式写的规则也匹配IPv4地址
+        assertEquals("direct", table.route("192.168.3.4", 80));
+        assertEquals("direct", table.route("::ffff:192.168.3.4", 80));
+        assertEquals("backup", table.route("8.8.8.8", 80));
+        assertEquals("backup", table.route("::ffff:8.8.8.8", 80));
+        // 已经废弃的IPv4兼容写法(::a.b.c.d)同样被解析为映射地址
+        assertEquals("reject", table.route("::10.1.2.3", 80));
+        assertEquals("proxy", table.route("::1", 80));
+    }
+
+    @Test
+    void fallbackAndComments() {
+        RouteTable table = RouteTable.compile(Arrays.asList("", "# comment", " DOMAIN , example.com , direct "),
+                TARGETS, "proxy");
+        assertEquals(1, table.size());
+        assertEquals("direct", table.route("example.com", 80));
+        assertEquals("proxy", table.route("example.org", 80));
+        assertEquals("proxy", RouteTable.compile(Collections.emptyList(), TARGETS, "proxy").route("example.org", 80));
+        // FINAL等同MATCH，后出现的覆盖前面的
+        assertEquals("backup", compile("MATCH,direct", "final,backup").route("example.org", 80));
+    }
+
+    @Test
+    void compileRejectsBadRules() {
+        assertRejected("unknown route target", "DOMAIN,example.com,nowhere");
+        assertRejected("unknown route target", "MATCH,nowhere");
+        assertRejected("bad route rule", "MATCH");
+        assertRejected("bad route rule", "MATCH,direct,proxy");
+        assertRejected("bad route rule", "DOMAIN,example.com");
+        assertRejected("unknown route rule type", "GEOIP,CN,direct");
+        assertRejected("bad cidr", "IP-CIDR,10.0.0.0/33,direct");
+        assertRejected("bad cidr", "IP-CIDR,example.com/8,direct");
+        assertRejected("bad port range", "DST-PORT,65536,direct");
+        assertRejected("bad port range", "DST-PORT,100-10,direct");
+        // 没有MATCH时的默认出口也必须存在
+        IllegalArgumentException err = assertThrows(IllegalArgumentException.class,
+                () -> RouteTable.compile(Collections.emptyList(), TARGETS, "nowhere"));
+        assertTrue(err.getMessage().contains("unknown route target"), err.getMessage());
+    }
+
+    private static void assertRejected(String message, String rule) {
+        IllegalArgumentException err = assertThrows(IllegalArgumentException.class, () -> compile(rule), rule);
+        assertTrue(err.getMessage().contains(message), err.getMessage());
+    }
+
+    private static RouteTable compile(String... rules) {
+        return RouteTable.compile(Arrays.asList(rules), TARGETS, "proxy");
+    }
+}
@@ -0,0 +1,122 @@
+package io.netty.proxy.transport;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 建连风暴：多个线程同时开始不断新建到socks5端口的连接并完成协商，全部成功，
+ * 每个监听socket的proxy_accepts_total之和等于建立的连接数，没有accept异常
+ *
+ * @author chpengzh@foxmail.com
+ */
+class AcceptStormTest {
+
+    private static final int THREADS = 16;
+
+    private static final int CONNECTIONS_PER_THREAD = 200;
+
+    private static final byte[] GREETING = {5, 1, 0};
+
+    @ParameterizedTest(name = "acceptors={0}")
+    @ValueSource(ints = {1, 4})
+    void everyConnectionIsAcceptedAndCounted(int acceptors) throws Exception {
+        assumeTrue(acceptors == 1 || Epoll.isAvailable(), "multiple acceptors need epoll");
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.acceptors=" + acceptors,
+                "--app.accept-batch=4",
+                // 客户端RST断开时握手pipeline末尾的告警
+                "--logging.level.io.netty.channel.DefaultChannelPipeline=error")) {
+            double[] acceptsBefore = new double[acceptors];
+            double errorsBefore = 0;
+            for (int i = 0; i < acceptors; i++) {
+                acceptsBefore[i] = proxy.metric(accepts(i));
+                errorsBefore += proxy.metric(errors(i));
+            }
+
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", proxy.socks5Port);
+            CountDownLatch go = new CountDownLatch(1);
+            AtomicInteger failed = new AtomicInteger();
+            AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> clients = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                clients.add(executor.submit(() -> {
+                    go.await();
+                    for (int i = 0; i < CONNECTIONS_PER_THREAD; i++) {
+                        try {
+                            greet(address);
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                            firstFailure.compareAndSet(null, e);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            go.countDown();
+            for (Future<?> client : clients) {
+                client.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            assertEquals(0, failed.get(), () -> failed.get() + " connections failed, first: " + firstFailure.get());
+
+            double accepted = 0;
+            double errors = -errorsBefore;
+            for (int i = 0; i < acceptors; i++) {
+                double delta = proxy.metric(accepts(i)) - acceptsBefore[i];
+                // SO_REUSEPORT按四元组散列，这么多连接下每个监听socket都会分到
+                assertTrue(delta > 0, "listener " + i + " accepted nothing");
+                accepted += delta;
+                errors += proxy.metric(errors(i));
+            }
+            assertEquals(THREADS * CONNECTIONS_PER_THREAD, accepted);
+            assertEquals(0, errors);
+        }
+    }
+
+    /**
+     * 完成协商认证方式后以SO_LINGER=0关闭(RST)，避免本机TIME_WAIT耗尽临时端口
+     */
+    private static void greet(InetSocketAddress address) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(5_000);
+            socket.connect(address, 5_000);
+            socket.getOutputStream().write(GREETING);
+            InputStream in = socket.getInputStream();
+            int version = in.read();
+            int method = in.read();
+            if (version != 5 || method != 0) {
+                throw new IOException("unexpected greeting reply " + version + "," + method);
+            }
+        }
+    }
+
+    private static String accepts(int listener) {
+        return "proxy_accepts_total{server=\"socks5\",listener=\"" + listener + "\"}";
+    }
+
+    private static String errors(int listener) {
+        return "proxy_accept_errors_total{server=\"socks5\",listener=\"" + listener + "\"}";
+    }
+}
@@ -0,0 +1,128 @@
+package io.netty.proxy.udp;
+
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 经由本地UDP echo验证UDP ASSOCIATE转发的数据报内容、默认关闭以及限流名额
+ *
+ * @author chpengzh@foxmail.com
+ */
+class UdpAssociateTest {
+
+    private static final int CONNECT_NOT_ALLOWED = 2;
+
+    private static final int COMMAND_UNSUPPORTED = 7;
+
+    private DatagramSocket echo;
+
+    private Thread echoThread;
+
+    @BeforeEach
+    void startEcho() throws IOException {
+        echo = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        echoThread = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            try {
+                while (true) {
+                    packet.setLength(65536);
+                    echo.receive(packet);
+                    echo.send(packet);
+                }
+            } catch (IOException e) {
+                // socket关闭
+            }
+        }, "udp-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @AfterEach
+    void stopEcho() throws InterruptedException {
+        echo.close();
+        echoThread.join(1_000);
+    }
+
+    @Test
+    void echoedPayloadsMatch() throws Exception {
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.enable-udp=true",
+                "--app.udp-max-datagram-size=65535",
+                "--app.routes[0]=IP-CIDR,127.0.0.0/8,direct");
+             Socket control = new Socket("127.0.0.1", proxy.socks5Port);
+             DatagramSocket client = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+            client.setSoTimeout(2_000);
+            LoopbackProxy.Socks5Reply reply = LoopbackProxy.socks5(control, 3, "127.0.0.1", client.getLocalPort());
+            assertEquals(0, reply.status);
+
+            Random random = new Random(15);
+            byte[] buffer = new byte[65536];
+            for (int size : new int[]{1, 64, 1400, 8000, 60000}) {
+                byte[] payload = new byte[size];
+                random.nextBytes(payload);
+                byte[] request = datagram(echo.getLocalPort(), payload);
+                client.send(new DatagramPacket(request, request.length, reply.bound));
+
+                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+                client.receive(response);
+                // 回来的数据报以目标主机地址为UDP头：RSV FRAG ATYP=IPv4 127.0.0.1 echoPort
+                assertEquals(10 + size, response.getLength(), "datagram of " + size + " bytes");
+                assertArrayEquals(Arrays.copyOf(request, 10), Arrays.copyOf(buffer, 10));
+                assertArrayEquals(payload, Arrays.copyOfRange(buffer, 10, 10 + size));
+            }
+        }
+    }
+
+    @Test
+    void disabledByDefault() throws Exception {
+        try (LoopbackProxy proxy = LoopbackProxy.start();
+             Socket control = new Socket("127.0.0.1", proxy.socks5Port)) {
+            assertEquals(COMMAND_UNSUPPORTED, LoopbackProxy.socks5(control, 3, "0.0.0.0", 0).status);
+        }
+    }
+
+    @Test
+    void associationTakesUserTunnelLease() throws Exception {
+        try (LoopbackProxy proxy = LoopbackProxy.start("--app.enable-udp=true",
+                "--app.limits.user-max-tunnels=1")) {
+            try (Socket first = new Socket("127.0.0.1", proxy.socks5Port)) {
+                assertEquals(0, LoopbackProxy.socks5(first, 3, "0.0.0.0", 0).status);
+                try (Socket second = new Socket("127.0.0.1", proxy.socks5Port)) {
+                    assertEquals(CONNECT_NOT_ALLOWED, LoopbackProxy.socks5(second, 3, "0.0.0.0", 0).status);
+                }
+            }
+            // 控制连接关闭后数据报socket随之关闭并归还名额
+            int status = -1;
+            for (int i = 0; i < 50 && status != 0; i++) {
+                Thread.sleep(100);
+                try (Socket third = new Socket("127.0.0.1", proxy.socks5Port)) {
+                    status = LoopbackProxy.socks5(third, 3, "0.0.0.0", 0).status;
+                }
+            }
+            assertEquals(0, status);
+        }
+    }
+
+    private static byte[] datagram(int port, byte[] payload) {
+        byte[] data = new byte[10 + payload.length];
+        data[3] = 1;
+        data[4] = 127;
+        data[7] = 1;
+        data[8] = (byte) (port >> 8);
+        data[9] = (byte) port;
+        System.arraycopy(payload, 0, data, 10, payload.length);
+        return data;
+    }
+}
@@ -0,0 +1,305 @@
+package io.netty.proxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.proxy.upstream.BalancedConnector.Balance;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 以按需失败的假连接器验证负载均衡：每次建连每个代理最多尝试一次，连续失败的代理被摘除，
+ * 健康检查成功后恢复，一致性哈希下同一个目标主机固定走同一个代理
+ *
+ * @author chpengzh@foxmail.com
+ */
+class BalancedConnectorTest {
+
+    private static final AttributeKey<String> ENDPOINT = AttributeKey.valueOf("balanced-test-endpoint");
+
+    private static final AtomicInteger UPSTREAMS = new AtomicInteger();
+
+    private DefaultEventLoopGroup group;
+
+    private EventLoop loop;
+
+    private final List<FakeConnector> fakes = new ArrayList<>();
+
+    @BeforeEach
+    void start() {
+        group = new DefaultEventLoopGroup(1);
+        loop = group.next();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        for (FakeConnector fake : fakes) {
+            fake.opened.forEach(Channel::close);
+        }
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    void failoverTriesEachEndpointOnce() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        FakeConnector c = fake("c");
+        a.failure = new ConnectException("a down");
+        b.failure = new ConnectException("b down");
+        c.failure = new ConnectException("c down");
+        BalancedConnector connector = balanced(Balance.ROUND_ROBIN, 5, 1, a, b, c);
+
+        // 重试次数多于代理数时，每个代理也只尝试一次，失败原因是最后一次尝试的
+        Future<Channel> failed = connector.connect(loop, "example.com", 443).await();
+        assertFalse(failed.isSuccess());
+        assertTrue(failed.cause() instanceof ConnectException);
+        assertEquals(Arrays.asList(1, 1, 1), connects(a, b, c));
+        assertEquals("c down", failed.cause().getMessage());
+
+        // 全部代理都被摘除时仍然在全部代理中选择
+        assertFalse(connector.connect(loop, "example.com", 443).await().isSuccess());
+        assertEquals(Arrays.asList(2, 2, 2), connects(a, b, c));
+
+        b.failure = null;
+        assertEquals("b", endpointOf(connector.connect(loop, "example.com", 443)));
+    }
+
+    @Test
+    void retriesAreBounded() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        FakeConnector c = fake("c");
+        a.failure = new ConnectException("a down");
+        b.failure = new ConnectException("b down");
+        BalancedConnector connector = balanced(Balance.ROUND_ROBIN, 1, 10, a, b, c);
+
+        // 第一次选中a，只重试一次
+        assertFalse(connector.connect(loop, "example.com", 443).await().isSuccess());
+        assertEquals(Arrays.asList(1, 1, 0), connects(a, b, c));
+    }
+
+    @Test
+    void targetRefusalsAreNotRetried() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        a.failure = new Socks5UpstreamException(Socks5CommandStatus.HOST_UNREACHABLE);
+        BalancedConnector connector = balanced(Balance.ROUND_ROBIN, 3, 1, a, b);
+
+        // 目标主机不可达，换代理也没有用
+        Future<Channel> failed = connector.connect(loop, "example.com", 443).await();
+        assertSame(a.failure, failed.cause());
+        assertEquals(Arrays.asList(1, 0), connects(a, b));
+
+        // 代理回复FAILURE时换一个代理，但代理本身没有问题，不计入失败
+        FakeConnector c = fake("c");
+        FakeConnector d = fake("d");
+        c.failure = new Socks5UpstreamException(Socks5CommandStatus.FAILURE);
+        connector = balanced(Balance.ROUND_ROBIN, 3, 1, c, d);
+        assertEquals("d", endpointOf(connector.connect(loop, "example.com", 443)));
+        c.failure = null;
+        assertEquals("c", endpointOf(connector.connect(loop, "example.com", 443)));
+        assertEquals("d", endpointOf(connector.connect(loop, "example.com", 443)));
+    }
+
+    @Test
+    void ejectAfterFailuresAndReinstateByHealthCheck() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        a.failure = new ConnectException("a down");
+        BalancedConnector connector = balanced(Balance.ROUND_ROBIN, 1, 2, a, b);
+
+        // a失败时都由b完成，连续失败两次后被摘除
+        for (int i = 0; i < 4; i++) {
+            assertEquals("b", endpointOf(connector.connect(loop, "example.com", 443)));
+        }
+        assertEquals(2, a.connects.get());
+        a.failure = null;
+        for (int i = 0; i < 4; i++) {
+            assertEquals("b", endpointOf(connector.connect(loop, "example.com", 443)));
+        }
+        assertEquals(2, a.connects.get());
+
+        // 健康检查失败时保持摘除
+        a.probeFailure = new ConnectException("a still down");
+        connector.warmUp(group);
+        await(() -> a.probes.get() >= 3);
+        assertEquals("b", endpointOf(connector.connect(loop, "example.com", 443)));
+        assertEquals(2, a.connects.get());
+
+        // 健康检查成功后恢复轮询
+        a.probeFailure = null;
+        int probes = a.probes.get();
+        await(() -> a.probes.get() >= probes + 2);
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            served.add(endpointOf(connector.connect(loop, "example.com", 443)));
+        }
+        assertEquals(2, served.stream().filter("a"::equals).count(), served.toString());
+        assertEquals(1, a.warmUps.get());
+    }
+
+    @Test
+    void leastActiveCountsOpenChannels() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        BalancedConnector connector = balanced(Balance.LEAST_ACTIVE, 1, 1, a, b);
+
+        Channel first = connector.connect(loop, "example.com", 443).get(5, TimeUnit.SECONDS);
+        Channel second = connector.connect(loop, "example.com", 443).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(first.attr(ENDPOINT).get(), second.attr(ENDPOINT).get()));
+        // b的连接关闭后只有a还有连接，即使这一轮从a开始也选b
+        second.close();
+        assertEquals("b", endpointOf(connector.connect(loop, "example.com", 443)));
+    }
+
+    @Test
+    void consistentHashIsSticky() throws Exception {
+        FakeConnector a = fake("a");
+        FakeConnector b = fake("b");
+        FakeConnector c = fake("c");
+        BalancedConnector connector = balanced(Balance.CONSISTENT_HASH, 2, 1, a, b, c);
+
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String host = "host-" + i + ".example.com";
+            owners.put(host, endpointOf(connector.connect(loop, host, 443)));
+            assertEquals(owners.get(host), endpointOf(connector.connect(loop, host, 443)), host);
+        }
+        Map<String, Long> counts = owners.values().stream()
+                .collect(Collectors.groupingBy(owner -> owner, Collectors.counting()));
+        for (String name : Arrays.asList("a", "b", "c")) {
+            assertTrue(counts.getOrDefault(name, 0L) > 50, counts.toString());
+        }
+
+        // 摘除一个代理，只有它上面的目标主机换到其他代理
+        String host = "host-0.example.com";
+        String owner = owners.get(host);
+        FakeConnector ejected = fakes.stream().filter(fake -> fake.name.equals(owner)).findFirst().get();
+        ejected.failure = new ConnectException(owner + " down");
+        String moved = endpointOf(connector.connect(loop, host, 443));
+        assertNotEquals(owner, moved);
+        ejected.failure = null;
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            String now = endpointOf(connector.connect(loop, entry.getKey(), 443));
+            if (entry.getValue().equals(owner)) {
+                assertNotEquals(owner, now, entry.getKey());
+            } else {
+                assertEquals(entry.getValue(), now, entry.getKey());
+            }
+        }
+        assertEquals(moved, endpointOf(connector.connect(loop, host, 443)));
+
+        // 恢复之后回到原来的代理
+        connector.warmUp(group);
+        await(() -> ejected.probes.get() >= 2);
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            assertEquals(entry.getValue(), endpointOf(connector.connect(loop, entry.getKey(), 443)), entry.getKey());
+        }
+    }
+
+    private FakeConnector fake(String name) {
+        FakeConnector fake = new FakeConnector(name);
+        fakes.add(fake);
+        return fake;
+    }
+
+    private static BalancedConnector balanced(Balance balance, int retries, int ejectFailures, FakeConnector... fakes) {
+        List<String> names = Arrays.stream(fakes).map(fake -> fake.name).collect(Collectors.toList());
+        return new BalancedConnector("balanced-test-" + UPSTREAMS.incrementAndGet(), names,
+                new ArrayList<>(Arrays.asList(fakes)), balance, retries, ejectFailures, 20);
+    }
+
+    private static List<Integer> connects(FakeConnector... fakes) {
+        return Arrays.stream(fakes).map(fake -> fake.connects.get()).collect(Collectors.toList());
+    }
+
+    /**
+     * 等待建连成功并关闭channel，返回完成建连的代理
+     */
+    private static String endpointOf(Future<Channel> future) throws Exception {
+        Channel channel = future.get(5, TimeUnit.SECONDS);
+        channel.close();
+        return channel.attr(ENDPOINT).get();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 按需失败的连接器，成功时返回标记了代理名称的{@link EmbeddedChannel}
+     */
+    private static final class FakeConnector implements UpstreamConnector {
+
+        private final String name;
+
+        private final AtomicInteger connects = new AtomicInteger();
+
+        private final AtomicInteger probes = new AtomicInteger();
+
+        private final AtomicInteger warmUps = new AtomicInteger();
+
+        private final List<Channel> opened = new CopyOnWriteArrayList<>();
+
+        private volatile Throwable failure;
+
+        private volatile Throwable probeFailure;
+
+        FakeConnector(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Future<Channel> connect(EventLoop loop, String host, int port) {
+            connects.incrementAndGet();
+            Throwable cause = failure;
+            if (cause != null) {
+                return loop.newFailedFuture(cause);
+            }
+            Channel channel = new EmbeddedChannel();
+            channel.attr(ENDPOINT).set(name);
+            opened.add(channel);
+            return loop.newSucceededFuture(channel);
+        }
+
+        @Override
+        public void warmUp(EventLoopGroup group) {
+            warmUps.incrementAndGet();
+        }
+
+        @Override
+        public Future<?> probe(EventLoop loop) {
+            probes.incrementAndGet();
+            Throwable cause = probeFailure;
+            return cause == null ? loop.newSucceededFuture(null) : loop.newFailedFuture(cause);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.netty.proxy.upstream;
+
+import io.netty.proxy.LoopbackBlackhole;
+import io.netty.proxy.LoopbackDnsServer;
+import io.netty.proxy.LoopbackEcho;
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 目标域名解析出两个地址，第一个是丢弃SYN的黑洞，第二个是本地echo：
+ * 第一个地址在connect-attempt-delay内没有连上就并行尝试第二个，按建连历史调整顺序后之后的连接直接连上第二个
+ * <p>
+ * 黑洞地址为127.0.0.2，需要整个127.0.0.0/8都在回环网卡上(linux默认如此)
+ *
+ * @author chpengzh@foxmail.com
+ */
+class MultiAddressConnectTest {
+
+    private static final String HOST = "dual.loopback.test";
+
+    private static final long CONNECT_TIMEOUT = 3_000;
+
+    private static final long ATTEMPT_DELAY = 250;
+
+    private static final String WON = "proxy_direct_connect_attempts_total{result=\"won\"}";
+
+    private LoopbackEcho echo;
+
+    private LoopbackBlackhole blackhole;
+
+    private LoopbackDnsServer dns;
+
+    @BeforeEach
+    void start() throws Exception {
+        echo = LoopbackEcho.start();
+        InetAddress hole = InetAddress.getByName("127.0.0.2");
+        blackhole = new LoopbackBlackhole(hole, echo.port());
+        dns = new LoopbackDnsServer();
+        dns.add(HOST, Arrays.asList(hole, InetAddress.getByName("127.0.0.1")));
+        dns.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        dns.close();
+        blackhole.close();
+        echo.close();
+    }
+
+    @Test
+    void blackholedFirstAddressCostsOnlyTheAttemptDelay() throws Exception {
+        try (LoopbackProxy proxy = proxy(ATTEMPT_DELAY, 4096)) {
+            double won = proxy.metric(WON);
+            long first = tunnel(proxy);
+            assertTrue(first >= ATTEMPT_DELAY - 50 && first < CONNECT_TIMEOUT / 2,
+                    "first tunnel took " + first + "ms");
+            // 建连历史把echo排到黑洞之前
+            for (int i = 0; i < 5; i++) {
+                long elapsed = tunnel(proxy);
+                assertTrue(elapsed < ATTEMPT_DELAY, "tunnel " + i + " took " + elapsed + "ms");
+            }
+            assertEquals(won + 6, proxy.metric(WON));
+        }
+    }
+
+    @Test
+    void withoutHistoryEveryTunnelWaitsTheAttemptDelay() throws Exception {
+        try (LoopbackProxy proxy = proxy(ATTEMPT_DELAY, 0)) {
+            for (int i = 0; i < 3; i++) {
+                long elapsed = tunnel(proxy);
+                assertTrue(elapsed >= ATTEMPT_DELAY - 50 && elapsed < CONNECT_TIMEOUT / 2,
+                        "tunnel " + i + " took " + elapsed + "ms");
+            }
+        }
+    }
+
+    /**
+     * 逐个尝试时黑洞地址要等到建连超时，同时确认黑洞确实丢弃了SYN
+     */
+    @Test
+    void sequentialAttemptsWaitForTheConnectTimeout() throws Exception {
+        try (LoopbackProxy proxy = proxy(0, 0)) {
+            long elapsed = tunnel(proxy);
+            assertTrue(elapsed >= CONNECT_TIMEOUT - 100, "tunnel took " + elapsed + "ms");
+        }
+    }
+
+    private LoopbackProxy proxy(long attemptDelay, int history) throws Exception {
+        return LoopbackProxy.start("--app.routes[0]=MATCH,direct",
+                "--app.dns-servers=127.0.0.1:" + dns.port(),
+                "--app.connect-timeout=" + CONNECT_TIMEOUT,
+                "--app.connect-attempt-delay=" + attemptDelay,
+                "--app.connect-history-size=" + history);
+    }
+
+    /**
+     * 经由域名建立隧道并往返一次
+     *
+     * @return 收到socks5应答的耗时(毫秒)
+     */
+    private long tunnel(LoopbackProxy proxy) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", proxy.socks5Port)) {
+            socket.setSoTimeout((int) CONNECT_TIMEOUT * 2);
+            long start = System.nanoTime();
+            LoopbackProxy.Socks5Reply reply = LoopbackProxy.socks5(socket, 1, HOST, echo.port());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(0, reply.status);
+            byte[] ping = "ping".getBytes(StandardCharsets.US_ASCII);
+            socket.getOutputStream().write(ping);
+            byte[] pong = new byte[ping.length];
+            new DataInputStream(socket.getInputStream()).readFully(pong);
+            assertArrayEquals(ping, pong);
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package io.netty.proxy.upstream;
+
+import io.netty.proxy.LoopbackEcho;
+import io.netty.proxy.LoopbackProxy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 两个代理节点串联：客户端 -> edge的socks5端口 -> (HTTP/2 CONNECT流) -> egress的HTTP端口 -> 本地echo
+ * <p>
+ * 验证同一个节点间连接上并发的流各自数据完整、一个流暂停读取时只占用自己的窗口不影响其他流、
+ * egress停止时发出GOAWAY后已有的流继续转发直到结束
+ *
+ * @author chpengzh@foxmail.com
+ */
+class MuxTunnelTest {
+
+    private static final String ESTABLISHED = "proxy_mux_streams_total{result=\"established\"}";
+
+    private LoopbackEcho echo;
+
+    private LoopbackProxy egress;
+
+    private LoopbackProxy edge;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void start() throws Exception {
+        echo = LoopbackEcho.start();
+        egress = LoopbackProxy.start("--app.routes[0]=MATCH,direct", "--app.drain-timeout=20000");
+        LoopbackProxy.awaitListening(egress.httpPort);
+        edge = LoopbackProxy.start("--app.upstreams.egress.type=mux",
+                "--app.upstreams.egress.host=127.0.0.1",
+                "--app.upstreams.egress.port=" + egress.httpPort,
+                "--app.routes[0]=MATCH,egress");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        executor.shutdownNow();
+        edge.close();
+        egress.close();
+        echo.close();
+    }
+
+    @Test
+    void concurrentStreamsKeepTheirData() throws Exception {
+        double established = edge.metric(ESTABLISHED);
+        List<Future<?>> tunnels = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int seed = i;
+            tunnels.add(executor.submit(() -> {
+                try (Socket tunnel = tunnel()) {
+                    byte[] payload = random(seed, 2 * 1024 * 1024);
+                    Future<?> written = write(tunnel, payload, new AtomicLong());
+                    assertArrayEquals(payload, read(tunnel, payload.length), "tunnel " + seed);
+                    written.get();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> tunnel : tunnels) {
+            tunnel.get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(established + 8, edge.metric(ESTABLISHED));
+    }
+
+    @Test
+    void stalledStreamHoldsOnlyItsOwnWindow() throws Exception {
+        try (Socket stalled = new Socket()) {
+            stalled.setReceiveBufferSize(16 * 1024);
+            stalled.connect(new InetSocketAddress("127.0.0.1", edge.socks5Port));
+            assertEquals(0, LoopbackProxy.socks5(stalled, 1, "127.0.0.1", echo.port()).status);
+            // 不读回显：edge暂停读取这个流、不归还它的窗口，背压经由egress与echo一路传回写出一方
+            byte[] stalledPayload = random(1, 64 * 1024 * 1024);
+            AtomicLong sent = new AtomicLong();
+            Future<?> stalledWritten = write(stalled, stalledPayload, sent);
+            long last;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            do {
+                last = sent.get();
+                Thread.sleep(500);
+            } while (sent.get() != last && System.nanoTime() < deadline);
+            assertFalse(stalledWritten.isDone(), "stalled tunnel was not back-pressured");
+            assertEquals(last, sent.get(), "stalled tunnel kept accepting data");
+
+            try (Socket active = tunnel()) {
+                byte[] payload = random(2, 8 * 1024 * 1024);
+                Future<?> written = write(active, payload, new AtomicLong());
+                assertArrayEquals(payload, read(active, payload.length));
+                written.get(10, TimeUnit.SECONDS);
+            }
+
+            // 恢复读取后暂停期间的数据完整送达
+            assertArrayEquals(stalledPayload, read(stalled, stalledPayload.length));
+            stalledWritten.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void goAwayDrainsOpenStreams() throws Exception {
+        try (Socket tunnel = tunnel()) {
+            roundTrip(tunnel, 3);
+            Thread closer = new Thread(egress::close, "egress-close");
+            closer.start();
+            Thread.sleep(500);
+            assertTrue(closer.isAlive(), "egress should wait for the open stream");
+
+            // 收到GOAWAY之后已有的流继续转发
+            roundTrip(tunnel, 4);
+            // egress不再接受新连接，新隧道立即失败而不是挂起
+            try (Socket rejected = new Socket("127.0.0.1", edge.socks5Port)) {
+                rejected.setSoTimeout(5_000);
+                assertNotEquals(0, LoopbackProxy.socks5(rejected, 1, "127.0.0.1", echo.port()).status);
+            }
+            roundTrip(tunnel, 5);
+
+            tunnel.close();
+            // 最后一个流结束后edge关闭连接，egress不必等到drain-timeout
+            closer.join(5_000);
+            assertFalse(closer.isAlive(), "egress still draining after the last stream ended");
+        }
+    }
+
+    private Socket tunnel() throws IOException {
+        Socket socket = new Socket("127.0.0.1", edge.socks5Port);
+        socket.setSoTimeout(10_000);
+        LoopbackProxy.Socks5Reply reply = LoopbackProxy.socks5(socket, 1, "127.0.0.1", echo.port());
+        assertEquals(0, reply.status);
+        return socket;
+    }
+
+    private static void roundTrip(Socket tunnel, int seed) throws IOException {
+        byte[] payload = random(seed, 64 * 1024);
+        tunnel.getOutputStream().write(payload);
+        assertArrayEquals(payload, read(tunnel, payload.length));
+    }
+
+    /**
+     * 在另一个线程中写出payload
+     *
+     * @param sent 已经写出的字节数
+     */
+    private Future<?> write(Socket tunnel, byte[] payload, AtomicLong sent) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                OutputStream out = tunnel.getOutputStream();
+                for (int offset = 0; offset < payload.length; offset += 16 * 1024) {
+                    int length = Math.min(16 * 1024, payload.length - offset);
+                    out.write(payload, offset, length);
+                    sent.addAndGet(length);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, executor);
+    }
+
+    private static byte[] read(Socket tunnel, int length) throws IOException {
+        byte[] received = new byte[length];
+        new DataInputStream(tunnel.getInputStream()).readFully(received);
+        return received;
+    }
+
+    private static byte[] random(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}